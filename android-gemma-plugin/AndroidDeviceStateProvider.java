@@ -0,0 +1,56 @@
+package com.lifelight.gemma;
+
+import android.content.Context;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+import android.util.Log;
+
+/**
+ * Device state read from PowerManager and BatteryManager
+ */
+public class AndroidDeviceStateProvider implements DeviceStateProvider {
+
+    private static final String TAG = "DeviceStateProvider";
+
+    private final PowerManager powerManager;
+    private final BatteryManager batteryManager;
+
+    public AndroidDeviceStateProvider(Context context) {
+        this.powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        this.batteryManager = (BatteryManager) context.getSystemService(Context.BATTERY_SERVICE);
+    }
+
+    @Override
+    public int getThermalStatus() {
+        // Thermal status API is only available from Android 10
+        if (powerManager == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+            return THERMAL_NONE;
+        }
+        try {
+            return powerManager.getCurrentThermalStatus();
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to read thermal status", e);
+            return THERMAL_NONE;
+        }
+    }
+
+    @Override
+    public int getBatteryLevel() {
+        if (batteryManager == null) {
+            return -1;
+        }
+        int level = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY);
+        return level > 0 ? level : -1;
+    }
+
+    @Override
+    public boolean isCharging() {
+        return batteryManager != null && batteryManager.isCharging();
+    }
+
+    @Override
+    public boolean isPowerSaveMode() {
+        return powerManager != null && powerManager.isPowerSaveMode();
+    }
+}
@@ -0,0 +1,497 @@
+package com.lifelight.gemma;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Encrypted append-only log of conversation messages and stored generation results
+ * Each record is sealed with AES-GCM under its own nonce, with its file offset as
+ * associated data so records cannot be moved. A side index of (key hash, offset,
+ * kind) entries is loaded into memory on open, so a result or a page of a
+ * conversation's messages is found without scanning. Appends return at once; a
+ * writer thread writes whatever has queued up and syncs the log once per batch.
+ * The index is never synced: after a crash it is rebuilt from the log's tail.
+ */
+public class ConversationLog implements Closeable {
+
+    public static final String ROLE_SYSTEM = "system";
+    public static final String ROLE_USER = "user";
+    public static final String ROLE_ASSISTANT = "assistant";
+
+    private static final String LOG_FILE = "history.log";
+    private static final String INDEX_FILE = "history.idx";
+    private static final byte KIND_MESSAGE = 1;
+    private static final byte KIND_RESULT = 2;
+    private static final byte KIND_CLEAR = 3; // drops a conversation's earlier messages
+    private static final int INDEX_ENTRY_BYTES = 8 + 8 + 1;
+    private static final int NONCE_BYTES = 12;
+    private static final int TAG_BITS = 128;
+    private static final int MAX_BATCH = 64;
+
+    /**
+     * A message or stored result
+     */
+    public static class Entry {
+        public String key; // conversation ID for messages, result ID for results
+        public String role; // null for results
+        public String text;
+        public long createdAt;
+    }
+
+    private static class Pending {
+        final byte kind;
+        final Entry entry;
+        final CompletableFuture<Void> written = new CompletableFuture<>();
+
+        Pending(byte kind, Entry entry) {
+            this.kind = kind;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * Growable list of record offsets
+     */
+    private static class Offsets {
+        long[] values = new long[8];
+        int size = 0;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    private static final Pending CLOSE = new Pending((byte) 0, null);
+
+    private final SecretKey key;
+    private final SecureRandom random = new SecureRandom();
+    private final RandomAccessFile logFile;
+    private final FileChannel log;
+    private final RandomAccessFile indexFile;
+    private final FileChannel index;
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final ThreadLocal<Cipher> readCipher = new ThreadLocal<>();
+
+    // Guarded by this
+    private final Map<Long, Offsets> conversations = new HashMap<>();
+    private final Map<Long, Long> results = new HashMap<>();
+    private long records = 0;
+
+    // Writer thread only
+    private long logEnd;
+    private Cipher writeCipher;
+    private volatile long syncs = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * Open (or create) the log in a directory, recovering records the index missed
+     * @param key AES key that seals every record
+     */
+    public ConversationLog(File directory, SecretKey key) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        this.key = key;
+        this.logFile = new RandomAccessFile(new File(directory, LOG_FILE), "rw");
+        this.log = logFile.getChannel();
+        this.indexFile = new RandomAccessFile(new File(directory, INDEX_FILE), "rw");
+        this.index = indexFile.getChannel();
+        try {
+            writeCipher = Cipher.getInstance("AES/GCM/NoPadding");
+            load();
+        } catch (GeneralSecurityException | IOException | RuntimeException e) {
+            closeFiles();
+            throw e instanceof IOException ? (IOException) e : new IOException("Unable to open history: " + e.getMessage());
+        }
+        this.writer = new Thread(this::runWriter, "gemma-history-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public CompletableFuture<Void> appendMessage(String conversationId, String role, String text) {
+        return enqueue(KIND_MESSAGE, conversationId, role, text);
+    }
+
+    /**
+     * Store a generation result under its ID; a later result with the same ID replaces it
+     */
+    public CompletableFuture<Void> putResult(String resultId, String text) {
+        return enqueue(KIND_RESULT, resultId, null, text);
+    }
+
+    /**
+     * Drop a conversation's messages; later appends start it afresh
+     */
+    public CompletableFuture<Void> clearConversation(String conversationId) {
+        return enqueue(KIND_CLEAR, conversationId, null, "");
+    }
+
+    private CompletableFuture<Void> enqueue(byte kind, String key, String role, String text) {
+        Entry entry = new Entry();
+        entry.key = key;
+        entry.role = role;
+        entry.text = text;
+        entry.createdAt = System.currentTimeMillis();
+        Pending pending = new Pending(kind, entry);
+        if (closed) {
+            pending.written.completeExceptionally(new IOException("History log is closed"));
+            return pending.written;
+        }
+        queue.add(pending);
+        return pending.written;
+    }
+
+    public synchronized int getMessageCount(String conversationId) {
+        Offsets offsets = conversations.get(hash(KIND_MESSAGE, conversationId));
+        return offsets != null ? offsets.size : 0;
+    }
+
+    /**
+     * A page of a conversation, oldest first: up to {@code limit} messages ending
+     * just before position {@code before} (negative for the latest page)
+     */
+    public List<Entry> getMessages(String conversationId, int before, int limit) throws IOException {
+        long[] page;
+        synchronized (this) {
+            Offsets offsets = conversations.get(hash(KIND_MESSAGE, conversationId));
+            if (offsets == null) {
+                return new ArrayList<>();
+            }
+            int end = before < 0 ? offsets.size : Math.min(before, offsets.size);
+            int start = Math.max(0, end - limit);
+            page = Arrays.copyOfRange(offsets.values, start, end);
+        }
+
+        List<Entry> messages = new ArrayList<>(page.length);
+        for (long offset : page) {
+            Entry entry = read(offset);
+            // A 64-bit hash collision would surface here as another conversation's record
+            if (entry.key.equals(conversationId)) {
+                messages.add(entry);
+            }
+        }
+        return messages;
+    }
+
+    public Entry getResult(String resultId) throws IOException {
+        Long offset;
+        synchronized (this) {
+            offset = results.get(hash(KIND_RESULT, resultId));
+        }
+        if (offset == null) {
+            return null;
+        }
+        Entry entry = read(offset);
+        return entry.key.equals(resultId) ? entry : null;
+    }
+
+    /**
+     * Wait until everything appended so far is on disk
+     */
+    public void flush() throws IOException {
+        try {
+            appendBarrier().get();
+        } catch (Exception e) {
+            throw new IOException("History flush failed: " + e.getMessage());
+        }
+    }
+
+    private CompletableFuture<Void> appendBarrier() {
+        // Carries no record; completes once everything queued before it is synced
+        Pending barrier = new Pending((byte) 0, null);
+        queue.add(barrier);
+        return barrier.written;
+    }
+
+    public synchronized long getRecordCount() {
+        return records;
+    }
+
+    public long getSyncCount() {
+        return syncs;
+    }
+
+    public long getSizeBytes() throws IOException {
+        return log.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.add(CLOSE);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeFiles();
+    }
+
+    private void closeFiles() throws IOException {
+        logFile.close();
+        indexFile.close();
+    }
+
+    /**
+     * Write whatever has queued, then sync the log once for the whole batch
+     */
+    private void runWriter() {
+        List<Pending> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+
+            boolean closing = false;
+            try {
+                boolean wrote = false;
+                for (Pending pending : batch) {
+                    if (pending == CLOSE) {
+                        closing = true;
+                    } else if (pending.entry != null) {
+                        write(pending.kind, pending.entry);
+                        wrote = true;
+                    }
+                }
+                if (wrote) {
+                    log.force(false);
+                    syncs++;
+                }
+                for (Pending pending : batch) {
+                    pending.written.complete(null);
+                }
+            } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                for (Pending pending : batch) {
+                    pending.written.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+            if (closing) {
+                // Fail anything that slipped in behind the close
+                for (Pending pending; (pending = queue.poll()) != null; ) {
+                    pending.written.completeExceptionally(new IOException("History log is closed"));
+                }
+                return;
+            }
+        }
+    }
+
+    private void write(byte kind, Entry entry) throws IOException, GeneralSecurityException {
+        long offset = logEnd;
+        byte[] sealed = seal(encode(kind, entry), offset);
+        ByteBuffer record = ByteBuffer.allocate(4 + sealed.length).order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(sealed.length).put(sealed).flip();
+        writeFully(log, record, offset);
+        logEnd = offset + 4 + sealed.length;
+
+        long hash = hash(kind == KIND_CLEAR ? KIND_MESSAGE : kind, entry.key);
+        ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        indexEntry.putLong(hash).putLong(offset).put(kind).flip();
+        writeFully(index, indexEntry, index.size());
+        addToIndex(hash, offset, kind);
+    }
+
+    private synchronized void addToIndex(long hash, long offset, byte kind) {
+        records++;
+        if (kind == KIND_RESULT) {
+            results.put(hash, offset);
+        } else if (kind == KIND_CLEAR) {
+            conversations.remove(hash);
+        } else {
+            Offsets offsets = conversations.get(hash);
+            if (offsets == null) {
+                offsets = new Offsets();
+                conversations.put(hash, offsets);
+            }
+            offsets.add(offset);
+        }
+    }
+
+    /**
+     * Load the index, drop entries for records the log lost, and index records it missed
+     */
+    private void load() throws IOException, GeneralSecurityException {
+        long logSize = log.size();
+        long entries = index.size() / INDEX_ENTRY_BYTES;
+        ByteBuffer buffer = ByteBuffer.allocate((int) (entries * INDEX_ENTRY_BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(index, buffer, 0);
+        buffer.flip();
+
+        logEnd = 0;
+        long valid = 0;
+        for (; valid < entries; valid++) {
+            long hash = buffer.getLong();
+            long offset = buffer.getLong();
+            byte kind = buffer.get();
+            long end = offset + 4 + recordLength(offset, logSize);
+            if (offset != logEnd || end > logSize) {
+                break;
+            }
+            addToIndex(hash, offset, kind);
+            logEnd = end;
+        }
+        index.truncate(valid * INDEX_ENTRY_BYTES);
+
+        // Records written after the index was last extended
+        while (logEnd + 4 <= logSize) {
+            int length = recordLength(logEnd, logSize);
+            if (length < 0 || logEnd + 4 + length > logSize) {
+                break;
+            }
+            Entry entry;
+            byte kind;
+            try {
+                ByteBuffer plain = ByteBuffer.wrap(open(logEnd, length)).order(ByteOrder.LITTLE_ENDIAN);
+                kind = plain.get();
+                entry = decode(plain);
+            } catch (GeneralSecurityException e) {
+                break; // torn write
+            }
+            long hash = hash(kind == KIND_CLEAR ? KIND_MESSAGE : kind, entry.key);
+            ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            indexEntry.putLong(hash).putLong(logEnd).put(kind).flip();
+            writeFully(index, indexEntry, index.size());
+            addToIndex(hash, logEnd, kind);
+            logEnd += 4 + length;
+        }
+        log.truncate(logEnd);
+    }
+
+    private int recordLength(long offset, long logSize) throws IOException {
+        if (offset + 4 > logSize) {
+            return Integer.MAX_VALUE / 2;
+        }
+        ByteBuffer header = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(log, header, offset);
+        return header.getInt(0);
+    }
+
+    private Entry read(long offset) throws IOException {
+        try {
+            int length = recordLength(offset, log.size());
+            ByteBuffer plain = ByteBuffer.wrap(open(offset, length)).order(ByteOrder.LITTLE_ENDIAN);
+            plain.get(); // kind
+            return decode(plain);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("History record at " + offset + " failed authentication");
+        }
+    }
+
+    private byte[] seal(byte[] plain, long offset) throws GeneralSecurityException {
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        writeCipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+        writeCipher.updateAAD(offsetBytes(offset));
+        byte[] sealed = writeCipher.doFinal(plain);
+        byte[] record = new byte[NONCE_BYTES + sealed.length];
+        System.arraycopy(nonce, 0, record, 0, NONCE_BYTES);
+        System.arraycopy(sealed, 0, record, NONCE_BYTES, sealed.length);
+        return record;
+    }
+
+    private byte[] open(long offset, int length) throws IOException, GeneralSecurityException {
+        ByteBuffer record = ByteBuffer.allocate(length);
+        readFully(log, record, offset + 4);
+        byte[] bytes = record.array();
+
+        Cipher cipher = readCipher.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            readCipher.set(cipher);
+        }
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, bytes, 0, NONCE_BYTES));
+        cipher.updateAAD(offsetBytes(offset));
+        return cipher.doFinal(bytes, NONCE_BYTES, length - NONCE_BYTES);
+    }
+
+    private static byte[] encode(byte kind, Entry entry) {
+        byte[] key = entry.key.getBytes(StandardCharsets.UTF_8);
+        byte[] role = (entry.role != null ? entry.role : "").getBytes(StandardCharsets.UTF_8);
+        byte[] text = entry.text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + 4 + key.length + 4 + role.length + 4 + text.length)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(kind).putLong(entry.createdAt);
+        buffer.putInt(key.length).put(key);
+        buffer.putInt(role.length).put(role);
+        buffer.putInt(text.length).put(text);
+        return buffer.array();
+    }
+
+    private static Entry decode(ByteBuffer buffer) {
+        Entry entry = new Entry();
+        entry.createdAt = buffer.getLong();
+        entry.key = readString(buffer);
+        String role = readString(buffer);
+        entry.role = role.isEmpty() ? null : role;
+        entry.text = readString(buffer);
+        return entry;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] offsetBytes(long offset) {
+        return ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(offset).array();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of history file");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a over the kind and key, so message and result IDs never meet
+     */
+    private static long hash(byte kind, String key) {
+        long hash = 0xcbf29ce484222325L;
+        hash ^= kind;
+        hash *= 0x100000001b3L;
+        for (byte value : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= value & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
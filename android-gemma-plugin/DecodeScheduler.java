@@ -0,0 +1,205 @@
+package com.lifelight.gemma;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Single-threaded round-robin runner for generation work
+ * Each task advances by one bounded unit (a prefill chunk or a decode step) per
+ * turn, so a long prompt is prefilled between other requests' decode steps
+ * instead of holding the session for its whole length. Background tasks only
+ * step when no foreground task is waiting.
+ */
+public class DecodeScheduler {
+
+    /**
+     * Generation work that can be advanced a step at a time
+     */
+    public interface Task {
+        /**
+         * Run one prefill chunk or decode step
+         * @return true when the task has finished
+         */
+        boolean step() throws Exception;
+
+        /**
+         * Free the task's resources; called once, after it finishes or fails
+         */
+        void release();
+    }
+
+    private static class Entry {
+        final Task task;
+        final boolean background;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Entry(Task task, boolean background) {
+            this.task = task;
+            this.background = background;
+        }
+    }
+
+    private final Object lock = new Object();
+    private final ArrayDeque<Entry> runQueue = new ArrayDeque<>();
+    private final ArrayDeque<Entry> backgroundQueue = new ArrayDeque<>();
+    private final Thread worker;
+    private boolean shutdown = false;
+    private boolean aborted = false;
+    private volatile long stepsRun = 0;
+
+    public DecodeScheduler(String threadName) {
+        worker = new Thread(this::runLoop, threadName);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Queue a task behind the ones already running
+     * @return completes when the task finishes, or exceptionally if a step throws
+     */
+    public CompletableFuture<Void> submit(Task task) {
+        return submit(task, false);
+    }
+
+    /**
+     * Queue a task; background tasks yield every turn to any foreground task
+     */
+    public CompletableFuture<Void> submit(Task task, boolean background) {
+        Entry entry = new Entry(task, background);
+        synchronized (lock) {
+            if (!shutdown) {
+                queueFor(entry).addLast(entry);
+                lock.notifyAll();
+                return entry.future;
+            }
+        }
+        finish(entry, shutDownError());
+        return entry.future;
+    }
+
+    /**
+     * Stop accepting tasks; queued ones still run to completion
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Stop accepting tasks, wait for the worker to exit and fail the queued ones.
+     * The step in progress, if any, finishes first, so once this returns no task
+     * is using a session and the sessions can be closed. Queued tasks are released
+     * only after the join: a released task closes its TokenPipeline stream, and
+     * the worker must be the pipeline's only producer while it is still stepping.
+     */
+    public void shutdownAndJoin() {
+        List<Entry> dropped = new ArrayList<>();
+        synchronized (lock) {
+            shutdown = true;
+            aborted = true;
+            dropped.addAll(runQueue);
+            dropped.addAll(backgroundQueue);
+            runQueue.clear();
+            backgroundQueue.clear();
+            lock.notifyAll();
+        }
+        if (Thread.currentThread() != worker) {
+            joinWorker();
+        }
+        for (Entry entry : dropped) {
+            finish(entry, shutDownError());
+        }
+    }
+
+    public int getQueuedTasks() {
+        synchronized (lock) {
+            return runQueue.size() + backgroundQueue.size();
+        }
+    }
+
+    public long getStepsRun() {
+        return stepsRun;
+    }
+
+    private void runLoop() {
+        while (true) {
+            Entry entry;
+            synchronized (lock) {
+                while (runQueue.isEmpty() && backgroundQueue.isEmpty() && !shutdown) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (runQueue.isEmpty() && backgroundQueue.isEmpty()) {
+                    return;
+                }
+                entry = !runQueue.isEmpty() ? runQueue.pollFirst() : backgroundQueue.pollFirst();
+            }
+
+            boolean done;
+            Tracer.begin(Tracer.SCHEDULER_STEP);
+            try {
+                done = entry.task.step();
+                stepsRun++;
+            } catch (Throwable t) {
+                finish(entry, t);
+                continue;
+            } finally {
+                Tracer.end(Tracer.SCHEDULER_STEP);
+            }
+
+            if (done) {
+                finish(entry, null);
+                continue;
+            }
+            synchronized (lock) {
+                if (!aborted) {
+                    queueFor(entry).addLast(entry);
+                    continue;
+                }
+            }
+            finish(entry, shutDownError());
+        }
+    }
+
+    private void joinWorker() {
+        boolean interrupted = false;
+        while (worker.isAlive()) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                // Returning early would let the caller free a session mid-run
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static IllegalStateException shutDownError() {
+        return new IllegalStateException("Decode scheduler is shut down");
+    }
+
+    private ArrayDeque<Entry> queueFor(Entry entry) {
+        return entry.background ? backgroundQueue : runQueue;
+    }
+
+    private void finish(Entry entry, Throwable failure) {
+        try {
+            entry.task.release();
+        } finally {
+            if (failure != null) {
+                entry.future.completeExceptionally(failure);
+            } else {
+                entry.future.complete(null);
+            }
+        }
+    }
+}
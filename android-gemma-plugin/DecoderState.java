@@ -0,0 +1,131 @@
+package com.lifelight.gemma;
+
+import ai.onnxruntime.OnnxTensor;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Per-sequence decoder state: the token IDs seen so far and, for models that
+ * export a KV cache, the past key/value tensors covering them
+ * Forking shares the KV tensors by reference count, so a prefilled prefix can
+ * seed many continuations without being copied or recomputed
+ */
+public class DecoderState implements AutoCloseable {
+
+    private int[] tokens;
+    private int length;
+    private KvCache kvCache;
+    private boolean closed = false;
+
+    public DecoderState() {
+        this.tokens = new int[64];
+    }
+
+    private DecoderState(int[] tokens, int length, KvCache kvCache) {
+        this.tokens = tokens;
+        this.length = length;
+        this.kvCache = kvCache;
+    }
+
+    /**
+     * State rebuilt from persisted tokens and the KV tensors covering them
+     */
+    static DecoderState restore(int[] tokens, KvCache kvCache) {
+        return new DecoderState(Arrays.copyOf(tokens, Math.max(64, tokens.length + 16)), tokens.length, kvCache);
+    }
+
+    /**
+     * Independent copy that shares the current KV tensors
+     */
+    public DecoderState fork() {
+        if (kvCache != null) {
+            kvCache.retain();
+        }
+        return new DecoderState(Arrays.copyOf(tokens, Math.max(tokens.length, length + 16)), length, kvCache);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public int tokenAt(int index) {
+        return tokens[index];
+    }
+
+    public int[] tokens() {
+        return Arrays.copyOf(tokens, length);
+    }
+
+    /**
+     * Number of positions covered by the KV cache (0 when the model has none)
+     */
+    public int cachedLength() {
+        return kvCache != null ? kvCache.length : 0;
+    }
+
+    KvCache kvCache() {
+        return kvCache;
+    }
+
+    void append(int[] newTokens) {
+        if (length + newTokens.length > tokens.length) {
+            tokens = Arrays.copyOf(tokens, Math.max(tokens.length * 2, length + newTokens.length));
+        }
+        System.arraycopy(newTokens, 0, tokens, length, newTokens.length);
+        length += newTokens.length;
+    }
+
+    /**
+     * Drop tokens past {@code newLength}; only valid for tokens not yet covered by the KV cache
+     */
+    void truncate(int newLength) {
+        length = Math.max(cachedLength(), Math.min(length, newLength));
+    }
+
+    /**
+     * Swap in a new KV cache, releasing this state's hold on the old one
+     */
+    void replaceKvCache(KvCache next) {
+        if (kvCache != null) {
+            kvCache.release();
+        }
+        kvCache = next;
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            replaceKvCache(null);
+        }
+    }
+
+    /**
+     * Present tensors from one session run (or restored from a snapshot), closed when
+     * the last state holding them lets go
+     */
+    static class KvCache {
+        final Map<String, OnnxTensor> tensors; // keyed by the past input name they feed
+        final int length;
+        private int references = 1;
+
+        KvCache(Map<String, OnnxTensor> tensors, int length) {
+            this.tensors = tensors;
+            this.length = length;
+        }
+
+        synchronized void retain() {
+            references++;
+        }
+
+        synchronized void release() {
+            if (--references > 0) {
+                return;
+            }
+            for (OnnxTensor tensor : tensors.values()) {
+                tensor.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.lifelight.gemma;
+
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collections;
+
+/**
+ * Tuned ONNX Runtime session settings for one model on one device
+ */
+public class DeviceProfile {
+
+    public static final String PROVIDER_CPU = "cpu";
+    public static final String PROVIDER_XNNPACK = "xnnpack";
+    public static final String PROVIDER_NNAPI = "nnapi";
+
+    public String modelKey;
+    public String deviceKey;
+    public int intraOpThreads = 4;
+    public int interOpThreads = 1;
+    public boolean parallelExecution = false;
+    public String executionProvider = PROVIDER_CPU;
+    public OrtSession.SessionOptions.OptLevel optimizationLevel = OrtSession.SessionOptions.OptLevel.BASIC_OPT;
+
+    // Calibration results
+    public double prefillMs;
+    public double decodeMsPerToken;
+    public long calibratedAt;
+
+    /**
+     * Copy the tuning knobs (not the results) into a new candidate
+     */
+    public DeviceProfile copy() {
+        DeviceProfile profile = new DeviceProfile();
+        profile.modelKey = modelKey;
+        profile.deviceKey = deviceKey;
+        profile.intraOpThreads = intraOpThreads;
+        profile.interOpThreads = interOpThreads;
+        profile.parallelExecution = parallelExecution;
+        profile.executionProvider = executionProvider;
+        profile.optimizationLevel = optimizationLevel;
+        return profile;
+    }
+
+    /**
+     * Apply this profile to session options, overriding the intra-op thread count
+     */
+    public void applyTo(OrtSession.SessionOptions sessionOptions, int intraOpThreadsOverride) throws OrtException {
+        sessionOptions.setIntraOpNumThreads(intraOpThreadsOverride);
+        sessionOptions.setInterOpNumThreads(interOpThreads);
+        sessionOptions.setExecutionMode(parallelExecution
+            ? OrtSession.SessionOptions.ExecutionMode.PARALLEL
+            : OrtSession.SessionOptions.ExecutionMode.SEQUENTIAL);
+        sessionOptions.setOptimizationLevel(optimizationLevel);
+        sessionOptions.setMemoryPatternOptimization(true);
+
+        if (PROVIDER_XNNPACK.equals(executionProvider)) {
+            // XNNPACK runs its own pool; keep ORT's intra-op pool from competing with it
+            sessionOptions.addXnnpack(Collections.singletonMap("intra_op_num_threads",
+                String.valueOf(intraOpThreadsOverride)));
+            sessionOptions.setIntraOpNumThreads(1);
+        } else if (PROVIDER_NNAPI.equals(executionProvider)) {
+            sessionOptions.addNnapi();
+        }
+    }
+
+    /**
+     * Combined cost used to rank candidates: one prefill plus a typical answer's decode steps
+     */
+    public double score(int expectedDecodeTokens) {
+        return prefillMs + decodeMsPerToken * expectedDecodeTokens;
+    }
+
+    public String describe() {
+        return executionProvider + "/" + optimizationLevel + "/intra=" + intraOpThreads
+            + "/inter=" + interOpThreads + (parallelExecution ? "/parallel" : "");
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("modelKey", modelKey);
+        json.put("deviceKey", deviceKey);
+        json.put("intraOpThreads", intraOpThreads);
+        json.put("interOpThreads", interOpThreads);
+        json.put("parallelExecution", parallelExecution);
+        json.put("executionProvider", executionProvider);
+        json.put("optimizationLevel", optimizationLevel.name());
+        json.put("prefillMs", prefillMs);
+        json.put("decodeMsPerToken", decodeMsPerToken);
+        json.put("calibratedAt", calibratedAt);
+        return json;
+    }
+
+    public static DeviceProfile fromJson(JSONObject json) {
+        DeviceProfile profile = new DeviceProfile();
+        profile.modelKey = json.optString("modelKey", null);
+        profile.deviceKey = json.optString("deviceKey", null);
+        profile.intraOpThreads = json.optInt("intraOpThreads", profile.intraOpThreads);
+        profile.interOpThreads = json.optInt("interOpThreads", profile.interOpThreads);
+        profile.parallelExecution = json.optBoolean("parallelExecution", false);
+        profile.executionProvider = json.optString("executionProvider", PROVIDER_CPU);
+        try {
+            profile.optimizationLevel = OrtSession.SessionOptions.OptLevel.valueOf(
+                json.optString("optimizationLevel", profile.optimizationLevel.name()));
+        } catch (IllegalArgumentException e) {
+            // Unknown level from an older runtime; keep the default
+        }
+        profile.prefillMs = json.optDouble("prefillMs", 0);
+        profile.decodeMsPerToken = json.optDouble("decodeMsPerToken", 0);
+        profile.calibratedAt = json.optLong("calibratedAt", 0);
+        return profile;
+    }
+}
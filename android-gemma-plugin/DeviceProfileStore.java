@@ -0,0 +1,89 @@
+package com.lifelight.gemma;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Persists tuned device profiles as a small JSON file in app storage,
+ * keyed by model fingerprint and device fingerprint
+ */
+public class DeviceProfileStore {
+
+    private final File file;
+
+    public DeviceProfileStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Load the profile for a model on this device, or null if it was never calibrated
+     */
+    public synchronized DeviceProfile load(String modelKey, String deviceKey) throws IOException {
+        JSONObject profiles = readAll();
+        JSONObject json = profiles.optJSONObject(keyFor(modelKey, deviceKey));
+        return json != null ? DeviceProfile.fromJson(json) : null;
+    }
+
+    public synchronized void save(DeviceProfile profile) throws IOException {
+        try {
+            JSONObject profiles = readAll();
+            profiles.put(keyFor(profile.modelKey, profile.deviceKey), profile.toJson());
+
+            // Write to a temp file and rename so a crash never leaves a half-written store
+            File temp = new File(file.getPath() + ".tmp");
+            try (OutputStream out = new FileOutputStream(temp)) {
+                out.write(profiles.toString().getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to replace " + file);
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to save device profile: " + e.getMessage());
+        }
+    }
+
+    public synchronized void clear() {
+        if (file.exists() && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private JSONObject readAll() throws IOException {
+        if (!file.exists()) {
+            return new JSONObject();
+        }
+
+        byte[] data = new byte[(int) file.length()];
+        try (InputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+        }
+
+        try {
+            return new JSONObject(new String(data, StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            // A corrupt store only costs a recalibration
+            return new JSONObject();
+        }
+    }
+
+    private static String keyFor(String modelKey, String deviceKey) {
+        return modelKey + "|" + deviceKey;
+    }
+}
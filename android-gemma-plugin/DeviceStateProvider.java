@@ -0,0 +1,30 @@
+package com.lifelight.gemma;
+
+/**
+ * Source of device thermal and battery state for the inference governor
+ * Thermal levels follow android.os.PowerManager's THERMAL_STATUS_* values
+ */
+public interface DeviceStateProvider {
+
+    int THERMAL_NONE = 0;
+    int THERMAL_LIGHT = 1;
+    int THERMAL_MODERATE = 2;
+    int THERMAL_SEVERE = 3;
+    int THERMAL_CRITICAL = 4;
+    int THERMAL_EMERGENCY = 5;
+    int THERMAL_SHUTDOWN = 6;
+
+    /**
+     * Current thermal status, THERMAL_NONE when unknown
+     */
+    int getThermalStatus();
+
+    /**
+     * Battery charge in percent (0-100), -1 when unknown
+     */
+    int getBatteryLevel();
+
+    boolean isCharging();
+
+    boolean isPowerSaveMode();
+}
@@ -0,0 +1,200 @@
+package com.lifelight.gemma;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Splits long text into token-bounded chunks that overlap by a few sentences
+ * The text is cut at sentence and paragraph boundaries, the pieces are tokenized
+ * in parallel on a fork-join pool (a piece still over the limit is split again at
+ * the whitespace nearest its middle), and consecutive pieces are then packed into
+ * chunks. Each chunk starts with the trailing pieces of the previous one, up to
+ * the overlap budget, so a statement cut at a boundary appears whole in one chunk.
+ */
+public class DocumentChunker {
+
+    // Pieces per fork-join leaf; tokenizing one is too cheap to be worth a task of its own
+    private static final int LEAF_PIECES = 16;
+
+    /**
+     * Token counter for a piece of text; must be safe to call from several threads
+     */
+    public interface Tokenizer {
+        int count(String text);
+    }
+
+    /**
+     * A chunk of the source text
+     */
+    public static class Chunk {
+        public int index;
+        public int start; // character range in the source text
+        public int end;
+        public int tokenCount;
+        public String text;
+    }
+
+    private static class Piece {
+        final int start;
+        final int end;
+        final int tokens;
+
+        Piece(int start, int end, int tokens) {
+            this.start = start;
+            this.end = end;
+            this.tokens = tokens;
+        }
+    }
+
+    private final Tokenizer tokenizer;
+    private final int maxTokens;
+    private final int overlapTokens;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param maxTokens upper bound on a chunk's tokens
+     * @param overlapTokens tokens repeated from the end of the previous chunk, at most
+     */
+    public DocumentChunker(Tokenizer tokenizer, int maxTokens, int overlapTokens, ForkJoinPool pool) {
+        if (maxTokens < 1) {
+            throw new IllegalArgumentException("maxTokens must be positive");
+        }
+        this.tokenizer = tokenizer;
+        this.maxTokens = maxTokens;
+        this.overlapTokens = Math.max(0, Math.min(overlapTokens, maxTokens / 2));
+        this.pool = pool;
+    }
+
+    public List<Chunk> split(String text) {
+        List<Integer> ends = boundaries(text);
+        List<Piece> pieces = pool.invoke(new TokenizeTask(text, ends, 0, ends.size()));
+
+        List<Chunk> chunks = new ArrayList<>();
+        int first = 0;
+        while (first < pieces.size()) {
+            int last = first;
+            int tokens = 0;
+            while (last < pieces.size() && (last == first || tokens + pieces.get(last).tokens <= maxTokens)) {
+                tokens += pieces.get(last++).tokens;
+            }
+            chunks.add(chunk(text, chunks.size(), pieces.get(first).start, pieces.get(last - 1).end, tokens));
+            if (last >= pieces.size()) {
+                break;
+            }
+
+            // Back up over trailing pieces that fit in the overlap, always moving forward
+            int next = last;
+            int overlap = 0;
+            while (next - 1 > first && overlap + pieces.get(next - 1).tokens <= overlapTokens) {
+                overlap += pieces.get(--next).tokens;
+            }
+            first = next;
+        }
+        return chunks;
+    }
+
+    private static Chunk chunk(String text, int index, int start, int end, int tokens) {
+        Chunk chunk = new Chunk();
+        chunk.index = index;
+        chunk.start = start;
+        chunk.end = end;
+        chunk.tokenCount = tokens;
+        chunk.text = text.substring(start, end);
+        return chunk;
+    }
+
+    /**
+     * Piece end offsets: after sentence punctuation or a line break that is followed by whitespace
+     */
+    private static List<Integer> boundaries(String text) {
+        List<Integer> ends = new ArrayList<>();
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            boolean terminal = c == '.' || c == '!' || c == '?' || c == ';' || c == '\n';
+            if (terminal && (i + 1 == length || Character.isWhitespace(text.charAt(i + 1)))) {
+                int end = i + 1;
+                while (end < length && Character.isWhitespace(text.charAt(end))) {
+                    end++;
+                }
+                ends.add(end);
+                i = end - 1;
+            }
+        }
+        if (ends.isEmpty() || ends.get(ends.size() - 1) < length) {
+            ends.add(length);
+        }
+        return ends;
+    }
+
+    /**
+     * Tokenizes pieces {@code [from, to)} of the boundary list, splitting the range in
+     * half until it is small enough to do directly
+     */
+    private class TokenizeTask extends RecursiveTask<List<Piece>> {
+        private static final long serialVersionUID = 1L;
+
+        private final String text;
+        private final List<Integer> ends;
+        private final int from;
+        private final int to;
+
+        TokenizeTask(String text, List<Integer> ends, int from, int to) {
+            this.text = text;
+            this.ends = ends;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Piece> compute() {
+            if (to - from > LEAF_PIECES) {
+                int middle = (from + to) >>> 1;
+                TokenizeTask left = new TokenizeTask(text, ends, from, middle);
+                left.fork();
+                List<Piece> right = new TokenizeTask(text, ends, middle, to).compute();
+                List<Piece> pieces = left.join();
+                pieces.addAll(right);
+                return pieces;
+            }
+
+            List<Piece> pieces = new ArrayList<>();
+            for (int i = from; i < to; i++) {
+                measure(i == 0 ? 0 : ends.get(i - 1), ends.get(i), pieces);
+            }
+            return pieces;
+        }
+
+        /**
+         * Add {@code [start, end)} as one piece, or as several if it is over the chunk limit
+         */
+        private void measure(int start, int end, List<Piece> pieces) {
+            int tokens = tokenizer.count(text.substring(start, end));
+            if (tokens <= maxTokens || end - start < 2) {
+                pieces.add(new Piece(start, end, tokens));
+                return;
+            }
+            int middle = splitPoint(start, end);
+            measure(start, middle, pieces);
+            measure(middle, end, pieces);
+        }
+
+        /**
+         * The whitespace nearest the middle of a range, or the middle itself if there is none
+         */
+        private int splitPoint(int start, int end) {
+            int middle = (start + end) >>> 1;
+            for (int distance = 0; middle - distance > start || middle + distance < end; distance++) {
+                if (middle + distance < end && Character.isWhitespace(text.charAt(middle + distance))) {
+                    return middle + distance + 1 < end ? middle + distance + 1 : middle + distance;
+                }
+                if (middle - distance > start && Character.isWhitespace(text.charAt(middle - distance))) {
+                    return middle - distance + 1;
+                }
+            }
+            return middle;
+        }
+    }
+}
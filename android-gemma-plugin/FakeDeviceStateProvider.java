@@ -0,0 +1,48 @@
+package com.lifelight.gemma;
+
+/**
+ * Settable device state for running the governor off-device (JVM tests, replay on Linux)
+ */
+public class FakeDeviceStateProvider implements DeviceStateProvider {
+
+    private volatile int thermalStatus = THERMAL_NONE;
+    private volatile int batteryLevel = 100;
+    private volatile boolean charging = false;
+    private volatile boolean powerSaveMode = false;
+
+    @Override
+    public int getThermalStatus() {
+        return thermalStatus;
+    }
+
+    @Override
+    public int getBatteryLevel() {
+        return batteryLevel;
+    }
+
+    @Override
+    public boolean isCharging() {
+        return charging;
+    }
+
+    @Override
+    public boolean isPowerSaveMode() {
+        return powerSaveMode;
+    }
+
+    public void setThermalStatus(int thermalStatus) {
+        this.thermalStatus = thermalStatus;
+    }
+
+    public void setBatteryLevel(int batteryLevel) {
+        this.batteryLevel = batteryLevel;
+    }
+
+    public void setCharging(boolean charging) {
+        this.charging = charging;
+    }
+
+    public void setPowerSaveMode(boolean powerSaveMode) {
+        this.powerSaveMode = powerSaveMode;
+    }
+}
@@ -6,27 +6,54 @@ import android.os.Build;
 import android.system.Os;
 import android.system.StructStatVfs;
 import android.util.Log;
-import ai.onnxruntime.OnnxTensor;
+import androidx.security.crypto.EncryptedFile;
+import androidx.security.crypto.MasterKey;
 import ai.onnxruntime.OrtEnvironment;
 import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtProvider;
 import ai.onnxruntime.OrtSession;
-import ai.onnxruntime.OrtSession.Result;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.nio.FloatBuffer;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Manager class for Gemma AI model inference using ONNX Runtime
@@ -36,41 +63,211 @@ public class GemmaAIManager {
     
     private static final String TAG = "GemmaAIManager";
     
+    // Why generation ended, reported back to the bridge
+    public static final String STOP_REASON_EOS = "eos";
+    public static final String STOP_REASON_LENGTH = "length";
+    public static final String STOP_REASON_STOP_SEQUENCE = "stop_sequence";
+    public static final String STOP_REASON_STOP_TOKEN = "stop_token";
+    public static final String STOP_REASON_CANCELLED = "cancelled";
+    public static final String STOP_REASON_TIMEOUT = "timeout";
+    
+    // How long destroy() waits for cancelled requests to unwind
+    private static final long CANCEL_DRAIN_TIMEOUT_MS = 500;
+    // How long destroy() lets queued KV snapshots finish writing
+    private static final long SNAPSHOT_DRAIN_TIMEOUT_MS = 2000;
+    
+    // Short workload used to benchmark session options on first run
+    private static final String CALIBRATION_PROMPT = "What is ibuprofen used for, and what are the common side effects?";
+    private static final int CALIBRATION_DECODE_STEPS = 8;
+    
+    private static final String RESPONSE_CACHE_FILE = "gemma-response-cache.json";
+    private static final String VECTOR_INDEX_FILE = "gemma-vectors.gvix";
+    private static final String INTERACTION_STORE_FILE = "gemma-interactions.gixs";
+    private static final String HISTORY_DIRECTORY = "gemma-history";
+    private static final String HISTORY_KEY_FILE = "gemma-history.key";
+    
+    // Task type that routes to the embedding model
+    public static final String TASK_EMBED = "embed";
+    // Task type for drug-interaction checks
+    public static final String TASK_INTERACTION = "interaction";
+    
+    // Prompts for document summarization: one per chunk, then one combining the chunk summaries
+    private static final String DOCUMENT_MAP_PROMPT = "Summarize this section of a medication leaflet for a patient. "
+        + "Keep doses, warnings, interactions and side effects; leave out everything else.\n\n";
+    private static final String DOCUMENT_REDUCE_PROMPT = "Below are summaries of consecutive sections of a medication "
+        + "leaflet. Combine them into one summary for the patient, keeping every dose, warning, interaction and "
+        + "side effect and removing repetition.\n\n";
+    
+    // Shared prefix for every interaction pair, so the batch path prefills it once
+    private static final String INTERACTION_PROMPT = "You are a clinical pharmacist. For the two medications below, "
+        + "state whether they interact. Give the severity (none, minor, moderate or major), the effect, "
+        + "and what the patient should do. Be brief.\n\n";
+    // Persist the response cache after this many new generations
+    private static final int CACHE_PERSIST_INTERVAL = 16;
+    // Recent requests averaged for the reported inference time
+    private static final int LATENCY_WINDOW = 256;
+    // Tokens the decode thread may run ahead of detokenization before it waits
+    private static final int TOKEN_PIPELINE_CAPACITY = 256;
+    
     // ONNX Runtime components
     private OrtEnvironment ortEnvironment;
     private OrtSession ortSession;
+    private GemmaDecoder decoder;
+    private DecodeScheduler decodeScheduler;
+    // Detokenization and streaming for single-prompt generation, overlapped with the next step
+    private TokenPipeline tokenPipeline;
+    private boolean pipelinedDecode = true;
     private Context context;
     
     // Model configuration
     private JSONObject modelConfig;
     private Map<String, Integer> vocabulary;
-    private Map<Integer, String> reverseVocabulary;
+    private StreamingDetokenizer.Vocabulary tokenVocabulary;
+    // Declared tokenizer_id, or a digest of the loaded vocabulary; routed models must declare the same
+    private String tokenizerId;
     private int maxSequenceLength = 2048;
     private int vocabSize = 32000;
+    private int numKvHeads = 1;
+    private int headDim = 256;
+    private int prefillChunkTokens = 128; // 0 prefills whole prompts in one run
     
     // Performance tracking
-    private List<Long> inferenceTimes = new ArrayList<>();
-    private long totalInferences = 0;
-    private long memoryPeak = 0;
+    // Latencies of the most recent requests; counters are written from plugin and scheduler threads
+    private final LatencyWindow inferenceTimes = new LatencyWindow(LATENCY_WINDOW);
+    private final LongAdder totalInferences = new LongAdder();
+    private final AtomicLong memoryPeak = new AtomicLong();
+    private final LongAdder stopSequenceHits = new LongAdder();
+    private final LongAdder totalTokensSaved = new LongAdder();
+    private final LongAdder cancelledRequests = new LongAdder();
+    private final LongAdder timedOutRequests = new LongAdder();
+    private final LongAdder batchRequests = new LongAdder();
+    private final LongAdder sharedPrefixTokens = new LongAdder();
+    private final LongAdder prefillChunks = new LongAdder();
+    private final LongAdder prefillNanos = new LongAdder();
+    private final LongAdder prefilledTokens = new LongAdder();
     private boolean isInitialized = false;
     
+    // In-flight requests, keyed by request ID, and the watchdog that enforces their deadlines;
+    // the watchdog lives from initialize() to destroy()
+    private final Map<String, InferenceRequest> activeRequests = new ConcurrentHashMap<>();
+    private ScheduledExecutorService deadlineWatchdog;
+    
     // Configuration
     private boolean useGPU = false;
     private int threadCount = 4;
     private int memoryLimit = 1024; // MB
     private String precisionMode = "fp16";
+    private int maxBatchSize = 8;
+    
+    // Adaptive governor; the session is rebuilt when it changes the thread count
+    private final InferenceGovernor governor;
+    private final ReentrantReadWriteLock sessionLock = new ReentrantReadWriteLock();
+    private String modelPath;
+    private int activeThreadCount;
+    
+    // Calibrated session options, persisted per model fingerprint and device
+    private final DeviceProfileStore profileStore;
+    private DeviceProfile deviceProfile;
+    private String modelKey;
+    private boolean autoTune = true;
+    
+    // Deterministic response cache, optionally persisted to app storage
+    private ResponseCache responseCache;
+    private boolean persistResponseCache = false;
+    private final AtomicInteger cacheWritesSinceSave = new AtomicInteger();
+    
+    // Conversation KV snapshots, written off the decode thread
+    private KvSnapshotStore kvSnapshotStore;
+    private long kvSnapshotMaxBytes = 128L * 1024 * 1024;
+    private final LongAdder kvSnapshotRestores = new LongAdder();
+    private final LongAdder kvRestoredTokens = new LongAdder();
+    private final LongAdder kvRestoreNanos = new LongAdder();
+    private final LongAdder kvRecomputeEstimateNanos = new LongAdder();
+    
+    // Encrypted message history and stored results, so the bridge passes IDs instead of transcripts
+    private ConversationLog conversationLog;
+    private int historyMessages = 20;
+    // Request-shape recorder for load replay; null when not recording
+    private volatile WorkloadTrace.Recorder workloadRecorder;
+    private File workloadFile;
+    
+    // Secondary models routed by task or ID, loaded on demand within the memory budget
+    private ModelRegistry modelRegistry;
+    private final List<ModelRegistry.ModelSpec> modelSpecs = new ArrayList<>();
+    private String defaultModelId = "gemma";
+    private int modelMemoryBudgetMb = memoryLimit;
+    
+    // Passage retrieval: embedding batches and the memory-mapped vector index
+    private volatile VectorIndex vectorIndex;
+    private String vectorIndexAsset;
+    private int embeddingBatchSize = 16;
+    private int embeddingMaxTokens = 512;
+    private int indexProbes = 8;
+    private final LongAdder embeddedTexts = new LongAdder();
+    private final LongAdder embeddingBatches = new LongAdder();
+    private final LongAdder indexSearches = new LongAdder();
+    private final LongAdder indexSearchNanos = new LongAdder();
+    
+    // Long-document summarization: chunking runs on its own fork-join pool
+    private ForkJoinPool documentPool;
+    private int documentChunkTokens = 1024;
+    private int documentChunkOverlap = 64;
+    private int documentSummaryTokens = 192;
+    private final LongAdder documentsSummarized = new LongAdder();
+    private final LongAdder documentChunks = new LongAdder();
+    private final LongAdder documentChunkingNanos = new LongAdder();
+    
+    // Domain output vocabulary for the main model; null decodes over the full vocabulary
+    private String tokenShortlistAsset;
+    private TokenShortlist tokenShortlist;
+    
+    // Drug-interaction results computed ahead of time, looked up by medication pair
+    private InteractionStore interactionStore;
+    private int interactionMaxTokens = 160;
+    private final LongAdder interactionsPrecomputed = new LongAdder();
+    
+    // Background KV snapshot writes; lives from initialize() to destroy()
+    private ExecutorService snapshotWriter;
 
     public GemmaAIManager(Context context) {
+        this(context, new AndroidDeviceStateProvider(context));
+    }
+
+    public GemmaAIManager(Context context, DeviceStateProvider deviceStateProvider) {
         this.context = context;
+        this.governor = new InferenceGovernor(deviceStateProvider, threadCount, maxBatchSize, maxSequenceLength);
+        this.profileStore = new DeviceProfileStore(new File(context.getFilesDir(), "gemma-device-profiles.json"));
     }
 
     /**
      * Initialize the Gemma AI model
      */
-    public boolean initialize(String modelPath, String configPath) {
+    public synchronized boolean initialize(String modelPath, String configPath) {
+        if (isInitialized && modelPath.equals(this.modelPath)) {
+            // Already loaded by another user of the shared manager
+            return true;
+        }
         try {
             Log.d(TAG, "Starting Gemma AI initialization...");
             
+            if (deadlineWatchdog == null) {
+                deadlineWatchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "GemmaDeadlineWatchdog");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            if (snapshotWriter == null) {
+                snapshotWriter = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "GemmaSnapshotWriter");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            if (documentPool == null) {
+                documentPool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors()));
+            }
+            
             // Initialize ONNX Runtime environment
             ortEnvironment = OrtEnvironment.getEnvironment();
             Log.d(TAG, "ONNX Runtime environment created");
@@ -80,9 +277,33 @@ public class GemmaAIManager {
             
             // Load vocabulary
             loadVocabulary();
+            loadTokenShortlist();
+            
+            // Create ONNX session, calibrating session options on first run for this model and device
+            this.modelPath = modelPath;
+            byte[] modelBytes = loadModelFromAssets(modelPath);
+            modelKey = SessionTuner.fingerprint(modelBytes);
+            loadOrCalibrateProfile(modelBytes);
+            kvSnapshotStore = kvSnapshotMaxBytes > 0
+                ? new KvSnapshotStore(new File(context.getCacheDir(), "kv-snapshots"), modelKey, kvSnapshotMaxBytes) : null;
+            if (responseCache != null && persistResponseCache) {
+                responseCache.loadFrom(new File(context.getFilesDir(), RESPONSE_CACHE_FILE));
+            }
+            createOnnxSession(modelBytes, governor.evaluate().threadCount);
+            
+            // Other models share what the main one leaves of the memory budget
+            modelRegistry = new ModelRegistry(ortEnvironment, defaultModelId,
+                Math.max(0, modelMemoryBudgetMb * 1024L * 1024L - modelBytes.length), this::createModelSession);
+            for (ModelRegistry.ModelSpec spec : modelSpecs) {
+                modelRegistry.register(spec);
+            }
+            openVectorIndex();
+            openInteractionStore();
+            openConversationLog();
             
-            // Create ONNX session
-            createOnnxSession(modelPath);
+            // All session runs go through one thread, interleaving prefill chunks with decode steps
+            decodeScheduler = new DecodeScheduler("gemma-decode");
+            tokenPipeline = pipelinedDecode ? new TokenPipeline("gemma-text", TOKEN_PIPELINE_CAPACITY) : null;
             
             // Warm up the model with a simple inference
             warmUpModel();
@@ -120,6 +341,57 @@ public class GemmaAIManager {
             // Extract configuration values
             maxSequenceLength = modelConfig.optInt("max_sequence_length", 2048);
             vocabSize = modelConfig.optInt("vocab_size", 32000);
+            tokenizerId = modelConfig.optString("tokenizer_id", null);
+            numKvHeads = modelConfig.optInt("num_key_value_heads", numKvHeads);
+            headDim = modelConfig.optInt("head_dim", headDim);
+            prefillChunkTokens = modelConfig.optInt("prefill_chunk_tokens", prefillChunkTokens);
+            kvSnapshotMaxBytes = modelConfig.optLong("kv_snapshot_max_bytes", kvSnapshotMaxBytes);
+            historyMessages = Math.max(1, modelConfig.optInt("history_messages", historyMessages));
+            maxBatchSize = modelConfig.optInt("max_batch_size", maxBatchSize);
+            autoTune = modelConfig.optBoolean("auto_tune", true);
+            pipelinedDecode = modelConfig.optBoolean("pipelined_decode", true);
+            
+            // Response cache for deterministic requests; 0 entries disables it
+            int cacheEntries = modelConfig.optInt("response_cache_entries", 256);
+            responseCache = cacheEntries > 0 ? new ResponseCache(cacheEntries,
+                modelConfig.optLong("response_cache_bytes", 2L * 1024 * 1024),
+                modelConfig.optLong("response_cache_ttl_ms", 24L * 60 * 60 * 1000)) : null;
+            persistResponseCache = modelConfig.optBoolean("response_cache_persist", false);
+            
+            // The main model is the default; "models" declares the others and the tasks they serve
+            defaultModelId = modelConfig.optString("model_id", defaultModelId);
+            modelMemoryBudgetMb = modelConfig.optInt("model_memory_budget_mb", memoryLimit);
+            modelSpecs.clear();
+            JSONArray models = modelConfig.optJSONArray("models");
+            for (int i = 0; models != null && i < models.length(); i++) {
+                JSONObject model = models.getJSONObject(i);
+                ModelRegistry.ModelSpec spec = new ModelRegistry.ModelSpec();
+                spec.id = model.getString("id");
+                spec.path = model.getString("path");
+                spec.numKvHeads = model.optInt("num_key_value_heads", 1);
+                spec.headDim = model.optInt("head_dim", 256);
+                spec.sizeBytes = model.optLong("size_mb", 0) * 1024 * 1024;
+                spec.vocabSize = model.optInt("vocab_size", 0);
+                spec.tokenizerId = model.optString("tokenizer_id", null);
+                JSONArray tasks = model.optJSONArray("tasks");
+                for (int j = 0; tasks != null && j < tasks.length(); j++) {
+                    spec.tasks.add(tasks.getString(j));
+                }
+                modelSpecs.add(spec);
+            }
+            
+            // Embedding batches and the passage index (an asset path, copied out on first run)
+            vectorIndexAsset = modelConfig.optString("vector_index_path", null);
+            embeddingBatchSize = Math.max(1, modelConfig.optInt("embedding_batch_size", embeddingBatchSize));
+            embeddingMaxTokens = modelConfig.optInt("embedding_max_tokens", embeddingMaxTokens);
+            indexProbes = modelConfig.optInt("vector_index_nprobe", indexProbes);
+            interactionMaxTokens = modelConfig.optInt("interaction_max_tokens", interactionMaxTokens);
+            documentChunkTokens = modelConfig.optInt("document_chunk_tokens", documentChunkTokens);
+            documentChunkOverlap = modelConfig.optInt("document_chunk_overlap", documentChunkOverlap);
+            documentSummaryTokens = modelConfig.optInt("document_summary_tokens", documentSummaryTokens);
+            tokenShortlistAsset = modelConfig.optString("token_shortlist_path", null);
+            governor.setBaseline(threadCount, maxBatchSize, maxSequenceLength);
+            governor.setCorePowerMilliwatts(modelConfig.optDouble("core_power_mw", 0));
             
             reader.close();
             configStream.close();
@@ -139,7 +411,6 @@ public class GemmaAIManager {
         
         // Create simple vocabulary mapping (in real implementation, this would load from vocab file)
         vocabulary = new HashMap<>();
-        reverseVocabulary = new HashMap<>();
         
         // Add basic tokens
         vocabulary.put("<pad>", 0);
@@ -152,26 +423,233 @@ public class GemmaAIManager {
         for (int i = 0; i < chars.length(); i++) {
             String ch = String.valueOf(chars.charAt(i));
             vocabulary.put(ch, i + 4);
-            reverseVocabulary.put(i + 4, ch);
         }
         
-        // Fill reverse vocabulary
-        for (Map.Entry<String, Integer> entry : vocabulary.entrySet()) {
-            reverseVocabulary.put(entry.getValue(), entry.getKey());
+        // Flat ID-indexed token bytes and special-token bitset for detokenization
+        tokenVocabulary = StreamingDetokenizer.Vocabulary.fromPieces(vocabulary, vocabulary.size());
+        if (tokenizerId == null) {
+            tokenizerId = vocabularyDigest(vocabulary);
+        }
+        
+        Log.d(TAG, "Vocabulary loaded with " + vocabulary.size() + " tokens, tokenizer " + tokenizerId);
+    }
+
+    /**
+     * Fingerprint of the token-to-ID mapping: equal vocabulary sizes say nothing
+     * about whether the same ID means the same token
+     */
+    private static String vocabularyDigest(Map<String, Integer> pieces) {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(pieces.entrySet());
+        Collections.sort(entries, (a, b) -> Integer.compare(a.getValue(), b.getValue()));
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Map.Entry<String, Integer> entry : entries) {
+                digest.update(entry.getValue().toString().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            StringBuilder hex = new StringBuilder("sha256:");
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.substring(0, 7 + 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    }
+
+    /**
+     * Read the configured token shortlist, always keeping the special tokens reachable
+     */
+    private void loadTokenShortlist() throws IOException {
+        tokenShortlist = null;
+        if (tokenShortlistAsset == null || tokenShortlistAsset.isEmpty()) {
+            return;
+        }
+        
+        try (Reader reader = new InputStreamReader(context.getAssets().open(tokenShortlistAsset), StandardCharsets.UTF_8)) {
+            tokenShortlist = TokenShortlist.parse(reader).with(vocabulary.get("<eos>"), vocabulary.get("<unk>"));
+        }
+        Log.d(TAG, "Token shortlist loaded: " + tokenShortlist.size() + " of " + vocabSize + " tokens in "
+            + tokenShortlist.getRunCount() + " runs");
+    }
+
+    /**
+     * Use the stored device profile for this model, calibrating one if there is none
+     */
+    private void loadOrCalibrateProfile(byte[] modelBytes) {
+        try {
+            deviceProfile = profileStore.load(modelKey, deviceKey());
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read device profiles", e);
+        }
+        
+        if (deviceProfile == null && autoTune) {
+            deviceProfile = calibrate(modelBytes);
+        }
+        
+        if (deviceProfile != null) {
+            threadCount = deviceProfile.intraOpThreads;
+            governor.setBaseline(threadCount, maxBatchSize, maxSequenceLength);
+            Log.i(TAG, "Using device profile " + deviceProfile.describe());
+        }
+    }
+
+    /**
+     * Benchmark session option combinations and persist the winner
+     * @return null, with nothing persisted, if no combination could be measured
+     */
+    private DeviceProfile calibrate(byte[] modelBytes) {
+        Log.i(TAG, "Calibrating session options for this device...");
+        long startTime = System.currentTimeMillis();
+        
+        SessionTuner tuner = new SessionTuner(ortEnvironment, modelBytes, this::runCalibrationWorkload,
+            Runtime.getRuntime().availableProcessors());
+        tuner.setListener((candidate, index, total) ->
+            Log.d(TAG, "Calibrating candidate " + (index + 1) + "/" + total + ": " + candidate.describe()));
+        DeviceProfile profile = tuner.calibrate(modelKey, deviceKey());
+        if (profile == null) {
+            Log.w(TAG, "Calibration measured no session options; keeping the defaults");
+            return null;
+        }
+        
+        try {
+            profileStore.save(profile);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to persist device profile", e);
+        }
+        
+        Log.i(TAG, "Calibration picked " + profile.describe() + " in "
+            + (System.currentTimeMillis() - startTime) + "ms");
+        return profile;
+    }
+
+    /**
+     * Re-run calibration (e.g. after an OS update) and rebuild the session with the result.
+     * Blocks new requests until the session is rebuilt. As in applyThreadCount, the live
+     * session is closed first so the model is never held twice, and if calibration or
+     * the rebuild fails the session is rebuilt with the previous profile.
+     */
+    public DeviceProfile recalibrate() {
+        if (!isInitialized) {
+            throw new RuntimeException("Model not initialized");
         }
         
-        Log.d(TAG, "Vocabulary loaded with " + vocabulary.size() + " tokens");
+        sessionLock.writeLock().lock();
+        try {
+            byte[] modelBytes = loadModelFromAssets(modelPath);
+            DeviceProfile previousProfile = deviceProfile;
+            int previousBaseline = threadCount;
+            int previousThreads = activeThreadCount;
+            
+            ortSession.close();
+            ortSession = null;
+            decoder = null;
+            try {
+                DeviceProfile profile = calibrate(modelBytes);
+                if (profile == null) {
+                    throw new IllegalStateException("no session options could be measured");
+                }
+                deviceProfile = profile;
+                threadCount = profile.intraOpThreads;
+                governor.setBaseline(threadCount, maxBatchSize, maxSequenceLength);
+                createOnnxSession(modelBytes, governor.evaluate().threadCount);
+                return profile;
+            } catch (Exception e) {
+                Log.w(TAG, "Recalibration failed; restoring the previous session options", e);
+                restoreProfile(previousProfile, previousBaseline);
+                try {
+                    createOnnxSession(modelBytes, previousThreads);
+                } catch (OrtException restoreError) {
+                    Log.e(TAG, "Failed to restore session after recalibration", restoreError);
+                    isInitialized = false;
+                }
+                throw e;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Recalibration failed", e);
+            throw new RuntimeException("Recalibration failed: " + e.getMessage());
+        } finally {
+            sessionLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Put back the profile a failed recalibration replaced, in memory and in the store
+     */
+    private void restoreProfile(DeviceProfile previousProfile, int previousBaseline) {
+        deviceProfile = previousProfile;
+        threadCount = previousBaseline;
+        governor.setBaseline(threadCount, maxBatchSize, maxSequenceLength);
+        if (previousProfile == null) {
+            return;
+        }
+        try {
+            profileStore.save(previousProfile);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to persist device profile", e);
+        }
+    }
+
+    /**
+     * Prefill a short prompt, then time a few greedy decode steps
+     */
+    private long[] runCalibrationWorkload(OrtSession session) throws OrtException {
+        GemmaDecoder candidate = new GemmaDecoder(ortEnvironment, session, numKvHeads, headDim);
+        try (DecoderState state = candidate.newState()) {
+            long prefillStart = System.nanoTime();
+            float[] logits = candidate.prefill(state, toArray(tokenize(CALIBRATION_PROMPT, true)), null);
+            long prefillNanos = System.nanoTime() - prefillStart;
+            
+            long decodeStart = System.nanoTime();
+            for (int i = 0; i < CALIBRATION_DECODE_STEPS; i++) {
+                logits = candidate.step(state, TokenSampler.sample(logits, 0, null), null);
+            }
+            long decodeNanos = (System.nanoTime() - decodeStart) / CALIBRATION_DECODE_STEPS;
+            
+            return new long[] {prefillNanos, decodeNanos};
+        }
+    }
+
+    /**
+     * Model identity for cache keys: weights fingerprint plus configured version,
+     * the main model's token shortlist, and the routed model's ID when it is not the main one
+     */
+    private String modelVersion(String modelId) {
+        String version = modelConfig != null ? modelConfig.optString("model_version", "1.0.0") : "1.0.0";
+        if (!modelRegistry.isDefault(modelId)) {
+            return modelKey + "/" + version + "/" + modelId;
+        }
+        return tokenShortlist != null ? modelKey + "/" + version + "/shortlist-" + tokenShortlist.digest()
+            : modelKey + "/" + version;
+    }
+
+    /**
+     * Write the response cache to app storage when persistence is enabled
+     */
+    private void persistResponseCache() {
+        cacheWritesSinceSave.set(0);
+        if (responseCache == null || !persistResponseCache) {
+            return;
+        }
+        try {
+            responseCache.saveTo(new File(context.getFilesDir(), RESPONSE_CACHE_FILE));
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to persist response cache", e);
+        }
+    }
+
+    private String deviceKey() {
+        return Build.MANUFACTURER + "/" + Build.MODEL + "/" + Build.FINGERPRINT;
     }
 
     /**
      * Create ONNX Runtime session
      */
-    private void createOnnxSession(String modelPath) throws OrtException, IOException {
+    private void createOnnxSession(byte[] modelBytes, int intraOpThreads) throws OrtException {
         Log.d(TAG, "Creating ONNX session for model: " + modelPath);
         
-        // Load model from assets
-        byte[] modelBytes = loadModelFromAssets(modelPath);
-        
         // Create session options
         OrtSession.SessionOptions sessionOptions = new OrtSession.SessionOptions();
         
@@ -181,14 +659,83 @@ public class GemmaAIManager {
             Log.d(TAG, "GPU acceleration requested (not implemented in demo)");
         }
         
-        sessionOptions.setIntraOpNumThreads(threadCount);
-        sessionOptions.setMemoryPatternOptimization(true);
-        sessionOptions.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.BASIC_OPT);
+        if (deviceProfile != null) {
+            // Calibrated options for this model on this device
+            deviceProfile.applyTo(sessionOptions, intraOpThreads);
+        } else {
+            sessionOptions.setIntraOpNumThreads(intraOpThreads);
+            sessionOptions.setMemoryPatternOptimization(true);
+            sessionOptions.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.BASIC_OPT);
+        }
         
         // Create the session
         ortSession = ortEnvironment.createSession(modelBytes, sessionOptions);
+        decoder = new GemmaDecoder(ortEnvironment, ortSession, numKvHeads, headDim);
+        decoder.setShortlist(tokenShortlist);
+        activeThreadCount = intraOpThreads;
+        
+        Log.d(TAG, "ONNX session created successfully with " + intraOpThreads + " threads"
+            + (decoder.hasKvCache() ? " (KV cache)" : ""));
+    }
+
+    /**
+     * Create the session for a registry model, with the main session's thread count
+     */
+    private OrtSession createModelSession(ModelRegistry.ModelSpec spec) throws Exception {
+        byte[] modelBytes = loadModelFromAssets(spec.path);
+        spec.sizeBytes = modelBytes.length;
+        
+        OrtSession.SessionOptions sessionOptions = new OrtSession.SessionOptions();
+        sessionOptions.setIntraOpNumThreads(activeThreadCount);
+        sessionOptions.setMemoryPatternOptimization(true);
+        sessionOptions.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.BASIC_OPT);
+        
+        Log.d(TAG, "Loading model " + spec.id + " from " + spec.path);
+        return ortEnvironment.createSession(modelBytes, sessionOptions);
+    }
+
+    /**
+     * Rebuild the session when the governor asks for a different thread count.
+     * ONNX Runtime fixes the intra-op pool when a session is created, so the count
+     * can't be capped per run; the governor damps level changes instead, so this
+     * runs once per sustained change. The old session is closed before the new one
+     * is built, so the model is never held twice, and rebuilt at its old count if
+     * the new one fails. Skipped while other requests hold the session; the next
+     * request retries.
+     */
+    private void applyThreadCount(int intraOpThreads) {
+        if (intraOpThreads == activeThreadCount || !sessionLock.writeLock().tryLock()) {
+            return;
+        }
         
-        Log.d(TAG, "ONNX session created successfully");
+        try {
+            int previousThreads = activeThreadCount;
+            byte[] modelBytes;
+            try {
+                modelBytes = loadModelFromAssets(modelPath);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read model for governor rebuild", e);
+                return;
+            }
+            
+            ortSession.close();
+            ortSession = null;
+            decoder = null;
+            try {
+                createOnnxSession(modelBytes, intraOpThreads);
+                Log.i(TAG, "Governor moved session from " + previousThreads + " to " + intraOpThreads + " threads");
+            } catch (OrtException e) {
+                Log.w(TAG, "Failed to rebuild session for governor; restoring " + previousThreads + " threads", e);
+                createOnnxSession(modelBytes, previousThreads);
+            }
+        } catch (OrtException e) {
+            Log.e(TAG, "Failed to restore session after governor rebuild", e);
+            if (ortSession == null) {
+                isInitialized = false;
+            }
+        } finally {
+            sessionLock.writeLock().unlock();
+        }
     }
 
     /**
@@ -224,49 +771,195 @@ public class GemmaAIManager {
      * Generate text using the Gemma model
      */
     public String generateText(String prompt, int maxTokens, float temperature) {
+        GenerationOptions options = new GenerationOptions();
+        options.maxTokens = maxTokens;
+        options.temperature = temperature;
+        return generate(prompt, options).text;
+    }
+
+    /**
+     * Generate text with stop sequences, stop token IDs, cancellation and a deadline.
+     * Deterministic requests (greedy or seeded) are served from the response cache
+     * and identical concurrent ones share a single generation.
+     */
+    public GenerationResult generate(String prompt, GenerationOptions options) {
         if (!isInitialized) {
             throw new RuntimeException("Model not initialized");
         }
+        
+        recordWorkload(options.historyDepth > 0 ? WorkloadTrace.KIND_CHAT : WorkloadTrace.KIND_GENERATE,
+            prompt, options, null);
+        String modelId = modelRegistry.route(options.modelId, options.task);
+        
+        // Registered for the whole call, so a caller waiting on a coalesced generation
+        // can be cancelled and its deadline covers the wait as well as its own decode
+        String requestId = options.requestId != null ? options.requestId : UUID.randomUUID().toString();
+        InferenceRequest request;
+        try {
+            request = startRequest(requestId, options);
+        } catch (OrtException e) {
+            throw new RuntimeException("Text generation failed: " + e.getMessage());
+        }
+        
+        try {
+            // Routed models share the main tokenizer, so these are the IDs whichever model runs
+            List<Integer> inputTokens = tokenize(prompt, true);
+            if (responseCache == null || !ResponseCache.isCacheable(options)) {
+                return generateUncached(inputTokens, options, modelId, request);
+            }
+            
+            String cacheKey = ResponseCache.keyFor(modelVersion(modelId), inputTokens, options);
+            GenerationResult result = responseCache.getOrCompute(cacheKey, request,
+                () -> generateUncached(inputTokens, options, modelId, request));
+            
+            if (result.cacheHit || result.coalesced) {
+                result.requestId = requestId;
+                result.executionTime = 0;
+                if (options.streamListener != null && result.text != null) {
+                    options.streamListener.onText(result.text, 0, result.text.length());
+                }
+            } else if (cacheWritesSinceSave.incrementAndGet() >= CACHE_PERSIST_INTERVAL) {
+                persistResponseCache();
+            }
+            return result;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            Log.e(TAG, "Error during cached text generation", e);
+            throw new RuntimeException("Text generation failed: " + e.getMessage());
+        } finally {
+            finishRequest(request);
+        }
+    }
+
+    /**
+     * Register a request under its ID, attach it to the call it is part of, and arm its deadline
+     */
+    private InferenceRequest startRequest(String requestId, GenerationOptions options) throws OrtException {
+        InferenceRequest request = new InferenceRequest(requestId, options.timeoutMs);
+        if (activeRequests.putIfAbsent(requestId, request) != null) {
+            request.close();
+            throw new IllegalStateException("Request " + requestId + " is already running");
+        }
+        if (options.parent != null) {
+            request.attachTo(options.parent);
+        }
+        // Terminate the session run itself when the deadline passes mid-step
+        request.armDeadline(deadlineWatchdog);
+        return request;
+    }
+
+    private void finishRequest(InferenceRequest request) {
+        activeRequests.remove(request.getRequestId(), request);
+        request.close();
+    }
 
+    /**
+     * Run a generation against the routed model's session, bypassing the response cache
+     * @param request registered by the caller, which also finishes it
+     */
+    private GenerationResult generateUncached(List<Integer> inputTokens, GenerationOptions options, String modelId,
+                                              InferenceRequest request) {
+        Tracer.begin(Tracer.GENERATE);
         try {
             long startTime = System.currentTimeMillis();
             
-            // Tokenize input
-            List<Integer> inputTokens = tokenize(prompt);
-            Log.d(TAG, "Input tokenized to " + inputTokens.size() + " tokens");
+            // Let the governor scale threads and the token budget to the device state
+            InferenceGovernor.Decision decision = governor.evaluate();
+            applyThreadCount(decision.threadCount);
+            int maxTokens = Math.min(options.maxTokens, decision.maxTokens);
+            Random random = options.seed != null ? new Random(options.seed) : ThreadLocalRandom.current();
             
-            // Generate tokens
-            List<Integer> generatedTokens = generateTokens(inputTokens, maxTokens, temperature);
-            
-            // Detokenize output
-            String generatedText = detokenize(generatedTokens);
+            // Generate tokens, detokenizing and matching stop sequences as we go.
+            // Process CPU time covers the ORT worker threads (and any overlapping request).
+            long cpuStart = android.os.Process.getElapsedCpuTime();
+            GenerationResult result;
+            sessionLock.readLock().lock();
+            try (ModelRegistry.Lease lease = acquireModel(modelId)) {
+                // KV snapshots are keyed to the main model's weights
+                String conversationId = lease == null ? options.conversationId : null;
+                DecoderState resumed = restoreConversation(conversationId, toArray(inputTokens));
+                GenerationTask task = new GenerationTask(lease != null ? lease.decoder : decoder, inputTokens,
+                    options, conversationId, maxTokens, random, request, resumed);
+                runScheduled(task, options.background);
+                task.output.await();
+                result = task.sequence.finish();
+            } finally {
+                sessionLock.readLock().unlock();
+            }
+            result.requestId = request.getRequestId();
+            result.modelId = modelId;
+            result.budgetLimited = maxTokens < options.maxTokens;
+            result.powerLevel = decision.level;
+            result.energyEstimate = governor.recordRequest(android.os.Process.getElapsedCpuTime() - cpuStart);
             
             long inferenceTime = System.currentTimeMillis() - startTime;
+            result.executionTime = inferenceTime;
             inferenceTimes.add(inferenceTime);
-            totalInferences++;
+            totalInferences.increment();
+            if (result.tokensSaved > 0) {
+                stopSequenceHits.increment();
+                totalTokensSaved.add(result.tokensSaved);
+            }
+            if (STOP_REASON_CANCELLED.equals(result.stopReason)) {
+                cancelledRequests.increment();
+            } else if (STOP_REASON_TIMEOUT.equals(result.stopReason)) {
+                timedOutRequests.increment();
+            }
             
             // Update memory peak
             Runtime runtime = Runtime.getRuntime();
             long currentMemory = runtime.totalMemory() - runtime.freeMemory();
-            memoryPeak = Math.max(memoryPeak, currentMemory);
+            memoryPeak.accumulateAndGet(currentMemory, Math::max);
             
-            Log.d(TAG, "Text generation completed in " + inferenceTime + "ms");
-            return generatedText;
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Text generation completed in " + inferenceTime + "ms (" + result.stopReason + ")");
+            }
+            return result;
             
         } catch (Exception e) {
             Log.e(TAG, "Error during text generation", e);
             throw new RuntimeException("Text generation failed: " + e.getMessage());
+        } finally {
+            Tracer.end(Tracer.GENERATE);
+        }
+    }
+
+    /**
+     * Cancel an in-flight request
+     * @return false if no request with this ID is running
+     */
+    public boolean cancel(String requestId) {
+        InferenceRequest request = activeRequests.get(requestId);
+        if (request == null) {
+            return false;
+        }
+        
+        request.cancel();
+        Log.d(TAG, "Cancellation requested for " + requestId);
+        return true;
+    }
+
+    /**
+     * Cancel every in-flight request
+     */
+    public void cancelAll() {
+        for (InferenceRequest request : activeRequests.values()) {
+            request.cancel();
         }
     }
 
     /**
      * Tokenize input text
      */
-    private List<Integer> tokenize(String text) {
+    private List<Integer> tokenize(String text, boolean addBos) {
+        Tracer.begin(Tracer.TOKENIZE);
         List<Integer> tokens = new ArrayList<>();
         
-        // Add beginning of sequence token
-        tokens.add(vocabulary.get("<bos>"));
+        // Add beginning of sequence token (not for text continuing an earlier segment)
+        if (addBos) {
+            tokens.add(vocabulary.get("<bos>"));
+        }
         
         // Simple character-level tokenization (in real implementation, use proper tokenizer)
         for (char ch : text.toCharArray()) {
@@ -279,164 +972,1199 @@ public class GemmaAIManager {
             }
         }
         
+        Tracer.end(Tracer.TOKENIZE);
         return tokens;
     }
 
     /**
-     * Generate tokens using the model
+     * Submit a task to the decode scheduler and wait for it, rethrowing what it failed with
      */
-    private List<Integer> generateTokens(List<Integer> inputTokens, int maxTokens, float temperature) throws OrtException {
-        List<Integer> allTokens = new ArrayList<>(inputTokens);
-        
-        for (int i = 0; i < maxTokens; i++) {
-            // Prepare input tensor
-            long[] inputShape = {1, allTokens.size()};
-            long[] inputData = allTokens.stream().mapToLong(Integer::longValue).toArray();
-            
-            OnnxTensor inputTensor = OnnxTensor.createTensor(ortEnvironment, 
-                FloatBuffer.wrap(convertToFloat(inputData)), inputShape);
-            
-            // Run inference
-            Map<String, OnnxTensor> inputs = Collections.singletonMap("input_ids", inputTensor);
-            Result result = ortSession.run(inputs);
-            
-            // Extract logits and sample next token
-            OnnxTensor outputTensor = (OnnxTensor) result.get(0);
-            float[][][] logits = (float[][][]) outputTensor.getValue();
-            
-            int nextToken = sampleNextToken(logits[0][logits[0].length - 1], temperature);
-            
-            // Check for end of sequence
-            if (nextToken == vocabulary.get("<eos>")) {
-                break;
-            }
-            
-            allTokens.add(nextToken);
-            
-            // Clean up tensors
-            inputTensor.close();
-            result.close();
-        }
-        
-        // Return only generated tokens (exclude input)
-        return allTokens.subList(inputTokens.size(), allTokens.size());
+    private void runScheduled(DecodeScheduler.Task task) throws Exception {
+        runScheduled(task, false);
     }
 
-    /**
-     * Convert long array to float array
-     */
-    private float[] convertToFloat(long[] longArray) {
-        float[] floatArray = new float[longArray.length];
-        for (int i = 0; i < longArray.length; i++) {
-            floatArray[i] = (float) longArray[i];
+    private void runScheduled(DecodeScheduler.Task task, boolean background) throws Exception {
+        try {
+            decodeScheduler.submit(task, background).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
         }
-        return floatArray;
     }
 
     /**
-     * Sample next token from logits using temperature
+     * Tokens to feed per prefill run. Chunks only help when the KV cache carries the
+     * earlier ones; without it every run recomputes the whole prefix anyway.
      */
-    private int sampleNextToken(float[] logits, float temperature) {
-        if (temperature <= 0) {
-            // Greedy sampling
-            int maxIndex = 0;
-            for (int i = 1; i < logits.length; i++) {
-                if (logits[i] > logits[maxIndex]) {
-                    maxIndex = i;
-                }
-            }
-            return maxIndex;
-        }
-        
-        // Temperature sampling (simplified)
-        float[] probabilities = new float[logits.length];
-        float sum = 0;
-        
-        for (int i = 0; i < logits.length; i++) {
-            probabilities[i] = (float) Math.exp(logits[i] / temperature);
-            sum += probabilities[i];
-        }
-        
-        // Normalize
-        for (int i = 0; i < probabilities.length; i++) {
-            probabilities[i] /= sum;
-        }
-        
-        // Sample
-        float random = (float) Math.random();
-        float cumulativeProb = 0;
-        
-        for (int i = 0; i < probabilities.length; i++) {
-            cumulativeProb += probabilities[i];
-            if (random <= cumulativeProb) {
-                return i;
-            }
-        }
-        
-        return 0; // Fallback
+    private int prefillChunkSize(GemmaDecoder taskDecoder) {
+        return prefillChunkTokens > 0 && taskDecoder.hasKvCache() ? prefillChunkTokens : Integer.MAX_VALUE;
     }
 
     /**
-     * Detokenize token IDs back to text
+     * Lease a routed model's session from the registry; null for the main model,
+     * whose session the manager holds itself. Routed models are decoded with the
+     * main model's tokenizer and end-of-sequence token, so one that does not
+     * declare the same tokenizer_id, or whose vocabulary or logits width differs,
+     * is refused.
      */
-    private String detokenize(List<Integer> tokens) {
-        StringBuilder text = new StringBuilder();
-        
-        for (Integer tokenId : tokens) {
-            String token = reverseVocabulary.get(tokenId);
-            if (token != null && !token.startsWith("<")) {
-                text.append(token);
-            }
+    private ModelRegistry.Lease acquireModel(String modelId) throws Exception {
+        if (modelRegistry.isDefault(modelId)) {
+            return null;
         }
-        
-        return text.toString();
-    }
-
-    /**
-     * Get model information
-     */
-    public ModelInfo getModelInfo() {
-        ModelInfo info = new ModelInfo();
-        info.modelName = "Gemma 2B Instruct";
-        info.version = "1.0.0";
-        info.isReady = isInitialized;
-        
-        Runtime runtime = Runtime.getRuntime();
-        info.memoryUsage = runtime.totalMemory() - runtime.freeMemory();
-        info.parametersCount = "2B";
-        
-        return info;
+        ModelRegistry.Lease lease = modelRegistry.acquire(modelId);
+        int declared = lease.spec.vocabSize;
+        requireSharedTokenizer(lease, declared > 0 ? declared : lease.decoder.getVocabularySize());
+        return lease;
     }
 
     /**
-     * Check hardware acceleration capabilities
+     * There is one tokenizer, the main model's; a routed model trained on another
+     * would get token IDs that mean something else to it. Only a declared tokenizer
+     * ID shows it is the same one: two vocabularies can have the same size.
      */
-    public HardwareInfo checkHardwareAcceleration() {
-        HardwareInfo info = new HardwareInfo();
-        info.available = false; // GPU acceleration not implemented in demo
-        info.type = "cpu";
-        info.deviceInfo = Build.MODEL + " (" + Build.MANUFACTURER + ")";
-        
-        return info;
+    private void requireSharedTokenizer(ModelRegistry.Lease lease, int modelVocabulary) {
+        if (!tokenizerId.equals(lease.spec.tokenizerId)) {
+            lease.close();
+            throw new IllegalStateException("Model " + lease.modelId + " declares tokenizer_id "
+                + lease.spec.tokenizerId + " but the shared tokenizer is " + tokenizerId);
+        }
+        if (modelVocabulary > 0 && modelVocabulary != vocabSize) {
+            lease.close();
+            throw new IllegalStateException("Model " + lease.modelId + " has a vocabulary of " + modelVocabulary
+                + " tokens but the shared tokenizer has " + vocabSize);
+        }
     }
 
     /**
-     * Get performance metrics
+     * Prefill a shared prefix once, then decode many suffixes from forks of its state.
+     * Up to the governor's batch size run together; as each finishes the next one is
+     * admitted. Results come back in suffix order and, if a listener is given, are
+     * also delivered one by one as they complete.
      */
-    public PerformanceMetrics getPerformanceMetrics() {
-        PerformanceMetrics metrics = new PerformanceMetrics();
-        
-        if (!inferenceTimes.isEmpty()) {
-            long sum = 0;
-            for (Long time : inferenceTimes) {
-                sum += time;
-            }
-            metrics.averageInferenceTime = sum / inferenceTimes.size();
+    public List<GenerationResult> generateBatch(String prefix, List<String> suffixes,
+                                                GenerationOptions options, BatchListener listener) {
+        if (!isInitialized) {
+            throw new RuntimeException("Model not initialized");
+        }
+        if (suffixes.isEmpty()) {
+            return new ArrayList<>();
         }
+        recordWorkload(WorkloadTrace.KIND_BATCH, prefix, options, suffixes);
+        String modelId = modelRegistry.route(options.modelId, options.task);
         
-        metrics.totalInferences = totalInferences;
-        metrics.memoryPeak = memoryPeak;
-        metrics.batteryImpact = "Medium"; // Simplified estimation
+        String requestId = options.requestId != null ? options.requestId : UUID.randomUUID().toString();
+        InferenceRequest request = null;
+        
+        try {
+            long startTime = System.currentTimeMillis();
+            request = startRequest(requestId, options);
+            
+            InferenceGovernor.Decision decision = governor.evaluate();
+            applyThreadCount(decision.threadCount);
+            int maxTokens = Math.min(options.maxTokens, decision.maxTokens);
+            int width = Math.max(1, Math.min(decision.batchSize, suffixes.size()));
+            Random random = options.seed != null ? new Random(options.seed) : ThreadLocalRandom.current();
+            
+            List<Integer> prefixTokens = tokenize(prefix, true);
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Batch of " + suffixes.size() + " sharing a " + prefixTokens.size()
+                    + " token prefix, " + width + " at a time");
+            }
+            
+            long cpuStart = android.os.Process.getElapsedCpuTime();
+            List<GenerationResult> results;
+            boolean sharedKv;
+            sessionLock.readLock().lock();
+            try (ModelRegistry.Lease lease = acquireModel(modelId)) {
+                GemmaDecoder taskDecoder = lease != null ? lease.decoder : decoder;
+                sharedKv = taskDecoder.hasKvCache();
+                BatchTask task = new BatchTask(taskDecoder, prefixTokens, suffixes, options, maxTokens, width, random,
+                    request, (index, result) -> {
+                        result.requestId = requestId;
+                        result.modelId = modelId;
+                        result.budgetLimited = maxTokens < options.maxTokens;
+                        result.powerLevel = decision.level;
+                        result.executionTime = System.currentTimeMillis() - startTime;
+                        if (listener != null) {
+                            listener.onItemComplete(index, result);
+                        }
+                    });
+                runScheduled(task, options.background);
+                results = task.results;
+            } finally {
+                sessionLock.readLock().unlock();
+            }
+            double energy = governor.recordRequest(android.os.Process.getElapsedCpuTime() - cpuStart);
+            
+            long inferenceTime = System.currentTimeMillis() - startTime;
+            inferenceTimes.add(inferenceTime);
+            totalInferences.add(results.size());
+            batchRequests.increment();
+            if (sharedKv) {
+                sharedPrefixTokens.add((long) prefixTokens.size() * Math.max(0, results.size() - 1));
+            }
+            for (GenerationResult result : results) {
+                result.energyEstimate = energy / results.size();
+                if (result.tokensSaved > 0) {
+                    stopSequenceHits.increment();
+                    totalTokensSaved.add(result.tokensSaved);
+                }
+            }
+            if (request.isCancelled()) {
+                cancelledRequests.increment();
+            } else if (request.isTimedOut()) {
+                timedOutRequests.increment();
+            }
+            
+            Runtime runtime = Runtime.getRuntime();
+            memoryPeak.accumulateAndGet(runtime.totalMemory() - runtime.freeMemory(), Math::max);
+            
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Batch generation completed in " + inferenceTime + "ms");
+            }
+            return results;
+            
+        } catch (Exception e) {
+            Log.e(TAG, "Error during batch generation", e);
+            throw new RuntimeException("Batch generation failed: " + e.getMessage());
+        } finally {
+            if (request != null) {
+                finishRequest(request);
+            }
+        }
+    }
+
+    /**
+     * Single-prompt generation, advanced one prefill chunk or decode step per scheduler turn
+     */
+    private class GenerationTask implements DecodeScheduler.Task {
+        final GenerationSequence sequence;
+        final TokenPipeline.Stream output;
+        private final GemmaDecoder taskDecoder;
+        private final DecoderState state;
+        private final GenerationOptions options;
+        private final String conversationId;
+        private final Random random;
+        private final InferenceRequest request;
+        private final int chunkSize;
+
+        // The rest of the prompt on the first pass, then one sampled token per step
+        private int[] pending;
+        private int offset = 0;
+        private boolean prefilling = true;
+
+        GenerationTask(GemmaDecoder taskDecoder, List<Integer> inputTokens, GenerationOptions options,
+                       String conversationId, int maxTokens, Random random, InferenceRequest request,
+                       DecoderState resumed) {
+            this.sequence = new GenerationSequence(options, maxTokens, vocabulary.get("<eos>"),
+                tokenVocabulary, options.streamListener);
+            this.taskDecoder = taskDecoder;
+            this.options = options;
+            this.conversationId = conversationId;
+            this.random = random;
+            this.request = request;
+            this.chunkSize = prefillChunkSize(taskDecoder);
+            this.state = resumed != null ? resumed : taskDecoder.newState();
+            this.pending = toArray(inputTokens.subList(state.length(), inputTokens.size()));
+            this.output = tokenPipeline != null ? tokenPipeline.open(sequence) : TokenPipeline.direct(sequence);
+        }
+
+        @Override
+        public boolean step() throws OrtException {
+            if (output.isFinished()) {
+                return true;
+            }
+            if (request.shouldStop()) {
+                output.stop(stopReasonFor(request));
+                return true;
+            }
+            
+            try {
+                int end = Math.min(pending.length, offset + chunkSize);
+                int[] chunk = Arrays.copyOfRange(pending, offset, end);
+                long runStart = System.nanoTime();
+                float[] logits = null;
+                if (end < pending.length) {
+                    taskDecoder.extend(state, chunk, request.getRunOptions());
+                } else {
+                    logits = taskDecoder.prefill(state, chunk, request.getRunOptions());
+                }
+                if (prefilling) {
+                    // Measured prompt throughput, used to estimate what snapshot restores save
+                    prefillNanos.add(System.nanoTime() - runStart);
+                    prefilledTokens.add(end - offset);
+                }
+                offset = end;
+                if (offset < pending.length) {
+                    prefillChunks.increment();
+                    return false;
+                }
+                prefilling = false;
+                
+                Tracer.begin(Tracer.SAMPLE);
+                int nextToken = TokenSampler.sample(logits, options.temperature, random, taskDecoder.getShortlist());
+                Tracer.end(Tracer.SAMPLE);
+                if (!output.accept(nextToken)) {
+                    return true;
+                }
+                pending = new int[] {nextToken};
+                offset = 0;
+                return false;
+            } catch (OrtException e) {
+                // A terminated run surfaces as an exception; report it as the stop it was
+                if (!request.shouldStop()) {
+                    throw e;
+                }
+                output.stop(stopReasonFor(request));
+                return true;
+            }
+        }
+
+        @Override
+        public void release() {
+            output.close();
+            if (conversationId != null && state.cachedLength() > 0) {
+                saveConversation(conversationId, state.fork());
+            }
+            state.close();
+        }
+    }
+
+    /**
+     * Continuous batching over forks of a prefilled prefix. Each scheduler turn runs
+     * one prefix or suffix prefill chunk, or one decode step across the active items.
+     */
+    private class BatchTask implements DecodeScheduler.Task {
+        final List<GenerationResult> results;
+        private final GemmaDecoder taskDecoder;
+        private final DecoderState prefixState;
+        private final int[] prefixTokens;
+        private final List<String> suffixes;
+        private final GenerationOptions options;
+        private final int maxTokens;
+        private final int width;
+        private final Random random;
+        private final InferenceRequest request;
+        private final BatchListener onComplete;
+        private final int eosToken = vocabulary.get("<eos>");
+        private final int chunkSize;
+        private final List<BatchSlot> active = new ArrayList<>();
+        private int prefixOffset = 0;
+        private float[] prefixLogits;
+        private int next = 0;
+
+        BatchTask(GemmaDecoder taskDecoder, List<Integer> prefixTokens, List<String> suffixes,
+                  GenerationOptions options, int maxTokens, int width, Random random, InferenceRequest request,
+                  BatchListener onComplete) {
+            this.taskDecoder = taskDecoder;
+            this.prefixState = taskDecoder.newState();
+            this.chunkSize = prefillChunkSize(taskDecoder);
+            this.results = new ArrayList<>(Collections.nCopies(suffixes.size(), (GenerationResult) null));
+            this.prefixTokens = toArray(prefixTokens);
+            this.suffixes = suffixes;
+            this.options = options;
+            this.maxTokens = maxTokens;
+            this.width = width;
+            this.random = random;
+            this.request = request;
+            this.onComplete = onComplete;
+        }
+
+        @Override
+        public boolean step() throws OrtException {
+            if (request.shouldStop()) {
+                stopRemaining();
+                return true;
+            }
+            
+            OrtSession.RunOptions runOptions = request.getRunOptions();
+            try {
+                if (prefixLogits == null) {
+                    int end = Math.min(prefixTokens.length, prefixOffset + chunkSize);
+                    int[] chunk = Arrays.copyOfRange(prefixTokens, prefixOffset, end);
+                    if (end < prefixTokens.length) {
+                        taskDecoder.extend(prefixState, chunk, runOptions);
+                        prefillChunks.increment();
+                    } else {
+                        prefixLogits = taskDecoder.prefill(prefixState, chunk, runOptions);
+                    }
+                    prefixOffset = end;
+                    return false;
+                }
+                
+                // Fill free slots with forks of the prefix
+                while (active.size() < width && next < suffixes.size()) {
+                    BatchSlot slot = new BatchSlot(next, prefixState.fork(),
+                        new GenerationSequence(options, maxTokens, eosToken, tokenVocabulary, null),
+                        toArray(tokenize(suffixes.get(next++), false)));
+                    if (slot.prompt.length == 0) {
+                        slot.logits = prefixLogits;
+                    }
+                    active.add(slot);
+                }
+                
+                // Prefill one chunk of an item's own suffix before decoding
+                for (BatchSlot slot : active) {
+                    if (slot.logits == null) {
+                        int end = Math.min(slot.prompt.length, slot.offset + chunkSize);
+                        int[] chunk = Arrays.copyOfRange(slot.prompt, slot.offset, end);
+                        if (end < slot.prompt.length) {
+                            taskDecoder.extend(slot.state, chunk, runOptions);
+                            prefillChunks.increment();
+                        } else {
+                            slot.logits = taskDecoder.prefill(slot.state, chunk, runOptions);
+                        }
+                        slot.offset = end;
+                        return false;
+                    }
+                }
+                
+                // Sample every slot, retiring the ones that finished
+                List<DecoderState> stepping = new ArrayList<>(active.size());
+                int[] nextTokens = new int[active.size()];
+                for (int i = 0; i < active.size(); i++) {
+                    BatchSlot slot = active.get(i);
+                    Tracer.begin(Tracer.SAMPLE);
+                    int token = TokenSampler.sample(slot.logits, options.temperature, random, taskDecoder.getShortlist());
+                    Tracer.end(Tracer.SAMPLE);
+                    if (!slot.sequence.accept(token)) {
+                        complete(slot);
+                        active.remove(i--);
+                        continue;
+                    }
+                    nextTokens[stepping.size()] = token;
+                    stepping.add(slot.state);
+                }
+                
+                if (!stepping.isEmpty()) {
+                    float[][] logits = taskDecoder.stepBatch(stepping, Arrays.copyOf(nextTokens, stepping.size()), runOptions);
+                    for (int i = 0; i < active.size(); i++) {
+                        active.get(i).logits = logits[i];
+                    }
+                }
+                return active.isEmpty() && next >= suffixes.size();
+            } catch (OrtException e) {
+                // A terminated run surfaces as an exception; report it as the stop it was
+                if (!request.shouldStop()) {
+                    throw e;
+                }
+                stopRemaining();
+                return true;
+            }
+        }
+
+        /**
+         * Finish items stopped by cancellation or the deadline, including ones never admitted
+         */
+        private void stopRemaining() {
+            String stopReason = stopReasonFor(request);
+            for (BatchSlot slot : active) {
+                slot.sequence.stop(stopReason);
+                complete(slot);
+            }
+            active.clear();
+            for (; next < suffixes.size(); next++) {
+                GenerationSequence sequence = new GenerationSequence(options, maxTokens, eosToken, tokenVocabulary, null);
+                sequence.stop(stopReason);
+                complete(new BatchSlot(next, null, sequence, new int[0]));
+            }
+        }
+
+        private void complete(BatchSlot slot) {
+            if (slot.state != null) {
+                slot.state.close();
+            }
+            GenerationResult result = slot.sequence.finish();
+            results.set(slot.index, result);
+            onComplete.onItemComplete(slot.index, result);
+        }
+
+        @Override
+        public void release() {
+            prefixState.close();
+            for (BatchSlot slot : active) {
+                slot.state.close();
+            }
+        }
+    }
+
+    /**
+     * Summarize a document longer than the context window. The text is split into
+     * overlapping token-bounded chunks, the chunks are summarized together through
+     * the batch path, and the summaries are combined, in further batched rounds if
+     * they still do not fit one chunk. Only the final pass uses {@code options}'
+     * token limit and stream listener; the listener gets progress for the others.
+     * One request is registered under {@code options.requestId} for the whole call
+     * and each pass runs attached to it, so a cancel or the deadline stops the pass
+     * in progress and no further pass starts.
+     */
+    public DocumentSummary summarizeDocument(String text, GenerationOptions options, DocumentListener listener) {
+        if (!isInitialized) {
+            throw new RuntimeException("Model not initialized");
+        }
+        long startTime = System.currentTimeMillis();
+        long deadline = options.timeoutMs > 0 ? startTime + options.timeoutMs : 0;
+        String requestId = options.requestId != null ? options.requestId : UUID.randomUUID().toString();
+        DocumentSummary summary = new DocumentSummary();
+        
+        InferenceRequest request;
+        try {
+            request = startRequest(requestId, options);
+        } catch (OrtException e) {
+            throw new RuntimeException("Document summary failed: " + e.getMessage());
+        }
+        
+        boolean completed = false;
+        try {
+            // A chunk, its prompt and its summary must all fit in the context window
+            int overhead = Math.max(tokenize(DOCUMENT_MAP_PROMPT, true).size(), tokenize(DOCUMENT_REDUCE_PROMPT, true).size())
+                + tokenize(documentSection(0, 0, ""), false).size();
+            int chunkTokens = Math.min(documentChunkTokens, maxSequenceLength - overhead - documentSummaryTokens);
+            if (chunkTokens < documentSummaryTokens * 2) {
+                throw new RuntimeException("max_sequence_length " + maxSequenceLength + " leaves no room for document chunks");
+            }
+            DocumentChunker chunker = new DocumentChunker(chunk -> tokenize(chunk, false).size(), chunkTokens,
+                documentChunkOverlap, documentPool);
+            
+            long chunkStart = System.nanoTime();
+            List<DocumentChunker.Chunk> chunks = chunker.split(text);
+            documentChunkingNanos.add(System.nanoTime() - chunkStart);
+            summary.chunks = chunks.size();
+            documentChunks.add(chunks.size());
+            
+            while (chunks.size() > 1) {
+                long remainingMs = remainingMs(deadline);
+                if (remainingMs < 0 || request.shouldStop()) {
+                    summary.result = stoppedBetweenPasses(request);
+                    return summary;
+                }
+                List<String> sections = new ArrayList<>(chunks.size());
+                for (DocumentChunker.Chunk chunk : chunks) {
+                    sections.add(documentSection(chunk.index + 1, chunks.size(), chunk.text));
+                }
+                
+                final int round = ++summary.rounds;
+                GenerationOptions mapOptions = new GenerationOptions();
+                mapOptions.maxTokens = documentSummaryTokens;
+                mapOptions.temperature = options.temperature;
+                mapOptions.seed = options.seed;
+                mapOptions.requestId = requestId + "/pass-" + round;
+                mapOptions.timeoutMs = remainingMs;
+                mapOptions.modelId = options.modelId;
+                mapOptions.task = options.task;
+                mapOptions.background = options.background;
+                mapOptions.parent = request;
+                
+                final int total = sections.size();
+                final int[] done = {0};
+                List<GenerationResult> results = generateBatch(round == 1 ? DOCUMENT_MAP_PROMPT : DOCUMENT_REDUCE_PROMPT,
+                    sections, mapOptions, (index, result) -> {
+                        done[0]++;
+                        if (listener != null) {
+                            listener.onProgress(round, done[0], total);
+                        }
+                    });
+                
+                StringBuilder combined = new StringBuilder();
+                for (GenerationResult result : results) {
+                    summary.tokensGenerated += result.tokensGenerated;
+                    if (STOP_REASON_CANCELLED.equals(result.stopReason) || STOP_REASON_TIMEOUT.equals(result.stopReason)) {
+                        result.requestId = requestId;
+                        summary.result = result;
+                        return summary;
+                    }
+                    combined.append(result.text.trim()).append("\n\n");
+                }
+                
+                List<DocumentChunker.Chunk> next = chunker.split(combined.toString().trim());
+                if (next.size() >= chunks.size()) {
+                    throw new RuntimeException("Chunk summaries are not shrinking; lower document_summary_tokens");
+                }
+                chunks = next;
+            }
+            
+            // Final pass over the whole document, or over the summaries when they fit in one chunk
+            String section = chunks.isEmpty() ? "" : chunks.get(0).text;
+            String prompt = (summary.rounds == 0 ? DOCUMENT_MAP_PROMPT : DOCUMENT_REDUCE_PROMPT)
+                + documentSection(1, 1, section);
+            long remainingMs = remainingMs(deadline);
+            if (remainingMs < 0 || request.shouldStop()) {
+                summary.result = stoppedBetweenPasses(request);
+                return summary;
+            }
+            GenerationOptions finalOptions = copyOptions(options);
+            finalOptions.requestId = requestId + "/final";
+            finalOptions.timeoutMs = remainingMs;
+            finalOptions.parent = request;
+            summary.result = generate(prompt, finalOptions);
+            summary.result.requestId = requestId;
+            summary.tokensGenerated += summary.result.tokensGenerated;
+            completed = !STOP_REASON_CANCELLED.equals(summary.result.stopReason)
+                && !STOP_REASON_TIMEOUT.equals(summary.result.stopReason);
+            return summary;
+        } finally {
+            finishRequest(request);
+            summary.executionTime = System.currentTimeMillis() - startTime;
+            if (completed) {
+                documentsSummarized.increment();
+            }
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Summarized " + summary.chunks + " chunks in " + summary.rounds + " batched rounds, "
+                    + summary.executionTime + "ms");
+            }
+        }
+    }
+
+    /**
+     * Time left before a deadline: 0 for none, negative once it has passed
+     */
+    private static long remainingMs(long deadline) {
+        if (deadline <= 0) {
+            return 0;
+        }
+        long remaining = deadline - System.currentTimeMillis();
+        return remaining > 0 ? remaining : -1;
+    }
+
+    /**
+     * The result of a document pass that was never started because the call was
+     * cancelled or its deadline had passed
+     */
+    private GenerationResult stoppedBetweenPasses(InferenceRequest request) {
+        GenerationResult result = new GenerationResult();
+        result.requestId = request.getRequestId();
+        result.text = "";
+        result.tokens = new ArrayList<>();
+        if (request.isCancelled()) {
+            result.stopReason = STOP_REASON_CANCELLED;
+            cancelledRequests.increment();
+        } else {
+            result.stopReason = STOP_REASON_TIMEOUT;
+            timedOutRequests.increment();
+        }
+        return result;
+    }
+
+    private static GenerationOptions copyOptions(GenerationOptions options) {
+        GenerationOptions copy = new GenerationOptions();
+        copy.maxTokens = options.maxTokens;
+        copy.temperature = options.temperature;
+        copy.stopSequences = options.stopSequences;
+        copy.stopTokenIds = options.stopTokenIds;
+        copy.requestId = options.requestId;
+        copy.timeoutMs = options.timeoutMs;
+        copy.seed = options.seed;
+        copy.streamListener = options.streamListener;
+        copy.conversationId = options.conversationId;
+        copy.historyDepth = options.historyDepth;
+        copy.modelId = options.modelId;
+        copy.task = options.task;
+        copy.background = options.background;
+        copy.parent = options.parent;
+        return copy;
+    }
+
+    private static String documentSection(int index, int total, String text) {
+        return "Section " + index + " of " + total + ":\n" + text + "\n\nSummary:";
+    }
+
+    /**
+     * Embed texts with the model routed for the embed task, a batch per scheduler turn.
+     * Texts go through the main model's tokenizer, with its <bos> and no other markers,
+     * so the embedding model must have been trained on that vocabulary; one whose
+     * config does not declare the same tokenizer_id is refused.
+     * @return one L2-normalized vector per text
+     */
+    public float[][] embed(List<String> texts) {
+        if (!isInitialized) {
+            throw new RuntimeException("Model not initialized");
+        }
+        if (texts.isEmpty()) {
+            return new float[0][];
+        }
+        
+        String modelId = modelRegistry.route(null, TASK_EMBED);
+        if (modelRegistry.isDefault(modelId)) {
+            throw new RuntimeException("No embedding model configured; declare one with the \"" + TASK_EMBED + "\" task");
+        }
+        
+        sessionLock.readLock().lock();
+        try (ModelRegistry.Lease lease = modelRegistry.acquire(modelId)) {
+            // An encoder's outputs say nothing about its vocabulary, so only the config can
+            requireSharedTokenizer(lease, lease.spec.vocabSize);
+            List<int[]> sequences = new ArrayList<>(texts.size());
+            for (String text : texts) {
+                List<Integer> tokens = tokenize(text, true);
+                sequences.add(toArray(tokens.subList(0, Math.min(tokens.size(), embeddingMaxTokens))));
+            }
+            EmbedTask task = new EmbedTask(new TextEmbedder(ortEnvironment, lease.session), sequences);
+            runScheduled(task);
+            embeddedTexts.add(texts.size());
+            return task.vectors;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            Log.e(TAG, "Error during embedding", e);
+            throw new RuntimeException("Embedding failed: " + e.getMessage());
+        } finally {
+            sessionLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Embed a passage corpus and write it as the vector index, replacing the current one
+     * @param lists IVF cluster count; 0 picks about sqrt(passages)
+     */
+    public VectorIndex buildVectorIndex(List<String> passages, int lists) {
+        float[][] vectors = embed(passages);
+        File file = getVectorIndexFile();
+        try {
+            VectorIndex.build(file, modelRegistry.route(null, TASK_EMBED), vectors, passages, lists,
+                System.currentTimeMillis());
+            vectorIndex = VectorIndex.open(file);
+            Log.i(TAG, "Built vector index of " + vectorIndex.size() + " passages in "
+                + vectorIndex.getListCount() + " lists");
+            return vectorIndex;
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing vector index", e);
+            throw new RuntimeException("Vector index build failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Top-k passages for a query from the vector index
+     */
+    public List<VectorIndex.Hit> searchIndex(String query, int topK) {
+        VectorIndex index = vectorIndex;
+        if (index == null) {
+            throw new RuntimeException("No vector index loaded");
+        }
+        if (!index.getEmbeddingKey().equals(modelRegistry.route(null, TASK_EMBED))) {
+            throw new RuntimeException("Vector index was built with embedding model " + index.getEmbeddingKey());
+        }
+        
+        float[] vector = embed(Collections.singletonList(query))[0];
+        long start = System.nanoTime();
+        List<VectorIndex.Hit> hits = index.search(vector, topK, indexProbes);
+        indexSearchNanos.add(System.nanoTime() - start);
+        indexSearches.increment();
+        return hits;
+    }
+
+    public VectorIndex getVectorIndex() {
+        return vectorIndex;
+    }
+
+    public File getVectorIndexFile() {
+        return new File(context.getFilesDir(), VECTOR_INDEX_FILE);
+    }
+
+    /**
+     * Map the vector index from app storage, first copying it out of the assets
+     * (which cannot be mapped in place) when the config ships one
+     */
+    private void openVectorIndex() {
+        File file = getVectorIndexFile();
+        try {
+            if (!file.exists() && vectorIndexAsset != null && !vectorIndexAsset.isEmpty()) {
+                File temp = new File(file.getPath() + ".tmp");
+                try (InputStream in = context.getAssets().open(vectorIndexAsset);
+                     FileOutputStream out = new FileOutputStream(temp)) {
+                    byte[] buffer = new byte[64 * 1024];
+                    int read;
+                    while ((read = in.read(buffer)) > 0) {
+                        out.write(buffer, 0, read);
+                    }
+                }
+                if (!temp.renameTo(file)) {
+                    throw new IOException("Unable to move " + temp);
+                }
+            }
+            if (file.exists()) {
+                vectorIndex = VectorIndex.open(file);
+                Log.d(TAG, "Vector index mapped: " + vectorIndex.size() + " passages, "
+                    + vectorIndex.getDimension() + " dimensions");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to open vector index", e);
+        }
+    }
+
+    /**
+     * Run every medication pair not yet in the interaction store through the batch
+     * path at background priority, flushing the store after each batch
+     * @param shouldStop checked between batches; the running batch is stopped by
+     *                   cancelling {@code requestId}
+     * @return number of pairs computed
+     */
+    public int precomputeInteractions(List<String> medications, String requestId, BooleanSupplier shouldStop) {
+        InteractionStore store = requireInteractionStore();
+        List<String[]> missing = getMissingInteractions(medications);
+        Log.i(TAG, "Precomputing " + missing.size() + " medication interactions");
+        
+        int computed = 0;
+        for (int start = 0; start < missing.size() && !shouldStop.getAsBoolean(); start += maxBatchSize) {
+            List<String[]> pairs = missing.subList(start, Math.min(missing.size(), start + maxBatchSize));
+            List<String> suffixes = new ArrayList<>(pairs.size());
+            for (String[] pair : pairs) {
+                suffixes.add("Medication 1: " + pair[0] + "\nMedication 2: " + pair[1] + "\nAnswer:");
+            }
+            
+            GenerationOptions options = new GenerationOptions();
+            options.maxTokens = interactionMaxTokens;
+            options.temperature = 0f;
+            options.requestId = requestId;
+            options.task = TASK_INTERACTION;
+            options.background = true;
+            List<GenerationResult> results = generateBatch(INTERACTION_PROMPT, suffixes, options, null);
+            
+            boolean interrupted = false;
+            for (int i = 0; i < results.size(); i++) {
+                GenerationResult result = results.get(i);
+                if (STOP_REASON_CANCELLED.equals(result.stopReason) || STOP_REASON_TIMEOUT.equals(result.stopReason)) {
+                    // Partial answers are not worth keeping; the pair is retried next run
+                    interrupted = true;
+                    continue;
+                }
+                store.put(pairs.get(i)[0], pairs.get(i)[1], result.text.trim());
+                computed++;
+            }
+            try {
+                store.flush();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to write interaction store", e);
+            }
+            if (interrupted) {
+                break;
+            }
+        }
+        interactionsPrecomputed.add(computed);
+        return computed;
+    }
+
+    /**
+     * Stored interaction for a pair, or null if it still needs live inference
+     */
+    public InteractionStore.Interaction getInteraction(String medicationA, String medicationB) {
+        return requireInteractionStore().get(medicationA, medicationB);
+    }
+
+    /**
+     * Pairs in the medication list that have no stored interaction yet
+     */
+    public List<String[]> getMissingInteractions(List<String> medications) {
+        InteractionStore store = requireInteractionStore();
+        List<String[]> missing = new ArrayList<>();
+        for (String[] pair : InteractionStore.pairs(medications)) {
+            if (!store.contains(pair[0], pair[1])) {
+                missing.add(pair);
+            }
+        }
+        return missing;
+    }
+
+    private InteractionStore requireInteractionStore() {
+        if (!isInitialized) {
+            throw new RuntimeException("Model not initialized");
+        }
+        if (interactionStore == null) {
+            throw new RuntimeException("Interaction store unavailable");
+        }
+        return interactionStore;
+    }
+
+    /**
+     * Open the interaction store, keyed to the model that answers interaction checks
+     */
+    private void openInteractionStore() {
+        try {
+            interactionStore = new InteractionStore(new File(context.getFilesDir(), INTERACTION_STORE_FILE),
+                modelVersion(modelRegistry.route(null, TASK_INTERACTION)));
+            Log.d(TAG, "Interaction store opened: " + interactionStore.size() + " pairs");
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to open interaction store", e);
+        }
+    }
+
+    /**
+     * Embeds one batch per scheduler turn, similar lengths together to limit padding
+     */
+    private class EmbedTask implements DecodeScheduler.Task {
+        final float[][] vectors;
+        private final TextEmbedder embedder;
+        private final List<int[]> sequences;
+        private final Integer[] order;
+        private int next = 0;
+
+        EmbedTask(TextEmbedder embedder, List<int[]> sequences) {
+            this.embedder = embedder;
+            this.sequences = sequences;
+            this.vectors = new float[sequences.size()][];
+            this.order = new Integer[sequences.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Integer.compare(sequences.get(a).length, sequences.get(b).length));
+        }
+
+        @Override
+        public boolean step() throws OrtException {
+            int end = Math.min(order.length, next + embeddingBatchSize);
+            List<int[]> batch = new ArrayList<>(end - next);
+            for (int i = next; i < end; i++) {
+                batch.add(sequences.get(order[i]));
+            }
+            float[][] embedded = embedder.embed(batch, null);
+            for (int i = next; i < end; i++) {
+                vectors[order[i]] = embedded[i - next];
+            }
+            embeddingBatches.increment();
+            next = end;
+            return next >= order.length;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    /**
+     * Start recording request shapes (token counts, settings, arrival times; no text)
+     * for replay with the workload tool, replacing any recording in progress
+     * @return the trace file
+     */
+    public synchronized File startWorkloadRecording() throws IOException {
+        stopWorkloadRecording();
+        workloadFile = new File(context.getFilesDir(), "gemma-workload-" + System.currentTimeMillis() + ".tsv");
+        workloadRecorder = new WorkloadTrace.Recorder(workloadFile);
+        Log.i(TAG, "Recording workload to " + workloadFile);
+        return workloadFile;
+    }
+
+    /**
+     * Stop recording
+     * @return number of requests recorded, 0 if nothing was being recorded
+     */
+    public synchronized int stopWorkloadRecording() {
+        WorkloadTrace.Recorder recorder = workloadRecorder;
+        if (recorder == null) {
+            return 0;
+        }
+        workloadRecorder = null;
+        try {
+            recorder.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to finish workload recording", e);
+        }
+        return recorder.getCount();
+    }
+
+    public File getWorkloadFile() {
+        return workloadFile;
+    }
+
+    private void recordWorkload(String kind, String prompt, GenerationOptions options, List<String> suffixes) {
+        WorkloadTrace.Recorder recorder = workloadRecorder;
+        if (recorder == null) {
+            return;
+        }
+        
+        WorkloadTrace.Entry entry = new WorkloadTrace.Entry();
+        entry.kind = kind;
+        entry.promptTokens = tokenize(prompt, true).size();
+        entry.maxTokens = options.maxTokens;
+        entry.temperature = options.temperature;
+        entry.historyDepth = options.historyDepth;
+        if (suffixes != null) {
+            long suffixTokens = 0;
+            for (String suffix : suffixes) {
+                suffixTokens += tokenize(suffix, false).size();
+            }
+            entry.batchSize = suffixes.size();
+            entry.suffixTokens = (int) (suffixTokens / suffixes.size());
+        }
+        
+        try {
+            recorder.record(entry);
+        } catch (IOException e) {
+            Log.w(TAG, "Workload recording failed; stopping", e);
+            stopWorkloadRecording();
+        }
+    }
+
+    /**
+     * Map the conversation's KV snapshot back in when its history is a prefix of this prompt
+     */
+    private DecoderState restoreConversation(String conversationId, int[] prompt) {
+        if (conversationId == null || kvSnapshotStore == null || !decoder.hasKvCache()) {
+            return null;
+        }
+        
+        long start = System.nanoTime();
+        try {
+            // Leave at least one prompt token to run so there are logits to sample from
+            DecoderState state = kvSnapshotStore.restore(ortEnvironment, conversationId, prompt, prompt.length - 1);
+            if (state == null) {
+                return null;
+            }
+            
+            long elapsed = System.nanoTime() - start;
+            kvSnapshotRestores.increment();
+            kvRestoredTokens.add(state.length());
+            kvRestoreNanos.add(elapsed);
+            kvRecomputeEstimateNanos.add((long) (state.length() * prefillNanosPerToken()));
+            Log.d(TAG, "Restored " + state.length() + " tokens of " + conversationId + " in "
+                + (elapsed / 1_000_000) + "ms");
+            return state;
+        } catch (Exception e) {
+            Log.w(TAG, "Unable to restore KV snapshot for " + conversationId, e);
+            return null;
+        }
+    }
+
+    /**
+     * Snapshot a conversation's KV state in the background; takes ownership of {@code snapshot}
+     */
+    private void saveConversation(String conversationId, DecoderState snapshot) {
+        KvSnapshotStore store = kvSnapshotStore;
+        ExecutorService writer = snapshotWriter;
+        if (store == null || writer == null) {
+            snapshot.close();
+            return;
+        }
+        
+        try {
+            writer.execute(() -> {
+                try {
+                    long bytes = store.save(conversationId, snapshot);
+                    Log.d(TAG, "Saved " + snapshot.cachedLength() + " token KV snapshot (" + bytes + " bytes)");
+                } catch (Exception e) {
+                    Log.w(TAG, "Unable to save KV snapshot for " + conversationId, e);
+                } finally {
+                    snapshot.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Forget a conversation's KV snapshot and stored messages
+     */
+    public boolean deleteConversation(String conversationId) {
+        boolean deleted = kvSnapshotStore != null && kvSnapshotStore.delete(conversationId);
+        ConversationLog history = conversationLog;
+        if (history != null && history.getMessageCount(conversationId) > 0) {
+            history.clearConversation(conversationId);
+            deleted = true;
+        }
+        return deleted;
+    }
+
+    /**
+     * The message and result log, or null if it could not be opened
+     */
+    public ConversationLog getConversationLog() {
+        return conversationLog;
+    }
+
+    /**
+     * Most recent messages to put in a prompt when a chat is continued by conversation ID
+     */
+    public int getHistoryMessages() {
+        return historyMessages;
+    }
+
+    private void openConversationLog() {
+        File directory = new File(context.getFilesDir(), HISTORY_DIRECTORY);
+        try {
+            conversationLog = new ConversationLog(directory, loadHistoryKey(directory));
+            Log.d(TAG, "Conversation history opened: " + conversationLog.getRecordCount() + " records");
+        } catch (IOException | GeneralSecurityException e) {
+            Log.w(TAG, "Unable to open conversation history", e);
+        }
+    }
+
+    /**
+     * The history's data key, kept in an EncryptedFile under the Keystore master key.
+     * Records are sealed in-process with it; a Keystore round trip per record would
+     * cost more than the write.
+     */
+    private SecretKey loadHistoryKey(File directory) throws IOException, GeneralSecurityException {
+        MasterKey masterKey = new MasterKey.Builder(context)
+            .setKeyScheme(MasterKey.KeyScheme.AES256_GCM)
+            .build();
+        File file = new File(context.getFilesDir(), HISTORY_KEY_FILE);
+        EncryptedFile encryptedFile = new EncryptedFile.Builder(context, file, masterKey,
+            EncryptedFile.FileEncryptionScheme.AES256_GCM_HKDF_4KB).build();
+        
+        byte[] key = new byte[32];
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(encryptedFile.openFileInput())) {
+                in.readFully(key);
+            }
+        } else {
+            // Without the key the old records are unreadable; start over
+            File[] stale = directory.listFiles();
+            for (int i = 0; stale != null && i < stale.length; i++) {
+                stale[i].delete();
+            }
+            new SecureRandom().nextBytes(key);
+            try (FileOutputStream out = encryptedFile.openFileOutput()) {
+                out.write(key);
+            }
+        }
+        return new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * Prompt prefill cost per token: measured when available, else from calibration
+     */
+    private double prefillNanosPerToken() {
+        long tokens = prefilledTokens.sum();
+        if (tokens > 0) {
+            return (double) prefillNanos.sum() / tokens;
+        }
+        if (deviceProfile != null && deviceProfile.prefillMs > 0) {
+            return deviceProfile.prefillMs * 1_000_000.0 / (CALIBRATION_PROMPT.length() + 1);
+        }
+        return 0;
+    }
+
+    private int[] toArray(List<Integer> tokens) {
+        int[] array = new int[tokens.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = tokens.get(i);
+        }
+        return array;
+    }
+
+    private String stopReasonFor(InferenceRequest request) {
+        return request.isCancelled() ? STOP_REASON_CANCELLED : STOP_REASON_TIMEOUT;
+    }
+
+    /**
+     * Get model information
+     */
+    public ModelInfo getModelInfo() {
+        ModelInfo info = new ModelInfo();
+        info.modelName = "Gemma 2B Instruct";
+        info.version = "1.0.0";
+        info.isReady = isInitialized;
+        
+        Runtime runtime = Runtime.getRuntime();
+        info.memoryUsage = runtime.totalMemory() - runtime.freeMemory();
+        info.parametersCount = "2B";
+        
+        return info;
+    }
+
+    /**
+     * Check hardware acceleration capabilities
+     */
+    public HardwareInfo checkHardwareAcceleration() {
+        HardwareInfo info = new HardwareInfo();
+        String provider = deviceProfile != null ? deviceProfile.executionProvider : DeviceProfile.PROVIDER_CPU;
+        
+        // NNAPI dispatches to the GPU/NPU; XNNPACK is an optimized CPU path
+        info.available = DeviceProfile.PROVIDER_NNAPI.equals(provider);
+        info.type = info.available ? "npu" : "cpu";
+        info.deviceInfo = Build.MODEL + " (" + Build.MANUFACTURER + ")";
+        info.executionProvider = provider;
+        info.calibrated = deviceProfile != null && deviceProfile.calibratedAt > 0;
+        if (deviceProfile != null) {
+            info.intraOpThreads = deviceProfile.intraOpThreads;
+            info.optimizationLevel = deviceProfile.optimizationLevel.name();
+            info.decodeMsPerToken = deviceProfile.decodeMsPerToken;
+        }
+        
+        return info;
+    }
+
+    /**
+     * Get performance metrics
+     */
+    public PerformanceMetrics getPerformanceMetrics() {
+        PerformanceMetrics metrics = new PerformanceMetrics();
+        
+        metrics.averageInferenceTime = inferenceTimes.average();
+        metrics.totalInferences = totalInferences.sum();
+        metrics.memoryPeak = memoryPeak.get();
+        metrics.stopSequenceHits = stopSequenceHits.sum();
+        metrics.tokensSaved = totalTokensSaved.sum();
+        metrics.cancelledRequests = cancelledRequests.sum();
+        metrics.timedOutRequests = timedOutRequests.sum();
+        metrics.batchRequests = batchRequests.sum();
+        metrics.sharedPrefixTokens = sharedPrefixTokens.sum();
+        metrics.prefillChunks = prefillChunks.sum();
+        metrics.queuedTasks = decodeScheduler != null ? decodeScheduler.getQueuedTasks() : 0;
+        
+        // Snapshot restores against what re-prefilling the same tokens would have cost
+        metrics.kvSnapshotRestores = kvSnapshotRestores.sum();
+        metrics.kvRestoredTokens = kvRestoredTokens.sum();
+        if (metrics.kvSnapshotRestores > 0) {
+            metrics.averageKvRestoreMs = kvRestoreNanos.sum() / 1_000_000.0 / metrics.kvSnapshotRestores;
+            metrics.averageKvRecomputeMs = kvRecomputeEstimateNanos.sum() / 1_000_000.0 / metrics.kvSnapshotRestores;
+        }
+        if (kvSnapshotStore != null) {
+            metrics.kvSnapshotCount = kvSnapshotStore.getSnapshotCount();
+            metrics.kvSnapshotBytes = kvSnapshotStore.getTotalBytes();
+        }
+        
+        if (responseCache != null) {
+            metrics.cacheHits = responseCache.getHits();
+            metrics.cacheMisses = responseCache.getMisses();
+            metrics.cacheHitRate = responseCache.getHitRate();
+            metrics.coalescedRequests = responseCache.getCoalesced();
+            metrics.cacheEntries = responseCache.size();
+        }
+        
+        // Battery impact and current power state from the governor
+        InferenceGovernor.Decision decision = governor.evaluate();
+        metrics.batteryImpact = governor.getBatteryImpact();
+        metrics.averageEnergyPerRequest = governor.getAverageEnergyPerRequest();
+        metrics.powerLevel = decision.level;
+        metrics.thermalStatus = decision.thermalStatus;
+        metrics.batteryLevel = decision.batteryLevel;
+        metrics.activeThreadCount = activeThreadCount;
+        metrics.maxBatchSize = decision.batchSize;
+        
+        metrics.embeddedTexts = embeddedTexts.sum();
+        metrics.embeddingBatches = embeddingBatches.sum();
+        metrics.indexSearches = indexSearches.sum();
+        if (metrics.indexSearches > 0) {
+            metrics.averageSearchMs = indexSearchNanos.sum() / 1_000_000.0 / metrics.indexSearches;
+        }
+        VectorIndex index = vectorIndex;
+        metrics.indexedPassages = index != null ? index.size() : 0;
+        metrics.interactionsPrecomputed = interactionsPrecomputed.sum();
+        metrics.documentsSummarized = documentsSummarized.sum();
+        ConversationLog history = conversationLog;
+        if (history != null) {
+            metrics.historyRecords = history.getRecordCount();
+            metrics.historySyncs = history.getSyncCount();
+        }
+        metrics.documentChunks = documentChunks.sum();
+        if (metrics.documentsSummarized > 0) {
+            metrics.averageChunkingMs = documentChunkingNanos.sum() / 1_000_000.0 / metrics.documentsSummarized;
+        }
+        metrics.interactionPairsStored = interactionStore != null ? interactionStore.size() : 0;
+        metrics.shortlistSize = tokenShortlist != null ? tokenShortlist.size() : 0;
+        TokenPipeline pipeline = tokenPipeline;
+        if (pipeline != null) {
+            TokenPipeline.Stats pipelineStats = pipeline.getStats();
+            metrics.pipelinedTokens = pipelineStats.tokens;
+            metrics.pipelineStalls = pipelineStats.stalls;
+            metrics.averageTextStageMs = pipelineStats.averageTokenMs;
+        }
+        
+        if (modelRegistry != null) {
+            metrics.models = modelRegistry.getStats();
+            metrics.modelMemoryBytes = modelRegistry.getLoadedBytes();
+            metrics.modelMemoryBudget = modelRegistry.getBudgetBytes();
+        }
         
         return metrics;
     }
@@ -450,6 +2178,7 @@ public class GemmaAIManager {
             this.threadCount = threadCount;
             this.memoryLimit = memoryLimit;
             this.precisionMode = precisionMode;
+            governor.setBaseline(threadCount, maxBatchSize, maxSequenceLength);
             
             Log.d(TAG, "Inference configuration updated");
             return true;
@@ -514,12 +2243,23 @@ public class GemmaAIManager {
         // Check GPU (simplified)
         info.hasGPU = false; // Would need more sophisticated detection
         
-        info.supportedFeatures = Arrays.asList(
+        info.supportedFeatures = new ArrayList<>(Arrays.asList(
             "cpu_inference",
             "quantized_models",
-            "onnx_runtime",
-            "android_nnapi"
-        );
+            "onnx_runtime"
+        ));
+        
+        // Report the execution providers this ONNX Runtime build actually ships
+        EnumSet<OrtProvider> providers = OrtEnvironment.getAvailableProviders();
+        if (providers != null && providers.contains(OrtProvider.NNAPI)) {
+            info.supportedFeatures.add("android_nnapi");
+        }
+        if (providers != null && providers.contains(OrtProvider.XNNPACK)) {
+            info.supportedFeatures.add("xnnpack");
+        }
+        if (deviceProfile != null) {
+            info.supportedFeatures.add("calibrated_session");
+        }
         
         return info;
     }
@@ -527,16 +2267,35 @@ public class GemmaAIManager {
     /**
      * Clean up and destroy session
      */
-    public void destroy() {
+    public synchronized void destroy() {
         try {
-            if (ortSession != null) {
-                ortSession.close();
-                ortSession = null;
+            try {
+                // Stop in-flight generations before the session goes away
+                cancelAll();
+                long drainDeadline = System.currentTimeMillis() + CANCEL_DRAIN_TIMEOUT_MS;
+                while (!activeRequests.isEmpty() && System.currentTimeMillis() < drainDeadline) {
+                    Thread.sleep(10);
+                }
+                
+                persistResponseCache();
+            } finally {
+                // Write out the recorder's buffered entries even if the drain was interrupted
+                stopWorkloadRecording();
             }
             
-            if (ortEnvironment != null) {
-                ortEnvironment.close();
-                ortEnvironment = null;
+            if (decodeScheduler != null) {
+                // Fail what is queued and wait out the step in progress, which may be
+                // inside session.run; embedding batches hold no InferenceRequest to cancel
+                decodeScheduler.shutdownAndJoin();
+                decodeScheduler = null;
+            }
+            
+            // Wait for callers still holding a session to let go, as a session rebuild does
+            sessionLock.writeLock().lock();
+            try {
+                closeSessions();
+            } finally {
+                sessionLock.writeLock().unlock();
             }
             
             isInitialized = false;
@@ -546,6 +2305,53 @@ public class GemmaAIManager {
         }
     }
 
+    /**
+     * Stop the helper threads and close every session; the caller holds the session write lock
+     */
+    private void closeSessions() throws Exception {
+        if (deadlineWatchdog != null) {
+            deadlineWatchdog.shutdownNow();
+            deadlineWatchdog = null;
+        }
+        if (tokenPipeline != null) {
+            tokenPipeline.shutdown();
+            tokenPipeline = null;
+        }
+        if (snapshotWriter != null) {
+            // Let queued snapshots finish, since they read tensors the session teardown frees
+            snapshotWriter.shutdown();
+            if (!snapshotWriter.awaitTermination(SNAPSHOT_DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "KV snapshot writes still pending at shutdown");
+            }
+            snapshotWriter = null;
+        }
+        if (documentPool != null) {
+            documentPool.shutdownNow();
+            documentPool = null;
+        }
+        
+        if (modelRegistry != null) {
+            modelRegistry.closeAll();
+            modelRegistry = null;
+        }
+        
+        if (conversationLog != null) {
+            conversationLog.close();
+            conversationLog = null;
+        }
+        
+        if (ortSession != null) {
+            ortSession.close();
+            ortSession = null;
+            decoder = null;
+        }
+        
+        if (ortEnvironment != null) {
+            ortEnvironment.close();
+            ortEnvironment = null;
+        }
+    }
+
     /**
      * Cleanup on error
      */
@@ -553,6 +2359,36 @@ public class GemmaAIManager {
         destroy();
     }
 
+    /**
+     * Ring of the most recent latencies, shared by every request thread
+     */
+    private static class LatencyWindow {
+        private final long[] values;
+        private int next = 0;
+        private int count = 0;
+
+        LatencyWindow(int size) {
+            values = new long[size];
+        }
+
+        synchronized void add(long value) {
+            values[next] = value;
+            next = (next + 1) % values.length;
+            count = Math.min(count + 1, values.length);
+        }
+
+        synchronized long average() {
+            if (count == 0) {
+                return 0;
+            }
+            long sum = 0;
+            for (int i = 0; i < count; i++) {
+                sum += values[i];
+            }
+            return sum / count;
+        }
+    }
+
     // Data classes for return values
     public static class ModelInfo {
         public String modelName;
@@ -566,13 +2402,171 @@ public class GemmaAIManager {
         public boolean available;
         public String type;
         public String deviceInfo;
+        public String executionProvider;
+        public boolean calibrated;
+        public int intraOpThreads;
+        public String optimizationLevel;
+        public double decodeMsPerToken;
     }
 
     public static class PerformanceMetrics {
         public long averageInferenceTime;
         public long totalInferences;
         public long memoryPeak;
+        public long stopSequenceHits;
+        public long tokensSaved;
+        public long cancelledRequests;
+        public long timedOutRequests;
+        public long batchRequests;
+        public long sharedPrefixTokens; // prefix tokens prefilled once instead of per item
+        public long prefillChunks; // partial-prompt runs interleaved with other requests
+        public int queuedTasks;
+        public long kvSnapshotRestores;
+        public long kvRestoredTokens;
+        public double averageKvRestoreMs;
+        public double averageKvRecomputeMs; // estimated prefill time for the restored tokens
+        public int kvSnapshotCount;
+        public long kvSnapshotBytes;
+        public long cacheHits;
+        public long cacheMisses;
+        public double cacheHitRate;
+        public long coalescedRequests;
+        public int cacheEntries;
         public String batteryImpact;
+        public double averageEnergyPerRequest; // mJ
+        public String powerLevel;
+        public int thermalStatus;
+        public int batteryLevel;
+        public int activeThreadCount;
+        public int maxBatchSize;
+        public List<ModelRegistry.ModelStats> models; // routed models, not the main one
+        public long modelMemoryBytes;
+        public long modelMemoryBudget;
+        public long embeddedTexts;
+        public long embeddingBatches;
+        public long indexSearches;
+        public double averageSearchMs; // index scan only, excluding the query embedding
+        public int indexedPassages;
+        public long interactionsPrecomputed;
+        public int interactionPairsStored;
+        public long documentsSummarized;
+        public long documentChunks;
+        public double averageChunkingMs; // splitting and tokenizing, before any inference
+        public long historyRecords;
+        public long historySyncs; // each covers every record queued since the last
+        public int shortlistSize; // 0 when decoding over the full vocabulary
+        public long pipelinedTokens; // detokenized off the decode thread
+        public long pipelineStalls; // decode steps that waited for the text stage
+        public double averageTextStageMs;
+    }
+
+    public static class GenerationOptions {
+        public int maxTokens = 2048;
+        public float temperature = 0.7f;
+        public List<String> stopSequences;
+        public int[] stopTokenIds;
+        public String requestId;
+        public long timeoutMs = 0; // 0 = no deadline
+        public Long seed; // fixed seed makes sampling reproducible (and cacheable)
+        public StreamListener streamListener;
+        public String conversationId; // resume from / snapshot to this conversation's KV state
+        public int historyDepth; // chat messages in the prompt, for workload recording
+        public String modelId; // explicit model; overrides task routing
+        public String task; // task type, routed to the model declared for it
+        public boolean background; // yield to every foreground request in the decode scheduler
+        InferenceRequest parent; // the summary this generation is a pass of; stops with it
+    }
+
+    /**
+     * Receives generated text as it is produced. The range is only valid for the
+     * duration of the call; copy it if it must outlive the callback.
+     */
+    public interface StreamListener {
+        void onText(CharSequence text, int start, int end);
+    }
+
+    public static class GenerationResult {
+        public String requestId;
+        public String modelId;
+        public String text;
+        public List<Integer> tokens;
+        public int tokensGenerated;
+        public String stopReason;
+        public String matchedStopSequence;
+        public int tokensSaved;
+        public long executionTime;
+        public String powerLevel;
+        public double energyEstimate; // mJ
+        public boolean budgetLimited; // governor cut maxTokens
+        public boolean cacheHit;
+        public boolean coalesced;
+
+        public GenerationResult() {
+        }
+
+        /**
+         * Field-for-field copy; the token list is shared, as results never modify it
+         */
+        public GenerationResult(GenerationResult source) {
+            requestId = source.requestId;
+            modelId = source.modelId;
+            text = source.text;
+            tokens = source.tokens;
+            tokensGenerated = source.tokensGenerated;
+            stopReason = source.stopReason;
+            matchedStopSequence = source.matchedStopSequence;
+            tokensSaved = source.tokensSaved;
+            executionTime = source.executionTime;
+            powerLevel = source.powerLevel;
+            energyEstimate = source.energyEstimate;
+            budgetLimited = source.budgetLimited;
+            cacheHit = source.cacheHit;
+            coalesced = source.coalesced;
+        }
+    }
+
+    /**
+     * Outcome of summarizeDocument
+     */
+    public static class DocumentSummary {
+        public GenerationResult result; // final pass, or the pass that was cancelled or timed out
+        public int chunks;
+        public int rounds; // batched passes before the final one
+        public int tokensGenerated; // across every pass
+        public long executionTime;
+    }
+
+    /**
+     * Progress through a document's batched summarization passes
+     */
+    public interface DocumentListener {
+        void onProgress(int round, int completed, int total);
+    }
+
+    /**
+     * Receives each batch item's result as soon as that item finishes
+     */
+    public interface BatchListener {
+        void onItemComplete(int index, GenerationResult result);
+    }
+
+    /**
+     * One in-flight batch item
+     */
+    private static class BatchSlot {
+        final int index;
+        final DecoderState state;
+        final GenerationSequence sequence;
+        final int[] prompt; // the item's own suffix tokens
+        int offset = 0; // suffix tokens prefilled so far
+        float[] logits; // null until the suffix is fully prefilled
+
+        BatchSlot(int index, DecoderState state, GenerationSequence sequence, int[] prompt) {
+            this.index = index;
+            this.state = state;
+            this.sequence = sequence;
+            this.prompt = prompt;
+        }
     }
 
     public static class ModelFileInfo {
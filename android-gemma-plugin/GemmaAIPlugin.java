@@ -10,6 +10,15 @@ import com.getcapacitor.annotation.CapacitorPlugin;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
 /**
  * Capacitor plugin for Gemma AI integration on Android
  * Provides offline AI inference capabilities using ONNX Runtime
@@ -18,14 +27,18 @@ import org.json.JSONObject;
 public class GemmaAIPlugin extends Plugin {
     
     private static final String TAG = "GemmaAIPlugin";
+    private static final List<String> CHAT_STOP_SEQUENCES = Arrays.asList("\nUser:", "\nSystem:", "\nAssistant:");
     private GemmaAIManager aiManager;
     private boolean isInitialized = false;
+    private String modelPath;
+    private String configPath;
 
     @Override
     public void load() {
         super.load();
         Log.d(TAG, "GemmaAI Plugin loaded");
-        aiManager = new GemmaAIManager(getContext());
+        // Shared with the interaction precompute job, so the process loads the model once
+        aiManager = SharedGemmaManager.acquire(getContext());
     }
 
     /**
@@ -48,6 +61,8 @@ public class GemmaAIPlugin extends Plugin {
                         JSObject result = new JSObject();
                         if (success) {
                             isInitialized = true;
+                            GemmaAIPlugin.this.modelPath = modelPath;
+                            GemmaAIPlugin.this.configPath = configPath;
                             result.put("success", true);
                             result.put("message", "Gemma AI model initialized successfully");
                             Log.i(TAG, "Model initialization successful");
@@ -92,25 +107,34 @@ public class GemmaAIPlugin extends Plugin {
             return;
         }
 
-        Integer maxTokens = call.getInt("maxTokens", 2048);
-        Float temperature = call.getFloat("temperature", 0.7f);
+        GemmaAIManager.GenerationOptions options = readGenerationOptions(call);
+        boolean persist = call.getBoolean("persist", false);
 
-        Log.d(TAG, "Generating text for prompt length: " + prompt.length());
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Generating text for prompt length: " + prompt.length());
+        }
 
         // Run inference on background thread
         new Thread(() -> {
             try {
                 long startTime = System.currentTimeMillis();
-                String generatedText = aiManager.generateText(prompt, maxTokens, temperature);
+                GemmaAIManager.GenerationResult generation = aiManager.generate(prompt, options);
                 long executionTime = System.currentTimeMillis() - startTime;
+                
+                ConversationLog history = aiManager.getConversationLog();
+                if (persist && history != null && generation.requestId != null) {
+                    history.putResult(generation.requestId, generation.text);
+                }
 
                 JSObject result = new JSObject();
-                result.put("text", generatedText);
+                result.put("text", generation.text);
                 result.put("executionTime", executionTime);
-                result.put("tokensGenerated", estimateTokenCount(generatedText));
+                putGenerationDetails(result, generation);
 
-                Log.d(TAG, "Text generation completed in " + executionTime + "ms");
-                call.resolve(result);
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "Text generation completed in " + executionTime + "ms");
+                }
+                resolveTraced(call, result);
             } catch (Exception e) {
                 Log.e(TAG, "Error during text generation", e);
                 call.reject("Text generation failed: " + e.getMessage());
@@ -119,7 +143,8 @@ public class GemmaAIPlugin extends Plugin {
     }
 
     /**
-     * Chat with the Gemma model using conversation context
+     * Chat with the Gemma model using conversation context, either the full messages
+     * array or a conversation ID plus the new message, with history read from storage
      */
     @PluginMethod
     public void chat(PluginCall call) {
@@ -129,50 +154,82 @@ public class GemmaAIPlugin extends Plugin {
         }
 
         JSArray messagesArray = call.getArray("messages");
-        if (messagesArray == null || messagesArray.length() == 0) {
-            call.reject("Messages array is required and cannot be empty");
+        String message = call.getString("message");
+        String conversationId = call.getString("conversationId");
+        
+        // With a conversation ID and only the new message, the history comes from native storage
+        boolean stored = (messagesArray == null || messagesArray.length() == 0)
+            && conversationId != null && message != null;
+        if (!stored && (messagesArray == null || messagesArray.length() == 0)) {
+            call.reject("Messages array, or conversationId with message, is required");
+            return;
+        }
+        ConversationLog history = aiManager.getConversationLog();
+        if (stored && history == null) {
+            call.reject("Conversation history unavailable; send the messages array");
             return;
         }
 
-        Integer maxTokens = call.getInt("maxTokens", 2048);
-        Float temperature = call.getFloat("temperature", 0.7f);
-
-        Log.d(TAG, "Processing chat with " + messagesArray.length() + " messages");
+        GemmaAIManager.GenerationOptions options = readGenerationOptions(call);
+        
+        // Stop before the model starts writing the next turn itself
+        List<String> stopSequences = new ArrayList<>(CHAT_STOP_SEQUENCES);
+        if (options.stopSequences != null) {
+            stopSequences.addAll(options.stopSequences);
+        }
+        options.stopSequences = stopSequences;
 
         // Run chat on background thread
         new Thread(() -> {
             try {
                 // Convert messages to format expected by AI manager
                 StringBuilder conversationPrompt = new StringBuilder();
+                int depth = 0;
                 
-                for (int i = 0; i < messagesArray.length(); i++) {
-                    JSONObject message = messagesArray.getJSONObject(i);
-                    String role = message.getString("role");
-                    String content = message.getString("content");
-                    
-                    if ("system".equals(role)) {
-                        conversationPrompt.append("System: ").append(content).append("\n\n");
-                    } else if ("user".equals(role)) {
-                        conversationPrompt.append("User: ").append(content).append("\n\n");
-                    } else if ("assistant".equals(role)) {
-                        conversationPrompt.append("Assistant: ").append(content).append("\n\n");
+                if (stored) {
+                    for (ConversationLog.Entry entry : history.getMessages(conversationId, -1,
+                            aiManager.getHistoryMessages())) {
+                        appendTurn(conversationPrompt, entry.role, entry.text);
+                        depth++;
+                    }
+                    appendTurn(conversationPrompt, ConversationLog.ROLE_USER, message);
+                    depth++;
+                } else {
+                    for (int i = 0; i < messagesArray.length(); i++) {
+                        JSONObject item = messagesArray.getJSONObject(i);
+                        appendTurn(conversationPrompt, item.getString("role"), item.getString("content"));
+                        depth++;
                     }
                 }
+                options.historyDepth = depth;
                 
                 // Add assistant prompt
                 conversationPrompt.append("Assistant: ");
 
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "Processing chat with " + depth + " messages");
+                }
+
                 long startTime = System.currentTimeMillis();
-                String response = aiManager.generateText(conversationPrompt.toString(), maxTokens, temperature);
+                GemmaAIManager.GenerationResult generation = aiManager.generate(conversationPrompt.toString(), options);
                 long executionTime = System.currentTimeMillis() - startTime;
+                
+                // Keep the exchange unless it was cut short; the writer syncs it in the background
+                if (stored && !GemmaAIManager.STOP_REASON_CANCELLED.equals(generation.stopReason)
+                        && !GemmaAIManager.STOP_REASON_TIMEOUT.equals(generation.stopReason)) {
+                    history.appendMessage(conversationId, ConversationLog.ROLE_USER, message);
+                    history.appendMessage(conversationId, ConversationLog.ROLE_ASSISTANT, generation.text.trim());
+                }
 
                 JSObject result = new JSObject();
-                result.put("response", response.trim());
+                result.put("response", generation.text.trim());
                 result.put("executionTime", executionTime);
-                result.put("tokensGenerated", estimateTokenCount(response));
+                putGenerationDetails(result, generation);
 
-                Log.d(TAG, "Chat completion completed in " + executionTime + "ms");
-                call.resolve(result);
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "Chat completion completed in " + executionTime + "ms");
+                }
+                resolveTraced(call, result);
             } catch (Exception e) {
                 Log.e(TAG, "Error during chat", e);
                 call.reject("Chat failed: " + e.getMessage());
@@ -180,6 +237,524 @@ public class GemmaAIPlugin extends Plugin {
         }).start();
     }
 
+    /**
+     * Generate one completion per suffix, all continuing the same prefix.
+     * The prefix is prefilled once; with stream set, each item is also sent as a
+     * batchItem event as soon as it finishes.
+     */
+    @PluginMethod
+    public void generateBatch(PluginCall call) {
+        if (!isInitialized) {
+            call.reject("Gemma AI model not initialized. Call initialize() first.");
+            return;
+        }
+
+        String prefix = call.getString("prefix", "");
+        JSArray suffixArray = call.getArray("suffixes");
+        if (suffixArray == null || suffixArray.length() == 0) {
+            call.reject("Suffixes array is required and cannot be empty");
+            return;
+        }
+
+        List<String> suffixes = new ArrayList<>();
+        for (int i = 0; i < suffixArray.length(); i++) {
+            String suffix = suffixArray.optString(i);
+            suffixes.add(suffix != null ? suffix : "");
+        }
+
+        GemmaAIManager.GenerationOptions options = readGenerationOptions(call);
+        
+        // Batches stream whole items rather than text deltas
+        GemmaAIManager.BatchListener listener = null;
+        if (options.streamListener != null) {
+            options.streamListener = null;
+            listener = (index, generation) -> {
+                JSObject event = new JSObject();
+                event.put("index", index);
+                event.put("text", generation.text);
+                putGenerationDetails(event, generation);
+                notifyListeners("batchItem", event);
+            };
+        }
+        final GemmaAIManager.BatchListener itemListener = listener;
+
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Generating batch of " + suffixes.size() + " for prefix length: " + prefix.length());
+        }
+
+        // Run inference on background thread
+        new Thread(() -> {
+            try {
+                long startTime = System.currentTimeMillis();
+                List<GemmaAIManager.GenerationResult> generations =
+                    aiManager.generateBatch(prefix, suffixes, options, itemListener);
+                long executionTime = System.currentTimeMillis() - startTime;
+
+                JSArray items = new JSArray();
+                for (int i = 0; i < generations.size(); i++) {
+                    GemmaAIManager.GenerationResult generation = generations.get(i);
+                    JSObject item = new JSObject();
+                    item.put("index", i);
+                    item.put("text", generation.text);
+                    putGenerationDetails(item, generation);
+                    items.put(item);
+                }
+
+                JSObject result = new JSObject();
+                result.put("results", items);
+                result.put("requestId", generations.isEmpty() ? options.requestId : generations.get(0).requestId);
+                result.put("executionTime", executionTime);
+
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "Batch generation completed in " + executionTime + "ms");
+                }
+                resolveTraced(call, result);
+            } catch (Exception e) {
+                Log.e(TAG, "Error during batch generation", e);
+                call.reject("Batch generation failed: " + e.getMessage());
+            }
+        }).start();
+    }
+
+    /**
+     * Summarize a document too long for one prompt, such as a medication leaflet.
+     * Chunk summaries run as batches; with stream set, each finished chunk is sent
+     * as a documentProgress event and the final summary streams as textDelta events.
+     */
+    @PluginMethod
+    public void summarizeDocument(PluginCall call) {
+        if (!isInitialized) {
+            call.reject("Gemma AI model not initialized. Call initialize() first.");
+            return;
+        }
+
+        String text = call.getString("text");
+        if (text == null || text.trim().isEmpty()) {
+            call.reject("Text is required and cannot be empty");
+            return;
+        }
+
+        GemmaAIManager.GenerationOptions options = readGenerationOptions(call);
+        if (options.requestId == null) {
+            options.requestId = UUID.randomUUID().toString();
+        }
+        final String requestId = options.requestId;
+        GemmaAIManager.DocumentListener listener = null;
+        if (options.streamListener != null) {
+            listener = (round, completed, total) -> {
+                JSObject event = new JSObject();
+                event.put("requestId", requestId);
+                event.put("round", round);
+                event.put("completed", completed);
+                event.put("total", total);
+                notifyListeners("documentProgress", event);
+            };
+        }
+        final GemmaAIManager.DocumentListener progressListener = listener;
+
+        new Thread(() -> {
+            try {
+                GemmaAIManager.DocumentSummary summary = aiManager.summarizeDocument(text, options, progressListener);
+
+                JSObject result = new JSObject();
+                result.put("summary", summary.result.text);
+                result.put("chunks", summary.chunks);
+                result.put("rounds", summary.rounds);
+                result.put("executionTime", summary.executionTime);
+                putGenerationDetails(result, summary.result);
+                result.put("tokensGenerated", summary.tokensGenerated);
+
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "Document summarized from " + summary.chunks + " chunks in " + summary.executionTime + "ms");
+                }
+                resolveTraced(call, result);
+            } catch (Exception e) {
+                Log.e(TAG, "Error during document summarization", e);
+                call.reject("Document summarization failed: " + e.getMessage());
+            }
+        }).start();
+    }
+
+    /**
+     * Cancel an in-flight generateText, chat or generateBatch request by its request ID
+     */
+    @PluginMethod
+    public void cancel(PluginCall call) {
+        String requestId = call.getString("requestId");
+        if (requestId == null || requestId.isEmpty()) {
+            call.reject("requestId is required");
+            return;
+        }
+
+        boolean cancelled = aiManager != null && aiManager.cancel(requestId);
+        
+        JSObject result = new JSObject();
+        result.put("requestId", requestId);
+        result.put("cancelled", cancelled);
+        call.resolve(result);
+    }
+
+    /**
+     * Delete the saved KV snapshot of a conversation
+     */
+    @PluginMethod
+    public void clearConversation(PluginCall call) {
+        String conversationId = call.getString("conversationId");
+        if (conversationId == null || conversationId.isEmpty()) {
+            call.reject("conversationId is required");
+            return;
+        }
+
+        JSObject result = new JSObject();
+        result.put("conversationId", conversationId);
+        result.put("deleted", aiManager != null && aiManager.deleteConversation(conversationId));
+        call.resolve(result);
+    }
+
+    /**
+     * A page of a conversation's stored messages, oldest first
+     */
+    @PluginMethod
+    public void getConversationHistory(PluginCall call) {
+        String conversationId = call.getString("conversationId");
+        if (conversationId == null || conversationId.isEmpty()) {
+            call.reject("conversationId is required");
+            return;
+        }
+        ConversationLog history = aiManager != null ? aiManager.getConversationLog() : null;
+        if (history == null) {
+            call.reject("Conversation history unavailable");
+            return;
+        }
+
+        try {
+            JSArray messages = new JSArray();
+            for (ConversationLog.Entry entry : history.getMessages(conversationId,
+                    call.getInt("before", -1), call.getInt("limit", 20))) {
+                JSObject item = new JSObject();
+                item.put("role", entry.role);
+                item.put("content", entry.text);
+                item.put("createdAt", entry.createdAt);
+                messages.put(item);
+            }
+
+            JSObject result = new JSObject();
+            result.put("conversationId", conversationId);
+            result.put("messages", messages);
+            result.put("total", history.getMessageCount(conversationId));
+            call.resolve(result);
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading conversation history", e);
+            call.reject("History read failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A generateText result saved with persist: true, by its request ID
+     */
+    @PluginMethod
+    public void getStoredResult(PluginCall call) {
+        String requestId = call.getString("requestId");
+        if (requestId == null || requestId.isEmpty()) {
+            call.reject("requestId is required");
+            return;
+        }
+        ConversationLog history = aiManager != null ? aiManager.getConversationLog() : null;
+        if (history == null) {
+            call.reject("Conversation history unavailable");
+            return;
+        }
+
+        try {
+            ConversationLog.Entry entry = history.getResult(requestId);
+            JSObject result = new JSObject();
+            result.put("requestId", requestId);
+            result.put("found", entry != null);
+            if (entry != null) {
+                result.put("text", entry.text);
+                result.put("createdAt", entry.createdAt);
+            }
+            call.resolve(result);
+        } catch (Exception e) {
+            Log.e(TAG, "Error reading stored result", e);
+            call.reject("Result read failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Embed texts with the configured embedding model
+     */
+    @PluginMethod
+    public void embed(PluginCall call) {
+        if (!isInitialized) {
+            call.reject("Gemma AI model not initialized. Call initialize() first.");
+            return;
+        }
+
+        List<String> texts = readStrings(call.getArray("texts"));
+        if (texts.isEmpty()) {
+            call.reject("Texts array is required and cannot be empty");
+            return;
+        }
+
+        new Thread(() -> {
+            try {
+                long startTime = System.currentTimeMillis();
+                float[][] vectors = aiManager.embed(texts);
+
+                JSArray embeddings = new JSArray();
+                for (float[] vector : vectors) {
+                    JSArray values = new JSArray();
+                    for (float value : vector) {
+                        values.put((double) value);
+                    }
+                    embeddings.put(values);
+                }
+
+                JSObject result = new JSObject();
+                result.put("embeddings", embeddings);
+                result.put("dimension", vectors.length > 0 ? vectors[0].length : 0);
+                result.put("executionTime", System.currentTimeMillis() - startTime);
+                call.resolve(result);
+            } catch (Exception e) {
+                Log.e(TAG, "Error during embedding", e);
+                call.reject("Embedding failed: " + e.getMessage());
+            }
+        }).start();
+    }
+
+    /**
+     * Embed a passage corpus into the on-disk vector index, replacing the current one
+     */
+    @PluginMethod
+    public void buildIndex(PluginCall call) {
+        if (!isInitialized) {
+            call.reject("Gemma AI model not initialized. Call initialize() first.");
+            return;
+        }
+
+        List<String> passages = readStrings(call.getArray("passages"));
+        if (passages.isEmpty()) {
+            call.reject("Passages array is required and cannot be empty");
+            return;
+        }
+        int lists = call.getInt("lists", 0);
+
+        new Thread(() -> {
+            try {
+                long startTime = System.currentTimeMillis();
+                VectorIndex index = aiManager.buildVectorIndex(passages, lists);
+
+                JSObject result = new JSObject();
+                result.put("passages", index.size());
+                result.put("dimension", index.getDimension());
+                result.put("lists", index.getListCount());
+                result.put("path", aiManager.getVectorIndexFile().getAbsolutePath());
+                result.put("executionTime", System.currentTimeMillis() - startTime);
+                call.resolve(result);
+            } catch (Exception e) {
+                Log.e(TAG, "Error building vector index", e);
+                call.reject("Index build failed: " + e.getMessage());
+            }
+        }).start();
+    }
+
+    /**
+     * Retrieve the passages closest to a query, for grounding a prompt
+     */
+    @PluginMethod
+    public void searchIndex(PluginCall call) {
+        if (!isInitialized) {
+            call.reject("Gemma AI model not initialized. Call initialize() first.");
+            return;
+        }
+
+        String query = call.getString("query");
+        if (query == null || query.isEmpty()) {
+            call.reject("query is required");
+            return;
+        }
+        int topK = call.getInt("topK", 3);
+
+        new Thread(() -> {
+            try {
+                long startTime = System.currentTimeMillis();
+                List<VectorIndex.Hit> hits = aiManager.searchIndex(query, topK);
+
+                JSArray results = new JSArray();
+                for (VectorIndex.Hit hit : hits) {
+                    JSObject item = new JSObject();
+                    item.put("id", hit.id);
+                    item.put("score", (double) hit.score);
+                    item.put("text", hit.text);
+                    results.put(item);
+                }
+
+                JSObject result = new JSObject();
+                result.put("results", results);
+                result.put("executionTime", System.currentTimeMillis() - startTime);
+                call.resolve(result);
+            } catch (Exception e) {
+                Log.e(TAG, "Error searching vector index", e);
+                call.reject("Index search failed: " + e.getMessage());
+            }
+        }).start();
+    }
+
+    /**
+     * Schedule interaction checks for every medication pair to run while the device
+     * is idle and charging
+     */
+    @PluginMethod
+    public void scheduleInteractionPrecompute(PluginCall call) {
+        if (!isInitialized) {
+            call.reject("Gemma AI model not initialized. Call initialize() first.");
+            return;
+        }
+
+        try {
+            List<String> medications = readStrings(call.getArray("medications"));
+            int pendingPairs = aiManager.getMissingInteractions(medications).size();
+            boolean scheduled = pendingPairs > 0
+                && InteractionPrecomputeService.schedule(getContext(), medications, modelPath, configPath);
+
+            JSObject result = new JSObject();
+            result.put("scheduled", scheduled);
+            result.put("pendingPairs", pendingPairs);
+            call.resolve(result);
+        } catch (Exception e) {
+            Log.e(TAG, "Error scheduling interaction precompute", e);
+            call.reject("Scheduling failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Look up precomputed interactions for a medication list; pairs not yet
+     * computed come back in missing for live inference
+     */
+    @PluginMethod
+    public void lookupInteractions(PluginCall call) {
+        if (!isInitialized) {
+            call.reject("Gemma AI model not initialized. Call initialize() first.");
+            return;
+        }
+
+        try {
+            JSArray results = new JSArray();
+            JSArray missing = new JSArray();
+            for (String[] pair : InteractionStore.pairs(readStrings(call.getArray("medications")))) {
+                InteractionStore.Interaction interaction = aiManager.getInteraction(pair[0], pair[1]);
+                if (interaction == null) {
+                    JSArray names = new JSArray();
+                    names.put(pair[0]);
+                    names.put(pair[1]);
+                    missing.put(names);
+                    continue;
+                }
+                JSObject item = new JSObject();
+                item.put("medicationA", interaction.medicationA);
+                item.put("medicationB", interaction.medicationB);
+                item.put("text", interaction.text);
+                item.put("computedAt", interaction.computedAt);
+                results.put(item);
+            }
+
+            JSObject result = new JSObject();
+            result.put("results", results);
+            result.put("missing", missing);
+            call.resolve(result);
+        } catch (Exception e) {
+            Log.e(TAG, "Error looking up interactions", e);
+            call.reject("Interaction lookup failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Start recording request shapes for offline load replay; prompt text is never stored
+     */
+    @PluginMethod
+    public void startWorkloadRecording(PluginCall call) {
+        try {
+            File file = aiManager.startWorkloadRecording();
+            JSObject result = new JSObject();
+            result.put("recording", true);
+            result.put("path", file.getAbsolutePath());
+            call.resolve(result);
+        } catch (Exception e) {
+            Log.e(TAG, "Error starting workload recording", e);
+            call.reject("Failed to start workload recording: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stop recording request shapes
+     */
+    @PluginMethod
+    public void stopWorkloadRecording(PluginCall call) {
+        int requests = aiManager.stopWorkloadRecording();
+        File file = aiManager.getWorkloadFile();
+
+        JSObject result = new JSObject();
+        result.put("recording", false);
+        result.put("requests", requests);
+        if (file != null) {
+            result.put("path", file.getAbsolutePath());
+        }
+        call.resolve(result);
+    }
+
+    /**
+     * Start recording trace events into per-thread ring buffers, discarding earlier ones
+     */
+    @PluginMethod
+    public void startTrace(PluginCall call) {
+        int bufferEvents = call.getInt("bufferEvents", Tracer.DEFAULT_CAPACITY);
+        if (bufferEvents < Tracer.MIN_CAPACITY || bufferEvents > Tracer.MAX_CAPACITY) {
+            call.reject("bufferEvents must be between " + Tracer.MIN_CAPACITY + " and " + Tracer.MAX_CAPACITY);
+            return;
+        }
+        Tracer.start(bufferEvents);
+
+        JSObject result = new JSObject();
+        result.put("enabled", true);
+        result.put("bufferEvents", bufferEvents);
+        call.resolve(result);
+    }
+
+    /**
+     * Export recorded events as Chrome trace-event JSON (loadable in Perfetto),
+     * also written to the app cache directory for adb pull
+     */
+    @PluginMethod
+    public void dumpTrace(PluginCall call) {
+        boolean stop = call.getBoolean("stop", true);
+
+        new Thread(() -> {
+            try {
+                if (stop) {
+                    Tracer.stop();
+                }
+                int eventCount = Tracer.getEventCount();
+                String trace = Tracer.exportChromeTrace(android.os.Process.myPid());
+
+                File file = new File(getContext().getCacheDir(), "gemma-trace.json");
+                try (OutputStream out = new FileOutputStream(file)) {
+                    out.write(trace.getBytes(StandardCharsets.UTF_8));
+                }
+
+                JSObject result = new JSObject();
+                result.put("trace", trace);
+                result.put("path", file.getAbsolutePath());
+                result.put("eventCount", eventCount);
+                result.put("enabled", Tracer.isEnabled());
+                call.resolve(result);
+            } catch (Exception e) {
+                Log.e(TAG, "Error exporting trace", e);
+                call.reject("Failed to export trace: " + e.getMessage());
+            }
+        }).start();
+    }
+
     /**
      * Get information about the loaded model
      */
@@ -217,6 +792,11 @@ public class GemmaAIPlugin extends Plugin {
             result.put("available", hwInfo.available);
             result.put("type", hwInfo.type);
             result.put("deviceInfo", hwInfo.deviceInfo);
+            result.put("executionProvider", hwInfo.executionProvider);
+            result.put("calibrated", hwInfo.calibrated);
+            result.put("intraOpThreads", hwInfo.intraOpThreads);
+            result.put("optimizationLevel", hwInfo.optimizationLevel);
+            result.put("decodeMsPerToken", hwInfo.decodeMsPerToken);
             
             call.resolve(result);
         } catch (Exception e) {
@@ -229,6 +809,37 @@ public class GemmaAIPlugin extends Plugin {
         }
     }
 
+    /**
+     * Re-run session calibration for this device and apply the winning profile
+     */
+    @PluginMethod
+    public void calibrate(PluginCall call) {
+        if (!isInitialized) {
+            call.reject("Gemma AI model not initialized");
+            return;
+        }
+
+        // Calibration loads several sessions; keep it off the bridge thread
+        new Thread(() -> {
+            try {
+                DeviceProfile profile = aiManager.recalibrate();
+                
+                JSObject result = new JSObject();
+                result.put("success", true);
+                result.put("executionProvider", profile.executionProvider);
+                result.put("intraOpThreads", profile.intraOpThreads);
+                result.put("interOpThreads", profile.interOpThreads);
+                result.put("optimizationLevel", profile.optimizationLevel.name());
+                result.put("prefillMs", profile.prefillMs);
+                result.put("decodeMsPerToken", profile.decodeMsPerToken);
+                call.resolve(result);
+            } catch (Exception e) {
+                Log.e(TAG, "Error during calibration", e);
+                call.reject("Calibration failed: " + e.getMessage());
+            }
+        }).start();
+    }
+
     /**
      * Get performance metrics
      */
@@ -246,7 +857,66 @@ public class GemmaAIPlugin extends Plugin {
             result.put("averageInferenceTime", metrics.averageInferenceTime);
             result.put("totalInferences", metrics.totalInferences);
             result.put("memoryPeak", metrics.memoryPeak);
+            result.put("stopSequenceHits", metrics.stopSequenceHits);
+            result.put("tokensSaved", metrics.tokensSaved);
+            result.put("cancelledRequests", metrics.cancelledRequests);
+            result.put("timedOutRequests", metrics.timedOutRequests);
+            result.put("batchRequests", metrics.batchRequests);
+            result.put("sharedPrefixTokens", metrics.sharedPrefixTokens);
+            result.put("prefillChunks", metrics.prefillChunks);
+            result.put("queuedTasks", metrics.queuedTasks);
+            result.put("kvSnapshotRestores", metrics.kvSnapshotRestores);
+            result.put("kvRestoredTokens", metrics.kvRestoredTokens);
+            result.put("averageKvRestoreMs", metrics.averageKvRestoreMs);
+            result.put("averageKvRecomputeMs", metrics.averageKvRecomputeMs);
+            result.put("kvSnapshotCount", metrics.kvSnapshotCount);
+            result.put("kvSnapshotBytes", metrics.kvSnapshotBytes);
+            result.put("cacheHits", metrics.cacheHits);
+            result.put("cacheMisses", metrics.cacheMisses);
+            result.put("cacheHitRate", metrics.cacheHitRate);
+            result.put("coalescedRequests", metrics.coalescedRequests);
+            result.put("cacheEntries", metrics.cacheEntries);
             result.put("batteryImpact", metrics.batteryImpact);
+            result.put("averageEnergyPerRequest", metrics.averageEnergyPerRequest);
+            result.put("powerLevel", metrics.powerLevel);
+            result.put("thermalStatus", metrics.thermalStatus);
+            result.put("batteryLevel", metrics.batteryLevel);
+            result.put("activeThreadCount", metrics.activeThreadCount);
+            result.put("maxBatchSize", metrics.maxBatchSize);
+            result.put("embeddedTexts", metrics.embeddedTexts);
+            result.put("embeddingBatches", metrics.embeddingBatches);
+            result.put("indexSearches", metrics.indexSearches);
+            result.put("averageSearchMs", metrics.averageSearchMs);
+            result.put("indexedPassages", metrics.indexedPassages);
+            result.put("interactionsPrecomputed", metrics.interactionsPrecomputed);
+            result.put("interactionPairsStored", metrics.interactionPairsStored);
+            result.put("documentsSummarized", metrics.documentsSummarized);
+            result.put("documentChunks", metrics.documentChunks);
+            result.put("averageChunkingMs", metrics.averageChunkingMs);
+            result.put("historyRecords", metrics.historyRecords);
+            result.put("historySyncs", metrics.historySyncs);
+            result.put("shortlistSize", metrics.shortlistSize);
+            result.put("pipelinedTokens", metrics.pipelinedTokens);
+            result.put("pipelineStalls", metrics.pipelineStalls);
+            result.put("averageTextStageMs", metrics.averageTextStageMs);
+            result.put("modelMemoryBytes", metrics.modelMemoryBytes);
+            result.put("modelMemoryBudget", metrics.modelMemoryBudget);
+            JSArray models = new JSArray();
+            if (metrics.models != null) {
+                for (ModelRegistry.ModelStats stats : metrics.models) {
+                    JSObject model = new JSObject();
+                    model.put("id", stats.id);
+                    model.put("loaded", stats.loaded);
+                    model.put("inUse", stats.inUse);
+                    model.put("sizeBytes", stats.sizeBytes);
+                    model.put("loads", stats.loads);
+                    model.put("hits", stats.hits);
+                    model.put("evictions", stats.evictions);
+                    model.put("averageLoadMs", stats.averageLoadMs);
+                    models.put(model);
+                }
+            }
+            result.put("models", models);
             
             call.resolve(result);
         } catch (Exception e) {
@@ -261,15 +931,15 @@ public class GemmaAIPlugin extends Plugin {
     @PluginMethod
     public void destroySession(PluginCall call) {
         try {
-            if (aiManager != null) {
-                aiManager.destroy();
-            }
+            // The manager is shared with the precompute job; while the job holds it the
+            // model stays loaded and only this plugin stops using it
+            boolean unloaded = aiManager != null && SharedGemmaManager.unload(aiManager);
             isInitialized = false;
             
             JSObject result = new JSObject();
             result.put("success", true);
             
-            Log.d(TAG, "AI session destroyed successfully");
+            Log.d(TAG, unloaded ? "AI session destroyed successfully" : "AI session released; still in use by another holder");
             call.resolve(result);
         } catch (Exception e) {
             Log.e(TAG, "Error destroying AI session", e);
@@ -367,14 +1037,119 @@ public class GemmaAIPlugin extends Plugin {
     }
 
     /**
-     * Estimate token count from text (simple approximation)
+     * Read sampling and stop settings shared by generateText and chat
      */
-    private int estimateTokenCount(String text) {
-        if (text == null || text.trim().isEmpty()) {
-            return 0;
+    private GemmaAIManager.GenerationOptions readGenerationOptions(PluginCall call) {
+        GemmaAIManager.GenerationOptions options = new GemmaAIManager.GenerationOptions();
+        options.maxTokens = call.getInt("maxTokens", 2048);
+        options.temperature = call.getFloat("temperature", 0.7f);
+        options.requestId = call.getString("requestId");
+        options.timeoutMs = call.getLong("timeoutMs", 0L);
+        options.seed = call.getLong("seed");
+        options.conversationId = call.getString("conversationId");
+        options.modelId = call.getString("model");
+        options.task = call.getString("task");
+        
+        // Stream text deltas as textDelta events, tagged with the request ID
+        if (call.getBoolean("stream", false)) {
+            if (options.requestId == null) {
+                options.requestId = UUID.randomUUID().toString();
+            }
+            final String requestId = options.requestId;
+            options.streamListener = (text, start, end) -> {
+                JSObject event = new JSObject();
+                event.put("requestId", requestId);
+                event.put("delta", text.subSequence(start, end).toString());
+                notifyListeners("textDelta", event);
+            };
+        }
+        
+        JSArray stopSequences = call.getArray("stopSequences");
+        if (stopSequences != null) {
+            options.stopSequences = new ArrayList<>();
+            for (int i = 0; i < stopSequences.length(); i++) {
+                String sequence = stopSequences.optString(i);
+                if (sequence != null && !sequence.isEmpty()) {
+                    options.stopSequences.add(sequence);
+                }
+            }
+        }
+        
+        JSArray stopTokenIds = call.getArray("stopTokenIds");
+        if (stopTokenIds != null) {
+            options.stopTokenIds = new int[stopTokenIds.length()];
+            for (int i = 0; i < stopTokenIds.length(); i++) {
+                options.stopTokenIds[i] = stopTokenIds.optInt(i, -1);
+            }
+        }
+        
+        return options;
+    }
+
+    /**
+     * Add one chat turn to a prompt; unknown roles are left out
+     */
+    private void appendTurn(StringBuilder prompt, String role, String content) {
+        if (ConversationLog.ROLE_SYSTEM.equals(role)) {
+            prompt.append("System: ").append(content).append("\n\n");
+        } else if (ConversationLog.ROLE_USER.equals(role)) {
+            prompt.append("User: ").append(content).append("\n\n");
+        } else if (ConversationLog.ROLE_ASSISTANT.equals(role)) {
+            prompt.append("Assistant: ").append(content).append("\n\n");
+        }
+    }
+
+    private List<String> readStrings(JSArray array) {
+        List<String> strings = new ArrayList<>();
+        for (int i = 0; array != null && i < array.length(); i++) {
+            String value = array.optString(i);
+            strings.add(value != null ? value : "");
+        }
+        return strings;
+    }
+
+    /**
+     * Resolve a generation call, recording the bridge hand-off in the trace
+     */
+    private void resolveTraced(PluginCall call, JSObject result) {
+        Tracer.begin(Tracer.BRIDGE_RESOLVE);
+        try {
+            call.resolve(result);
+        } finally {
+            Tracer.end(Tracer.BRIDGE_RESOLVE);
+        }
+    }
+
+    /**
+     * Map the manager's stop reason onto the bridge's finish reasons
+     */
+    private String finishReasonFor(String stopReason) {
+        if (GemmaAIManager.STOP_REASON_LENGTH.equals(stopReason)) {
+            return "length";
+        } else if (GemmaAIManager.STOP_REASON_CANCELLED.equals(stopReason)) {
+            return "cancelled";
+        } else if (GemmaAIManager.STOP_REASON_TIMEOUT.equals(stopReason)) {
+            return "timeout";
+        }
+        return "stop";
+    }
+
+    /**
+     * Add token counts and stop information to a generation response
+     */
+    private void putGenerationDetails(JSObject result, GemmaAIManager.GenerationResult generation) {
+        result.put("requestId", generation.requestId);
+        result.put("model", generation.modelId);
+        result.put("tokensGenerated", generation.tokensGenerated);
+        result.put("finishReason", finishReasonFor(generation.stopReason));
+        result.put("stopReason", generation.stopReason);
+        result.put("tokensSaved", generation.tokensSaved);
+        result.put("powerLevel", generation.powerLevel);
+        result.put("energyEstimate", generation.energyEstimate);
+        result.put("cacheHit", generation.cacheHit || generation.coalesced);
+        if (generation.matchedStopSequence != null) {
+            result.put("stopSequence", generation.matchedStopSequence);
         }
-        // Simple approximation: ~4 characters per token on average
-        return text.length() / 4;
     }
 
     @Override
@@ -382,7 +1157,7 @@ public class GemmaAIPlugin extends Plugin {
         super.handleOnDestroy();
         if (aiManager != null) {
             try {
-                aiManager.destroy();
+                SharedGemmaManager.release(aiManager);
             } catch (Exception e) {
                 Log.e(TAG, "Error during plugin cleanup", e);
             }
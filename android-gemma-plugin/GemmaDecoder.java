@@ -0,0 +1,444 @@
+package com.lifelight.gemma;
+
+import ai.onnxruntime.NodeInfo;
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OnnxValue;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.TensorInfo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs the Gemma ONNX graph over DecoderStates
+ * Uses the model's KV cache when it exports past_key_values.* / present.* pairs;
+ * otherwise recomputes the full sequence each step, as the original loop did.
+ * ONNX Runtime 1.16 copies a whole output tensor to read any of it, so runs ask
+ * for logits only when they are read, and cached runs produce them for one
+ * position at most.
+ */
+public class GemmaDecoder {
+
+    private static final String INPUT_IDS = "input_ids";
+    private static final String ATTENTION_MASK = "attention_mask";
+    private static final String POSITION_IDS = "position_ids";
+    private static final String LOGITS = "logits";
+    private static final String PAST_PREFIX = "past_key_values";
+    private static final String PRESENT_PREFIX = "present";
+
+    private final OrtEnvironment environment;
+    private final OrtSession session;
+
+    private final OnnxJavaType inputIdsType;
+    private final boolean hasAttentionMask;
+    private final boolean hasPositionIds;
+    private final String logitsName;
+    private final int vocabularySize;
+
+    // Past input name -> present output name, in input order
+    private final Map<String, String> pastToPresent = new HashMap<>();
+    private final List<String> pastNames = new ArrayList<>();
+    private final Map<String, long[]> emptyPastShapes = new HashMap<>();
+    private final Map<String, OnnxJavaType> pastTypes = new HashMap<>();
+    private final Set<String> presentOutputs = new LinkedHashSet<>();
+    private final Set<String> presentAndLogits = new LinkedHashSet<>();
+
+    // Restricted output vocabulary; null samples over the full vocabulary
+    private volatile TokenShortlist shortlist;
+
+    public GemmaDecoder(OrtEnvironment environment, OrtSession session, int numKvHeads, int headDim) throws OrtException {
+        this.environment = environment;
+        this.session = session;
+
+        Map<String, NodeInfo> inputs = session.getInputInfo();
+        this.inputIdsType = elementType(inputs.get(INPUT_IDS));
+        this.hasAttentionMask = inputs.containsKey(ATTENTION_MASK);
+        this.hasPositionIds = inputs.containsKey(POSITION_IDS);
+        this.logitsName = session.getOutputNames().contains(LOGITS) ? LOGITS : session.getOutputNames().iterator().next();
+        this.vocabularySize = lastDimension(session.getOutputInfo().get(logitsName));
+
+        for (Map.Entry<String, NodeInfo> input : inputs.entrySet()) {
+            String name = input.getKey();
+            if (!name.startsWith(PAST_PREFIX)) {
+                continue;
+            }
+            String present = PRESENT_PREFIX + name.substring(PAST_PREFIX.length());
+            if (!session.getOutputNames().contains(present)) {
+                continue;
+            }
+
+            // Past shape is [batch, kv_heads, past_len, head_dim]; symbolic dims fall back to config
+            long[] shape = new long[] {1, numKvHeads, 0, headDim};
+            if (input.getValue().getInfo() instanceof TensorInfo) {
+                long[] declared = ((TensorInfo) input.getValue().getInfo()).getShape();
+                if (declared != null && declared.length == 4) {
+                    shape[1] = declared[1] > 0 ? declared[1] : numKvHeads;
+                    shape[3] = declared[3] > 0 ? declared[3] : headDim;
+                }
+            }
+            pastNames.add(name);
+            pastToPresent.put(name, present);
+            emptyPastShapes.put(name, shape);
+            pastTypes.put(name, elementType(input.getValue()));
+            presentOutputs.add(present);
+        }
+        presentAndLogits.addAll(presentOutputs);
+        presentAndLogits.add(logitsName);
+    }
+
+    /**
+     * Width of the graph's logits rows, or -1 if the export leaves it symbolic
+     */
+    public int getVocabularySize() {
+        return vocabularySize;
+    }
+
+    /**
+     * Whether steps reuse cached keys/values instead of recomputing the prefix
+     */
+    public boolean hasKvCache() {
+        return !pastNames.isEmpty();
+    }
+
+    /**
+     * Restrict returned logits to a shortlist, in shortlist order; null restores the full vocabulary.
+     * A graph exported with the shortlist baked into lm_head (logits dimension equal to its size)
+     * is read as is. Otherwise the shortlisted columns are gathered from the full row, after the
+     * run has computed and copied out every column, so that only shrinks what is sampled.
+     */
+    public void setShortlist(TokenShortlist shortlist) {
+        this.shortlist = shortlist;
+    }
+
+    public TokenShortlist getShortlist() {
+        return shortlist;
+    }
+
+    public DecoderState newState() {
+        return new DecoderState();
+    }
+
+    /**
+     * Feed tokens into the state and return the logits for the last one.
+     * With a KV cache, a multi-token prefill runs all but the last token without
+     * logits and the last on its own: one extra run, but the output is one
+     * vocabulary row rather than one per token.
+     */
+    public float[] prefill(DecoderState state, int[] newTokens, OrtSession.RunOptions runOptions) throws OrtException {
+        if (newTokens.length == 0) {
+            throw new IllegalArgumentException("Nothing to prefill");
+        }
+        int previousLength = state.length();
+        DecoderState.KvCache previousCache = state.kvCache();
+        if (previousCache != null) {
+            previousCache.retain();
+        }
+        state.append(newTokens);
+        try {
+            if (!hasKvCache()) {
+                return runFull(state, runOptions);
+            }
+            if (newTokens.length > 1) {
+                runCached(state, state.length() - 1, false, runOptions);
+            }
+            return runCached(state, state.length(), true, runOptions);
+        } catch (OrtException | RuntimeException e) {
+            // Leave the state as it was so a failed or terminated run can't desync tokens and cache
+            state.replaceKvCache(previousCache);
+            previousCache = null;
+            state.truncate(previousLength);
+            throw e;
+        } finally {
+            if (previousCache != null) {
+                previousCache.release();
+            }
+        }
+    }
+
+    /**
+     * Feed tokens whose logits nobody reads, such as all but the last chunk of a prompt.
+     * Without a KV cache this only records them; the next prefill runs the whole sequence anyway.
+     */
+    public void extend(DecoderState state, int[] newTokens, OrtSession.RunOptions runOptions) throws OrtException {
+        if (newTokens.length == 0) {
+            throw new IllegalArgumentException("Nothing to prefill");
+        }
+        int previousLength = state.length();
+        state.append(newTokens);
+        if (!hasKvCache()) {
+            return;
+        }
+        try {
+            runCached(state, state.length(), false, runOptions);
+        } catch (OrtException | RuntimeException e) {
+            state.truncate(previousLength);
+            throw e;
+        }
+    }
+
+    /**
+     * Append one sampled token and return the next logits
+     */
+    public float[] step(DecoderState state, int token, OrtSession.RunOptions runOptions) throws OrtException {
+        return prefill(state, new int[] {token}, runOptions);
+    }
+
+    /**
+     * Append one token to each state and return each state's next logits.
+     * Without a KV cache and with an attention mask, all states run as one padded batch.
+     * With a KV cache the states step one after another, one session run each: every
+     * state has its own past length and cache tensors, and the graph takes a single
+     * past per run. What a batch shares there is the prefilled prefix, not the steps.
+     */
+    public float[][] stepBatch(List<DecoderState> states, int[] nextTokens, OrtSession.RunOptions runOptions) throws OrtException {
+        float[][] logits = new float[states.size()][];
+        if (hasKvCache() || !hasAttentionMask || states.size() == 1) {
+            for (int i = 0; i < states.size(); i++) {
+                logits[i] = step(states.get(i), nextTokens[i], runOptions);
+            }
+            return logits;
+        }
+
+        for (int i = 0; i < states.size(); i++) {
+            states.get(i).append(new int[] {nextTokens[i]});
+        }
+        try {
+            return runPaddedBatch(states, runOptions);
+        } catch (OrtException | RuntimeException e) {
+            for (DecoderState state : states) {
+                state.truncate(state.length() - 1);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Full-sequence run for models without a KV cache
+     */
+    private float[] runFull(DecoderState state, OrtSession.RunOptions runOptions) throws OrtException {
+        List<DecoderState> single = new ArrayList<>(1);
+        single.add(state);
+        return runPaddedBatch(single, runOptions)[0];
+    }
+
+    /**
+     * Left-padded [batch, maxLen] run over whole sequences
+     */
+    private float[][] runPaddedBatch(List<DecoderState> states, OrtSession.RunOptions runOptions) throws OrtException {
+        int batch = states.size();
+        int maxLength = 0;
+        for (DecoderState state : states) {
+            maxLength = Math.max(maxLength, state.length());
+        }
+
+        long[] ids = new long[batch * maxLength];
+        long[] mask = new long[batch * maxLength];
+        long[] positions = new long[batch * maxLength];
+        for (int b = 0; b < batch; b++) {
+            DecoderState state = states.get(b);
+            int padding = maxLength - state.length();
+            for (int t = 0; t < state.length(); t++) {
+                int index = b * maxLength + padding + t;
+                ids[index] = state.tokenAt(t);
+                mask[index] = 1;
+                positions[index] = t;
+            }
+        }
+
+        long[] shape = {batch, maxLength};
+        Map<String, OnnxTensor> inputs = new HashMap<>();
+        try {
+            inputs.put(INPUT_IDS, idsTensor(ids, shape));
+            if (hasAttentionMask) {
+                inputs.put(ATTENTION_MASK, OnnxTensor.createTensor(environment, LongBuffer.wrap(mask), shape));
+            }
+            if (hasPositionIds) {
+                inputs.put(POSITION_IDS, OnnxTensor.createTensor(environment, LongBuffer.wrap(positions), shape));
+            }
+
+            // The full-sequence graph emits logits for every position and ONNX Runtime copies
+            // all of them out; only models without a KV cache take this path
+            try (OrtSession.Result result = run(inputs, Collections.singleton(logitsName), runOptions)) {
+                return lastLogits(logitsOf(result), batch, maxLength);
+            }
+        } finally {
+            closeAll(inputs, null);
+        }
+    }
+
+    /**
+     * Incremental run feeding the state's tokens up to {@code totalLength} that are not yet
+     * in the cache, plus the cached keys/values
+     * @return the last position's logits, or null when {@code withLogits} is false
+     */
+    private float[] runCached(DecoderState state, int totalLength, boolean withLogits,
+                              OrtSession.RunOptions runOptions) throws OrtException {
+        DecoderState.KvCache past = state.kvCache();
+        int pastLength = past != null ? past.length : 0;
+        int newCount = totalLength - pastLength;
+
+        long[] ids = new long[newCount];
+        long[] positions = new long[newCount];
+        for (int i = 0; i < newCount; i++) {
+            ids[i] = state.tokenAt(pastLength + i);
+            positions[i] = pastLength + i;
+        }
+        long[] mask = new long[totalLength];
+        Arrays.fill(mask, 1L);
+
+        Map<String, OnnxTensor> inputs = new HashMap<>();
+        OrtSession.Result result = null;
+        try {
+            inputs.put(INPUT_IDS, idsTensor(ids, new long[] {1, newCount}));
+            if (hasAttentionMask) {
+                inputs.put(ATTENTION_MASK, OnnxTensor.createTensor(environment, LongBuffer.wrap(mask), new long[] {1, totalLength}));
+            }
+            if (hasPositionIds) {
+                inputs.put(POSITION_IDS, OnnxTensor.createTensor(environment, LongBuffer.wrap(positions), new long[] {1, newCount}));
+            }
+            for (String name : pastNames) {
+                OnnxTensor tensor = past != null ? past.tensors.get(name) : null;
+                if (tensor == null) {
+                    tensor = emptyPast(name);
+                }
+                inputs.put(name, tensor);
+            }
+
+            result = run(inputs, withLogits ? presentAndLogits : presentOutputs, runOptions);
+            OnnxTensor logitsValue = withLogits ? logitsOf(result) : null;
+            float[] logits = withLogits ? lastLogits(logitsValue, 1, newCount)[0] : null;
+
+            // Hand the present tensors to the state and free the logits now, rather than
+            // keeping the whole result alive for as long as the cache is
+            Map<String, OnnxTensor> present = new HashMap<>();
+            for (String name : pastNames) {
+                present.put(name, (OnnxTensor) result.get(pastToPresent.get(name)).get());
+            }
+            state.replaceKvCache(new DecoderState.KvCache(present, totalLength));
+            result = null;
+            if (logitsValue != null) {
+                logitsValue.close();
+            }
+            return logits;
+        } finally {
+            if (result != null) {
+                result.close();
+            }
+            // Past tensors belong to the (possibly shared) cache; only close what this call created,
+            // empty pasts included, and each once: a second close() frees native memory twice
+            closeAll(inputs, past);
+        }
+    }
+
+    private OrtSession.Result run(Map<String, OnnxTensor> inputs, Set<String> outputs,
+                                  OrtSession.RunOptions runOptions) throws OrtException {
+        Tracer.begin(Tracer.SESSION_RUN);
+        try {
+            return runOptions != null ? session.run(inputs, outputs, runOptions) : session.run(inputs, outputs);
+        } finally {
+            Tracer.end(Tracer.SESSION_RUN);
+        }
+    }
+
+    private OnnxTensor logitsOf(OrtSession.Result result) {
+        return (OnnxTensor) result.get(logitsName).get();
+    }
+
+    /**
+     * Copy out only the last position's logits per batch row. getFloatBuffer() has already
+     * copied the whole tensor, which is why cached runs keep it to a single position.
+     * With a shortlist set, only its columns are kept, though all were copied.
+     */
+    private float[][] lastLogits(OnnxTensor logits, int batch, int sequenceLength) {
+        FloatBuffer buffer = logits.getFloatBuffer();
+        long[] shape = logits.getInfo().getShape();
+        int vocab = (int) shape[shape.length - 1];
+        // Some exports only emit the final position
+        int positions = shape.length == 3 ? (int) shape[1] : 1;
+
+        TokenShortlist current = shortlist;
+        boolean gather = current != null && vocab != current.size();
+        if (gather && current.maxToken() >= vocab) {
+            throw new IllegalStateException("Shortlist token " + current.maxToken() + " outside vocabulary of " + vocab);
+        }
+        float[][] rows = new float[batch][gather ? current.size() : vocab];
+        for (int b = 0; b < batch; b++) {
+            int rowStart = (b * positions + positions - 1) * vocab;
+            if (gather) {
+                current.gather(buffer, rowStart, rows[b]);
+            } else {
+                buffer.position(rowStart);
+                buffer.get(rows[b]);
+            }
+        }
+        return rows;
+    }
+
+    private OnnxTensor idsTensor(long[] ids, long[] shape) throws OrtException {
+        if (inputIdsType == OnnxJavaType.INT64) {
+            return OnnxTensor.createTensor(environment, LongBuffer.wrap(ids), shape);
+        }
+        if (inputIdsType == OnnxJavaType.INT32) {
+            int[] narrowed = new int[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                narrowed[i] = (int) ids[i];
+            }
+            return OnnxTensor.createTensor(environment, IntBuffer.wrap(narrowed), shape);
+        }
+        // Legacy float-typed input_ids export
+        float[] widened = new float[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            widened[i] = ids[i];
+        }
+        return OnnxTensor.createTensor(environment, FloatBuffer.wrap(widened), shape);
+    }
+
+    private OnnxTensor emptyPast(String name) throws OrtException {
+        ByteBuffer empty = ByteBuffer.allocateDirect(0).order(ByteOrder.nativeOrder());
+        return OnnxTensor.createTensor(environment, empty, emptyPastShapes.get(name), pastTypes.get(name));
+    }
+
+    private static OnnxJavaType elementType(NodeInfo info) {
+        if (info != null && info.getInfo() instanceof TensorInfo) {
+            return ((TensorInfo) info.getInfo()).type;
+        }
+        return OnnxJavaType.FLOAT;
+    }
+
+    private static int lastDimension(NodeInfo info) {
+        if (info != null && info.getInfo() instanceof TensorInfo) {
+            long[] shape = ((TensorInfo) info.getInfo()).getShape();
+            if (shape != null && shape.length > 0 && shape[shape.length - 1] > 0) {
+                return (int) shape[shape.length - 1];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Close input tensors this decoder created, skipping ones owned by {@code shared}
+     */
+    private static void closeAll(Map<String, OnnxTensor> tensors, DecoderState.KvCache shared) {
+        for (Map.Entry<String, OnnxTensor> entry : tensors.entrySet()) {
+            OnnxValue value = entry.getValue();
+            if (shared != null && shared.tensors.get(entry.getKey()) == value) {
+                continue;
+            }
+            value.close();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.lifelight.gemma;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decode bookkeeping for one output sequence
+ * Applies EOS, stop-token, stop-sequence and length checks to each sampled
+ * token, detokenizes incrementally and streams the text that can no longer
+ * turn out to be part of a stop sequence. As a TokenPipeline sink this work
+ * runs on the pipeline's thread while the decode thread runs the next step.
+ */
+public class GenerationSequence implements TokenPipeline.Sink {
+
+    private final GemmaAIManager.GenerationOptions options;
+    private final GemmaAIManager.StreamListener streamListener;
+    private final int maxTokens;
+    private final int eosToken;
+    private final StopSequenceMatcher matcher;
+    private final StreamingDetokenizer detokenizer;
+
+    private final StringBuilder text = new StringBuilder();
+    private final List<Integer> tokens = new ArrayList<>();
+    private int emitted = 0;
+
+    private String stopReason;
+    private String matchedStopSequence;
+    private int tokensSaved = 0;
+
+    public GenerationSequence(GemmaAIManager.GenerationOptions options, int maxTokens, int eosToken,
+                              StreamingDetokenizer.Vocabulary vocabulary, GemmaAIManager.StreamListener streamListener) {
+        this.options = options;
+        this.streamListener = streamListener;
+        this.maxTokens = maxTokens;
+        this.eosToken = eosToken;
+        this.matcher = new StopSequenceMatcher(options.stopSequences);
+        this.detokenizer = new StreamingDetokenizer(vocabulary);
+        if (maxTokens <= 0) {
+            stopReason = GemmaAIManager.STOP_REASON_LENGTH;
+        }
+    }
+
+    /**
+     * EOS, a stop token or the length limit; stop sequences need the text, so only accept() sees them
+     */
+    @Override
+    public boolean endsAt(int token, int accepted) {
+        return token == eosToken || isStopToken(token) || accepted + 1 >= maxTokens;
+    }
+
+    /**
+     * Take the next sampled token
+     * @return true if the sequence wants another token
+     */
+    @Override
+    public boolean accept(int token) {
+        if (isFinished()) {
+            return false;
+        }
+
+        // Check for end of sequence
+        if (token == eosToken) {
+            stopReason = GemmaAIManager.STOP_REASON_EOS;
+            return false;
+        }
+
+        if (isStopToken(token)) {
+            stopReason = GemmaAIManager.STOP_REASON_STOP_TOKEN;
+            tokensSaved = maxTokens - (tokens.size() + 1);
+            return false;
+        }
+
+        tokens.add(token);
+
+        // Match stop sequences against the complete characters this token adds
+        Tracer.begin(Tracer.DETOKENIZE);
+        int tokenStart = text.length();
+        detokenizer.append(token, text);
+        int matchEnd = matcher.isEmpty() ? -1 : matcher.feed(text, tokenStart, text.length());
+        Tracer.end(Tracer.DETOKENIZE);
+        if (matchEnd >= 0) {
+            // Cut at the start of the stop sequence, discarding the rest of this token
+            text.setLength(matchEnd - matcher.getMatchLength());
+            stopReason = GemmaAIManager.STOP_REASON_STOP_SEQUENCE;
+            matchedStopSequence = matcher.getMatchedSequence();
+            tokensSaved = maxTokens - tokens.size();
+            return false;
+        }
+
+        // Stream everything that can no longer turn out to be part of a stop sequence
+        if (streamListener != null) {
+            int safeEnd = text.length() - matcher.getPendingLength();
+            if (safeEnd > emitted) {
+                streamListener.onText(text, emitted, safeEnd);
+                emitted = safeEnd;
+            }
+        }
+
+        if (tokens.size() >= maxTokens) {
+            stopReason = GemmaAIManager.STOP_REASON_LENGTH;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * End the sequence early (cancellation, deadline)
+     */
+    @Override
+    public void stop(String reason) {
+        if (!isFinished()) {
+            stopReason = reason;
+        }
+    }
+
+    public boolean isFinished() {
+        return stopReason != null;
+    }
+
+    public int getTokenCount() {
+        return tokens.size();
+    }
+
+    /**
+     * Flush trailing text to the listener and build the result
+     */
+    public GemmaAIManager.GenerationResult finish() {
+        if (stopReason == null) {
+            stopReason = GemmaAIManager.STOP_REASON_LENGTH;
+        }
+        if (!GemmaAIManager.STOP_REASON_STOP_SEQUENCE.equals(stopReason)) {
+            detokenizer.flush(text);
+        }
+        if (streamListener != null && text.length() > emitted) {
+            streamListener.onText(text, emitted, text.length());
+            emitted = text.length();
+        }
+
+        GemmaAIManager.GenerationResult generation = new GemmaAIManager.GenerationResult();
+        generation.tokens = new ArrayList<>(tokens);
+        generation.tokensGenerated = tokens.size();
+        generation.text = text.toString();
+        generation.stopReason = stopReason;
+        generation.matchedStopSequence = matchedStopSequence;
+        generation.tokensSaved = tokensSaved;
+        return generation;
+    }
+
+    private boolean isStopToken(int tokenId) {
+        if (options.stopTokenIds == null) {
+            return false;
+        }
+        for (int stopTokenId : options.stopTokenIds) {
+            if (stopTokenId == tokenId) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,197 @@
+package com.lifelight.gemma;
+
+/**
+ * Adaptive inference governor
+ * Scales thread count, batch size and token budget down as the device heats up
+ * or the battery drains, and estimates energy per request from CPU time
+ */
+public class InferenceGovernor {
+
+    // Power states, from least to most constrained
+    public static final String LEVEL_FULL = "full";
+    public static final String LEVEL_REDUCED = "reduced";
+    public static final String LEVEL_MINIMAL = "minimal";
+
+    private static final int LOW_BATTERY_PERCENT = 30;
+    private static final int CRITICAL_BATTERY_PERCENT = 15;
+    private static final int REDUCED_MAX_TOKENS = 512;
+    private static final int MINIMAL_MAX_TOKENS = 128;
+
+    // Re-read device state at most this often so the level doesn't flap mid-conversation
+    private static final long EVALUATION_INTERVAL_MS = 5000;
+    // A less constrained level must hold this long before the governor relaxes to it.
+    // Each level change rebuilds the session, so a device hovering at a threshold
+    // would otherwise rebuild it on every evaluation.
+    private static final long RELAX_DWELL_MS = 60000;
+
+    // Average active power of one busy big core, used to turn CPU time into energy
+    private static final double DEFAULT_CORE_POWER_MW = 350.0;
+
+    // Average energy per request separating Low/Medium/High battery impact
+    private static final double LOW_IMPACT_MJ = 500.0;
+    private static final double HIGH_IMPACT_MJ = 2000.0;
+
+    private final DeviceStateProvider deviceState;
+    private double corePowerMilliwatts = DEFAULT_CORE_POWER_MW;
+
+    // Unconstrained settings the governor scales down from
+    private int baseThreadCount;
+    private int baseBatchSize;
+    private int baseMaxTokens;
+
+    private Decision lastDecision;
+    private long lastEvaluationTime = 0;
+    // Less constrained level seen since pendingSince, not yet applied
+    private String pendingLevel;
+    private long pendingSince = 0;
+
+    // Energy accounting
+    private long measuredRequests = 0;
+    private double totalEnergyMillijoules = 0;
+
+    public InferenceGovernor(DeviceStateProvider deviceState, int baseThreadCount, int baseBatchSize, int baseMaxTokens) {
+        this.deviceState = deviceState;
+        this.baseThreadCount = Math.max(1, baseThreadCount);
+        this.baseBatchSize = Math.max(1, baseBatchSize);
+        this.baseMaxTokens = Math.max(1, baseMaxTokens);
+    }
+
+    /**
+     * Update the unconstrained settings, e.g. after configureInference
+     */
+    public synchronized void setBaseline(int threadCount, int batchSize, int maxTokens) {
+        baseThreadCount = Math.max(1, threadCount);
+        baseBatchSize = Math.max(1, batchSize);
+        baseMaxTokens = Math.max(1, maxTokens);
+        lastDecision = null;
+        pendingLevel = null;
+    }
+
+    public synchronized void setCorePowerMilliwatts(double corePowerMilliwatts) {
+        if (corePowerMilliwatts > 0) {
+            this.corePowerMilliwatts = corePowerMilliwatts;
+        }
+    }
+
+    /**
+     * Current settings for the device state, re-evaluated at most every few seconds.
+     * A more constrained level applies at once; a less constrained one only after it
+     * has held for RELAX_DWELL_MS.
+     */
+    public Decision evaluate() {
+        return evaluate(System.currentTimeMillis());
+    }
+
+    synchronized Decision evaluate(long now) {
+        if (lastDecision != null && now - lastEvaluationTime < EVALUATION_INTERVAL_MS) {
+            return lastDecision;
+        }
+
+        Decision decision = new Decision();
+        decision.thermalStatus = deviceState.getThermalStatus();
+        decision.batteryLevel = deviceState.getBatteryLevel();
+        decision.charging = deviceState.isCharging();
+        String observed = levelFor(decision.thermalStatus, decision.batteryLevel, decision.charging,
+            deviceState.isPowerSaveMode());
+        decision.level = dampedLevel(observed, now);
+
+        if (LEVEL_MINIMAL.equals(decision.level)) {
+            decision.threadCount = 1;
+            decision.batchSize = 1;
+            decision.maxTokens = Math.min(baseMaxTokens, MINIMAL_MAX_TOKENS);
+        } else if (LEVEL_REDUCED.equals(decision.level)) {
+            decision.threadCount = Math.max(1, baseThreadCount / 2);
+            decision.batchSize = Math.max(1, baseBatchSize / 2);
+            decision.maxTokens = Math.min(baseMaxTokens, REDUCED_MAX_TOKENS);
+        } else {
+            decision.threadCount = baseThreadCount;
+            decision.batchSize = baseBatchSize;
+            decision.maxTokens = baseMaxTokens;
+        }
+
+        lastDecision = decision;
+        lastEvaluationTime = now;
+        return decision;
+    }
+
+    private String dampedLevel(String observed, long now) {
+        if (lastDecision == null || severity(observed) >= severity(lastDecision.level)) {
+            pendingLevel = null;
+            return observed;
+        }
+        if (!observed.equals(pendingLevel)) {
+            pendingLevel = observed;
+            pendingSince = now;
+        }
+        if (now - pendingSince < RELAX_DWELL_MS) {
+            return lastDecision.level;
+        }
+        pendingLevel = null;
+        return observed;
+    }
+
+    private static int severity(String level) {
+        if (LEVEL_MINIMAL.equals(level)) {
+            return 2;
+        }
+        return LEVEL_REDUCED.equals(level) ? 1 : 0;
+    }
+
+    private String levelFor(int thermalStatus, int batteryLevel, boolean charging, boolean powerSaveMode) {
+        boolean batteryKnown = batteryLevel >= 0;
+
+        if (thermalStatus >= DeviceStateProvider.THERMAL_SEVERE
+                || (!charging && batteryKnown && batteryLevel < CRITICAL_BATTERY_PERCENT)) {
+            return LEVEL_MINIMAL;
+        }
+        if (thermalStatus >= DeviceStateProvider.THERMAL_MODERATE || powerSaveMode
+                || (!charging && batteryKnown && batteryLevel < LOW_BATTERY_PERCENT)) {
+            return LEVEL_REDUCED;
+        }
+        return LEVEL_FULL;
+    }
+
+    /**
+     * Record a finished request and return its estimated energy in millijoules
+     */
+    public synchronized double recordRequest(long cpuTimeMs) {
+        // CPU-milliseconds times milliwatts gives microjoules; scale to millijoules
+        double energy = Math.max(0, cpuTimeMs) * corePowerMilliwatts / 1000.0;
+        measuredRequests++;
+        totalEnergyMillijoules += energy;
+        return energy;
+    }
+
+    public synchronized double getAverageEnergyPerRequest() {
+        return measuredRequests == 0 ? 0 : totalEnergyMillijoules / measuredRequests;
+    }
+
+    /**
+     * Battery impact bucket from the measured energy per request
+     */
+    public synchronized String getBatteryImpact() {
+        if (measuredRequests == 0) {
+            return "Unknown";
+        }
+        double average = getAverageEnergyPerRequest();
+        if (average < LOW_IMPACT_MJ) {
+            return "Low";
+        } else if (average < HIGH_IMPACT_MJ) {
+            return "Medium";
+        }
+        return "High";
+    }
+
+    /**
+     * Settings chosen for the current device state
+     */
+    public static class Decision {
+        public String level;
+        public int threadCount;
+        public int batchSize;
+        public int maxTokens;
+        public int thermalStatus;
+        public int batteryLevel;
+        public boolean charging;
+    }
+}
@@ -0,0 +1,166 @@
+package com.lifelight.gemma;
+
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle for an in-flight generation request
+ * Carries the cancel flag and deadline checked between decode steps, and the
+ * RunOptions used to terminate a session run that is already executing.
+ * Callers that wait rather than decode (e.g. on a coalesced generation) can
+ * wait on {@link #onStop()} instead. A call made of several generations (a
+ * document summary) registers one request and attaches each pass to it, so
+ * stopping the call stops whichever pass is running.
+ */
+public class InferenceRequest implements AutoCloseable {
+
+    private final String requestId;
+    private final long deadlineNanos;
+    private final OrtSession.RunOptions runOptions;
+    private final CompletableFuture<Void> stopped = new CompletableFuture<>();
+    private final Set<InferenceRequest> children = ConcurrentHashMap.newKeySet();
+    private ScheduledFuture<?> expiry;
+    private InferenceRequest parent;
+
+    private volatile boolean cancelled = false;
+    private volatile boolean timedOut = false;
+    private boolean closed = false;
+
+    public InferenceRequest(String requestId, long timeoutMs) throws OrtException {
+        this.requestId = requestId;
+        this.deadlineNanos = timeoutMs > 0 ? System.nanoTime() + timeoutMs * 1_000_000L : 0;
+        this.runOptions = new OrtSession.RunOptions();
+        this.runOptions.setRunTag(requestId);
+    }
+
+    public String getRequestId() {
+        return requestId;
+    }
+
+    public OrtSession.RunOptions getRunOptions() {
+        return runOptions;
+    }
+
+    public boolean hasDeadline() {
+        return deadlineNanos != 0;
+    }
+
+    /**
+     * Milliseconds left before the deadline, 0 once passed
+     */
+    public long getRemainingMillis() {
+        if (!hasDeadline()) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, (deadlineNanos - System.nanoTime()) / 1_000_000L);
+    }
+
+    /**
+     * Have the watchdog expire the request when its deadline passes; no-op without one
+     */
+    public synchronized void armDeadline(ScheduledExecutorService watchdog) {
+        if (hasDeadline() && !closed && expiry == null) {
+            expiry = watchdog.schedule(this::expire, getRemainingMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop this request, the same way, whenever the parent is stopped; until close()
+     */
+    public void attachTo(InferenceRequest parent) {
+        synchronized (this) {
+            this.parent = parent;
+        }
+        parent.children.add(this);
+        // The parent flags itself before stopping its children, so one of us sees the other
+        if (parent.cancelled) {
+            cancel();
+        } else if (parent.timedOut) {
+            expire();
+        }
+    }
+
+    /**
+     * Cancel the request, interrupting a session run in progress
+     */
+    public void cancel() {
+        cancelled = true;
+        terminate();
+        stopped.complete(null);
+        for (InferenceRequest child : children) {
+            child.cancel();
+        }
+    }
+
+    /**
+     * Mark the deadline as passed, interrupting a session run in progress
+     */
+    public void expire() {
+        timedOut = true;
+        terminate();
+        stopped.complete(null);
+        for (InferenceRequest child : children) {
+            child.expire();
+        }
+    }
+
+    /**
+     * Completes when the request is cancelled or expired by the watchdog
+     */
+    public CompletableFuture<Void> onStop() {
+        return stopped;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Whether the deadline has passed, either flagged by the watchdog or observed now
+     */
+    public boolean isTimedOut() {
+        if (!timedOut && hasDeadline() && System.nanoTime() - deadlineNanos >= 0) {
+            timedOut = true;
+        }
+        return timedOut;
+    }
+
+    /**
+     * Checked between decode steps
+     */
+    public boolean shouldStop() {
+        return cancelled || isTimedOut();
+    }
+
+    private synchronized void terminate() {
+        if (closed) {
+            return;
+        }
+        try {
+            runOptions.setTerminate(true);
+        } catch (OrtException e) {
+            // The step loop still sees the flag at the next boundary
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            if (expiry != null) {
+                expiry.cancel(false);
+            }
+            if (parent != null) {
+                parent.children.remove(this);
+            }
+            runOptions.close();
+        }
+    }
+}
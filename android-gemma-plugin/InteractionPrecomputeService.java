@@ -0,0 +1,104 @@
+package com.lifelight.gemma;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.PersistableBundle;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Fills the interaction store while the device is idle and charging
+ * Runs on the process's shared manager, so it reuses the plugin's model when the
+ * app has loaded one and otherwise loads it for the length of the job, never a
+ * second copy. The system stops the job when the device leaves idle, and the
+ * pairs not yet computed are picked up on the next run.
+ */
+public class InteractionPrecomputeService extends JobService {
+
+    private static final String TAG = "InteractionPrecompute";
+    private static final int JOB_ID = 0x47495850;
+    private static final String EXTRA_MEDICATIONS = "medications";
+    private static final String EXTRA_MODEL_PATH = "modelPath";
+    private static final String EXTRA_CONFIG_PATH = "configPath";
+
+    private volatile boolean stopped = false;
+    private volatile GemmaAIManager runningManager;
+    private final String requestId = "interaction-precompute-" + UUID.randomUUID();
+
+    /**
+     * Schedule (or replace) the precompute job for a medication list
+     * @return true if the scheduler accepted the job
+     */
+    public static boolean schedule(Context context, List<String> medications, String modelPath, String configPath) {
+        PersistableBundle extras = new PersistableBundle();
+        extras.putStringArray(EXTRA_MEDICATIONS, medications.toArray(new String[0]));
+        extras.putString(EXTRA_MODEL_PATH, modelPath);
+        extras.putString(EXTRA_CONFIG_PATH, configPath);
+
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, InteractionPrecomputeService.class))
+            .setRequiresDeviceIdle(true)
+            .setRequiresCharging(true)
+            .setPersisted(true)
+            .setExtras(extras)
+            .build();
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        return scheduler != null && scheduler.schedule(job) == JobScheduler.RESULT_SUCCESS;
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        Thread worker = new Thread(() -> run(params), "gemma-interaction-precompute");
+        worker.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        stopped = true;
+        GemmaAIManager manager = runningManager;
+        if (manager != null) {
+            manager.cancel(requestId);
+        }
+        // Reschedule; finished pairs are already stored
+        return true;
+    }
+
+    private void run(JobParameters params) {
+        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        PersistableBundle extras = params.getExtras();
+        String[] medications = extras.getStringArray(EXTRA_MEDICATIONS);
+
+        GemmaAIManager manager = SharedGemmaManager.acquire(getApplicationContext());
+        boolean retry = false;
+        try {
+            // Returns at once if the plugin already loaded this model
+            if (!manager.initialize(extras.getString(EXTRA_MODEL_PATH), extras.getString(EXTRA_CONFIG_PATH))) {
+                throw new RuntimeException("Model failed to load");
+            }
+            runningManager = manager;
+            if (!stopped && medications != null) {
+                int computed = manager.precomputeInteractions(Arrays.asList(medications), requestId, () -> stopped);
+                Log.i(TAG, "Precomputed " + computed + " interactions");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Interaction precompute failed", e);
+            retry = true;
+        } finally {
+            runningManager = null;
+            // Destroys the manager only if the plugin is not holding it too
+            SharedGemmaManager.release(manager);
+        }
+
+        // After onStopJob the system has already released the job
+        if (!stopped) {
+            jobFinished(params, retry);
+        }
+    }
+}
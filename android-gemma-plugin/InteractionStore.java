@@ -0,0 +1,309 @@
+package com.lifelight.gemma;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Precomputed drug-interaction results, one per unordered medication pair
+ * The file holds a header (magic, version, model key), an index of
+ * (pair hash, offset) sorted by hash, and the records. Lookups binary-search
+ * the index and read one record from the mapped file; new results collect in
+ * memory until {@link #flush()} rewrites the file with them merged in.
+ */
+public class InteractionStore {
+
+    private static final int MAGIC = 0x53584947; // "GIXS"
+    private static final int VERSION = 1;
+
+    /**
+     * A stored result
+     */
+    public static class Interaction {
+        public String medicationA;
+        public String medicationB;
+        public String text;
+        public long computedAt;
+    }
+
+    private final File file;
+    private final String modelKey;
+    private final Map<String, Interaction> pending = new HashMap<>();
+    private ByteBuffer data;
+    private long[] hashes = new long[0];
+    private int[] offsets = new int[0];
+
+    /**
+     * @param modelKey identifies the model the results came from; a file written
+     *                 with another key is treated as empty
+     */
+    public InteractionStore(File file, String modelKey) throws IOException {
+        this.file = file;
+        this.modelKey = modelKey;
+        load();
+    }
+
+    /**
+     * Canonical form of a medication name, so "Ibuprofen " and "ibuprofen" are one entry
+     */
+    public static String normalize(String medication) {
+        return medication.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Every unordered pair of distinct medications, each as {first, second} in sorted order
+     */
+    public static List<String[]> pairs(List<String> medications) {
+        List<String> names = new ArrayList<>();
+        for (String medication : new TreeSet<>(normalized(medications))) {
+            if (!medication.isEmpty()) {
+                names.add(medication);
+            }
+        }
+        List<String[]> pairs = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            for (int j = i + 1; j < names.size(); j++) {
+                pairs.add(new String[] {names.get(i), names.get(j)});
+            }
+        }
+        return pairs;
+    }
+
+    public synchronized Interaction get(String medicationA, String medicationB) {
+        String a = normalize(medicationA);
+        String b = normalize(medicationB);
+        if (a.compareTo(b) > 0) {
+            String swap = a;
+            a = b;
+            b = swap;
+        }
+
+        Interaction interaction = pending.get(pairKey(a, b));
+        return interaction != null ? interaction : findStored(a, b);
+    }
+
+    public boolean contains(String medicationA, String medicationB) {
+        return get(medicationA, medicationB) != null;
+    }
+
+    /**
+     * Record a result; it is readable at once and written out on the next flush
+     */
+    public synchronized void put(String medicationA, String medicationB, String text) {
+        Interaction interaction = new Interaction();
+        String a = normalize(medicationA);
+        String b = normalize(medicationB);
+        interaction.medicationA = a.compareTo(b) <= 0 ? a : b;
+        interaction.medicationB = a.compareTo(b) <= 0 ? b : a;
+        interaction.text = text;
+        interaction.computedAt = System.currentTimeMillis();
+        pending.put(pairKey(interaction.medicationA, interaction.medicationB), interaction);
+    }
+
+    public synchronized int size() {
+        int count = hashes.length;
+        for (Interaction interaction : pending.values()) {
+            if (findStored(interaction.medicationA, interaction.medicationB) == null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Rewrite the file with pending results merged in
+     */
+    public synchronized void flush() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        Map<String, Interaction> merged = new HashMap<>();
+        for (int offset : offsets) {
+            Interaction stored = read(offset);
+            merged.put(pairKey(stored.medicationA, stored.medicationB), stored);
+        }
+        merged.putAll(pending);
+
+        List<Interaction> entries = new ArrayList<>(merged.values());
+        entries.sort((x, y) -> Long.compare(hash(pairKey(x.medicationA, x.medicationB)),
+            hash(pairKey(y.medicationA, y.medicationB))));
+
+        byte[][] records = new byte[entries.size()][];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = encode(entries.get(i));
+        }
+
+        byte[] keyBytes = modelKey.getBytes(StandardCharsets.UTF_8);
+        int headerSize = 4 + 4 + 2 + keyBytes.length + 4;
+        int indexSize = entries.size() * (8 + 4);
+        int size = headerSize + indexSize;
+        for (byte[] record : records) {
+            size += record.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putShort((short) keyBytes.length);
+        buffer.put(keyBytes);
+        buffer.putInt(entries.size());
+        int offset = headerSize + indexSize;
+        for (int i = 0; i < records.length; i++) {
+            Interaction entry = entries.get(i);
+            buffer.putLong(hash(pairKey(entry.medicationA, entry.medicationB)));
+            buffer.putInt(offset);
+            offset += records[i].length;
+        }
+        for (byte[] record : records) {
+            buffer.put(record);
+        }
+        buffer.flip();
+
+        // Write to a temp file and rename so a crash never leaves a half-written store
+        File temp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(temp, "rw"); FileChannel channel = out.getChannel()) {
+            channel.truncate(0);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+
+        pending.clear();
+        load();
+    }
+
+    private void load() throws IOException {
+        hashes = new long[0];
+        offsets = new int[0];
+        data = null;
+        if (!file.exists()) {
+            return;
+        }
+
+        MappedByteBuffer mapped;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r"); FileChannel channel = in.getChannel()) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                file.delete();
+                return;
+            }
+            byte[] keyBytes = new byte[buffer.getShort()];
+            buffer.get(keyBytes);
+            if (!modelKey.equals(new String(keyBytes, StandardCharsets.UTF_8))) {
+                // Computed by a different model; recompute rather than serve stale answers
+                file.delete();
+                return;
+            }
+
+            int count = buffer.getInt();
+            long[] loadedHashes = new long[count];
+            int[] loadedOffsets = new int[count];
+            for (int i = 0; i < count; i++) {
+                loadedHashes[i] = buffer.getLong();
+                loadedOffsets[i] = buffer.getInt();
+            }
+            hashes = loadedHashes;
+            offsets = loadedOffsets;
+            data = buffer;
+        } catch (RuntimeException e) {
+            file.delete();
+            throw new IOException("Corrupt interaction store: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Binary-search the file index for a normalized, ordered pair
+     */
+    private Interaction findStored(String a, String b) {
+        long hash = hash(pairKey(a, b));
+        int index = Arrays.binarySearch(hashes, hash);
+        if (index < 0) {
+            return null;
+        }
+        // Step back to the first entry with this hash, then check each for the exact pair
+        while (index > 0 && hashes[index - 1] == hash) {
+            index--;
+        }
+        for (; index < hashes.length && hashes[index] == hash; index++) {
+            Interaction stored = read(offsets[index]);
+            if (stored.medicationA.equals(a) && stored.medicationB.equals(b)) {
+                return stored;
+            }
+        }
+        return null;
+    }
+
+    private Interaction read(int offset) {
+        ByteBuffer view = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        view.position(offset);
+        Interaction interaction = new Interaction();
+        interaction.medicationA = readString(view);
+        interaction.medicationB = readString(view);
+        interaction.computedAt = view.getLong();
+        interaction.text = readString(view);
+        return interaction;
+    }
+
+    private static byte[] encode(Interaction interaction) {
+        byte[] a = interaction.medicationA.getBytes(StandardCharsets.UTF_8);
+        byte[] b = interaction.medicationB.getBytes(StandardCharsets.UTF_8);
+        byte[] text = interaction.text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(4 + a.length + 4 + b.length + 8 + 4 + text.length)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(a.length).put(a);
+        record.putInt(b.length).put(b);
+        record.putLong(interaction.computedAt);
+        record.putInt(text.length).put(text);
+        return record.array();
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static List<String> normalized(List<String> medications) {
+        List<String> names = new ArrayList<>(medications.size());
+        for (String medication : medications) {
+            names.add(normalize(medication));
+        }
+        return names;
+    }
+
+    private static String pairKey(String a, String b) {
+        return a + '\u0000' + b;
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-8 pair key
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte value : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= value & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
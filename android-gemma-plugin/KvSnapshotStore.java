@@ -0,0 +1,332 @@
+package com.lifelight.gemma;
+
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * On-disk snapshots of a conversation's token IDs and KV cache
+ * One file per conversation: a header (magic, version, model fingerprint,
+ * tokens, tensor table) followed by 64-byte aligned raw tensor data. Restores
+ * memory-map the file and hand the mapped regions to ONNX Runtime directly.
+ * Total size is capped; the least recently used snapshots are evicted first.
+ */
+public class KvSnapshotStore {
+
+    private static final int MAGIC = 0x53564B47; // "GKVS"
+    private static final int VERSION = 1;
+    private static final int ALIGNMENT = 64;
+    private static final String SUFFIX = ".kvs";
+
+    private final File directory;
+    private final String modelKey;
+    private final long maxBytes;
+
+    public KvSnapshotStore(File directory, String modelKey, long maxBytes) {
+        this.directory = directory;
+        this.modelKey = modelKey;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Write the positions covered by the state's KV cache, replacing any earlier
+     * snapshot of the conversation, then evict down to the size cap
+     * @return bytes written, or 0 if the snapshot alone exceeds the cap
+     */
+    public synchronized long save(String conversationId, DecoderState state) throws IOException {
+        DecoderState.KvCache cache = state.kvCache();
+        if (cache == null || cache.length == 0) {
+            return 0;
+        }
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        int[] tokens = Arrays.copyOf(state.tokens(), cache.length);
+        String[] names = cache.tensors.keySet().toArray(new String[0]);
+        Arrays.sort(names);
+
+        byte[] keyBytes = modelKey.getBytes(StandardCharsets.UTF_8);
+        byte[][] nameBytes = new byte[names.length][];
+        byte[][] typeBytes = new byte[names.length][];
+        ByteBuffer[] data = new ByteBuffer[names.length];
+        long[][] shapes = new long[names.length][];
+
+        int headerSize = 4 + 4 + 2 + keyBytes.length + 4 + 4 * tokens.length + 4;
+        for (int i = 0; i < names.length; i++) {
+            OnnxTensor tensor = cache.tensors.get(names[i]);
+            nameBytes[i] = names[i].getBytes(StandardCharsets.UTF_8);
+            data[i] = tensor.getByteBuffer();
+            shapes[i] = tensor.getInfo().getShape();
+            typeBytes[i] = tensor.getInfo().type.name().getBytes(StandardCharsets.UTF_8);
+            headerSize += 2 + nameBytes[i].length + 2 + typeBytes[i].length + 4 + 8 * shapes[i].length + 8 + 8;
+        }
+
+        long[] offsets = new long[names.length];
+        long position = align(headerSize);
+        for (int i = 0; i < names.length; i++) {
+            offsets[i] = position;
+            position = align(position + data[i].remaining());
+        }
+        long totalBytes = position;
+
+        ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.nativeOrder());
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putShort((short) keyBytes.length);
+        header.put(keyBytes);
+        header.putInt(tokens.length);
+        for (int token : tokens) {
+            header.putInt(token);
+        }
+        header.putInt(names.length);
+        for (int i = 0; i < names.length; i++) {
+            header.putShort((short) nameBytes[i].length);
+            header.put(nameBytes[i]);
+            header.putShort((short) typeBytes[i].length);
+            header.put(typeBytes[i]);
+            header.putInt(shapes[i].length);
+            for (long dim : shapes[i]) {
+                header.putLong(dim);
+            }
+            header.putLong(offsets[i]);
+            header.putLong(data[i].remaining());
+        }
+        header.flip();
+
+        // Write to a temp file and rename so a crash never leaves a half-written snapshot
+        File file = fileFor(conversationId);
+        File temp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(temp, "rw"); FileChannel channel = out.getChannel()) {
+            channel.truncate(0);
+            writeFully(channel, header, 0);
+            for (int i = 0; i < names.length; i++) {
+                writeFully(channel, data[i], offsets[i]);
+            }
+            out.setLength(totalBytes);
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+
+        evict(file);
+        return file.exists() ? totalBytes : 0;
+    }
+
+    /**
+     * Map a conversation's snapshot back into a decoder state covering the longest
+     * common prefix of the snapshot and {@code prompt}, at most {@code maxTokens} long
+     * @return the restored state, or null if there is no usable snapshot
+     */
+    public synchronized DecoderState restore(OrtEnvironment environment, String conversationId,
+                                             int[] prompt, int maxTokens) throws IOException, OrtException {
+        File file = fileFor(conversationId);
+        if (!file.exists()) {
+            return null;
+        }
+
+        MappedByteBuffer mapped;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r"); FileChannel channel = in.getChannel()) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        ByteBuffer buffer = mapped.order(ByteOrder.nativeOrder());
+
+        int[] tokens;
+        Map<String, TensorEntry> entries = new HashMap<>();
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                // Older format or not a snapshot at all
+                file.delete();
+                return null;
+            }
+            byte[] keyBytes = new byte[buffer.getShort()];
+            buffer.get(keyBytes);
+            if (!modelKey.equals(new String(keyBytes, StandardCharsets.UTF_8))) {
+                // Taken with a different model; useless now
+                file.delete();
+                return null;
+            }
+
+            tokens = new int[buffer.getInt()];
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = buffer.getInt();
+            }
+
+            int tensorCount = buffer.getInt();
+            for (int i = 0; i < tensorCount; i++) {
+                byte[] nameBytes = new byte[buffer.getShort()];
+                buffer.get(nameBytes);
+                byte[] typeBytes = new byte[buffer.getShort()];
+                buffer.get(typeBytes);
+                TensorEntry entry = new TensorEntry();
+                entry.type = OnnxJavaType.valueOf(new String(typeBytes, StandardCharsets.UTF_8));
+                entry.shape = new long[buffer.getInt()];
+                for (int d = 0; d < entry.shape.length; d++) {
+                    entry.shape[d] = buffer.getLong();
+                }
+                entry.offset = buffer.getLong();
+                entry.length = buffer.getLong();
+                entries.put(new String(nameBytes, StandardCharsets.UTF_8), entry);
+            }
+        } catch (RuntimeException e) {
+            file.delete();
+            throw new IOException("Corrupt KV snapshot for " + conversationId + ": " + e.getMessage());
+        }
+
+        int reuse = 0;
+        int limit = Math.min(Math.min(tokens.length, prompt.length), maxTokens);
+        while (reuse < limit && tokens[reuse] == prompt[reuse]) {
+            reuse++;
+        }
+        if (reuse == 0) {
+            return null;
+        }
+
+        Map<String, OnnxTensor> tensors = new HashMap<>();
+        try {
+            for (Map.Entry<String, TensorEntry> named : entries.entrySet()) {
+                TensorEntry entry = named.getValue();
+                ByteBuffer region = slice(buffer, entry.offset, entry.length);
+                long[] shape = entry.shape;
+                if (reuse < tokens.length) {
+                    // Only part of the history still matches; copy out the leading positions
+                    if (shape.length != 4 || shape[2] != tokens.length) {
+                        throw new IOException("Cannot truncate KV tensor " + named.getKey());
+                    }
+                    region = truncate(region, shape, reuse);
+                    shape = new long[] {shape[0], shape[1], reuse, shape[3]};
+                }
+                tensors.put(named.getKey(), OnnxTensor.createTensor(environment, region, shape, entry.type));
+            }
+        } catch (IOException | OrtException | RuntimeException e) {
+            for (OnnxTensor tensor : tensors.values()) {
+                tensor.close();
+            }
+            throw e;
+        }
+
+        file.setLastModified(System.currentTimeMillis());
+        return DecoderState.restore(Arrays.copyOf(tokens, reuse), new DecoderState.KvCache(tensors, reuse));
+    }
+
+    public synchronized boolean delete(String conversationId) {
+        File file = fileFor(conversationId);
+        return file.exists() && file.delete();
+    }
+
+    public synchronized long getTotalBytes() {
+        long total = 0;
+        for (File file : snapshotFiles()) {
+            total += file.length();
+        }
+        return total;
+    }
+
+    public synchronized int getSnapshotCount() {
+        return snapshotFiles().length;
+    }
+
+    /**
+     * Delete least recently used snapshots until the store fits the cap
+     */
+    private void evict(File justWritten) {
+        File[] files = snapshotFiles();
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= maxBytes) {
+            return;
+        }
+
+        // Oldest first, and the snapshot just written only if the others aren't enough
+        Arrays.sort(files, (a, b) -> a.equals(justWritten) ? 1 : b.equals(justWritten) ? -1
+            : Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            if (total <= maxBytes) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private File[] snapshotFiles() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        return files != null ? files : new File[0];
+    }
+
+    /**
+     * Conversation IDs come from JS; hash them rather than trusting them as file names
+     */
+    private File fileFor(String conversationId) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest(conversationId.getBytes(StandardCharsets.UTF_8))) {
+                hex.append(String.format("%02x", b));
+            }
+            return new File(directory, hex.substring(0, 32) + SUFFIX);
+        } catch (NoSuchAlgorithmException e) {
+            return new File(directory, Integer.toHexString(conversationId.hashCode()) + SUFFIX);
+        }
+    }
+
+    /**
+     * Copy the first {@code positions} entries along the sequence axis of a [batch, heads, seq, dim] tensor
+     */
+    private static ByteBuffer truncate(ByteBuffer region, long[] shape, int positions) {
+        int rows = (int) (shape[0] * shape[1]);
+        int rowBytes = region.remaining() / rows;
+        int keptBytes = (int) ((long) rowBytes * positions / shape[2]);
+
+        ByteBuffer copy = ByteBuffer.allocateDirect(rows * keptBytes).order(ByteOrder.nativeOrder());
+        for (int row = 0; row < rows; row++) {
+            copy.put(slice(region, (long) row * rowBytes, keptBytes));
+        }
+        copy.flip();
+        return copy;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, long offset, long length) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit((int) (offset + length));
+        view.position((int) offset);
+        return view.slice().order(ByteOrder.nativeOrder());
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    private static long align(long position) {
+        return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private static class TensorEntry {
+        OnnxJavaType type;
+        long[] shape;
+        long offset;
+        long length;
+    }
+}
@@ -0,0 +1,339 @@
+package com.lifelight.gemma;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Models declared in config besides the main one, and the sessions loaded for them
+ * Requests pick a model by explicit ID or by task type. Sessions are created on
+ * first use and kept in an LRU bounded by a total memory budget; a session that a
+ * request still holds is never closed, so the budget can be exceeded briefly and
+ * the excess is evicted when the last holder releases it. Loads run outside the
+ * registry's lock, so a slow load holds up only the requests waiting for that
+ * same model.
+ */
+public class ModelRegistry {
+
+    /**
+     * A declared model
+     */
+    public static class ModelSpec {
+        public String id;
+        public String path; // asset path of the ONNX file
+        public List<String> tasks = new ArrayList<>(); // task types routed to this model
+        public int numKvHeads = 1;
+        public int headDim = 256;
+        public long sizeBytes; // 0 until known from config or the first load
+        public int vocabSize; // tokenizer vocabulary the model was trained with; 0 if not declared
+        public String tokenizerId; // tokenizer the model was trained with; null if not declared
+    }
+
+    /**
+     * Creates the session for a model; may fill in {@code spec.sizeBytes}
+     */
+    public interface SessionFactory {
+        OrtSession create(ModelSpec spec) throws Exception;
+    }
+
+    /**
+     * A loaded model held by one request; close it to let the session be evicted
+     */
+    public class Lease implements AutoCloseable {
+        public final String modelId;
+        public final ModelSpec spec;
+        public final OrtSession session;
+        public final GemmaDecoder decoder;
+        private final Loaded model;
+        private boolean closed = false;
+
+        private Lease(Loaded model) {
+            this.model = model;
+            this.modelId = model.spec.id;
+            this.spec = model.spec;
+            this.session = model.session;
+            this.decoder = model.decoder;
+        }
+
+        @Override
+        public void close() {
+            synchronized (ModelRegistry.this) {
+                if (!closed) {
+                    closed = true;
+                    model.users--;
+                    evictToFit(0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Per-model load and hit counts
+     */
+    public static class ModelStats {
+        public String id;
+        public boolean loaded;
+        public int inUse;
+        public long sizeBytes;
+        public long loads;
+        public long hits;
+        public long evictions;
+        public double averageLoadMs;
+    }
+
+    private static class Loaded {
+        final ModelSpec spec;
+        final OrtSession session;
+        final GemmaDecoder decoder;
+        final long sizeBytes;
+        int users = 0;
+
+        Loaded(ModelSpec spec, OrtSession session, GemmaDecoder decoder) {
+            this.spec = spec;
+            this.session = session;
+            this.decoder = decoder;
+            this.sizeBytes = spec.sizeBytes;
+        }
+    }
+
+    private static class Counters {
+        long loads;
+        long hits;
+        long evictions;
+        long loadNanos;
+    }
+
+    private final OrtEnvironment environment;
+    private final String defaultModelId;
+    private final long budgetBytes;
+    private final SessionFactory factory;
+    private final Map<String, ModelSpec> specs = new LinkedHashMap<>();
+    private final Map<String, String> taskRoutes = new HashMap<>();
+    private final Map<String, Counters> counters = new HashMap<>();
+    // Access order, least recently used first
+    private final LinkedHashMap<String, Loaded> loaded = new LinkedHashMap<>(8, 0.75f, true);
+    // Loads in progress, which later requests for the same model wait on
+    private final Map<String, CompletableFuture<Loaded>> loading = new HashMap<>();
+    private long loadedBytes = 0;
+    private long loadingBytes = 0; // reserved by loads in progress
+    private boolean closed = false;
+
+    /**
+     * @param defaultModelId ID of the main model, which the manager loads and owns itself
+     * @param budgetBytes memory available to the registry's sessions
+     */
+    public ModelRegistry(OrtEnvironment environment, String defaultModelId, long budgetBytes, SessionFactory factory) {
+        this.environment = environment;
+        this.defaultModelId = defaultModelId;
+        this.budgetBytes = budgetBytes;
+        this.factory = factory;
+    }
+
+    public synchronized void register(ModelSpec spec) {
+        if (spec.id == null || spec.id.equals(defaultModelId) || specs.containsKey(spec.id)) {
+            throw new IllegalArgumentException("Duplicate or missing model ID: " + spec.id);
+        }
+        specs.put(spec.id, spec);
+        counters.put(spec.id, new Counters());
+        for (String task : spec.tasks) {
+            taskRoutes.put(task, spec.id);
+        }
+    }
+
+    public String getDefaultModelId() {
+        return defaultModelId;
+    }
+
+    public boolean isDefault(String modelId) {
+        return defaultModelId.equals(modelId);
+    }
+
+    /**
+     * Pick the model for a request: an explicit ID wins, then the model declared for
+     * the task, then the default model
+     */
+    public synchronized String route(String modelId, String task) {
+        if (modelId != null) {
+            if (!isDefault(modelId) && !specs.containsKey(modelId)) {
+                throw new IllegalArgumentException("Unknown model: " + modelId);
+            }
+            return modelId;
+        }
+        String routed = task != null ? taskRoutes.get(task) : null;
+        return routed != null ? routed : defaultModelId;
+    }
+
+    /**
+     * Get a loaded session for a registered model, loading it (and evicting idle
+     * ones to make room) if needed. Concurrent requests for a model that is loading
+     * wait for that one load.
+     */
+    public Lease acquire(String modelId) throws Exception {
+        while (true) {
+            ModelSpec spec;
+            CompletableFuture<Loaded> pending;
+            long reserved;
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("Model registry is closed");
+                }
+                spec = specs.get(modelId);
+                if (spec == null) {
+                    throw new IllegalArgumentException("Unknown model: " + modelId);
+                }
+                Loaded model = loaded.get(modelId);
+                if (model != null) {
+                    counters.get(modelId).hits++;
+                    model.users++;
+                    return new Lease(model);
+                }
+
+                pending = loading.get(modelId);
+                if (pending == null) {
+                    if (spec.sizeBytes > budgetBytes) {
+                        throw new IllegalStateException("Model " + modelId + " needs " + (spec.sizeBytes >> 20)
+                            + "MB, more than the " + (budgetBytes >> 20) + "MB model budget");
+                    }
+                    evictToFit(spec.sizeBytes);
+                    reserved = spec.sizeBytes;
+                    loadingBytes += reserved;
+                    loading.put(modelId, new CompletableFuture<>());
+                } else {
+                    reserved = -1;
+                }
+            }
+
+            if (reserved >= 0) {
+                return load(spec, reserved);
+            }
+            try {
+                pending.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+            }
+            // Loaded; take it on the next pass, or load again if it was evicted in between
+        }
+    }
+
+    /**
+     * Create the session outside the lock, then publish it and hand the first lease to the caller
+     */
+    private Lease load(ModelSpec spec, long reserved) throws Exception {
+        long start = System.nanoTime();
+        OrtSession session = null;
+        Loaded model = null;
+        boolean published = false;
+        try {
+            session = factory.create(spec);
+            model = new Loaded(spec, session, new GemmaDecoder(environment, session, spec.numKvHeads, spec.headDim));
+        } finally {
+            CompletableFuture<Loaded> pending;
+            synchronized (this) {
+                loadingBytes -= reserved;
+                pending = loading.remove(spec.id);
+                if (model != null && !closed) {
+                    Counters count = counters.get(spec.id);
+                    count.loads++;
+                    count.loadNanos += System.nanoTime() - start;
+                    loaded.put(spec.id, model);
+                    loadedBytes += model.sizeBytes;
+                    model.users++;
+                    published = true;
+                    // The size may only have become known during the load
+                    evictToFit(0);
+                }
+            }
+            if (published) {
+                pending.complete(model);
+            } else {
+                if (session != null) {
+                    session.close();
+                }
+                pending.completeExceptionally(new IllegalStateException("Loading model " + spec.id + " failed"));
+            }
+        }
+        if (!published) {
+            throw new IllegalStateException("Model registry is closed");
+        }
+        return new Lease(model);
+    }
+
+    /**
+     * Close idle sessions, least recently used first, until {@code incoming} more bytes fit
+     */
+    private void evictToFit(long incoming) {
+        Iterator<Loaded> iterator = loaded.values().iterator();
+        while (loadedBytes + loadingBytes + incoming > budgetBytes && iterator.hasNext()) {
+            Loaded model = iterator.next();
+            if (model.users > 0) {
+                continue;
+            }
+            iterator.remove();
+            loadedBytes -= model.sizeBytes;
+            counters.get(model.spec.id).evictions++;
+            try {
+                model.session.close();
+            } catch (OrtException e) {
+                // Nothing more to free
+            }
+        }
+    }
+
+    public synchronized long getLoadedBytes() {
+        return loadedBytes;
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public synchronized List<ModelStats> getStats() {
+        // Read through values() so taking stats does not reorder the LRU
+        Map<String, Loaded> current = new HashMap<>();
+        for (Loaded model : loaded.values()) {
+            current.put(model.spec.id, model);
+        }
+        List<ModelStats> stats = new ArrayList<>();
+        for (ModelSpec spec : specs.values()) {
+            Counters count = counters.get(spec.id);
+            Loaded model = current.get(spec.id);
+            ModelStats entry = new ModelStats();
+            entry.id = spec.id;
+            entry.loaded = model != null;
+            entry.inUse = model != null ? model.users : 0;
+            entry.sizeBytes = spec.sizeBytes;
+            entry.loads = count.loads;
+            entry.hits = count.hits;
+            entry.evictions = count.evictions;
+            entry.averageLoadMs = count.loads > 0 ? count.loadNanos / 1_000_000.0 / count.loads : 0;
+            stats.add(entry);
+        }
+        return stats;
+    }
+
+    /**
+     * Close every session; leases still out must not be used afterwards
+     */
+    public synchronized void closeAll() {
+        closed = true;
+        for (Loaded model : loaded.values()) {
+            try {
+                model.session.close();
+            } catch (OrtException e) {
+                // Nothing more to free
+            }
+        }
+        loaded.clear();
+        loadedBytes = 0;
+    }
+}
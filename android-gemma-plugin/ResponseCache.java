@@ -0,0 +1,397 @@
+package com.lifelight.gemma;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Cache for deterministic generations (greedy or fixed seed)
+ * Entries are keyed by prompt token IDs, model version and sampling parameters,
+ * evicted LRU by count, size and age, and identical concurrent requests are
+ * coalesced so they share a single generation
+ */
+public class ResponseCache {
+
+    // Approximate per-entry overhead on top of the text itself
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long maxAgeMs;
+
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<GemmaAIManager.GenerationResult>> inFlight = new ConcurrentHashMap<>();
+    private long currentBytes = 0;
+
+    // Metrics
+    private long hits = 0;
+    private long misses = 0;
+    private long coalesced = 0;
+    private long evictions = 0;
+
+    public ResponseCache(int maxEntries, long maxBytes, long maxAgeMs) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.maxBytes = Math.max(1, maxBytes);
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * Only deterministic requests are cacheable
+     */
+    public static boolean isCacheable(GemmaAIManager.GenerationOptions options) {
+        return options.temperature <= 0 || options.seed != null;
+    }
+
+    /**
+     * Cache key for a request against a model version. Keyed on the tokenized prompt,
+     * since any change to the text the model sees can change a greedy generation.
+     */
+    public static String keyFor(String modelVersion, List<Integer> promptTokens,
+                                GemmaAIManager.GenerationOptions options) {
+        StringBuilder key = new StringBuilder();
+        key.append(modelVersion).append('\u0000');
+        key.append(promptTokens).append('\u0000');
+        key.append(options.maxTokens).append('\u0000');
+        if (options.temperature <= 0) {
+            // Greedy decoding ignores the seed
+            key.append("greedy");
+        } else {
+            key.append(options.temperature).append('/').append(options.seed);
+        }
+        key.append('\u0000');
+        if (options.stopSequences != null) {
+            for (String sequence : options.stopSequences) {
+                key.append(sequence).append('\u0001');
+            }
+        }
+        key.append('\u0000');
+        if (options.stopTokenIds != null) {
+            key.append(Arrays.toString(options.stopTokenIds));
+        }
+        return sha256(key.toString());
+    }
+
+    /**
+     * Return the cached result, join an identical in-flight generation, or run {@code generator}.
+     * A waiting caller stops waiting when its own request is cancelled or reaches its
+     * deadline, then runs {@code generator}, which sees the stopped request and returns
+     * at once. If the leader fails or returns a partial result the caller generates
+     * itself, within whatever is left of its deadline.
+     */
+    public GemmaAIManager.GenerationResult getOrCompute(String key, InferenceRequest request,
+                                                        Callable<GemmaAIManager.GenerationResult> generator) throws Exception {
+        GemmaAIManager.GenerationResult cached = get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        CompletableFuture<GemmaAIManager.GenerationResult> ours = new CompletableFuture<>();
+        CompletableFuture<GemmaAIManager.GenerationResult> leader = inFlight.putIfAbsent(key, ours);
+
+        if (leader != null) {
+            GemmaAIManager.GenerationResult shared = await(leader, request);
+            if (shared != null && isComplete(shared)) {
+                synchronized (this) {
+                    coalesced++;
+                }
+                GemmaAIManager.GenerationResult copy = copyOf(shared);
+                copy.coalesced = true;
+                return copy;
+            }
+            // The leader was cancelled or failed, or we were stopped; generate on our own
+            return generator.call();
+        }
+
+        try {
+            // A previous leader may have finished between our lookup and claiming the key
+            GemmaAIManager.GenerationResult raced = peek(key);
+            if (raced != null) {
+                ours.complete(raced);
+                return raced;
+            }
+            
+            GemmaAIManager.GenerationResult result = generator.call();
+            if (isComplete(result)) {
+                put(key, result);
+            }
+            ours.complete(result);
+            return result;
+        } catch (Exception e) {
+            ours.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, ours);
+        }
+    }
+
+    /**
+     * Look up a fresh entry, counting the hit or miss
+     */
+    public synchronized GemmaAIManager.GenerationResult get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && isExpired(entry, System.currentTimeMillis())) {
+            remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+
+        hits++;
+        GemmaAIManager.GenerationResult result = copyOf(entry.result);
+        result.cacheHit = true;
+        return result;
+    }
+
+    public synchronized void put(String key, GemmaAIManager.GenerationResult result) {
+        insert(key, result, System.currentTimeMillis());
+        evict(System.currentTimeMillis());
+    }
+
+    /**
+     * Look up without touching hit/miss counters
+     */
+    private synchronized GemmaAIManager.GenerationResult peek(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null || isExpired(entry, System.currentTimeMillis())) {
+            return null;
+        }
+        GemmaAIManager.GenerationResult result = copyOf(entry.result);
+        result.cacheHit = true;
+        return result;
+    }
+
+    private void insert(String key, GemmaAIManager.GenerationResult result, long createdAt) {
+        remove(key);
+
+        Entry entry = new Entry();
+        entry.result = copyOf(result);
+        entry.createdAt = createdAt;
+        entry.sizeBytes = sizeOf(result);
+        if (entry.sizeBytes > maxBytes) {
+            return;
+        }
+
+        entries.put(key, entry);
+        currentBytes += entry.sizeBytes;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        currentBytes = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * Write unexpired entries, least recently used first, so reloading keeps LRU order
+     */
+    public synchronized void saveTo(File file) throws IOException {
+        long now = System.currentTimeMillis();
+        try {
+            JSONArray array = new JSONArray();
+            for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                if (isExpired(entry, now)) {
+                    continue;
+                }
+                JSONObject json = new JSONObject();
+                json.put("key", mapEntry.getKey());
+                json.put("createdAt", entry.createdAt);
+                json.put("text", entry.result.text);
+                json.put("stopReason", entry.result.stopReason);
+                json.put("tokensGenerated", entry.result.tokensGenerated);
+                json.put("tokensSaved", entry.result.tokensSaved);
+                if (entry.result.matchedStopSequence != null) {
+                    json.put("matchedStopSequence", entry.result.matchedStopSequence);
+                }
+                if (entry.result.modelId != null) {
+                    json.put("modelId", entry.result.modelId);
+                }
+                array.put(json);
+            }
+
+            File temp = new File(file.getPath() + ".tmp");
+            try (OutputStream out = new FileOutputStream(temp)) {
+                out.write(array.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Unable to replace " + file);
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to save response cache: " + e.getMessage());
+        }
+    }
+
+    public synchronized void loadFrom(File file) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+
+        byte[] data = new byte[(int) file.length()];
+        try (InputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+        }
+
+        try {
+            JSONArray array = new JSONArray(new String(data, StandardCharsets.UTF_8));
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject json = array.getJSONObject(i);
+                GemmaAIManager.GenerationResult result = new GemmaAIManager.GenerationResult();
+                result.text = json.getString("text");
+                result.stopReason = json.optString("stopReason", GemmaAIManager.STOP_REASON_LENGTH);
+                result.tokensGenerated = json.optInt("tokensGenerated", 0);
+                result.tokensSaved = json.optInt("tokensSaved", 0);
+                result.matchedStopSequence = json.optString("matchedStopSequence", null);
+                result.modelId = json.optString("modelId", null);
+
+                insert(json.getString("key"), result, json.optLong("createdAt", System.currentTimeMillis()));
+            }
+            evict(System.currentTimeMillis());
+        } catch (Exception e) {
+            // A corrupt cache file just means a cold cache
+            clear();
+        }
+    }
+
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            currentBytes -= removed.sizeBytes;
+        }
+    }
+
+    /**
+     * Drop expired entries, then least recently used ones until within bounds
+     */
+    private void evict(long now) {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next().getValue();
+            boolean overBudget = entries.size() > maxEntries || currentBytes > maxBytes;
+            if (!overBudget && !isExpired(entry, now)) {
+                continue;
+            }
+            iterator.remove();
+            currentBytes -= entry.sizeBytes;
+            evictions++;
+        }
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return maxAgeMs > 0 && now - entry.createdAt > maxAgeMs;
+    }
+
+    /**
+     * The leader's result, or null if it failed first or the waiting request was stopped
+     */
+    private static GemmaAIManager.GenerationResult await(CompletableFuture<GemmaAIManager.GenerationResult> future,
+                                                         InferenceRequest request) {
+        try {
+            CompletableFuture<Object> first = CompletableFuture.anyOf(future, request.onStop());
+            if (request.hasDeadline()) {
+                first.get(request.getRemainingMillis(), TimeUnit.MILLISECONDS);
+            } else {
+                first.get();
+            }
+            return future.isDone() ? future.get() : null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Cancelled, timed-out or governor-shortened generations are partial and must not be shared
+     */
+    private static boolean isComplete(GemmaAIManager.GenerationResult result) {
+        return !result.budgetLimited
+            && !GemmaAIManager.STOP_REASON_CANCELLED.equals(result.stopReason)
+            && !GemmaAIManager.STOP_REASON_TIMEOUT.equals(result.stopReason);
+    }
+
+    private static int sizeOf(GemmaAIManager.GenerationResult result) {
+        int size = ENTRY_OVERHEAD_BYTES + (result.text != null ? result.text.length() * 2 : 0);
+        List<Integer> tokens = result.tokens;
+        return tokens != null ? size + tokens.size() * 4 : size;
+    }
+
+    private static GemmaAIManager.GenerationResult copyOf(GemmaAIManager.GenerationResult source) {
+        return new GemmaAIManager.GenerationResult(source);
+    }
+
+    private static String sha256(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest(value.getBytes(StandardCharsets.UTF_8))) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(value.hashCode()) + ":" + value.length();
+        }
+    }
+
+    private static class Entry {
+        GemmaAIManager.GenerationResult result;
+        long createdAt;
+        int sizeBytes;
+    }
+}
@@ -0,0 +1,201 @@
+package com.lifelight.gemma;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtProvider;
+import ai.onnxruntime.OrtSession;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * First-run calibration of ONNX Runtime session options
+ * Benchmarks a short prefill/decode workload over a handful of SessionOptions
+ * combinations and returns the fastest as a DeviceProfile, or null if none of
+ * them could be measured
+ */
+public class SessionTuner {
+
+    // Decode steps weighed against one prefill when ranking candidates
+    private static final int EXPECTED_DECODE_TOKENS = 32;
+
+    // Bytes hashed from each end of the model for its fingerprint
+    private static final int FINGERPRINT_SAMPLE_BYTES = 64 * 1024;
+
+    /**
+     * Short prefill/decode run against a candidate session
+     */
+    public interface Workload {
+        /**
+         * @return {prefill nanoseconds, nanoseconds per decode step}
+         */
+        long[] run(OrtSession session) throws OrtException;
+    }
+
+    /**
+     * Progress callback, one call per benchmarked candidate
+     */
+    public interface Listener {
+        void onCandidate(DeviceProfile candidate, int index, int total);
+    }
+
+    private final OrtEnvironment environment;
+    private final byte[] modelBytes;
+    private final Workload workload;
+    private final int cpuCores;
+    private Listener listener;
+
+    public SessionTuner(OrtEnvironment environment, byte[] modelBytes, Workload workload, int cpuCores) {
+        this.environment = environment;
+        this.modelBytes = modelBytes;
+        this.workload = workload;
+        this.cpuCores = Math.max(1, cpuCores);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Run the calibration. Stage one sweeps intra-op threads on the CPU provider;
+     * stage two tries execution providers, optimization levels and inter-op
+     * parallelism at the winning thread count.
+     * @return the fastest measured profile, or null if every candidate failed
+     */
+    public DeviceProfile calibrate(String modelKey, String deviceKey) {
+        DeviceProfile base = new DeviceProfile();
+        base.modelKey = modelKey;
+        base.deviceKey = deviceKey;
+        base.optimizationLevel = OrtSession.SessionOptions.OptLevel.ALL_OPT;
+
+        List<DeviceProfile> threadSweep = new ArrayList<>();
+        for (int threads : threadCandidates()) {
+            DeviceProfile candidate = base.copy();
+            candidate.intraOpThreads = threads;
+            threadSweep.add(candidate);
+        }
+        DeviceProfile measured = benchmarkAll(threadSweep, null);
+        DeviceProfile best = measured;
+        if (best == null) {
+            // No CPU session ran; still try the other providers at the untuned defaults
+            best = base;
+            best.intraOpThreads = Math.min(4, cpuCores);
+        }
+
+        List<DeviceProfile> variants = new ArrayList<>();
+        for (String provider : providerCandidates()) {
+            if (!DeviceProfile.PROVIDER_CPU.equals(provider)) {
+                DeviceProfile candidate = best.copy();
+                candidate.executionProvider = provider;
+                variants.add(candidate);
+            }
+        }
+        for (OrtSession.SessionOptions.OptLevel level : new OrtSession.SessionOptions.OptLevel[] {
+                OrtSession.SessionOptions.OptLevel.BASIC_OPT, OrtSession.SessionOptions.OptLevel.EXTENDED_OPT }) {
+            DeviceProfile candidate = best.copy();
+            candidate.optimizationLevel = level;
+            variants.add(candidate);
+        }
+        DeviceProfile parallel = best.copy();
+        parallel.parallelExecution = true;
+        parallel.interOpThreads = 2;
+        variants.add(parallel);
+
+        DeviceProfile winner = benchmarkAll(variants, measured);
+        if (winner == null) {
+            return null;
+        }
+        winner.calibratedAt = System.currentTimeMillis();
+        return winner;
+    }
+
+    /**
+     * Benchmark each candidate and return the fastest, starting from an already-measured incumbent
+     */
+    private DeviceProfile benchmarkAll(List<DeviceProfile> candidates, DeviceProfile incumbent) {
+        DeviceProfile best = incumbent;
+        for (int i = 0; i < candidates.size(); i++) {
+            DeviceProfile candidate = candidates.get(i);
+            if (listener != null) {
+                listener.onCandidate(candidate, i, candidates.size());
+            }
+            if (benchmark(candidate)
+                    && (best == null || candidate.score(EXPECTED_DECODE_TOKENS) < best.score(EXPECTED_DECODE_TOKENS))) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Create a session for the candidate and time the workload; false if the combination is unsupported
+     */
+    private boolean benchmark(DeviceProfile candidate) {
+        try (OrtSession.SessionOptions sessionOptions = new OrtSession.SessionOptions()) {
+            candidate.applyTo(sessionOptions, candidate.intraOpThreads);
+            try (OrtSession session = environment.createSession(modelBytes, sessionOptions)) {
+                // Untimed run so allocator warm-up doesn't count against the first candidate
+                workload.run(session);
+                long[] timings = workload.run(session);
+                candidate.prefillMs = timings[0] / 1_000_000.0;
+                candidate.decodeMsPerToken = timings[1] / 1_000_000.0;
+                return true;
+            }
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private Set<Integer> threadCandidates() {
+        Set<Integer> threads = new LinkedHashSet<>();
+        threads.add(1);
+        threads.add(Math.min(2, cpuCores));
+        threads.add(Math.min(4, cpuCores));
+        // Big cores are usually half of a big.LITTLE layout
+        threads.add(Math.max(1, cpuCores / 2));
+        threads.add(cpuCores);
+        return threads;
+    }
+
+    private List<String> providerCandidates() {
+        List<String> providers = new ArrayList<>();
+        providers.add(DeviceProfile.PROVIDER_CPU);
+
+        EnumSet<OrtProvider> available = OrtEnvironment.getAvailableProviders();
+        if (available != null) {
+            if (available.contains(OrtProvider.XNNPACK)) {
+                providers.add(DeviceProfile.PROVIDER_XNNPACK);
+            }
+            if (available.contains(OrtProvider.NNAPI)) {
+                providers.add(DeviceProfile.PROVIDER_NNAPI);
+            }
+        }
+        return providers;
+    }
+
+    /**
+     * Fingerprint a model from its size and sampled head/tail bytes, cheap enough for multi-GB files
+     */
+    public static String fingerprint(byte[] modelBytes) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            int sample = Math.min(FINGERPRINT_SAMPLE_BYTES, modelBytes.length);
+            digest.update(modelBytes, 0, sample);
+            digest.update(modelBytes, modelBytes.length - sample, sample);
+            digest.update(Long.toString(modelBytes.length).getBytes());
+
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.substring(0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(modelBytes.length);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.lifelight.gemma;
+
+import android.content.Context;
+
+/**
+ * The process's one GemmaAIManager, shared by the plugin and the interaction
+ * precompute job
+ * Each manager loads the model and opens the conversation log and interaction
+ * store, so two in one process would hold the model twice and put two writers
+ * on the same append-only files. Users acquire the manager and release it when
+ * done; the last release destroys it.
+ */
+public final class SharedGemmaManager {
+
+    private static GemmaAIManager manager;
+    private static int users = 0;
+
+    private SharedGemmaManager() {
+    }
+
+    /**
+     * The shared manager, created (uninitialized) if no one holds it
+     */
+    public static synchronized GemmaAIManager acquire(Context context) {
+        if (manager == null) {
+            manager = new GemmaAIManager(context.getApplicationContext());
+        }
+        users++;
+        return manager;
+    }
+
+    /**
+     * Free the model for a holder that keeps its hold but no longer needs it loaded.
+     * Destroys the manager, which can be initialized again later, only if no one else
+     * holds it; another holder (a running precompute job) keeps the model loaded.
+     * @return whether the manager was destroyed
+     */
+    public static synchronized boolean unload(GemmaAIManager holder) {
+        if (holder != manager || users > 1) {
+            return false;
+        }
+        holder.destroy();
+        return true;
+    }
+
+    /**
+     * Drop one hold on the manager; the last one destroys it. A manager acquired
+     * meanwhile waits, so the old one has closed its files before a new one opens them.
+     */
+    public static synchronized void release(GemmaAIManager released) {
+        if (released != manager || --users > 0) {
+            return;
+        }
+        manager = null;
+        released.destroy();
+    }
+}
@@ -0,0 +1,91 @@
+package com.lifelight.gemma;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread
+ * Each side keeps a cached copy of the other side's index and only re-reads the
+ * shared one when the cache says the queue is full (or empty), so a handoff is
+ * an array store plus one index write, with no locks or CAS.
+ */
+public final class SpscQueue<T> {
+
+    private final Object[] slots;
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong(); // next slot to read; written only by the consumer
+    private final AtomicLong tail = new AtomicLong(); // next slot to write; written only by the producer
+    private long cachedHead = 0; // producer's last view of head
+    private long cachedTail = 0; // consumer's last view of tail
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public SpscQueue(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new Object[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Producer side
+     * @return false if the queue is full
+     */
+    public boolean offer(T item) {
+        if (item == null) {
+            throw new NullPointerException("item");
+        }
+        long position = tail.get();
+        if (position - cachedHead >= slots.length) {
+            cachedHead = head.get();
+            if (position - cachedHead >= slots.length) {
+                return false;
+            }
+        }
+        slots[(int) position & mask] = item;
+        // A full volatile write, not lazySet: a consumer about to park must see it or be unparked
+        tail.set(position + 1);
+        return true;
+    }
+
+    /**
+     * Consumer side
+     * @return the oldest item, or null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long position = head.get();
+        if (position >= cachedTail) {
+            cachedTail = tail.get();
+            if (position >= cachedTail) {
+                return null;
+            }
+        }
+        int index = (int) position & mask;
+        T item = (T) slots[index];
+        slots[index] = null;
+        head.lazySet(position + 1);
+        return item;
+    }
+
+    /**
+     * Safe from either side, though only a snapshot from the other
+     */
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+}
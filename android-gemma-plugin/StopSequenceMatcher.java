@@ -0,0 +1,228 @@
+package com.lifelight.gemma;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Incremental stop-sequence matcher built on an Aho-Corasick automaton
+ * Fed one character at a time from the decode loop, so stop strings that span tokens are found
+ */
+public class StopSequenceMatcher {
+
+    private static final int ROOT = 0;
+
+    // Sparse goto table: per node, sorted edge labels and matching target nodes
+    private char[][] edgeChars;
+    private int[][] edgeTargets;
+    private int[] failure;
+    private int[] depth;
+    // Longest stop sequence ending at this node (following dictionary suffix links), 0 if none
+    private int[] matchLength;
+    private int[] matchIndex;
+    private int nodeCount;
+
+    private final List<String> sequences;
+    private int state = ROOT;
+    private long position = 0;
+    private int lastMatchLength = 0;
+    private String lastMatch;
+
+    public StopSequenceMatcher(List<String> stopSequences) {
+        sequences = new ArrayList<>();
+        if (stopSequences != null) {
+            for (String sequence : stopSequences) {
+                if (sequence != null && !sequence.isEmpty() && !sequences.contains(sequence)) {
+                    sequences.add(sequence);
+                }
+            }
+        }
+        build();
+    }
+
+    /**
+     * Whether any stop sequence was configured
+     */
+    public boolean isEmpty() {
+        return sequences.isEmpty();
+    }
+
+    /**
+     * Feed the next generated character
+     * @return true when a stop sequence ends at this character
+     */
+    public boolean feed(char ch) {
+        position++;
+        int next = transition(state, ch);
+        state = next;
+
+        if (matchLength[next] > 0) {
+            lastMatchLength = matchLength[next];
+            lastMatch = sequences.get(matchIndex[next]);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Feed a run of characters, stopping at the first match
+     * @return index in {@code text} just past the match end, or -1 if nothing matched
+     */
+    public int feed(CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (feed(text.charAt(i))) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Length of the stop sequence that matched last
+     */
+    public int getMatchLength() {
+        return lastMatchLength;
+    }
+
+    /**
+     * The stop sequence that matched last, or null
+     */
+    public String getMatchedSequence() {
+        return lastMatch;
+    }
+
+    /**
+     * Number of trailing characters that are a prefix of some stop sequence.
+     * Streaming callers must hold these back until the match resolves.
+     */
+    public int getPendingLength() {
+        return depth[state];
+    }
+
+    /**
+     * Total characters fed since the last reset
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    public void reset() {
+        state = ROOT;
+        position = 0;
+        lastMatchLength = 0;
+        lastMatch = null;
+    }
+
+    private int transition(int node, char ch) {
+        while (true) {
+            int target = edge(node, ch);
+            if (target >= 0) {
+                return target;
+            }
+            if (node == ROOT) {
+                return ROOT;
+            }
+            node = failure[node];
+        }
+    }
+
+    private int edge(int node, char ch) {
+        char[] labels = edgeChars[node];
+        int index = Arrays.binarySearch(labels, ch);
+        return index >= 0 ? edgeTargets[node][index] : -1;
+    }
+
+    /**
+     * Build the trie, failure links and match lengths (breadth-first)
+     */
+    private void build() {
+        int capacity = 1;
+        for (String sequence : sequences) {
+            capacity += sequence.length();
+        }
+
+        edgeChars = new char[capacity][];
+        edgeTargets = new int[capacity][];
+        failure = new int[capacity];
+        depth = new int[capacity];
+        matchLength = new int[capacity];
+        matchIndex = new int[capacity];
+        edgeChars[ROOT] = new char[0];
+        edgeTargets[ROOT] = new int[0];
+        nodeCount = 1;
+
+        for (int s = 0; s < sequences.size(); s++) {
+            String sequence = sequences.get(s);
+            int node = ROOT;
+            for (int i = 0; i < sequence.length(); i++) {
+                char ch = sequence.charAt(i);
+                int next = edge(node, ch);
+                if (next < 0) {
+                    next = addNode(node, ch);
+                }
+                node = next;
+            }
+            if (sequence.length() > matchLength[node]) {
+                matchLength[node] = sequence.length();
+                matchIndex[node] = s;
+            }
+        }
+
+        int[] queue = new int[nodeCount];
+        int head = 0;
+        int tail = 0;
+        for (int child : edgeTargets[ROOT]) {
+            failure[child] = ROOT;
+            queue[tail++] = child;
+        }
+
+        while (head < tail) {
+            int node = queue[head++];
+            char[] labels = edgeChars[node];
+            int[] targets = edgeTargets[node];
+            for (int i = 0; i < labels.length; i++) {
+                int child = targets[i];
+                int fallback = failure[node];
+                int link;
+                while (true) {
+                    link = edge(fallback, labels[i]);
+                    if (link >= 0 || fallback == ROOT) {
+                        break;
+                    }
+                    fallback = failure[fallback];
+                }
+                failure[child] = link >= 0 ? link : ROOT;
+                // A match ending at the failure target also ends here; keep the longest
+                if (matchLength[failure[child]] > matchLength[child]) {
+                    matchLength[child] = matchLength[failure[child]];
+                    matchIndex[child] = matchIndex[failure[child]];
+                }
+                queue[tail++] = child;
+            }
+        }
+    }
+
+    private int addNode(int parent, char ch) {
+        int node = nodeCount++;
+        edgeChars[node] = new char[0];
+        edgeTargets[node] = new int[0];
+        depth[node] = depth[parent] + 1;
+
+        char[] labels = edgeChars[parent];
+        int[] targets = edgeTargets[parent];
+        int insertAt = -(Arrays.binarySearch(labels, ch) + 1);
+
+        char[] newLabels = new char[labels.length + 1];
+        int[] newTargets = new int[targets.length + 1];
+        System.arraycopy(labels, 0, newLabels, 0, insertAt);
+        System.arraycopy(targets, 0, newTargets, 0, insertAt);
+        newLabels[insertAt] = ch;
+        newTargets[insertAt] = node;
+        System.arraycopy(labels, insertAt, newLabels, insertAt + 1, labels.length - insertAt);
+        System.arraycopy(targets, insertAt, newTargets, insertAt + 1, targets.length - insertAt);
+
+        edgeChars[parent] = newLabels;
+        edgeTargets[parent] = newTargets;
+        return node;
+    }
+}
@@ -0,0 +1,193 @@
+package com.lifelight.gemma;
+
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.Map;
+
+/**
+ * Incremental detokenizer
+ * Token bytes live in a flat array indexed by token ID; a small byte accumulator
+ * holds partial UTF-8 sequences so only complete code points are emitted, which
+ * makes multi-byte characters and byte-fallback tokens safe to stream per step
+ */
+public class StreamingDetokenizer {
+
+    private static final char REPLACEMENT_CHAR = '\uFFFD';
+
+    // SentencePiece word-boundary marker, rendered as a space
+    private static final char SPACE_MARKER = '\u2581';
+
+    private final Vocabulary vocabulary;
+
+    // Partial UTF-8 sequence carried across tokens
+    private final byte[] pending = new byte[4];
+    private int pendingLength = 0;
+    private int expectedLength = 0;
+
+    public StreamingDetokenizer(Vocabulary vocabulary) {
+        this.vocabulary = vocabulary;
+    }
+
+    /**
+     * Decode one token, appending any completed characters to {@code out}
+     * @return number of chars appended
+     */
+    public int append(int tokenId, StringBuilder out) {
+        if (tokenId < 0 || tokenId >= vocabulary.tokenBytes.length || vocabulary.specialTokens.get(tokenId)) {
+            return 0;
+        }
+
+        byte[] bytes = vocabulary.tokenBytes[tokenId];
+        if (bytes == null) {
+            return 0;
+        }
+
+        int before = out.length();
+        for (byte b : bytes) {
+            appendByte(b & 0xFF, out);
+        }
+        return out.length() - before;
+    }
+
+    /**
+     * Emit a replacement character for any incomplete trailing sequence
+     */
+    public int flush(StringBuilder out) {
+        if (pendingLength == 0) {
+            return 0;
+        }
+        out.append(REPLACEMENT_CHAR);
+        pendingLength = 0;
+        expectedLength = 0;
+        return 1;
+    }
+
+    public void reset() {
+        pendingLength = 0;
+        expectedLength = 0;
+    }
+
+    public boolean isSpecial(int tokenId) {
+        return vocabulary.specialTokens.get(tokenId);
+    }
+
+    private void appendByte(int b, StringBuilder out) {
+        if (pendingLength > 0) {
+            if ((b & 0xC0) == 0x80) {
+                pending[pendingLength++] = (byte) b;
+                if (pendingLength == expectedLength) {
+                    emitPending(out);
+                }
+                return;
+            }
+            // Sequence cut short by a non-continuation byte
+            out.append(REPLACEMENT_CHAR);
+            pendingLength = 0;
+            expectedLength = 0;
+        }
+
+        if (b < 0x80) {
+            out.append((char) b);
+        } else if ((b & 0xE0) == 0xC0) {
+            startSequence(b, 2);
+        } else if ((b & 0xF0) == 0xE0) {
+            startSequence(b, 3);
+        } else if ((b & 0xF8) == 0xF0) {
+            startSequence(b, 4);
+        } else {
+            // Stray continuation byte or invalid lead byte
+            out.append(REPLACEMENT_CHAR);
+        }
+    }
+
+    private void startSequence(int lead, int length) {
+        pending[0] = (byte) lead;
+        pendingLength = 1;
+        expectedLength = length;
+    }
+
+    private void emitPending(StringBuilder out) {
+        int length = expectedLength;
+        int codePoint;
+        int minimum;
+        if (length == 2) {
+            codePoint = ((pending[0] & 0x1F) << 6) | (pending[1] & 0x3F);
+            minimum = 0x80;
+        } else if (length == 3) {
+            codePoint = ((pending[0] & 0x0F) << 12) | ((pending[1] & 0x3F) << 6) | (pending[2] & 0x3F);
+            minimum = 0x800;
+        } else {
+            codePoint = ((pending[0] & 0x07) << 18) | ((pending[1] & 0x3F) << 12)
+                | ((pending[2] & 0x3F) << 6) | (pending[3] & 0x3F);
+            minimum = 0x10000;
+        }
+        pendingLength = 0;
+        expectedLength = 0;
+
+        // Reject overlong encodings, surrogates and out-of-range values
+        if (codePoint < minimum || (codePoint >= 0xD800 && codePoint <= 0xDFFF) || codePoint > 0x10FFFF) {
+            out.append(REPLACEMENT_CHAR);
+            return;
+        }
+
+        if (codePoint < 0x10000) {
+            out.append((char) codePoint);
+        } else {
+            out.append(Character.highSurrogate(codePoint));
+            out.append(Character.lowSurrogate(codePoint));
+        }
+    }
+
+    /**
+     * Immutable token tables shared by every detokenizer for a model
+     */
+    public static class Vocabulary {
+        final byte[][] tokenBytes;
+        final BitSet specialTokens;
+
+        public Vocabulary(byte[][] tokenBytes, BitSet specialTokens) {
+            this.tokenBytes = tokenBytes;
+            this.specialTokens = specialTokens;
+        }
+
+        public int size() {
+            return tokenBytes.length;
+        }
+
+        /**
+         * Build the tables from a piece-to-ID vocabulary.
+         * Byte-fallback pieces ({@code <0xAB>}) map to their single raw byte; other
+         * {@code <...>} pieces are special tokens and never emitted.
+         */
+        public static Vocabulary fromPieces(Map<String, Integer> pieces, int vocabSize) {
+            int size = vocabSize;
+            for (Integer id : pieces.values()) {
+                size = Math.max(size, id + 1);
+            }
+
+            byte[][] tokenBytes = new byte[size][];
+            BitSet specialTokens = new BitSet(size);
+
+            for (Map.Entry<String, Integer> entry : pieces.entrySet()) {
+                String piece = entry.getKey();
+                int id = entry.getValue();
+
+                if (isByteFallback(piece)) {
+                    tokenBytes[id] = new byte[] {(byte) Integer.parseInt(piece.substring(3, 5), 16)};
+                } else if (piece.length() > 1 && piece.startsWith("<") && piece.endsWith(">")) {
+                    specialTokens.set(id);
+                } else {
+                    tokenBytes[id] = piece.replace(SPACE_MARKER, ' ').getBytes(StandardCharsets.UTF_8);
+                }
+            }
+            return new Vocabulary(tokenBytes, specialTokens);
+        }
+
+        private static boolean isByteFallback(String piece) {
+            if (piece.length() != 6 || !piece.startsWith("<0x") || piece.charAt(5) != '>') {
+                return false;
+            }
+            return Character.digit(piece.charAt(3), 16) >= 0 && Character.digit(piece.charAt(4), 16) >= 0;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.lifelight.gemma;
+
+import ai.onnxruntime.NodeInfo;
+import ai.onnxruntime.OnnxJavaType;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OnnxValue;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import ai.onnxruntime.TensorInfo;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a sentence-embedding ONNX graph over padded batches of token sequences
+ * Uses a pooled output (sentence_embedding / embeddings / pooler_output) when the
+ * model exports one, otherwise mean-pools last_hidden_state over the attention
+ * mask. Vectors come back L2-normalized, so a dot product is cosine similarity.
+ */
+public class TextEmbedder {
+
+    private static final String INPUT_IDS = "input_ids";
+    private static final String ATTENTION_MASK = "attention_mask";
+    private static final String TOKEN_TYPE_IDS = "token_type_ids";
+    private static final String[] POOLED_OUTPUTS = {"sentence_embedding", "embeddings", "pooler_output"};
+    private static final String HIDDEN_STATE = "last_hidden_state";
+
+    private final OrtEnvironment environment;
+    private final OrtSession session;
+    private final boolean intIds;
+    private final boolean hasAttentionMask;
+    private final boolean hasTokenTypes;
+    private final String pooledName;
+    private final String hiddenName;
+
+    public TextEmbedder(OrtEnvironment environment, OrtSession session) throws OrtException {
+        this.environment = environment;
+        this.session = session;
+
+        Map<String, NodeInfo> inputs = session.getInputInfo();
+        NodeInfo ids = inputs.get(INPUT_IDS);
+        this.intIds = ids != null && ids.getInfo() instanceof TensorInfo
+            && ((TensorInfo) ids.getInfo()).type == OnnxJavaType.INT32;
+        this.hasAttentionMask = inputs.containsKey(ATTENTION_MASK);
+        this.hasTokenTypes = inputs.containsKey(TOKEN_TYPE_IDS);
+
+        String pooled = null;
+        for (String name : POOLED_OUTPUTS) {
+            if (session.getOutputNames().contains(name)) {
+                pooled = name;
+                break;
+            }
+        }
+        this.pooledName = pooled;
+        this.hiddenName = session.getOutputNames().contains(HIDDEN_STATE)
+            ? HIDDEN_STATE : session.getOutputNames().iterator().next();
+    }
+
+    /**
+     * Embed one batch of token sequences, right-padded to the longest
+     */
+    public float[][] embed(List<int[]> sequences, OrtSession.RunOptions runOptions) throws OrtException {
+        int batch = sequences.size();
+        int maxLength = 1;
+        for (int[] sequence : sequences) {
+            maxLength = Math.max(maxLength, sequence.length);
+        }
+
+        long[] ids = new long[batch * maxLength];
+        long[] mask = new long[batch * maxLength];
+        for (int b = 0; b < batch; b++) {
+            int[] sequence = sequences.get(b);
+            for (int t = 0; t < sequence.length; t++) {
+                ids[b * maxLength + t] = sequence[t];
+                mask[b * maxLength + t] = 1;
+            }
+        }
+
+        long[] shape = {batch, maxLength};
+        Map<String, OnnxTensor> inputs = new HashMap<>();
+        try {
+            inputs.put(INPUT_IDS, intIds ? OnnxTensor.createTensor(environment, IntBuffer.wrap(toInts(ids)), shape)
+                : OnnxTensor.createTensor(environment, LongBuffer.wrap(ids), shape));
+            if (hasAttentionMask) {
+                inputs.put(ATTENTION_MASK, OnnxTensor.createTensor(environment, LongBuffer.wrap(mask), shape));
+            }
+            if (hasTokenTypes) {
+                inputs.put(TOKEN_TYPE_IDS, OnnxTensor.createTensor(environment,
+                    LongBuffer.wrap(new long[batch * maxLength]), shape));
+            }
+
+            try (OrtSession.Result result = runOptions != null
+                    ? session.run(inputs, runOptions) : session.run(inputs)) {
+                float[][] vectors = pooledName != null
+                    ? pooled(result.get(pooledName).get())
+                    : meanPooled(result.get(hiddenName).get(), mask, batch, maxLength);
+                for (float[] vector : vectors) {
+                    normalize(vector);
+                }
+                return vectors;
+            }
+        } finally {
+            for (OnnxTensor tensor : inputs.values()) {
+                tensor.close();
+            }
+        }
+    }
+
+    private static float[][] pooled(OnnxValue value) throws OrtException {
+        return (float[][]) value.getValue();
+    }
+
+    private static float[][] meanPooled(OnnxValue value, long[] mask, int batch, int maxLength) throws OrtException {
+        float[][][] hidden = (float[][][]) value.getValue();
+        int dim = hidden[0][0].length;
+        float[][] vectors = new float[batch][dim];
+        for (int b = 0; b < batch; b++) {
+            int count = 0;
+            for (int t = 0; t < maxLength; t++) {
+                if (mask[b * maxLength + t] == 0) {
+                    continue;
+                }
+                count++;
+                for (int d = 0; d < dim; d++) {
+                    vectors[b][d] += hidden[b][t][d];
+                }
+            }
+            for (int d = 0; count > 0 && d < dim; d++) {
+                vectors[b][d] /= count;
+            }
+        }
+        return vectors;
+    }
+
+    /**
+     * Scale to unit length in place; zero vectors are left alone
+     */
+    public static void normalize(float[] vector) {
+        double sum = 0;
+        for (float v : vector) {
+            sum += v * v;
+        }
+        if (sum > 0) {
+            float inverse = (float) (1.0 / Math.sqrt(sum));
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] *= inverse;
+            }
+        }
+    }
+
+    private static int[] toInts(long[] values) {
+        int[] ints = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            ints[i] = (int) values[i];
+        }
+        return ints;
+    }
+}
@@ -0,0 +1,367 @@
+package com.lifelight.gemma;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Second stage of the decode loop
+ * After sampling, the decode thread hands the token to this stage's thread over
+ * a lock-free single-producer/single-consumer queue and goes straight on to the
+ * next session run, while detokenization, stop-sequence matching and streaming
+ * of token t run here during step t+1. The checks that decide whether there is
+ * a next step at all (end-of-sequence, stop tokens, length) stay on the decode
+ * thread. A stream has at most MAX_IN_FLIGHT tokens handed over and not yet
+ * through its sink, and the decode thread waits rather than run further ahead,
+ * so a stop sequence found here ends the stream within that many steps; the
+ * tokens sampled meanwhile never reach the sink.
+ *
+ * All of a stream's methods except await() must be called from one thread, the
+ * pipeline's single producer (in the app, the DecodeScheduler worker). With one
+ * producer feeding it, one stage thread keeps up as long as a token's text work
+ * is shorter than a decode step; more would only reorder a stream's tokens.
+ */
+public class TokenPipeline {
+
+    // Empty polls spent yielding before the stage thread, or a producer waiting on it, parks
+    private static final int SPIN_POLLS = 64;
+    // Tokens a stream may have handed over that its sink has not yet taken
+    static final int MAX_IN_FLIGHT = 2;
+
+    /**
+     * The per-token work moved off the decode thread
+     */
+    public interface Sink {
+        /**
+         * Whether accepting this token, after {@code accepted} others, ends the sequence
+         * whatever its text. Called on the decode thread, so it may only read immutable state.
+         */
+        boolean endsAt(int token, int accepted);
+
+        /**
+         * Called on the stage thread
+         * @return false once the sequence wants no more tokens
+         */
+        boolean accept(int token);
+
+        /**
+         * Called on the stage thread, after the tokens accepted before it
+         */
+        void stop(String reason);
+    }
+
+    /**
+     * Handoff and stage-thread counts
+     */
+    public static class Stats {
+        public long tokens;
+        public long stalls; // handoffs that waited for the stage to catch up
+        public double averageTokenMs; // stage-thread time per token
+    }
+
+    private static class Event {
+        final Stream stream;
+        final int token;
+        final String stopReason; // non-null for a stop
+        final boolean finish;
+
+        Event(Stream stream, int token, String stopReason, boolean finish) {
+            this.stream = stream;
+            this.token = token;
+            this.stopReason = stopReason;
+            this.finish = finish;
+        }
+    }
+
+    /**
+     * One sequence's side of the pipeline, or a pass-through that runs the sink inline
+     */
+    public static class Stream {
+        private final Sink sink;
+        private final TokenPipeline pipeline; // null runs every token on the calling thread
+        private final CompletableFuture<Void> drained = new CompletableFuture<>();
+
+        // Decode-thread state
+        private int accepted = 0;
+        private long sent = 0; // tokens pushed
+        private boolean ended = false;
+        private boolean pushed = false;
+        private boolean closed = false;
+
+        // Set by the stage thread when the sink wants no more tokens or failed
+        private volatile boolean stopped = false;
+        private volatile long handled = 0; // tokens through the sink or dropped; written by the stage thread
+        private Throwable failure;
+
+        private Stream(Sink sink, TokenPipeline pipeline) {
+            this.sink = sink;
+            this.pipeline = pipeline;
+            if (pipeline == null) {
+                drained.complete(null);
+            }
+        }
+
+        /**
+         * Hand over a sampled token
+         * @return true if the decode thread should run another step
+         */
+        public boolean accept(int token) {
+            if (isFinished()) {
+                return false;
+            }
+            if (pipeline == null) {
+                ended = !sink.accept(token);
+                return !ended;
+            }
+            ended = sink.endsAt(token, accepted++);
+            if (sent - handled >= MAX_IN_FLIGHT && !stopped) {
+                pipeline.awaitStage(this);
+            }
+            sent++;
+            push(new Event(this, token, null, false));
+            return !ended && !stopped;
+        }
+
+        /**
+         * End the sequence early (cancellation, deadline)
+         */
+        public void stop(String reason) {
+            if (ended) {
+                return;
+            }
+            ended = true;
+            if (pipeline == null) {
+                sink.stop(reason);
+            } else {
+                push(new Event(this, 0, reason, false));
+            }
+        }
+
+        public boolean isFinished() {
+            return ended || stopped;
+        }
+
+        /**
+         * No more tokens follow; await() returns once the stage has handled the ones sent.
+         * A stream that was never handed anything may be closed from any thread.
+         */
+        public void close() {
+            if (pipeline == null || closed) {
+                return;
+            }
+            closed = true;
+            if (!pushed) {
+                pipeline.release(this);
+                drained.complete(null);
+                return;
+            }
+            push(new Event(this, 0, null, true));
+        }
+
+        /**
+         * Wait until every token sent before close() has been through the sink
+         */
+        public void await() throws InterruptedException {
+            try {
+                drained.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+            }
+        }
+
+        private void push(Event event) {
+            pushed = true;
+            pipeline.push(event);
+        }
+
+        /**
+         * Stage thread
+         */
+        private void handle(Event event) {
+            if (event.finish) {
+                pipeline.release(this);
+                if (failure != null) {
+                    drained.completeExceptionally(failure);
+                } else {
+                    drained.complete(null);
+                }
+                return;
+            }
+            if (event.stopReason != null) {
+                if (failure == null) {
+                    try {
+                        sink.stop(event.stopReason);
+                    } catch (RuntimeException e) {
+                        failure = e;
+                        stopped = true;
+                    }
+                }
+                return;
+            }
+            try {
+                // Tokens sampled before the decode thread saw a stop, or after a failure, are dropped
+                if (!stopped && !sink.accept(event.token)) {
+                    stopped = true;
+                }
+            } catch (RuntimeException e) {
+                failure = e;
+                stopped = true;
+            } finally {
+                handled++; // after stopped, so a producer that sees the count also sees the stop
+            }
+        }
+    }
+
+    private final SpscQueue<Event> queue;
+    private final Thread worker;
+    private final Object lock = new Object();
+    private volatile boolean waiting = false;
+    private volatile boolean shutdown = false;
+    private volatile int openStreams = 0; // written under lock
+    // Producer parked until the stage frees room; the stage unparks it after each event
+    private volatile Thread waitingProducer;
+    private volatile long consumed = 0; // events handled; written by the stage thread
+
+    private volatile long tokens = 0;
+    private volatile long stalls = 0;
+    private volatile long handleNanos = 0;
+
+    public TokenPipeline(String threadName, int capacity) {
+        this.queue = new SpscQueue<>(capacity);
+        this.worker = new Thread(this::runLoop, threadName);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * A stream whose sink runs inline, for callers that do not pipeline
+     */
+    public static Stream direct(Sink sink) {
+        return new Stream(sink, null);
+    }
+
+    /**
+     * A stream whose sink runs on the stage thread; inline once the pipeline is shut down
+     */
+    public Stream open(Sink sink) {
+        synchronized (lock) {
+            if (shutdown) {
+                return direct(sink);
+            }
+            openStreams++;
+        }
+        return new Stream(sink, this);
+    }
+
+    /**
+     * Stop taking new streams; the thread exits once the open ones are closed and drained
+     */
+    public void shutdown() {
+        synchronized (lock) {
+            shutdown = true;
+        }
+        LockSupport.unpark(worker);
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.tokens = tokens;
+        stats.stalls = stalls;
+        stats.averageTokenMs = tokens > 0 ? handleNanos / 1_000_000.0 / tokens : 0;
+        return stats;
+    }
+
+    private void release(Stream stream) {
+        synchronized (lock) {
+            openStreams--;
+        }
+        if (shutdown) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    /**
+     * Producer side: wait until the stream's sink is fewer than MAX_IN_FLIGHT tokens behind
+     */
+    private void awaitStage(Stream stream) {
+        stalls++;
+        awaitProgress(() -> stream.sent - stream.handled < MAX_IN_FLIGHT || stream.stopped);
+    }
+
+    private void push(Event event) {
+        if (!queue.offer(event)) {
+            // The stage is a whole queue behind; wait for it rather than drop text
+            stalls++;
+            awaitProgress(() -> queue.offer(event));
+        }
+        if (waiting) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    /**
+     * Spin briefly, then park until the stage handles another event. The producer is
+     * the scheduler worker, so it must not hold a core while a slow sink catches up.
+     */
+    private void awaitProgress(BooleanSupplier ready) {
+        LockSupport.unpark(worker);
+        for (int i = 0; i < SPIN_POLLS; i++) {
+            if (ready.getAsBoolean()) {
+                return;
+            }
+            Thread.yield();
+        }
+
+        Thread self = Thread.currentThread();
+        // Read before each look, so an event handled since then shows in the count
+        long seen = consumed;
+        while (!ready.getAsBoolean()) {
+            // Announce the park before checking the count, so the stage either sees us or we see its progress
+            waitingProducer = self;
+            if (consumed == seen) {
+                LockSupport.park(this);
+            }
+            waitingProducer = null;
+            seen = consumed;
+        }
+    }
+
+    private void runLoop() {
+        int idle = 0;
+        while (true) {
+            Event event = queue.poll();
+            if (event == null) {
+                if (shutdown && openStreams == 0 && queue.isEmpty()) {
+                    return;
+                }
+                if (++idle < SPIN_POLLS) {
+                    Thread.yield();
+                    continue;
+                }
+                // Announce the park before the last look, so a producer either sees it or we see its item
+                waiting = true;
+                if (queue.isEmpty() && !(shutdown && openStreams == 0)) {
+                    LockSupport.park(this);
+                }
+                waiting = false;
+                idle = 0;
+                continue;
+            }
+
+            idle = 0;
+            long start = System.nanoTime();
+            event.stream.handle(event);
+            if (!event.finish && event.stopReason == null) {
+                handleNanos += System.nanoTime() - start;
+                tokens++;
+            }
+            consumed++;
+            Thread producer = waitingProducer;
+            if (producer != null) {
+                LockSupport.unpark(producer);
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.lifelight.gemma;
+
+import java.util.Random;
+
+/**
+ * Next-token selection from a logits row
+ * Shared by the manager and the headless tools so both sample identically
+ */
+public final class TokenSampler {
+
+    private TokenSampler() {
+    }
+
+    /**
+     * Sample from logits in shortlist order and map the pick back to a token ID;
+     * a null shortlist means the logits cover the full vocabulary
+     */
+    public static int sample(float[] logits, float temperature, Random random, TokenShortlist shortlist) {
+        int index = sample(logits, temperature, random);
+        return shortlist != null ? shortlist.tokenAt(index) : index;
+    }
+
+    /**
+     * Sample next token from logits using temperature
+     */
+    public static int sample(float[] logits, float temperature, Random random) {
+        if (temperature <= 0) {
+            // Greedy sampling
+            int maxIndex = 0;
+            for (int i = 1; i < logits.length; i++) {
+                if (logits[i] > logits[maxIndex]) {
+                    maxIndex = i;
+                }
+            }
+            return maxIndex;
+        }
+        
+        // Temperature sampling (simplified)
+        float[] probabilities = new float[logits.length];
+        float sum = 0;
+        
+        for (int i = 0; i < logits.length; i++) {
+            probabilities[i] = (float) Math.exp(logits[i] / temperature);
+            sum += probabilities[i];
+        }
+        
+        // Normalize
+        for (int i = 0; i < probabilities.length; i++) {
+            probabilities[i] /= sum;
+        }
+        
+        // Sample
+        float threshold = random.nextFloat();
+        float cumulativeProb = 0;
+        
+        for (int i = 0; i < probabilities.length; i++) {
+            cumulativeProb += probabilities[i];
+            if (threshold <= cumulativeProb) {
+                return i;
+            }
+        }
+        
+        return 0; // Fallback
+    }
+}
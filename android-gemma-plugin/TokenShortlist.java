@@ -0,0 +1,200 @@
+package com.lifelight.gemma;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * A restricted output vocabulary: the only tokens the decoder may produce
+ * The decoder returns logits for these tokens alone, so sampling looks at
+ * size() values instead of the whole vocabulary. Sampled positions are indices
+ * into the shortlist; {@link #tokenAt(int)} maps them back to token IDs.
+ * Gathering from a full-vocabulary output saves only the sampling: ONNX Runtime
+ * has already computed lm_head over every token, and its Java API copies the
+ * whole row out before the gather runs. Only a graph exported with the
+ * shortlist baked into lm_head saves that work and copy as well.
+ * The tokens are kept sorted, and consecutive IDs are grouped into runs so the
+ * gather is a few bulk copies rather than one read per token.
+ */
+public class TokenShortlist {
+
+    private final int[] tokens;
+    private final int[] runStarts; // first token ID of each run
+    private final int[] runLengths;
+    private String digest; // computed on first use
+
+    private TokenShortlist(int[] sortedDistinct) {
+        this.tokens = sortedDistinct;
+        int runs = 0;
+        for (int i = 0; i < tokens.length; i++) {
+            if (i == 0 || tokens[i] != tokens[i - 1] + 1) {
+                runs++;
+            }
+        }
+        this.runStarts = new int[runs];
+        this.runLengths = new int[runs];
+        for (int i = 0, run = -1; i < tokens.length; i++) {
+            if (i == 0 || tokens[i] != tokens[i - 1] + 1) {
+                runStarts[++run] = tokens[i];
+            }
+            runLengths[run]++;
+        }
+    }
+
+    public static TokenShortlist of(int... tokenIds) {
+        int[] sorted = tokenIds.clone();
+        Arrays.sort(sorted);
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (sorted[i] < 0) {
+                throw new IllegalArgumentException("Negative token ID " + sorted[i]);
+            }
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[count++] = sorted[i];
+            }
+        }
+        return new TokenShortlist(Arrays.copyOf(sorted, count));
+    }
+
+    /**
+     * Read a shortlist file: token IDs or inclusive ranges ("100-2000"), separated by
+     * whitespace or commas; '#' starts a comment
+     */
+    public static TokenShortlist parse(Reader reader) throws IOException {
+        int[] ids = new int[1024];
+        int count = 0;
+        BufferedReader lines = new BufferedReader(reader);
+        for (String line; (line = lines.readLine()) != null; ) {
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            for (String item : line.trim().split("[\\s,]+")) {
+                if (item.isEmpty()) {
+                    continue;
+                }
+                int dash = item.indexOf('-');
+                int first;
+                int last;
+                try {
+                    first = Integer.parseInt(dash > 0 ? item.substring(0, dash) : item);
+                    last = dash > 0 ? Integer.parseInt(item.substring(dash + 1)) : first;
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad shortlist entry: " + item);
+                }
+                if (last < first) {
+                    throw new IOException("Bad shortlist range: " + item);
+                }
+                for (int id = first; id <= last; id++) {
+                    if (count == ids.length) {
+                        ids = Arrays.copyOf(ids, count * 2);
+                    }
+                    ids[count++] = id;
+                }
+            }
+        }
+        return of(Arrays.copyOf(ids, count));
+    }
+
+    /**
+     * This shortlist plus some required tokens, such as end-of-sequence
+     */
+    public TokenShortlist with(int... extra) {
+        int[] merged = Arrays.copyOf(tokens, tokens.length + extra.length);
+        System.arraycopy(extra, 0, merged, tokens.length, extra.length);
+        return of(merged);
+    }
+
+    public int size() {
+        return tokens.length;
+    }
+
+    public int getRunCount() {
+        return runStarts.length;
+    }
+
+    public int tokenAt(int index) {
+        return tokens[index];
+    }
+
+    /**
+     * Position of a token in the shortlist, or -1 if it is not on it
+     */
+    public int indexOf(int token) {
+        int index = Arrays.binarySearch(tokens, token);
+        return index >= 0 ? index : -1;
+    }
+
+    public int maxToken() {
+        return tokens.length > 0 ? tokens[tokens.length - 1] : -1;
+    }
+
+    /**
+     * Copy the shortlisted logits of the row starting at {@code rowStart} into {@code target}
+     */
+    public void gather(FloatBuffer logits, int rowStart, float[] target) {
+        int offset = 0;
+        for (int run = 0; run < runStarts.length; run++) {
+            logits.position(rowStart + runStarts[run]);
+            logits.get(target, offset, runLengths[run]);
+            offset += runLengths[run];
+        }
+    }
+
+    /**
+     * Hex SHA-256 prefix of the token IDs, stable across processes, for cache keys
+     */
+    public String digest() {
+        if (digest != null) {
+            return digest;
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(tokens.length * 4);
+        bytes.asIntBuffer().put(tokens);
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes.array())) {
+                hex.append(String.format("%02x", b));
+            }
+            digest = hex.substring(0, 16);
+            return digest;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof TokenShortlist && Arrays.equals(tokens, ((TokenShortlist) other).tokens);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(tokens);
+    }
+
+    /**
+     * Share of the softmax probability (at the given temperature, greedy as 1) that a
+     * full-vocabulary logits row puts on the shortlist
+     */
+    public double coverage(float[] fullLogits, float temperature) {
+        float scale = temperature > 0 ? 1f / temperature : 1f;
+        float max = Float.NEGATIVE_INFINITY;
+        for (float logit : fullLogits) {
+            max = Math.max(max, logit);
+        }
+        double total = 0;
+        for (float logit : fullLogits) {
+            total += Math.exp((logit - max) * scale);
+        }
+        double listed = 0;
+        for (int token : tokens) {
+            listed += Math.exp((fullLogits[token] - max) * scale);
+        }
+        return listed / total;
+    }
+}
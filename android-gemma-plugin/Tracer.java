@@ -0,0 +1,255 @@
+package com.lifelight.gemma;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Low-overhead begin/end event tracing for the inference path
+ * Each thread records into its own preallocated ring buffer of timestamps and
+ * event IDs, so tracing never allocates or locks on the hot path; when disabled
+ * a call costs one volatile read. Export produces Chrome trace-event JSON,
+ * which Perfetto and chrome://tracing open directly.
+ *
+ * Short-lived threads (the plugin runs each call on its own) would otherwise
+ * leave a full-size ring behind apiece; once a ring's thread has died it is
+ * trimmed to the events it holds, and only the most recent of those are kept.
+ */
+public final class Tracer {
+
+    private static final List<String> names = new ArrayList<>();
+
+    public static final int TOKENIZE = register("tokenize");
+    public static final int GENERATE = register("generate");
+    public static final int SCHEDULER_STEP = register("scheduler.step");
+    public static final int SESSION_RUN = register("session.run");
+    public static final int SAMPLE = register("sample");
+    public static final int DETOKENIZE = register("detokenize");
+    public static final int BRIDGE_RESOLVE = register("bridge.resolve");
+
+    public static final int DEFAULT_CAPACITY = 16 * 1024;
+    public static final int MIN_CAPACITY = 64;
+    public static final int MAX_CAPACITY = 1 << 20;
+
+    // Trimmed rings of finished threads kept for export
+    private static final int MAX_RETIRED_RINGS = 256;
+
+    private static final int PHASE_BEGIN = 0;
+    private static final int PHASE_END = 1;
+
+    private static volatile boolean enabled = false;
+    private static volatile int capacity = DEFAULT_CAPACITY;
+    private static volatile int generation = 0;
+    private static volatile long origin = System.nanoTime();
+
+    private static final List<Ring> rings = new CopyOnWriteArrayList<>();
+    private static final ThreadLocal<Ring> currentRing = new ThreadLocal<>();
+
+    private Tracer() {
+    }
+
+    /**
+     * Register an event name; call once, at class initialization
+     */
+    public static synchronized int register(String name) {
+        names.add(name);
+        return names.size() - 1;
+    }
+
+    /**
+     * Turn tracing on with the given per-thread capacity (clamped to MIN_CAPACITY..MAX_CAPACITY
+     * and rounded up to a power of two), discarding anything recorded before
+     */
+    public static void start(int eventsPerThread) {
+        int clamped = Math.min(MAX_CAPACITY, Math.max(MIN_CAPACITY, eventsPerThread));
+        int size = Integer.highestOneBit(clamped - 1) << 1;
+        synchronized (Tracer.class) {
+            capacity = size;
+            generation++;
+            origin = System.nanoTime();
+            rings.clear();
+            enabled = true;
+        }
+    }
+
+    public static void stop() {
+        enabled = false;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void begin(int event) {
+        if (enabled) {
+            ring().record(event << 1 | PHASE_BEGIN);
+        }
+    }
+
+    public static void end(int event) {
+        if (enabled) {
+            ring().record(event << 1 | PHASE_END);
+        }
+    }
+
+    /**
+     * Number of events currently held across all threads
+     */
+    public static int getEventCount() {
+        int count = 0;
+        for (Ring ring : rings) {
+            count += (int) Math.min(ring.written, ring.ids.length);
+        }
+        return count;
+    }
+
+    /**
+     * Render the buffered events as Chrome trace-event JSON
+     * Unmatched end events left over from ring wrap-around are dropped.
+     */
+    public static String exportChromeTrace(int pid) {
+        StringBuilder json = new StringBuilder(64 + getEventCount() * 64);
+        json.append("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        long base = origin;
+
+        for (Ring ring : rings) {
+            long written = ring.written;
+            int size = ring.ids.length;
+            long start = Math.max(0, written - size);
+            if (written == 0) {
+                continue;
+            }
+
+            json.append(first ? "" : ",");
+            first = false;
+            json.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":").append(pid)
+                .append(",\"tid\":").append(ring.threadId)
+                .append(",\"args\":{\"name\":\"").append(escape(ring.threadName)).append("\"}}");
+
+            int depth = 0;
+            for (long i = start; i < written; i++) {
+                int slot = (int) (i % size); // trimmed rings are not a power of two
+                int id = ring.ids[slot];
+                long nanos = Math.max(0, ring.timestamps[slot] - base);
+                boolean isBegin = (id & 1) == PHASE_BEGIN;
+                if (!isBegin) {
+                    if (depth == 0) {
+                        continue;
+                    }
+                    depth--;
+                } else {
+                    depth++;
+                }
+
+                json.append(",{\"name\":\"").append(escape(nameOf(id >>> 1)))
+                    .append("\",\"cat\":\"gemma\",\"ph\":\"").append(isBegin ? 'B' : 'E')
+                    .append("\",\"ts\":").append(nanos / 1000).append('.')
+                    .append(String.format(Locale.US, "%03d", nanos % 1000))
+                    .append(",\"pid\":").append(pid)
+                    .append(",\"tid\":").append(ring.threadId).append('}');
+            }
+        }
+
+        json.append("]}");
+        return json.toString();
+    }
+
+    private static Ring ring() {
+        Ring ring = currentRing.get();
+        if (ring == null || ring.generation != generation) {
+            synchronized (Tracer.class) {
+                retireFinishedRings();
+                ring = new Ring(capacity, generation);
+                rings.add(ring);
+            }
+            currentRing.set(ring);
+        }
+        return ring;
+    }
+
+    /**
+     * Trim the rings of threads that have exited and drop the oldest beyond MAX_RETIRED_RINGS.
+     * Called with the Tracer lock held, whenever a thread first records.
+     */
+    private static void retireFinishedRings() {
+        int retired = 0;
+        for (int i = rings.size() - 1; i >= 0; i--) {
+            Ring ring = rings.get(i);
+            if (ring.isOwnerAlive()) {
+                continue;
+            }
+            if (ring.written == 0 || ++retired > MAX_RETIRED_RINGS) {
+                rings.remove(i);
+            } else if (ring.owner != null) {
+                rings.set(i, new Ring(ring));
+            }
+        }
+    }
+
+    private static synchronized String nameOf(int event) {
+        return event < names.size() ? names.get(event) : "event-" + event;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /**
+     * Single-writer ring; readers may see a torn event at the wrap point, which export tolerates
+     */
+    private static class Ring {
+        final long[] timestamps;
+        final int[] ids;
+        final long threadId;
+        final String threadName;
+        final int generation;
+        final WeakReference<Thread> owner; // null once retired
+        volatile long written = 0;
+
+        Ring(int capacity, int generation) {
+            this.timestamps = new long[capacity];
+            this.ids = new int[capacity];
+            this.threadId = Thread.currentThread().getId();
+            this.threadName = Thread.currentThread().getName();
+            this.generation = generation;
+            this.owner = new WeakReference<>(Thread.currentThread());
+        }
+
+        /**
+         * Read-only copy of a finished thread's ring holding just its events, oldest first
+         */
+        Ring(Ring finished) {
+            long total = finished.written;
+            int size = finished.ids.length;
+            int count = (int) Math.min(total, size);
+            this.timestamps = new long[count];
+            this.ids = new int[count];
+            for (int i = 0; i < count; i++) {
+                int slot = (int) ((total - count + i) & (size - 1));
+                timestamps[i] = finished.timestamps[slot];
+                ids[i] = finished.ids[slot];
+            }
+            this.threadId = finished.threadId;
+            this.threadName = finished.threadName;
+            this.generation = finished.generation;
+            this.owner = null;
+            this.written = count;
+        }
+
+        boolean isOwnerAlive() {
+            Thread thread = owner != null ? owner.get() : null;
+            return thread != null && thread.isAlive();
+        }
+
+        void record(int id) {
+            long index = written;
+            int slot = (int) (index & (ids.length - 1));
+            timestamps[slot] = System.nanoTime();
+            ids[slot] = id;
+            written = index + 1;
+        }
+    }
+}
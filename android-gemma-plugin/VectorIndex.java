@@ -0,0 +1,483 @@
+package com.lifelight.gemma;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Memory-mapped IVF index of int8-quantized passage embeddings
+ * Vectors are clustered by spherical k-means; a search scores the centroids,
+ * scans only the closest {@code nprobe} clusters and keeps the top k. Each
+ * vector is stored as int8 codes plus one float scale, grouped by cluster so a
+ * probe reads one contiguous run. Passage text is stored alongside so results
+ * can go straight into a prompt. The file is little-endian and can be built on
+ * a workstation and shipped as an asset.
+ */
+public class VectorIndex {
+
+    private static final int MAGIC = 0x58495647; // "GVIX"
+    private static final int VERSION = 1;
+    private static final int ALIGNMENT = 64;
+    private static final int KMEANS_ITERATIONS = 10;
+    // Vectors sampled for clustering; the rest are only assigned
+    private static final int KMEANS_SAMPLE = 20000;
+
+    /**
+     * One search result
+     */
+    public static class Hit {
+        public int id; // passage position in the corpus the index was built from
+        public float score; // approximate cosine similarity
+        public String text;
+    }
+
+    private final String embeddingKey;
+    private final int dimension;
+    private final int count;
+    private final int lists;
+    private final float[] centroids;
+    private final int[] listStarts;
+    private final int[] ids;
+    private final float[] scales;
+    private final ByteBuffer codes;
+    private final long[] textOffsets;
+    private final ByteBuffer text;
+
+    private VectorIndex(String embeddingKey, int dimension, int count, int lists, float[] centroids,
+                        int[] listStarts, int[] ids, float[] scales, ByteBuffer codes,
+                        long[] textOffsets, ByteBuffer text) {
+        this.embeddingKey = embeddingKey;
+        this.dimension = dimension;
+        this.count = count;
+        this.lists = lists;
+        this.centroids = centroids;
+        this.listStarts = listStarts;
+        this.ids = ids;
+        this.scales = scales;
+        this.codes = codes;
+        this.textOffsets = textOffsets;
+        this.text = text;
+    }
+
+    /**
+     * Map an index file. Centroids and list bookkeeping are copied to the heap;
+     * codes and passage text stay mapped.
+     */
+    public static VectorIndex open(File file) throws IOException {
+        MappedByteBuffer mapped;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r"); FileChannel channel = in.getChannel()) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Not a vector index: " + file);
+            }
+            byte[] keyBytes = new byte[buffer.getShort()];
+            buffer.get(keyBytes);
+            int dimension = buffer.getInt();
+            int count = buffer.getInt();
+            int lists = buffer.getInt();
+            long centroidsOffset = buffer.getLong();
+            long listsOffset = buffer.getLong();
+            long idsOffset = buffer.getLong();
+            long scalesOffset = buffer.getLong();
+            long codesOffset = buffer.getLong();
+            long textOffsetsOffset = buffer.getLong();
+            long textOffset = buffer.getLong();
+
+            float[] centroids = new float[lists * dimension];
+            section(buffer, centroidsOffset).asFloatBuffer().get(centroids);
+            int[] listStarts = new int[lists + 1];
+            section(buffer, listsOffset).asIntBuffer().get(listStarts);
+            int[] ids = new int[count];
+            section(buffer, idsOffset).asIntBuffer().get(ids);
+            float[] scales = new float[count];
+            section(buffer, scalesOffset).asFloatBuffer().get(scales);
+            long[] textOffsets = new long[count + 1];
+            section(buffer, textOffsetsOffset).asLongBuffer().get(textOffsets);
+
+            ByteBuffer codes = slice(buffer, codesOffset, (long) count * dimension);
+            ByteBuffer text = slice(buffer, textOffset, textOffsets[count]);
+            return new VectorIndex(new String(keyBytes, StandardCharsets.UTF_8), dimension, count, lists,
+                centroids, listStarts, ids, scales, codes, textOffsets, text);
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt vector index " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Cluster, quantize and write an index over {@code vectors}, one per passage
+     * @param embeddingKey identifies the embedding model, so queries can be checked against it
+     * @param lists cluster count; 0 picks about sqrt(count)
+     */
+    public static void build(File file, String embeddingKey, float[][] vectors, List<String> passages,
+                             int lists, long seed) throws IOException {
+        if (vectors.length == 0 || vectors.length != passages.size()) {
+            throw new IllegalArgumentException("Need one vector per passage");
+        }
+        int count = vectors.length;
+        int dimension = vectors[0].length;
+        lists = Math.max(1, Math.min(count, lists > 0 ? lists : (int) Math.round(Math.sqrt(count))));
+
+        float[][] unit = new float[count][];
+        for (int i = 0; i < count; i++) {
+            if (vectors[i].length != dimension) {
+                throw new IllegalArgumentException("Vector " + i + " has " + vectors[i].length
+                    + " dimensions, expected " + dimension);
+            }
+            unit[i] = vectors[i].clone();
+            TextEmbedder.normalize(unit[i]);
+        }
+
+        float[] centroids = cluster(unit, dimension, lists, new Random(seed));
+        int[] assignment = new int[count];
+        int[] listSizes = new int[lists];
+        for (int i = 0; i < count; i++) {
+            assignment[i] = nearest(centroids, lists, unit[i]);
+            listSizes[assignment[i]]++;
+        }
+
+        // Order rows by cluster so each probe scans one contiguous run
+        int[] listStarts = new int[lists + 1];
+        for (int c = 0; c < lists; c++) {
+            listStarts[c + 1] = listStarts[c] + listSizes[c];
+        }
+        int[] fill = Arrays.copyOf(listStarts, lists);
+        int[] ids = new int[count];
+        float[] scales = new float[count];
+        byte[] codes = new byte[count * dimension];
+        for (int i = 0; i < count; i++) {
+            int row = fill[assignment[i]]++;
+            ids[row] = i;
+            scales[row] = quantize(unit[i], codes, row * dimension);
+        }
+
+        byte[][] textBytes = new byte[count][];
+        long[] textOffsets = new long[count + 1];
+        for (int i = 0; i < count; i++) {
+            textBytes[i] = passages.get(i).getBytes(StandardCharsets.UTF_8);
+            textOffsets[i + 1] = textOffsets[i] + textBytes[i].length;
+        }
+
+        byte[] keyBytes = embeddingKey.getBytes(StandardCharsets.UTF_8);
+        int headerSize = 4 + 4 + 2 + keyBytes.length + 4 * 3 + 8 * 7;
+        long centroidsOffset = align(headerSize);
+        long listsOffset = align(centroidsOffset + 4L * centroids.length);
+        long idsOffset = align(listsOffset + 4L * listStarts.length);
+        long scalesOffset = align(idsOffset + 4L * count);
+        long textOffsetsOffset = align(scalesOffset + 4L * count);
+        long codesOffset = align(textOffsetsOffset + 8L * textOffsets.length);
+        long textOffset = align(codesOffset + codes.length);
+        long totalBytes = textOffset + textOffsets[count];
+
+        ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putShort((short) keyBytes.length);
+        header.put(keyBytes);
+        header.putInt(dimension);
+        header.putInt(count);
+        header.putInt(lists);
+        header.putLong(centroidsOffset);
+        header.putLong(listsOffset);
+        header.putLong(idsOffset);
+        header.putLong(scalesOffset);
+        header.putLong(codesOffset);
+        header.putLong(textOffsetsOffset);
+        header.putLong(textOffset);
+        header.flip();
+
+        // Write to a temp file and rename so readers never map a half-written index
+        File temp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(temp, "rw"); FileChannel channel = out.getChannel()) {
+            channel.truncate(0);
+            out.setLength(totalBytes);
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, totalBytes);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            mapped.put(header);
+            section(mapped, centroidsOffset).asFloatBuffer().put(centroids);
+            section(mapped, listsOffset).asIntBuffer().put(listStarts);
+            section(mapped, idsOffset).asIntBuffer().put(ids);
+            section(mapped, scalesOffset).asFloatBuffer().put(scales);
+            section(mapped, textOffsetsOffset).asLongBuffer().put(textOffsets);
+            mapped.position((int) codesOffset);
+            mapped.put(codes);
+            mapped.position((int) textOffset);
+            for (byte[] passage : textBytes) {
+                mapped.put(passage);
+            }
+            mapped.force();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    /**
+     * Approximate top-k by cosine similarity, scanning the {@code nprobe} closest clusters
+     */
+    public List<Hit> search(float[] query, int k, int nprobe) {
+        if (query.length != dimension) {
+            throw new IllegalArgumentException("Query has " + query.length + " dimensions, index has " + dimension);
+        }
+        float[] unit = query.clone();
+        TextEmbedder.normalize(unit);
+        k = Math.min(k, count);
+        if (k <= 0) {
+            return new ArrayList<>();
+        }
+
+        // Closest clusters first
+        int probes = Math.max(1, Math.min(nprobe, lists));
+        float[] centroidScores = new float[lists];
+        for (int c = 0; c < lists; c++) {
+            centroidScores[c] = dot(centroids, c * dimension, unit);
+        }
+        int[] probe = topIndices(centroidScores, probes);
+
+        // Min-heap of the best k rows seen so far, as parallel arrays
+        float[] heapScores = new float[k];
+        int[] heapRows = new int[k];
+        int heapSize = 0;
+        ByteBuffer view = codes.duplicate();
+        byte[] run = new byte[0];
+        for (int c : probe) {
+            int start = listStarts[c];
+            int rows = listStarts[c + 1] - start;
+            if (rows == 0) {
+                continue;
+            }
+            if (run.length < rows * dimension) {
+                run = new byte[rows * dimension];
+            }
+            view.position(start * dimension);
+            view.get(run, 0, rows * dimension);
+
+            for (int r = 0; r < rows; r++) {
+                int base = r * dimension;
+                float score = 0;
+                for (int d = 0; d < dimension; d++) {
+                    score += run[base + d] * unit[d];
+                }
+                score *= scales[start + r];
+                if (heapSize < k) {
+                    heapScores[heapSize] = score;
+                    heapRows[heapSize] = start + r;
+                    siftUp(heapScores, heapRows, heapSize++);
+                } else if (score > heapScores[0]) {
+                    heapScores[0] = score;
+                    heapRows[0] = start + r;
+                    siftDown(heapScores, heapRows, heapSize);
+                }
+            }
+        }
+
+        List<Hit> hits = new ArrayList<>(heapSize);
+        for (int i = 0; i < heapSize; i++) {
+            Hit hit = new Hit();
+            hit.id = ids[heapRows[i]];
+            hit.score = heapScores[i];
+            hit.text = getPassage(hit.id);
+            hits.add(hit);
+        }
+        Collections.sort(hits, (a, b) -> Float.compare(b.score, a.score));
+        return hits;
+    }
+
+    public String getPassage(int id) {
+        int start = (int) textOffsets[id];
+        int length = (int) (textOffsets[id + 1] - start);
+        byte[] bytes = new byte[length];
+        ByteBuffer view = text.duplicate();
+        view.position(start);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public String getEmbeddingKey() {
+        return embeddingKey;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getListCount() {
+        return lists;
+    }
+
+    /**
+     * Spherical k-means over a sample of the vectors
+     */
+    private static float[] cluster(float[][] unit, int dimension, int lists, Random random) {
+        float[][] sample = unit;
+        if (unit.length > KMEANS_SAMPLE) {
+            List<float[]> shuffled = new ArrayList<>(Arrays.asList(unit));
+            Collections.shuffle(shuffled, random);
+            sample = shuffled.subList(0, KMEANS_SAMPLE).toArray(new float[0][]);
+        }
+
+        float[] centroids = new float[lists * dimension];
+        List<Integer> seeds = new ArrayList<>();
+        for (int i = 0; i < sample.length; i++) {
+            seeds.add(i);
+        }
+        Collections.shuffle(seeds, random);
+        for (int c = 0; c < lists; c++) {
+            System.arraycopy(sample[seeds.get(c)], 0, centroids, c * dimension, dimension);
+        }
+
+        int[] assignment = new int[sample.length];
+        for (int iteration = 0; iteration < KMEANS_ITERATIONS; iteration++) {
+            for (int i = 0; i < sample.length; i++) {
+                assignment[i] = nearest(centroids, lists, sample[i]);
+            }
+
+            float[] sums = new float[lists * dimension];
+            int[] sizes = new int[lists];
+            for (int i = 0; i < sample.length; i++) {
+                int base = assignment[i] * dimension;
+                sizes[assignment[i]]++;
+                for (int d = 0; d < dimension; d++) {
+                    sums[base + d] += sample[i][d];
+                }
+            }
+            for (int c = 0; c < lists; c++) {
+                float[] centroid = new float[dimension];
+                if (sizes[c] == 0) {
+                    // Reseed an empty cluster from a random vector
+                    System.arraycopy(sample[random.nextInt(sample.length)], 0, centroid, 0, dimension);
+                } else {
+                    System.arraycopy(sums, c * dimension, centroid, 0, dimension);
+                    TextEmbedder.normalize(centroid);
+                }
+                System.arraycopy(centroid, 0, centroids, c * dimension, dimension);
+            }
+        }
+        return centroids;
+    }
+
+    private static int nearest(float[] centroids, int lists, float[] vector) {
+        int best = 0;
+        float bestScore = Float.NEGATIVE_INFINITY;
+        for (int c = 0; c < lists; c++) {
+            float score = dot(centroids, c * vector.length, vector);
+            if (score > bestScore) {
+                bestScore = score;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Symmetric per-vector int8 quantization
+     * @return the scale that maps codes back to values
+     */
+    private static float quantize(float[] vector, byte[] codes, int offset) {
+        float maxAbs = 0;
+        for (float v : vector) {
+            maxAbs = Math.max(maxAbs, Math.abs(v));
+        }
+        float scale = maxAbs > 0 ? maxAbs / 127f : 1f;
+        for (int d = 0; d < vector.length; d++) {
+            codes[offset + d] = (byte) Math.round(vector[d] / scale);
+        }
+        return scale;
+    }
+
+    private static float dot(float[] matrix, int offset, float[] vector) {
+        float sum = 0;
+        for (int d = 0; d < vector.length; d++) {
+            sum += matrix[offset + d] * vector[d];
+        }
+        return sum;
+    }
+
+    private static int[] topIndices(float[] scores, int n) {
+        Integer[] order = new Integer[scores.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Float.compare(scores[b], scores[a]));
+        int[] top = new int[n];
+        for (int i = 0; i < n; i++) {
+            top[i] = order[i];
+        }
+        return top;
+    }
+
+    private static void siftUp(float[] scores, int[] rows, int index) {
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (scores[parent] <= scores[index]) {
+                return;
+            }
+            swap(scores, rows, parent, index);
+            index = parent;
+        }
+    }
+
+    private static void siftDown(float[] scores, int[] rows, int size) {
+        int index = 0;
+        while (true) {
+            int smallest = index;
+            int left = 2 * index + 1;
+            int right = left + 1;
+            if (left < size && scores[left] < scores[smallest]) {
+                smallest = left;
+            }
+            if (right < size && scores[right] < scores[smallest]) {
+                smallest = right;
+            }
+            if (smallest == index) {
+                return;
+            }
+            swap(scores, rows, smallest, index);
+            index = smallest;
+        }
+    }
+
+    private static void swap(float[] scores, int[] rows, int a, int b) {
+        float score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+        int row = rows[a];
+        rows[a] = rows[b];
+        rows[b] = row;
+    }
+
+    private static ByteBuffer section(ByteBuffer buffer, long offset) {
+        ByteBuffer view = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        view.position((int) offset);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, long offset, long length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position((int) offset);
+        view.limit((int) (offset + length));
+        return view.slice();
+    }
+
+    private static long align(long position) {
+        return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+}
@@ -0,0 +1,130 @@
+package com.lifelight.gemma;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Recorded request shapes for load replay
+ * Stores only sizes, sampling settings and arrival offsets, never prompt text.
+ * The file is tab-separated with a version header so the headless replay tool
+ * can read it without any JSON dependency.
+ */
+public class WorkloadTrace {
+
+    public static final String KIND_GENERATE = "generate";
+    public static final String KIND_CHAT = "chat";
+    public static final String KIND_BATCH = "batch";
+
+    private static final String HEADER = "# gemma-workload v1";
+    private static final String COLUMNS =
+        "# offsetMs\tkind\tpromptTokens\tmaxTokens\ttemperature\thistoryDepth\tbatchSize\tsuffixTokens";
+
+    /**
+     * One recorded request
+     */
+    public static class Entry {
+        public long offsetMs; // arrival time relative to the first recorded request
+        public String kind;
+        public int promptTokens; // prefix tokens for batches
+        public int maxTokens;
+        public float temperature;
+        public int historyDepth; // chat messages, 0 otherwise
+        public int batchSize = 1;
+        public int suffixTokens; // average per batch item
+    }
+
+    /**
+     * Appends entries to a trace file as requests arrive
+     */
+    public static class Recorder implements AutoCloseable {
+        private final Writer writer;
+        private final long startNanos = System.nanoTime();
+        private int count = 0;
+        private boolean closed = false;
+
+        public Recorder(File file) throws IOException {
+            this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+            writer.write(HEADER + "\n" + COLUMNS + "\n");
+        }
+
+        /**
+         * Append an entry; one that races with close() is dropped
+         */
+        public synchronized void record(Entry entry) throws IOException {
+            if (closed) {
+                return;
+            }
+            entry.offsetMs = (System.nanoTime() - startNanos) / 1_000_000L;
+            writer.write(format(entry));
+            writer.write('\n');
+            if (++count % 32 == 0) {
+                writer.flush();
+            }
+        }
+
+        public synchronized int getCount() {
+            return count;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            closed = true;
+            writer.close();
+        }
+    }
+
+    public static List<Entry> read(File file) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            if (line == null || !line.equals(HEADER)) {
+                throw new IOException("Not a gemma workload trace: " + file);
+            }
+            int lineNumber = 1;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                try {
+                    entries.add(parse(line));
+                } catch (RuntimeException e) {
+                    throw new IOException("Bad workload line " + lineNumber + ": " + line);
+                }
+            }
+        }
+        return entries;
+    }
+
+    static String format(Entry entry) {
+        return entry.offsetMs + "\t" + entry.kind + "\t" + entry.promptTokens + "\t" + entry.maxTokens + "\t"
+            + String.format(Locale.US, "%.3f", entry.temperature) + "\t" + entry.historyDepth + "\t"
+            + entry.batchSize + "\t" + entry.suffixTokens;
+    }
+
+    static Entry parse(String line) {
+        String[] fields = line.split("\t");
+        Entry entry = new Entry();
+        entry.offsetMs = Long.parseLong(fields[0]);
+        entry.kind = fields[1];
+        entry.promptTokens = Integer.parseInt(fields[2]);
+        entry.maxTokens = Integer.parseInt(fields[3]);
+        entry.temperature = Float.parseFloat(fields[4]);
+        entry.historyDepth = Integer.parseInt(fields[5]);
+        entry.batchSize = Integer.parseInt(fields[6]);
+        entry.suffixTokens = Integer.parseInt(fields[7]);
+        return entry;
+    }
+}
@@ -0,0 +1,174 @@
+package com.lifelight.gemma;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConversationLogTest {
+
+    private static final SecretKey KEY = new SecretKeySpec(new byte[16], "AES");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void pagesMessagesOldestFirst() throws Exception {
+        try (ConversationLog log = new ConversationLog(folder.getRoot(), KEY)) {
+            for (int i = 0; i < 5; i++) {
+                log.appendMessage("c1", i % 2 == 0 ? ConversationLog.ROLE_USER : ConversationLog.ROLE_ASSISTANT, "m" + i);
+            }
+            log.appendMessage("c2", ConversationLog.ROLE_USER, "other").get();
+
+            assertEquals(5, log.getMessageCount("c1"));
+            assertEquals(texts("m3", "m4"), texts(log.getMessages("c1", -1, 2)));
+            assertEquals(texts("m1", "m2"), texts(log.getMessages("c1", 3, 2)));
+            assertEquals(ConversationLog.ROLE_ASSISTANT, log.getMessages("c1", 2, 1).get(0).role);
+            assertTrue(log.getMessages("missing", -1, 10).isEmpty());
+        }
+    }
+
+    @Test
+    public void laterResultReplacesEarlier() throws Exception {
+        try (ConversationLog log = new ConversationLog(folder.getRoot(), KEY)) {
+            log.putResult("r1", "first");
+            log.putResult("r1", "second").get();
+            assertEquals("second", log.getResult("r1").text);
+            assertNull(log.getResult("r1").role);
+            assertNull(log.getResult("r2"));
+        }
+    }
+
+    @Test
+    public void clearDropsEarlierMessages() throws Exception {
+        try (ConversationLog log = new ConversationLog(folder.getRoot(), KEY)) {
+            log.appendMessage("c1", ConversationLog.ROLE_USER, "old");
+            log.clearConversation("c1");
+            log.appendMessage("c1", ConversationLog.ROLE_USER, "new").get();
+            assertEquals(texts("new"), texts(log.getMessages("c1", -1, 10)));
+        }
+        try (ConversationLog log = new ConversationLog(folder.getRoot(), KEY)) {
+            assertEquals(texts("new"), texts(log.getMessages("c1", -1, 10)));
+        }
+    }
+
+    @Test
+    public void reopensFromIndex() throws Exception {
+        writeSample();
+        try (ConversationLog log = new ConversationLog(folder.getRoot(), KEY)) {
+            assertSample(log);
+        }
+    }
+
+    @Test
+    public void rebuildsLostIndexFromLog() throws Exception {
+        writeSample();
+        assertTrue(new File(folder.getRoot(), "history.idx").delete());
+        try (ConversationLog log = new ConversationLog(folder.getRoot(), KEY)) {
+            assertSample(log);
+        }
+        // The rebuilt index is written back, so a second open needs no scan
+        try (ConversationLog log = new ConversationLog(folder.getRoot(), KEY)) {
+            assertSample(log);
+        }
+    }
+
+    @Test
+    public void dropsTornRecordAtTail() throws Exception {
+        writeSample();
+        File logFile = new File(folder.getRoot(), "history.log");
+        long intact = logFile.length();
+        try (ConversationLog log = new ConversationLog(folder.getRoot(), KEY)) {
+            log.appendMessage("c1", ConversationLog.ROLE_USER, "torn").get();
+        }
+        // Cut the last record short, and lose the index entry that pointed at it
+        try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+            file.setLength(file.length() - 5);
+        }
+        File index = new File(folder.getRoot(), "history.idx");
+        try (RandomAccessFile file = new RandomAccessFile(index, "rw")) {
+            file.setLength(file.length() - 17);
+        }
+
+        try (ConversationLog log = new ConversationLog(folder.getRoot(), KEY)) {
+            assertSample(log);
+            assertEquals(intact, log.getSizeBytes());
+            log.appendMessage("c1", ConversationLog.ROLE_USER, "after").get();
+            assertEquals(texts("m2", "after"), texts(log.getMessages("c1", -1, 2)));
+        }
+    }
+
+    @Test
+    public void dropsIndexEntriesPastLogEnd() throws Exception {
+        writeSample();
+        File logFile = new File(folder.getRoot(), "history.log");
+        long intact = logFile.length();
+        try (ConversationLog log = new ConversationLog(folder.getRoot(), KEY)) {
+            log.putResult("r2", "lost").get();
+        }
+        // The index was extended but the log lost the record
+        try (RandomAccessFile file = new RandomAccessFile(logFile, "rw")) {
+            file.setLength(intact);
+        }
+
+        try (ConversationLog log = new ConversationLog(folder.getRoot(), KEY)) {
+            assertSample(log);
+            assertNull(log.getResult("r2"));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void wrongKeyFailsAuthentication() throws Exception {
+        writeSample();
+        try (ConversationLog log = new ConversationLog(folder.getRoot(), new SecretKeySpec(new byte[] {
+                1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16}, "AES"))) {
+            log.getResult("r1");
+        }
+    }
+
+    @Test
+    public void appendsAfterCloseFail() throws Exception {
+        ConversationLog log = new ConversationLog(folder.getRoot(), KEY);
+        log.close();
+        assertTrue(log.appendMessage("c1", ConversationLog.ROLE_USER, "late").isCompletedExceptionally());
+    }
+
+    private void writeSample() throws Exception {
+        try (ConversationLog log = new ConversationLog(folder.getRoot(), KEY)) {
+            log.appendMessage("c1", ConversationLog.ROLE_SYSTEM, "m0");
+            log.appendMessage("c1", ConversationLog.ROLE_USER, "m1");
+            log.putResult("r1", "result");
+            log.appendMessage("c1", ConversationLog.ROLE_ASSISTANT, "m2");
+            log.flush();
+        }
+    }
+
+    private static void assertSample(ConversationLog log) throws IOException {
+        assertEquals(4, log.getRecordCount());
+        assertEquals(texts("m0", "m1", "m2"), texts(log.getMessages("c1", -1, 10)));
+        assertEquals(ConversationLog.ROLE_SYSTEM, log.getMessages("c1", -1, 10).get(0).role);
+        assertEquals("result", log.getResult("r1").text);
+    }
+
+    private static String texts(String... texts) {
+        return String.join("|", texts);
+    }
+
+    private static String texts(List<ConversationLog.Entry> entries) {
+        StringBuilder joined = new StringBuilder();
+        for (ConversationLog.Entry entry : entries) {
+            joined.append(joined.length() > 0 ? "|" : "").append(entry.text);
+        }
+        return joined.toString();
+    }
+}
@@ -0,0 +1,157 @@
+package com.lifelight.gemma;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DecodeSchedulerTest {
+
+    /** Steps forever, holding its first step until released */
+    private static class EndlessTask implements DecodeScheduler.Task {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final AtomicBoolean inStep = new AtomicBoolean();
+        final AtomicInteger released = new AtomicInteger();
+
+        @Override
+        public boolean step() throws Exception {
+            inStep.set(true);
+            entered.countDown();
+            proceed.await();
+            inStep.set(false);
+            return false;
+        }
+
+        @Override
+        public void release() {
+            released.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void runsTasksToCompletion() throws Exception {
+        DecodeScheduler scheduler = new DecodeScheduler("test-decode");
+        AtomicInteger steps = new AtomicInteger();
+        AtomicInteger released = new AtomicInteger();
+        CompletableFuture<Void> future = scheduler.submit(new DecodeScheduler.Task() {
+            @Override
+            public boolean step() {
+                return steps.incrementAndGet() == 3;
+            }
+
+            @Override
+            public void release() {
+                released.incrementAndGet();
+            }
+        });
+        future.get(5, TimeUnit.SECONDS);
+        assertEquals(3, steps.get());
+        assertEquals(1, released.get());
+        scheduler.shutdownAndJoin();
+    }
+
+    @Test
+    public void shutdownAndJoinWaitsForTheStepInProgress() throws Exception {
+        DecodeScheduler scheduler = new DecodeScheduler("test-decode");
+        EndlessTask running = new EndlessTask();
+        EndlessTask queued = new EndlessTask();
+        CompletableFuture<Void> runningFuture = scheduler.submit(running);
+        assertTrue(running.entered.await(5, TimeUnit.SECONDS));
+        CompletableFuture<Void> queuedFuture = scheduler.submit(queued);
+
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            running.proceed.countDown();
+        });
+        releaser.start();
+        scheduler.shutdownAndJoin();
+
+        // Nothing is inside a step once the join returns
+        assertFalse(running.inStep.get());
+        assertEquals(1, queued.entered.getCount());
+        assertFailed(runningFuture);
+        assertFailed(queuedFuture);
+        assertEquals(1, running.released.get());
+        assertEquals(1, queued.released.get());
+        releaser.join();
+    }
+
+    @Test
+    public void queuedPipelinedTaskIsReleasedOnlyAfterTheJoin() throws Exception {
+        DecodeScheduler scheduler = new DecodeScheduler("test-decode");
+        TokenPipeline pipeline = new TokenPipeline("test-pipeline", 8);
+        TokenPipelineTest.RecordingSink sink = new TokenPipelineTest.RecordingSink(1000, -1);
+        TokenPipeline.Stream stream = pipeline.open(sink);
+        EndlessTask running = new EndlessTask();
+        AtomicBoolean releasedMidStep = new AtomicBoolean();
+        AtomicInteger token = new AtomicInteger();
+
+        // Steps once before the other task blocks, so its stream has pushed to the pipeline
+        CompletableFuture<Void> pipelinedFuture = scheduler.submit(new DecodeScheduler.Task() {
+            @Override
+            public boolean step() {
+                stream.accept(token.getAndIncrement());
+                return false;
+            }
+
+            @Override
+            public void release() {
+                releasedMidStep.set(running.inStep.get());
+                stream.close();
+            }
+        });
+        scheduler.submit(running);
+        assertTrue(running.entered.await(5, TimeUnit.SECONDS));
+
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            running.proceed.countDown();
+        });
+        releaser.start();
+        scheduler.shutdownAndJoin();
+
+        // Closing the stream from here while the worker stepped would make two producers
+        assertFalse(releasedMidStep.get());
+        assertFailed(pipelinedFuture);
+        stream.await();
+        assertEquals(token.get(), sink.tokens.size());
+        pipeline.shutdown();
+        releaser.join();
+    }
+
+    @Test
+    public void rejectsTasksAfterShutdown() throws Exception {
+        DecodeScheduler scheduler = new DecodeScheduler("test-decode");
+        scheduler.shutdownAndJoin();
+        EndlessTask task = new EndlessTask();
+        assertFailed(scheduler.submit(task));
+        assertEquals(1, task.released.get());
+    }
+
+    private static void assertFailed(CompletableFuture<Void> future) throws Exception {
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("expected the task to fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+}
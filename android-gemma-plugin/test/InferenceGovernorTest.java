@@ -0,0 +1,133 @@
+package com.lifelight.gemma;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class InferenceGovernorTest {
+
+    private FakeDeviceStateProvider device;
+    private InferenceGovernor governor;
+
+    @Before
+    public void setUp() {
+        device = new FakeDeviceStateProvider();
+        governor = new InferenceGovernor(device, 4, 8, 1024);
+    }
+
+    @Test
+    public void fullWhenCoolAndCharged() {
+        InferenceGovernor.Decision decision = governor.evaluate();
+        assertEquals(InferenceGovernor.LEVEL_FULL, decision.level);
+        assertEquals(4, decision.threadCount);
+        assertEquals(8, decision.batchSize);
+        assertEquals(1024, decision.maxTokens);
+    }
+
+    @Test
+    public void reducedWhenWarm() {
+        device.setThermalStatus(DeviceStateProvider.THERMAL_MODERATE);
+        InferenceGovernor.Decision decision = governor.evaluate();
+        assertEquals(InferenceGovernor.LEVEL_REDUCED, decision.level);
+        assertEquals(2, decision.threadCount);
+        assertEquals(4, decision.batchSize);
+        assertEquals(512, decision.maxTokens);
+    }
+
+    @Test
+    public void reducedInPowerSaveMode() {
+        device.setPowerSaveMode(true);
+        assertEquals(InferenceGovernor.LEVEL_REDUCED, governor.evaluate().level);
+    }
+
+    @Test
+    public void reducedOnLowBattery() {
+        device.setBatteryLevel(25);
+        assertEquals(InferenceGovernor.LEVEL_REDUCED, governor.evaluate().level);
+    }
+
+    @Test
+    public void minimalWhenHot() {
+        device.setThermalStatus(DeviceStateProvider.THERMAL_SEVERE);
+        InferenceGovernor.Decision decision = governor.evaluate();
+        assertEquals(InferenceGovernor.LEVEL_MINIMAL, decision.level);
+        assertEquals(1, decision.threadCount);
+        assertEquals(1, decision.batchSize);
+        assertEquals(128, decision.maxTokens);
+    }
+
+    @Test
+    public void minimalOnCriticalBattery() {
+        device.setBatteryLevel(10);
+        assertEquals(InferenceGovernor.LEVEL_MINIMAL, governor.evaluate().level);
+    }
+
+    @Test
+    public void chargingIgnoresBatteryLevel() {
+        device.setBatteryLevel(10);
+        device.setCharging(true);
+        assertEquals(InferenceGovernor.LEVEL_FULL, governor.evaluate().level);
+    }
+
+    @Test
+    public void unknownBatteryIsNotLow() {
+        device.setBatteryLevel(-1);
+        assertEquals(InferenceGovernor.LEVEL_FULL, governor.evaluate().level);
+    }
+
+    @Test
+    public void reducedNeverDropsBelowOneThread() {
+        governor.setBaseline(1, 1, 64);
+        device.setThermalStatus(DeviceStateProvider.THERMAL_MODERATE);
+        InferenceGovernor.Decision decision = governor.evaluate();
+        assertEquals(1, decision.threadCount);
+        assertEquals(1, decision.batchSize);
+        assertEquals(64, decision.maxTokens);
+    }
+
+    @Test
+    public void decisionIsCachedUntilBaselineChanges() {
+        assertEquals(InferenceGovernor.LEVEL_FULL, governor.evaluate().level);
+        device.setThermalStatus(DeviceStateProvider.THERMAL_SEVERE);
+        assertEquals(InferenceGovernor.LEVEL_FULL, governor.evaluate().level);
+
+        governor.setBaseline(4, 8, 1024);
+        assertEquals(InferenceGovernor.LEVEL_MINIMAL, governor.evaluate().level);
+    }
+
+    @Test
+    public void tightensAtOnceButRelaxesOnlyAfterDwell() {
+        long now = 1_000_000;
+        assertEquals(InferenceGovernor.LEVEL_FULL, governor.evaluate(now).level);
+
+        device.setThermalStatus(DeviceStateProvider.THERMAL_MODERATE);
+        now += 5000;
+        assertEquals(InferenceGovernor.LEVEL_REDUCED, governor.evaluate(now).level);
+
+        // Cooling back down is held at the constrained level for a minute
+        device.setThermalStatus(DeviceStateProvider.THERMAL_NONE);
+        now += 5000;
+        assertEquals(InferenceGovernor.LEVEL_REDUCED, governor.evaluate(now).level);
+        now += 30000;
+        assertEquals(InferenceGovernor.LEVEL_REDUCED, governor.evaluate(now).level);
+        now += 30000;
+        InferenceGovernor.Decision decision = governor.evaluate(now);
+        assertEquals(InferenceGovernor.LEVEL_FULL, decision.level);
+        assertEquals(4, decision.threadCount);
+    }
+
+    @Test
+    public void flappingAtAThresholdDoesNotRelax() {
+        long now = 1_000_000;
+        device.setBatteryLevel(29);
+        assertEquals(InferenceGovernor.LEVEL_REDUCED, governor.evaluate(now).level);
+
+        // Readings either side of the threshold restart the dwell each time they dip
+        for (int i = 0; i < 20; i++) {
+            device.setBatteryLevel(i % 2 == 0 ? 30 : 29);
+            now += 5000;
+            assertEquals(InferenceGovernor.LEVEL_REDUCED, governor.evaluate(now).level);
+        }
+    }
+}
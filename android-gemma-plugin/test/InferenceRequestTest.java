@@ -0,0 +1,62 @@
+package com.lifelight.gemma;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InferenceRequestTest {
+
+    @Test
+    public void cancellingTheParentCancelsAttachedChildren() throws Exception {
+        try (InferenceRequest parent = new InferenceRequest("summary", 0);
+             InferenceRequest pass = new InferenceRequest("summary/pass-1", 0)) {
+            pass.attachTo(parent);
+            parent.cancel();
+            assertTrue(pass.isCancelled());
+            assertTrue(pass.onStop().isDone());
+        }
+    }
+
+    @Test
+    public void expiringTheParentExpiresAttachedChildren() throws Exception {
+        try (InferenceRequest parent = new InferenceRequest("summary", 0);
+             InferenceRequest pass = new InferenceRequest("summary/final", 0)) {
+            pass.attachTo(parent);
+            parent.expire();
+            assertTrue(pass.isTimedOut());
+            assertFalse(pass.isCancelled());
+        }
+    }
+
+    @Test
+    public void childAttachedAfterCancelStopsAtOnce() throws Exception {
+        try (InferenceRequest parent = new InferenceRequest("summary", 0);
+             InferenceRequest pass = new InferenceRequest("summary/pass-2", 0)) {
+            parent.cancel();
+            pass.attachTo(parent);
+            assertTrue(pass.shouldStop());
+        }
+    }
+
+    @Test
+    public void closedChildIsNoLongerStopped() throws Exception {
+        try (InferenceRequest parent = new InferenceRequest("summary", 0)) {
+            InferenceRequest pass = new InferenceRequest("summary/pass-1", 0);
+            pass.attachTo(parent);
+            pass.close();
+            parent.cancel();
+            assertFalse(pass.isCancelled());
+        }
+    }
+
+    @Test
+    public void cancellingAChildLeavesTheParentRunning() throws Exception {
+        try (InferenceRequest parent = new InferenceRequest("summary", 0);
+             InferenceRequest pass = new InferenceRequest("summary/pass-1", 0)) {
+            pass.attachTo(parent);
+            pass.cancel();
+            assertFalse(parent.shouldStop());
+        }
+    }
+}
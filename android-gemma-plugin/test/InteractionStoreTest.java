@@ -0,0 +1,80 @@
+package com.lifelight.gemma;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InteractionStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void normalizesNames() {
+        assertEquals("vitamin d", InteractionStore.normalize("  Vitamin   D "));
+    }
+
+    @Test
+    public void pairsAreSortedAndDistinct() {
+        List<String[]> pairs = InteractionStore.pairs(Arrays.asList("Warfarin", "aspirin", " ASPIRIN", "", "ibuprofen"));
+        assertEquals(3, pairs.size());
+        assertArrayEquals(new String[] {"aspirin", "ibuprofen"}, pairs.get(0));
+        assertArrayEquals(new String[] {"aspirin", "warfarin"}, pairs.get(1));
+        assertArrayEquals(new String[] {"ibuprofen", "warfarin"}, pairs.get(2));
+    }
+
+    @Test
+    public void lookupIgnoresOrderAndCase() throws Exception {
+        InteractionStore store = new InteractionStore(new File(folder.getRoot(), "interactions.bin"), "model-a");
+        store.put("Warfarin", "aspirin", "bleeding risk");
+        InteractionStore.Interaction interaction = store.get("ASPIRIN", "warfarin ");
+        assertEquals("bleeding risk", interaction.text);
+        assertEquals("aspirin", interaction.medicationA);
+        assertEquals("warfarin", interaction.medicationB);
+        assertFalse(store.contains("aspirin", "ibuprofen"));
+    }
+
+    @Test
+    public void flushedResultsSurviveReopen() throws Exception {
+        File file = new File(folder.getRoot(), "interactions.bin");
+        InteractionStore store = new InteractionStore(file, "model-a");
+        for (int i = 0; i < 50; i++) {
+            store.put("drug" + i, "drug" + (i + 1), "result " + i);
+        }
+        store.flush();
+        store.put("drug0", "drug1", "revised");
+        store.put("x", "y", "new");
+        assertEquals(51, store.size());
+        store.flush();
+
+        InteractionStore reopened = new InteractionStore(file, "model-a");
+        assertEquals(51, reopened.size());
+        assertEquals("revised", reopened.get("drug1", "drug0").text);
+        assertEquals("result 42", reopened.get("drug42", "drug43").text);
+        assertEquals("new", reopened.get("y", "x").text);
+        assertNull(reopened.get("drug0", "drug2"));
+    }
+
+    @Test
+    public void otherModelKeyReadsAsEmpty() throws Exception {
+        File file = new File(folder.getRoot(), "interactions.bin");
+        InteractionStore store = new InteractionStore(file, "model-a");
+        store.put("a", "b", "text");
+        store.flush();
+        assertTrue(new InteractionStore(file, "model-a").contains("a", "b"));
+
+        InteractionStore other = new InteractionStore(file, "model-b");
+        assertEquals(0, other.size());
+        assertFalse(other.contains("a", "b"));
+    }
+}
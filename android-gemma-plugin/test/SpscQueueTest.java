@@ -0,0 +1,73 @@
+package com.lifelight.gemma;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SpscQueueTest {
+
+    @Test
+    public void capacityRoundsUpToPowerOfTwo() {
+        assertEquals(1, new SpscQueue<Integer>(1).capacity());
+        assertEquals(8, new SpscQueue<Integer>(5).capacity());
+        assertEquals(256, new SpscQueue<Integer>(256).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroCapacity() {
+        new SpscQueue<Integer>(0);
+    }
+
+    @Test
+    public void fifoUntilFull() {
+        SpscQueue<Integer> queue = new SpscQueue<>(4);
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+        assertEquals(4, queue.size());
+
+        assertEquals(Integer.valueOf(0), queue.poll());
+        assertTrue(queue.offer(4));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(Integer.valueOf(i), queue.poll());
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void handsOverEveryItemInOrderAcrossThreads() throws InterruptedException {
+        final int items = 200000;
+        final SpscQueue<Integer> queue = new SpscQueue<>(16);
+        final AtomicReference<String> error = new AtomicReference<>();
+        Thread consumer = new Thread(() -> {
+            int expected = 0;
+            while (expected < items) {
+                Integer item = queue.poll();
+                if (item == null) {
+                    Thread.yield();
+                } else if (item != expected++) {
+                    error.set("Got " + item + ", expected " + (expected - 1));
+                    return;
+                }
+            }
+        });
+        consumer.start();
+        for (int i = 0; i < items; i++) {
+            while (!queue.offer(i)) {
+                Thread.yield();
+            }
+        }
+        consumer.join(10000);
+        assertFalse(consumer.isAlive());
+        assertNull(error.get());
+        assertTrue(queue.isEmpty());
+    }
+}
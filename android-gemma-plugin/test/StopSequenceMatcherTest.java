@@ -0,0 +1,71 @@
+package com.lifelight.gemma;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StopSequenceMatcherTest {
+
+    @Test
+    public void emptyWithoutSequences() {
+        assertTrue(new StopSequenceMatcher(null).isEmpty());
+        assertTrue(new StopSequenceMatcher(Arrays.asList("", null)).isEmpty());
+        assertFalse(new StopSequenceMatcher(Collections.singletonList("x")).isEmpty());
+    }
+
+    @Test
+    public void findsSequenceSpanningFeeds() {
+        StopSequenceMatcher matcher = new StopSequenceMatcher(Collections.singletonList("<end>"));
+        assertEquals(-1, matcher.feed("text <e", 0, 7));
+        assertEquals(2, matcher.getPendingLength());
+        assertEquals(3, matcher.feed("nd> more", 0, 8));
+        assertEquals("<end>", matcher.getMatchedSequence());
+        assertEquals(5, matcher.getMatchLength());
+    }
+
+    @Test
+    public void pendingDropsWhenPrefixBreaks() {
+        StopSequenceMatcher matcher = new StopSequenceMatcher(Collections.singletonList("STOP"));
+        assertEquals(-1, matcher.feed("ST", 0, 2));
+        assertEquals(2, matcher.getPendingLength());
+        assertFalse(matcher.feed('x'));
+        assertEquals(0, matcher.getPendingLength());
+    }
+
+    @Test
+    public void failureLinksFindOverlappingSequences() {
+        StopSequenceMatcher matcher = new StopSequenceMatcher(Arrays.asList("abcd", "bc"));
+        assertEquals(3, matcher.feed("abcd", 0, 4));
+        assertEquals("bc", matcher.getMatchedSequence());
+
+        matcher.reset();
+        assertNull(matcher.getMatchedSequence());
+        assertEquals(-1, matcher.feed("aab", 0, 3));
+        assertTrue(matcher.feed('c'));
+        assertEquals("bc", matcher.getMatchedSequence());
+    }
+
+    @Test
+    public void prefersLongestSequenceEndingHere() {
+        StopSequenceMatcher matcher = new StopSequenceMatcher(Arrays.asList("end", "the end"));
+        assertEquals(7, matcher.feed("the end", 0, 7));
+        assertEquals("the end", matcher.getMatchedSequence());
+        assertEquals(7, matcher.getMatchLength());
+    }
+
+    @Test
+    public void resetClearsState() {
+        StopSequenceMatcher matcher = new StopSequenceMatcher(Collections.singletonList("ab"));
+        matcher.feed('a');
+        matcher.reset();
+        assertEquals(0, matcher.getPosition());
+        assertEquals(0, matcher.getPendingLength());
+        assertFalse(matcher.feed('b'));
+    }
+}
@@ -0,0 +1,219 @@
+package com.lifelight.gemma;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TokenPipelineTest {
+
+    /**
+     * Records what reaches the stage; ends at a token count, or when it sees {@code stopToken}
+     */
+    static class RecordingSink implements TokenPipeline.Sink {
+        final List<Integer> tokens = new ArrayList<>();
+        final int maxTokens;
+        final int stopToken;
+        String stopReason;
+        Thread stageThread;
+
+        RecordingSink(int maxTokens, int stopToken) {
+            this.maxTokens = maxTokens;
+            this.stopToken = stopToken;
+        }
+
+        @Override
+        public boolean endsAt(int token, int accepted) {
+            return accepted + 1 >= maxTokens;
+        }
+
+        @Override
+        public boolean accept(int token) {
+            stageThread = Thread.currentThread();
+            tokens.add(token);
+            return token != stopToken;
+        }
+
+        @Override
+        public void stop(String reason) {
+            stopReason = reason;
+        }
+    }
+
+    private TokenPipeline pipeline;
+
+    @Before
+    public void setUp() {
+        pipeline = new TokenPipeline("test-pipeline", 8);
+    }
+
+    @After
+    public void tearDown() {
+        pipeline.shutdown();
+    }
+
+    @Test
+    public void deliversTokensInOrderOnStageThread() throws InterruptedException {
+        RecordingSink sink = new RecordingSink(1000, -1);
+        TokenPipeline.Stream stream = pipeline.open(sink);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(stream.accept(i));
+        }
+        stream.close();
+        stream.await();
+
+        assertEquals(100, sink.tokens.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i), sink.tokens.get(i));
+        }
+        assertFalse(sink.stageThread == Thread.currentThread());
+        assertEquals(100, pipeline.getStats().tokens);
+    }
+
+    @Test
+    public void endsOnDecodeThreadAtLengthLimit() throws InterruptedException {
+        RecordingSink sink = new RecordingSink(3, -1);
+        TokenPipeline.Stream stream = pipeline.open(sink);
+        assertTrue(stream.accept(1));
+        assertTrue(stream.accept(2));
+        assertFalse(stream.accept(3));
+        assertTrue(stream.isFinished());
+        assertFalse(stream.accept(4));
+        stream.close();
+        stream.await();
+        assertEquals(Arrays.asList(1, 2, 3), sink.tokens);
+    }
+
+    @Test
+    public void stageStopEndsStream() throws InterruptedException {
+        RecordingSink sink = new RecordingSink(1000, 5);
+        TokenPipeline.Stream stream = pipeline.open(sink);
+        int sent = 0;
+        while (stream.accept(sent) && sent < 10000) {
+            sent++;
+            Thread.sleep(1);
+        }
+        stream.close();
+        stream.await();
+        assertTrue(stream.isFinished());
+        assertTrue(sent < 10000);
+        assertEquals(Integer.valueOf(5), sink.tokens.get(5));
+    }
+
+    @Test
+    public void tokensAfterStageStopNeverReachSink() throws InterruptedException {
+        RecordingSink sink = new RecordingSink(1000, 5);
+        TokenPipeline.Stream stream = pipeline.open(sink);
+        int sent = 0;
+        while (stream.accept(sent) && sent < 10000) {
+            sent++;
+        }
+        stream.close();
+        stream.await();
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5), sink.tokens);
+        assertTrue("ran " + (sent - 5) + " steps past the stop", sent <= 5 + TokenPipeline.MAX_IN_FLIGHT);
+    }
+
+    @Test
+    public void decodeThreadWaitsForSlowSink() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final RecordingSink sink = new RecordingSink(1000, -1) {
+            @Override
+            public boolean accept(int token) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return super.accept(token);
+            }
+        };
+        final TokenPipeline.Stream stream = pipeline.open(sink);
+        final AtomicInteger handedOver = new AtomicInteger();
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < 10; i++) {
+                stream.accept(i);
+                handedOver.incrementAndGet();
+            }
+            stream.close();
+        });
+        producer.start();
+
+        Thread.sleep(200);
+        assertEquals(TokenPipeline.MAX_IN_FLIGHT, handedOver.get());
+        // Parked rather than spinning on the core the scheduler needs
+        assertEquals(Thread.State.WAITING, producer.getState());
+        release.countDown();
+        producer.join(TimeUnit.SECONDS.toMillis(5));
+        stream.await();
+        assertEquals(10, handedOver.get());
+        assertEquals(10, sink.tokens.size());
+        assertTrue(pipeline.getStats().stalls > 0);
+    }
+
+    @Test
+    public void stopReachesSinkAfterEarlierTokens() throws InterruptedException {
+        RecordingSink sink = new RecordingSink(1000, -1);
+        TokenPipeline.Stream stream = pipeline.open(sink);
+        stream.accept(7);
+        stream.stop("cancelled");
+        assertTrue(stream.isFinished());
+        stream.close();
+        stream.await();
+        assertEquals(Arrays.asList(7), sink.tokens);
+        assertEquals("cancelled", sink.stopReason);
+    }
+
+    @Test
+    public void sinkFailureSurfacesFromAwait() throws InterruptedException {
+        TokenPipeline.Stream stream = pipeline.open(new RecordingSink(1000, -1) {
+            @Override
+            public boolean accept(int token) {
+                throw new IllegalStateException("boom");
+            }
+        });
+        stream.accept(1);
+        stream.close();
+        try {
+            stream.await();
+            fail("Expected the sink's exception");
+        } catch (IllegalStateException e) {
+            assertEquals("boom", e.getMessage());
+        }
+    }
+
+    @Test
+    public void directStreamRunsInline() throws InterruptedException {
+        RecordingSink sink = new RecordingSink(1000, 2);
+        TokenPipeline.Stream stream = TokenPipeline.direct(sink);
+        assertTrue(stream.accept(1));
+        assertFalse(stream.accept(2));
+        assertTrue(stream.isFinished());
+        stream.close();
+        stream.await();
+        assertEquals(Thread.currentThread(), sink.stageThread);
+        assertEquals(Arrays.asList(1, 2), sink.tokens);
+    }
+
+    @Test
+    public void openAfterShutdownIsDirect() {
+        pipeline.shutdown();
+        RecordingSink sink = new RecordingSink(1000, -1);
+        TokenPipeline.Stream stream = pipeline.open(sink);
+        stream.accept(1);
+        assertEquals(Thread.currentThread(), sink.stageThread);
+        assertNull(sink.stopReason);
+    }
+}
@@ -0,0 +1,150 @@
+package com.lifelight.gemma;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class VectorIndexTest {
+
+    private static final int DIMENSION = 32;
+    private static final int COUNT = 2000;
+    private static final int K = 10;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTripsMetadataAndPassages() throws Exception {
+        File file = new File(folder.getRoot(), "index.bin");
+        float[][] vectors = clusteredVectors(new Random(1), 200);
+        VectorIndex.build(file, "embedder-1", vectors, passages(200), 0, 7);
+
+        VectorIndex index = VectorIndex.open(file);
+        assertEquals("embedder-1", index.getEmbeddingKey());
+        assertEquals(DIMENSION, index.getDimension());
+        assertEquals(200, index.size());
+        assertEquals(14, index.getListCount());
+        assertEquals("passage 123", index.getPassage(123));
+    }
+
+    @Test
+    public void exactVectorIsTopHit() throws Exception {
+        File file = new File(folder.getRoot(), "index.bin");
+        float[][] vectors = clusteredVectors(new Random(2), COUNT);
+        VectorIndex.build(file, "embedder-1", vectors, passages(COUNT), 0, 7);
+        VectorIndex index = VectorIndex.open(file);
+
+        for (int id = 0; id < COUNT; id += 97) {
+            VectorIndex.Hit hit = index.search(vectors[id], 1, 4).get(0);
+            assertEquals(id, hit.id);
+            assertEquals("passage " + id, hit.text);
+            assertTrue(hit.score > 0.97f);
+        }
+    }
+
+    @Test
+    public void recallAgainstExactSearch() throws Exception {
+        Random random = new Random(3);
+        File file = new File(folder.getRoot(), "index.bin");
+        float[][] vectors = clusteredVectors(random, COUNT);
+        VectorIndex.build(file, "embedder-1", vectors, passages(COUNT), 0, 7);
+        VectorIndex index = VectorIndex.open(file);
+
+        int found = 0;
+        int queries = 50;
+        for (int q = 0; q < queries; q++) {
+            float[] query = vectors[random.nextInt(COUNT)].clone();
+            for (int d = 0; d < DIMENSION; d++) {
+                query[d] += (float) random.nextGaussian() * 0.1f;
+            }
+            Set<Integer> exact = exactTopK(vectors, query, K);
+            List<VectorIndex.Hit> hits = index.search(query, K, 8);
+            assertEquals(K, hits.size());
+            for (int i = 1; i < hits.size(); i++) {
+                assertTrue(hits.get(i - 1).score >= hits.get(i).score);
+            }
+            for (VectorIndex.Hit hit : hits) {
+                if (exact.contains(hit.id)) {
+                    found++;
+                }
+            }
+        }
+        double recall = (double) found / (queries * K);
+        assertTrue("recall@" + K + " was " + recall, recall >= 0.9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsQueryOfWrongDimension() throws Exception {
+        File file = new File(folder.getRoot(), "index.bin");
+        VectorIndex.build(file, "embedder-1", clusteredVectors(new Random(4), 50), passages(50), 0, 7);
+        VectorIndex.open(file).search(new float[DIMENSION + 1], 1, 1);
+    }
+
+    /**
+     * Points scattered around a few dozen random centres, as embeddings of related passages are
+     */
+    private static float[][] clusteredVectors(Random random, int count) {
+        float[][] centres = new float[40][DIMENSION];
+        for (float[] centre : centres) {
+            for (int d = 0; d < DIMENSION; d++) {
+                centre[d] = (float) random.nextGaussian();
+            }
+        }
+        float[][] vectors = new float[count][DIMENSION];
+        for (int i = 0; i < count; i++) {
+            float[] centre = centres[random.nextInt(centres.length)];
+            for (int d = 0; d < DIMENSION; d++) {
+                vectors[i][d] = centre[d] + (float) random.nextGaussian() * 0.5f;
+            }
+        }
+        return vectors;
+    }
+
+    private static List<String> passages(int count) {
+        List<String> passages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            passages.add("passage " + i);
+        }
+        return passages;
+    }
+
+    private static Set<Integer> exactTopK(float[][] vectors, float[] query, int k) {
+        float[] scores = new float[vectors.length];
+        for (int i = 0; i < vectors.length; i++) {
+            scores[i] = cosine(vectors[i], query);
+        }
+        Set<Integer> top = new HashSet<>();
+        for (int n = 0; n < k; n++) {
+            int best = -1;
+            for (int i = 0; i < scores.length; i++) {
+                if (!top.contains(i) && (best < 0 || scores[i] > scores[best])) {
+                    best = i;
+                }
+            }
+            top.add(best);
+        }
+        return top;
+    }
+
+    private static float cosine(float[] a, float[] b) {
+        double dot = 0;
+        double normA = 0;
+        double normB = 0;
+        for (int d = 0; d < a.length; d++) {
+            dot += a[d] * b[d];
+            normA += a[d] * a[d];
+            normB += b[d] * b[d];
+        }
+        return (float) (dot / Math.sqrt(normA * normB));
+    }
+}
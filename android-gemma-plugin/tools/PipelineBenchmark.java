@@ -0,0 +1,341 @@
+package com.lifelight.gemma.tools;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import com.lifelight.gemma.DecodeScheduler;
+import com.lifelight.gemma.DecoderState;
+import com.lifelight.gemma.GemmaDecoder;
+import com.lifelight.gemma.StopSequenceMatcher;
+import com.lifelight.gemma.StreamingDetokenizer;
+import com.lifelight.gemma.TokenPipeline;
+import com.lifelight.gemma.TokenSampler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Per-token wall time of the decode loop run serially and pipelined.
+ * Serial is the old loop: sample, detokenize, match stop sequences and emit on
+ * the decode thread, then run the next step. Pipelined hands each token to a
+ * TokenPipeline and runs the next step straight away. Both use the
+ * DecodeScheduler, as the manager does.
+ *
+ * With --model, steps are real GemmaDecoder runs (needs the onnxruntime jar):
+ *
+ *   javac -cp onnxruntime-1.16.3.jar -d out \
+ *       android-gemma-plugin/{GemmaDecoder,DecoderState,DecodeScheduler,SpscQueue,StopSequenceMatcher,StreamingDetokenizer,TokenPipeline,TokenSampler,TokenShortlist,Tracer}.java \
+ *       android-gemma-plugin/tools/PipelineBenchmark.java
+ *   java -cp out:onnxruntime-1.16.3.jar com.lifelight.gemma.tools.PipelineBenchmark \
+ *       --model tiny-gemma.onnx --tokens 128 --runs 8
+ *
+ * Without it, each step spins for --step-ms on the decode thread in place of
+ * session.run, so the tool runs with the JDK alone. The vocabulary is
+ * synthetic words; --emit-us spins per streamed delta in place of the
+ * Capacitor bridge call, which this tool cannot make.
+ */
+public class PipelineBenchmark {
+
+    private final GemmaDecoder decoder; // null for simulated steps
+    private final StreamingDetokenizer.Vocabulary vocabulary;
+    private final Options options;
+
+    PipelineBenchmark(GemmaDecoder decoder, Options options) {
+        this.decoder = decoder;
+        this.options = options;
+        this.vocabulary = syntheticVocabulary(options.vocabSize, options.seed);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        if (options.model == null) {
+            new PipelineBenchmark(null, options).run();
+            return;
+        }
+
+        OrtEnvironment environment = OrtEnvironment.getEnvironment();
+        try (OrtSession.SessionOptions sessionOptions = new OrtSession.SessionOptions()) {
+            sessionOptions.setIntraOpNumThreads(options.threads);
+            sessionOptions.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.ALL_OPT);
+            try (OrtSession session = environment.createSession(options.model, sessionOptions)) {
+                GemmaDecoder decoder = new GemmaDecoder(environment, session, options.kvHeads, options.headDim);
+                new PipelineBenchmark(decoder, options).run();
+            }
+        }
+    }
+
+    void run() throws Exception {
+        System.out.println(String.format(Locale.US, "%d runs of %d tokens, %s, bridge emit %d us",
+            options.runs, options.tokens,
+            decoder != null ? "model steps" : String.format(Locale.US, "simulated %.2f ms steps", options.stepMs),
+            options.emitMicros));
+
+        DecodeScheduler scheduler = new DecodeScheduler("bench-decode");
+        TokenPipeline pipeline = new TokenPipeline("bench-text", 256);
+        try {
+            // Untimed warm-up of both paths
+            runOnce(scheduler, null, new Random(options.seed));
+            runOnce(scheduler, pipeline, new Random(options.seed));
+
+            List<Double> serialMs = new ArrayList<>();
+            List<Double> pipelinedMs = new ArrayList<>();
+            double textMs = 0;
+            Random random = new Random(options.seed);
+            for (int i = 0; i < options.runs; i++) {
+                // Alternate so drift (thermal, JIT) hits both alike
+                long seed = random.nextLong();
+                Result serial = runOnce(scheduler, null, new Random(seed));
+                Result pipelined = runOnce(scheduler, pipeline, new Random(seed));
+                serialMs.add(serial.msPerToken);
+                pipelinedMs.add(pipelined.msPerToken);
+                textMs += serial.textMsPerToken;
+            }
+
+            double serial = median(serialMs);
+            double pipelined = median(pipelinedMs);
+            TokenPipeline.Stats stats = pipeline.getStats();
+            System.out.println(String.format(Locale.US, "serial        %.3f ms/token", serial));
+            System.out.println(String.format(Locale.US, "pipelined     %.3f ms/token  (%+.1f%%, %.2fx)",
+                pipelined, 100.0 * (pipelined - serial) / serial, serial / pipelined));
+            System.out.println(String.format(Locale.US, "text work     %.3f ms/token on the decode thread when serial",
+                textMs / options.runs));
+            System.out.println(String.format(Locale.US, "text stage    %d tokens, %.3f ms/token, %d stalls",
+                stats.tokens, stats.averageTokenMs, stats.stalls));
+        } finally {
+            scheduler.shutdown();
+            pipeline.shutdown();
+        }
+    }
+
+    static class Result {
+        double msPerToken;
+        double textMsPerToken;
+    }
+
+    /**
+     * One generation of --tokens steps; null pipeline runs the text work inline
+     */
+    private Result runOnce(DecodeScheduler scheduler, TokenPipeline pipeline, Random random) throws Exception {
+        BenchSequence sequence = new BenchSequence();
+        BenchTask task = new BenchTask(pipeline != null ? pipeline.open(sequence) : TokenPipeline.direct(sequence), random);
+        try {
+            scheduler.submit(task).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+        task.output.await();
+        long end = System.nanoTime();
+
+        Result result = new Result();
+        // From the first sampled token to the last one through the text work
+        result.msPerToken = (end - task.decodeStart) / 1e6 / Math.max(1, task.generated - 1);
+        result.textMsPerToken = sequence.textNanos / 1e6 / Math.max(1, task.generated);
+        return result;
+    }
+
+    /**
+     * Prefill a random prompt, then greedy steps until --tokens are generated
+     */
+    private class BenchTask implements DecodeScheduler.Task {
+        final TokenPipeline.Stream output;
+        private final Random random;
+        private final DecoderState state = decoder != null ? decoder.newState() : null;
+        private int[] pending;
+        long decodeStart;
+        int generated = 0;
+
+        BenchTask(TokenPipeline.Stream output, Random random) {
+            this.output = output;
+            this.random = random;
+            this.pending = new int[options.promptTokens];
+            for (int i = 0; i < pending.length; i++) {
+                pending[i] = randomToken();
+            }
+        }
+
+        @Override
+        public boolean step() throws OrtException {
+            int token;
+            if (decoder != null) {
+                float[] logits = decoder.prefill(state, pending, null);
+                token = TokenSampler.sample(logits, 0, null, decoder.getShortlist());
+            } else {
+                spin((long) (options.stepMs * (generated == 0 ? options.promptTokens : 1) * 1_000_000L));
+                token = randomToken();
+            }
+            if (generated++ == 0) {
+                decodeStart = System.nanoTime();
+            }
+            // Real models end when they like; keep every run the same length
+            if (token == options.eosToken) {
+                token = randomToken();
+            }
+            if (!output.accept(token)) {
+                return true;
+            }
+            pending = new int[] {token};
+            return false;
+        }
+
+        @Override
+        public void release() {
+            output.close();
+            if (state != null) {
+                state.close();
+            }
+        }
+
+        private int randomToken() {
+            return 4 + random.nextInt(options.vocabSize - 4);
+        }
+    }
+
+    /**
+     * What GenerationSequence does per token: detokenize, match stop sequences, stream the safe text
+     */
+    private class BenchSequence implements TokenPipeline.Sink {
+        private final StreamingDetokenizer detokenizer = new StreamingDetokenizer(vocabulary);
+        // Never produced by the synthetic vocabulary, so the matcher runs on every character
+        private final StopSequenceMatcher matcher = new StopSequenceMatcher(
+            Arrays.asList("\nUser:", "</answer>", "###"));
+        private final StringBuilder text = new StringBuilder();
+        private final StringBuilder event = new StringBuilder();
+        private int accepted = 0;
+        private int emitted = 0;
+        private boolean stopped = false;
+        long textNanos = 0;
+
+        @Override
+        public boolean endsAt(int token, int count) {
+            return token == options.eosToken || count + 1 >= options.tokens;
+        }
+
+        @Override
+        public boolean accept(int token) {
+            if (stopped) {
+                return false;
+            }
+            long start = System.nanoTime();
+            int tokenStart = text.length();
+            detokenizer.append(token, text);
+            if (matcher.feed(text, tokenStart, text.length()) >= 0) {
+                stopped = true;
+            }
+            int safeEnd = text.length() - matcher.getPendingLength();
+            if (!stopped && safeEnd > emitted) {
+                emit(emitted, safeEnd);
+                emitted = safeEnd;
+            }
+            textNanos += System.nanoTime() - start;
+            return !stopped && ++accepted < options.tokens;
+        }
+
+        @Override
+        public void stop(String reason) {
+            stopped = true;
+        }
+
+        /**
+         * Build the textDelta event as the plugin does, then stand in for the bridge call
+         */
+        private void emit(int start, int end) {
+            event.setLength(0);
+            event.append("{\"requestId\":\"bench\",\"delta\":\"");
+            for (int i = start; i < end; i++) {
+                char ch = text.charAt(i);
+                if (ch == '"' || ch == '\\') {
+                    event.append('\\');
+                }
+                event.append(ch);
+            }
+            event.append("\"}");
+            spin(options.emitMicros * 1_000L);
+        }
+    }
+
+    /**
+     * Random lowercase words with a leading word-boundary marker, plus the usual special tokens
+     */
+    private static StreamingDetokenizer.Vocabulary syntheticVocabulary(int size, long seed) {
+        Random random = new Random(seed);
+        Map<String, Integer> pieces = new HashMap<>();
+        pieces.put("<pad>", 0);
+        pieces.put("<eos>", 1);
+        pieces.put("<bos>", 2);
+        pieces.put("<unk>", 3);
+        for (int id = 4; id < size; id++) {
+            StringBuilder piece = new StringBuilder(random.nextInt(4) == 0 ? "" : "\u2581");
+            int length = 2 + random.nextInt(6);
+            for (int i = 0; i < length; i++) {
+                piece.append((char) ('a' + random.nextInt(26)));
+            }
+            piece.append('#').append(id); // keep pieces distinct
+            pieces.put(piece.toString(), id);
+        }
+        return StreamingDetokenizer.Vocabulary.fromPieces(pieces, size);
+    }
+
+    private static void spin(long nanos) {
+        long end = System.nanoTime() + nanos;
+        while (System.nanoTime() < end) {
+            // busy, as the decode thread is inside session.run
+        }
+    }
+
+    private static double median(List<Double> samples) {
+        List<Double> sorted = new ArrayList<>(samples);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+
+    static class Options {
+        String model;
+        int tokens = 128;
+        int runs = 8;
+        int promptTokens = 16;
+        double stepMs = 2.0;
+        int emitMicros = 150;
+        int vocabSize = 32000;
+        int eosToken = 1;
+        int threads = 4;
+        int kvHeads = 1;
+        int headDim = 256;
+        long seed = 42;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--model": options.model = value; break;
+                    case "--tokens": options.tokens = Integer.parseInt(value); break;
+                    case "--runs": options.runs = Integer.parseInt(value); break;
+                    case "--prompt-tokens": options.promptTokens = Integer.parseInt(value); break;
+                    case "--step-ms": options.stepMs = Double.parseDouble(value); break;
+                    case "--emit-us": options.emitMicros = Integer.parseInt(value); break;
+                    case "--vocab-size": options.vocabSize = Integer.parseInt(value); break;
+                    case "--eos": options.eosToken = Integer.parseInt(value); break;
+                    case "--threads": options.threads = Integer.parseInt(value); break;
+                    case "--kv-heads": options.kvHeads = Integer.parseInt(value); break;
+                    case "--head-dim": options.headDim = Integer.parseInt(value); break;
+                    case "--seed": options.seed = Long.parseLong(value); break;
+                    default: throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (args.length % 2 != 0 || options.tokens < 2 || options.runs < 1 || options.vocabSize <= 4) {
+                throw new IllegalArgumentException("Usage: PipelineBenchmark [--model <onnx>] [--tokens 128] [--runs 8]"
+                    + " [--prompt-tokens 16] [--step-ms 2] [--emit-us 150] [--vocab-size n] [--eos id] [--threads 4]"
+                    + " [--kv-heads n] [--head-dim n] [--seed 42]");
+            }
+            return options;
+        }
+    }
+}
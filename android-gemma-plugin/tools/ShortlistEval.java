@@ -0,0 +1,244 @@
+package com.lifelight.gemma.tools;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import com.lifelight.gemma.DecoderState;
+import com.lifelight.gemma.GemmaDecoder;
+import com.lifelight.gemma.TokenSampler;
+import com.lifelight.gemma.TokenShortlist;
+
+import java.io.FileReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures what a token shortlist costs in quality and saves in decode time.
+ * The same prompts are decoded greedily over the full vocabulary and over the
+ * shortlist, and the tool prints per-step latency for both plus:
+ *
+ *   top-1 agreement  full-vocabulary argmax steps that are on the shortlist
+ *   coverage         softmax mass the full logits put on the shortlist
+ *   sequence match   shortlist runs that produced the full run's tokens exactly
+ *
+ * Without --shortlist-model both paths share one graph and the shortlist path
+ * gathers its logits after the run, which saves only the sampling: the full
+ * lm_head still runs and its row is still copied out. Pass the export with the
+ * pruned lm_head as --shortlist-model to time the saving that matters.
+ *
+ *   javac -cp onnxruntime-1.16.3.jar -d out \
+ *       android-gemma-plugin/{GemmaDecoder,DecoderState,TokenSampler,TokenShortlist,Tracer}.java \
+ *       android-gemma-plugin/tools/ShortlistEval.java
+ *   java -cp out:onnxruntime-1.16.3.jar com.lifelight.gemma.tools.ShortlistEval \
+ *       --model tiny-gemma.onnx --shortlist medical-shortlist.txt --prompts 16 --steps 32
+ *
+ * Prompts are random token IDs drawn from the shortlist, standing in for
+ * in-domain text.
+ */
+public class ShortlistEval {
+
+    /**
+     * One greedy decode: tokens, per-step time and, for the full path, the logits rows
+     */
+    static class Run {
+        final int[] tokens;
+        final List<float[]> logits = new ArrayList<>();
+        long prefillNanos;
+        long decodeNanos;
+        int steps;
+
+        Run(int steps) {
+            this.tokens = new int[steps];
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        TokenShortlist shortlist;
+        try (Reader reader = new FileReader(options.shortlist)) {
+            shortlist = TokenShortlist.parse(reader).with(options.eosToken);
+        }
+
+        OrtEnvironment environment = OrtEnvironment.getEnvironment();
+        try (OrtSession.SessionOptions sessionOptions = new OrtSession.SessionOptions()) {
+            sessionOptions.setIntraOpNumThreads(options.threads);
+            sessionOptions.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.ALL_OPT);
+            try (OrtSession session = environment.createSession(options.model, sessionOptions);
+                 OrtSession shortlistSession = options.shortlistModel != null
+                     ? environment.createSession(options.shortlistModel, sessionOptions) : null) {
+                GemmaDecoder full = new GemmaDecoder(environment, session, options.kvHeads, options.headDim);
+                GemmaDecoder restricted = new GemmaDecoder(environment,
+                    shortlistSession != null ? shortlistSession : session, options.kvHeads, options.headDim);
+                restricted.setShortlist(shortlist);
+                evaluate(full, restricted, shortlist, options);
+            }
+        }
+    }
+
+    private static void evaluate(GemmaDecoder full, GemmaDecoder restricted, TokenShortlist shortlist,
+                                 Options options) throws OrtException {
+        System.out.println(String.format(Locale.US, "Shortlist of %d tokens in %d runs; %d prompts of %d tokens, %d steps, %s",
+            shortlist.size(), shortlist.getRunCount(), options.prompts, options.promptTokens, options.steps,
+            options.shortlistModel != null ? "pruned lm_head graph" : "post-run gather"));
+
+        Random random = new Random(options.seed);
+        List<int[]> prompts = new ArrayList<>();
+        for (int p = 0; p < options.prompts; p++) {
+            int[] prompt = new int[options.promptTokens];
+            for (int i = 0; i < prompt.length; i++) {
+                prompt[i] = shortlist.tokenAt(random.nextInt(shortlist.size()));
+            }
+            prompts.add(prompt);
+        }
+
+        // One untimed pass each so session warm-up and JIT do not land in the numbers
+        decode(full, prompts.get(0), options.steps, options.eosToken, false);
+        decode(restricted, prompts.get(0), options.steps, options.eosToken, false);
+
+        List<Double> fullStepMs = new ArrayList<>();
+        List<Double> shortlistStepMs = new ArrayList<>();
+        long agreeing = 0;
+        long compared = 0;
+        double coverage = 0;
+        int matches = 0;
+        double matchedPrefix = 0;
+        for (int[] prompt : prompts) {
+            Run reference = decode(full, prompt, options.steps, options.eosToken, true);
+            Run candidate = decode(restricted, prompt, options.steps, options.eosToken, false);
+            fullStepMs.add(reference.decodeNanos / 1e6 / Math.max(1, reference.steps));
+            shortlistStepMs.add(candidate.decodeNanos / 1e6 / Math.max(1, candidate.steps));
+
+            for (float[] row : reference.logits) {
+                if (argmax(row) == restrictedArgmax(row, shortlist)) {
+                    agreeing++;
+                }
+                coverage += shortlist.coverage(row, 1f);
+                compared++;
+            }
+
+            int prefix = 0;
+            while (prefix < reference.steps && prefix < candidate.steps
+                    && reference.tokens[prefix] == candidate.tokens[prefix]) {
+                prefix++;
+            }
+            if (prefix == reference.steps && prefix == candidate.steps) {
+                matches++;
+            }
+            matchedPrefix += (double) prefix / Math.max(1, reference.steps);
+        }
+
+        double fullMs = median(fullStepMs);
+        double shortlistMs = median(shortlistStepMs);
+        System.out.println(String.format(Locale.US, "step ms       full %.2f  shortlist %.2f  speedup %.2fx",
+            fullMs, shortlistMs, fullMs / shortlistMs));
+        System.out.println(String.format(Locale.US, "top-1         %.1f%% of %d steps on the shortlist",
+            100.0 * agreeing / Math.max(1, compared), compared));
+        System.out.println(String.format(Locale.US, "coverage      %.1f%% mean probability mass",
+            100.0 * coverage / Math.max(1, compared)));
+        System.out.println(String.format(Locale.US, "sequences     %d of %d identical, %.1f%% mean matching prefix",
+            matches, prompts.size(), 100.0 * matchedPrefix / prompts.size()));
+    }
+
+    /**
+     * Greedy decode, timing prefill and steps separately; stops early at end-of-sequence
+     */
+    private static Run decode(GemmaDecoder decoder, int[] prompt, int steps, int eosToken, boolean keepLogits)
+            throws OrtException {
+        Run run = new Run(steps);
+        try (DecoderState state = decoder.newState()) {
+            long start = System.nanoTime();
+            float[] logits = decoder.prefill(state, prompt, null);
+            run.prefillNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            while (run.steps < steps) {
+                if (keepLogits) {
+                    run.logits.add(logits);
+                }
+                int token = TokenSampler.sample(logits, 0, null, decoder.getShortlist());
+                run.tokens[run.steps++] = token;
+                if (token == eosToken || run.steps == steps) {
+                    break;
+                }
+                logits = decoder.step(state, token, null);
+            }
+            run.decodeNanos = System.nanoTime() - start;
+        }
+        return run;
+    }
+
+    private static int argmax(float[] row) {
+        int best = 0;
+        for (int i = 1; i < row.length; i++) {
+            if (row[i] > row[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The token greedy decoding would pick from a full row if it could only choose shortlisted tokens
+     */
+    private static int restrictedArgmax(float[] row, TokenShortlist shortlist) {
+        int best = shortlist.tokenAt(0);
+        for (int i = 1; i < shortlist.size(); i++) {
+            int token = shortlist.tokenAt(i);
+            if (row[token] > row[best]) {
+                best = token;
+            }
+        }
+        return best;
+    }
+
+    private static double median(List<Double> samples) {
+        List<Double> sorted = new ArrayList<>(samples);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+
+    static class Options {
+        String model;
+        String shortlist;
+        String shortlistModel;
+        int prompts = 16;
+        int promptTokens = 32;
+        int steps = 32;
+        int threads = 4;
+        int eosToken = 1;
+        int kvHeads = 1;
+        int headDim = 256;
+        long seed = 42;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--model": options.model = value; break;
+                    case "--shortlist": options.shortlist = value; break;
+                    case "--shortlist-model": options.shortlistModel = value; break;
+                    case "--prompts": options.prompts = Integer.parseInt(value); break;
+                    case "--prompt-tokens": options.promptTokens = Integer.parseInt(value); break;
+                    case "--steps": options.steps = Integer.parseInt(value); break;
+                    case "--threads": options.threads = Integer.parseInt(value); break;
+                    case "--eos": options.eosToken = Integer.parseInt(value); break;
+                    case "--kv-heads": options.kvHeads = Integer.parseInt(value); break;
+                    case "--head-dim": options.headDim = Integer.parseInt(value); break;
+                    case "--seed": options.seed = Long.parseLong(value); break;
+                    default: throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (options.model == null || options.shortlist == null || options.prompts < 1 || options.steps < 1) {
+                throw new IllegalArgumentException("Usage: ShortlistEval --model <onnx> --shortlist <file>"
+                    + " [--shortlist-model <onnx>] [--prompts 16] [--prompt-tokens 32] [--steps 32] [--threads 4]"
+                    + " [--eos id] [--kv-heads n] [--head-dim n] [--seed 42]");
+            }
+            return options;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.lifelight.gemma.tools;
+
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import com.lifelight.gemma.DecodeScheduler;
+import com.lifelight.gemma.DecoderState;
+import com.lifelight.gemma.GemmaDecoder;
+import com.lifelight.gemma.TokenSampler;
+import com.lifelight.gemma.TokenShortlist;
+import com.lifelight.gemma.WorkloadTrace;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Headless load generator that replays a recorded workload against the
+ * inference engine (GemmaDecoder on the DecodeScheduler) and prints
+ * throughput plus TTFT, inter-token and end-to-end latency percentiles.
+ *
+ * Needs only the JDK and the onnxruntime jar, so it runs on a Linux box
+ * against a small test model:
+ *
+ *   javac -cp onnxruntime-1.16.3.jar -d out \
+ *       android-gemma-plugin/{GemmaDecoder,DecoderState,DecodeScheduler,TokenSampler,TokenShortlist,Tracer,WorkloadTrace}.java \
+ *       android-gemma-plugin/tools/WorkloadReplay.java
+ *   java -cp out:onnxruntime-1.16.3.jar com.lifelight.gemma.tools.WorkloadReplay \
+ *       --model tiny-gemma.onnx --workload gemma-workload.tsv --speed 4 --concurrency 4
+ *
+ * Prompts are random token IDs of the recorded lengths, since recordings hold
+ * no text. Batch entries are replayed as that many concurrent requests of
+ * prefix plus suffix length. --shortlist decodes over a token shortlist file,
+ * as the app does when token_shortlist_path is configured.
+ */
+public class WorkloadReplay {
+
+    private final GemmaDecoder decoder;
+    private final DecodeScheduler scheduler;
+    private final int vocabSize;
+    private final int eosToken;
+    private final int chunkSize;
+    private final int maxTokensCap;
+
+    private final List<Double> ttftMs = Collections.synchronizedList(new ArrayList<>());
+    private final List<Double> interTokenMs = Collections.synchronizedList(new ArrayList<>());
+    private final List<Double> endToEndMs = Collections.synchronizedList(new ArrayList<>());
+    private long tokensGenerated = 0;
+    private int failures = 0;
+
+    WorkloadReplay(OrtEnvironment environment, OrtSession session, Options options) throws OrtException, IOException {
+        this.decoder = new GemmaDecoder(environment, session, options.kvHeads, options.headDim);
+        if (options.shortlist != null) {
+            try (Reader reader = new FileReader(options.shortlist)) {
+                decoder.setShortlist(TokenShortlist.parse(reader).with(options.eosToken));
+            }
+        }
+        this.scheduler = new DecodeScheduler("replay-decode");
+        this.vocabSize = options.vocabSize;
+        this.eosToken = options.eosToken;
+        this.chunkSize = options.chunkTokens > 0 && decoder.hasKvCache() ? options.chunkTokens : Integer.MAX_VALUE;
+        this.maxTokensCap = options.maxTokensCap;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        List<WorkloadTrace.Entry> entries = WorkloadTrace.read(new File(options.workload));
+        if (entries.isEmpty()) {
+            System.err.println("Workload is empty");
+            return;
+        }
+
+        OrtEnvironment environment = OrtEnvironment.getEnvironment();
+        try (OrtSession.SessionOptions sessionOptions = new OrtSession.SessionOptions()) {
+            sessionOptions.setIntraOpNumThreads(options.threads);
+            sessionOptions.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.ALL_OPT);
+            try (OrtSession session = environment.createSession(options.model, sessionOptions)) {
+                WorkloadReplay replay = new WorkloadReplay(environment, session, options);
+                replay.run(entries, options);
+            }
+        }
+    }
+
+    /**
+     * Submit every entry at its (scaled) arrival time, bounded by the concurrency limit
+     */
+    void run(List<WorkloadTrace.Entry> entries, Options options) throws InterruptedException {
+        List<Request> requests = new ArrayList<>();
+        Random random = new Random(options.seed);
+        for (WorkloadTrace.Entry entry : entries) {
+            for (int i = 0; i < Math.max(1, entry.batchSize); i++) {
+                requests.add(new Request(entry, random.nextLong()));
+            }
+        }
+
+        TokenShortlist shortlist = decoder.getShortlist();
+        System.out.println(String.format(Locale.US, "Replaying %d requests (%d recorded) at %s, concurrency %d, %s, %s",
+            requests.size(), entries.size(), options.speed > 0 ? options.speed + "x" : "max rate",
+            options.concurrency, decoder.hasKvCache() ? "KV cache" : "full recompute",
+            shortlist != null ? shortlist.size() + "-token shortlist" : "full vocabulary"));
+
+        Semaphore slots = new Semaphore(options.concurrency);
+        CountDownLatch done = new CountDownLatch(requests.size());
+        ScheduledExecutorService arrivals = Executors.newSingleThreadScheduledExecutor();
+        long start = System.nanoTime();
+
+        for (Request request : requests) {
+            long delayMs = options.speed > 0 ? (long) (request.entry.offsetMs / options.speed) : 0;
+            arrivals.schedule(() -> submit(request, slots, done), delayMs, TimeUnit.MILLISECONDS);
+        }
+
+        done.await();
+        double wallSeconds = (System.nanoTime() - start) / 1e9;
+        arrivals.shutdown();
+        scheduler.shutdown();
+        report(requests.size(), wallSeconds);
+    }
+
+    private void submit(Request request, Semaphore slots, CountDownLatch done) {
+        slots.acquireUninterruptibly();
+        ReplayTask task = new ReplayTask(request);
+        scheduler.submit(task).whenComplete((ignored, failure) -> {
+            if (failure != null) {
+                synchronized (this) {
+                    failures++;
+                }
+                System.err.println("Request failed: " + failure);
+            } else {
+                task.recordLatencies();
+            }
+            slots.release();
+            done.countDown();
+        });
+    }
+
+    private void report(int requestCount, double wallSeconds) {
+        System.out.println(String.format(Locale.US, "requests      %d (%d failed) in %.2fs", requestCount, failures, wallSeconds));
+        System.out.println(String.format(Locale.US, "throughput    %.2f req/s, %.1f tokens/s",
+            (requestCount - failures) / wallSeconds, tokensGenerated / wallSeconds));
+        printPercentiles("ttft ms", ttftMs);
+        printPercentiles("itl ms", interTokenMs);
+        printPercentiles("e2e ms", endToEndMs);
+    }
+
+    private static void printPercentiles(String label, List<Double> samples) {
+        List<Double> sorted = new ArrayList<>(samples);
+        Collections.sort(sorted);
+        if (sorted.isEmpty()) {
+            System.out.println(String.format(Locale.US, "%-13s no samples", label));
+            return;
+        }
+        System.out.println(String.format(Locale.US, "%-13s p50 %.1f  p90 %.1f  p99 %.1f  max %.1f", label,
+            percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), sorted.get(sorted.size() - 1)));
+    }
+
+    private static double percentile(List<Double> sorted, double p) {
+        int index = (int) Math.ceil(p / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+
+    private class Request {
+        final WorkloadTrace.Entry entry;
+        final int[] prompt;
+        final Random random;
+
+        Request(WorkloadTrace.Entry entry, long seed) {
+            this.entry = entry;
+            this.random = new Random(seed);
+            int length = Math.max(1, entry.promptTokens + entry.suffixTokens);
+            this.prompt = new int[length];
+            for (int i = 0; i < length; i++) {
+                // Skip the low IDs where special tokens usually live
+                prompt[i] = 4 + random.nextInt(Math.max(1, vocabSize - 4));
+            }
+        }
+    }
+
+    /**
+     * Chunked prefill then sampled decode, timestamping every generated token
+     */
+    private class ReplayTask implements DecodeScheduler.Task {
+        private final Request request;
+        private final DecoderState state = decoder.newState();
+        private final int maxTokens;
+        private final long submitted = System.nanoTime();
+        private final long[] tokenTimes;
+        private int generated = 0;
+        private int[] pending;
+        private int offset = 0;
+
+        ReplayTask(Request request) {
+            this.request = request;
+            this.maxTokens = Math.max(1, Math.min(request.entry.maxTokens, maxTokensCap));
+            this.tokenTimes = new long[maxTokens];
+            this.pending = request.prompt;
+        }
+
+        @Override
+        public boolean step() throws OrtException {
+            int end = Math.min(pending.length, offset + chunkSize);
+            int[] chunk = Arrays.copyOfRange(pending, offset, end);
+            offset = end;
+            if (offset < pending.length) {
+                decoder.extend(state, chunk, null);
+                return false;
+            }
+            float[] logits = decoder.prefill(state, chunk, null);
+
+            int token = TokenSampler.sample(logits, request.entry.temperature, request.random, decoder.getShortlist());
+            tokenTimes[generated++] = System.nanoTime();
+            if (token == eosToken || generated >= maxTokens) {
+                return true;
+            }
+            pending = new int[] {token};
+            offset = 0;
+            return false;
+        }
+
+        @Override
+        public void release() {
+            state.close();
+        }
+
+        void recordLatencies() {
+            ttftMs.add((tokenTimes[0] - submitted) / 1e6);
+            for (int i = 1; i < generated; i++) {
+                interTokenMs.add((tokenTimes[i] - tokenTimes[i - 1]) / 1e6);
+            }
+            endToEndMs.add((tokenTimes[generated - 1] - submitted) / 1e6);
+            synchronized (WorkloadReplay.this) {
+                tokensGenerated += generated;
+            }
+        }
+    }
+
+    static class Options {
+        String model;
+        String workload;
+        String shortlist;
+        double speed = 1.0; // 0 = submit everything at once
+        int concurrency = 4;
+        int threads = 4;
+        int vocabSize = 256000;
+        int eosToken = 1;
+        int kvHeads = 1;
+        int headDim = 256;
+        int chunkTokens = 128;
+        int maxTokensCap = 256;
+        long seed = 42;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--model": options.model = value; break;
+                    case "--workload": options.workload = value; break;
+                    case "--shortlist": options.shortlist = value; break;
+                    case "--speed": options.speed = Double.parseDouble(value); break;
+                    case "--concurrency": options.concurrency = Integer.parseInt(value); break;
+                    case "--threads": options.threads = Integer.parseInt(value); break;
+                    case "--vocab-size": options.vocabSize = Integer.parseInt(value); break;
+                    case "--eos": options.eosToken = Integer.parseInt(value); break;
+                    case "--kv-heads": options.kvHeads = Integer.parseInt(value); break;
+                    case "--head-dim": options.headDim = Integer.parseInt(value); break;
+                    case "--chunk": options.chunkTokens = Integer.parseInt(value); break;
+                    case "--max-tokens": options.maxTokensCap = Integer.parseInt(value); break;
+                    case "--seed": options.seed = Long.parseLong(value); break;
+                    default: throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (options.model == null || options.workload == null) {
+                throw new IllegalArgumentException("Usage: WorkloadReplay --model <onnx> --workload <tsv> [--speed 1]"
+                    + " [--concurrency 4] [--threads 4] [--vocab-size n] [--eos id] [--kv-heads n] [--head-dim n]"
+                    + " [--chunk 128] [--max-tokens 256] [--seed 42] [--shortlist <file>]");
+            }
+            return options;
+        }
+    }
+}
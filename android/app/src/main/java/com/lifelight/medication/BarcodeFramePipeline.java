@@ -0,0 +1,368 @@
+package com.lifelight.medication;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.ReaderException;
+import com.google.zxing.Result;
+import com.google.zxing.common.HybridBinarizer;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Decodes camera frames on one worker thread, keeping only the newest frame
+ * A frame arriving while the worker is busy replaces the one waiting, and the
+ * replaced buffer goes straight back to the camera, so decoding never falls
+ * behind the preview. Frames are NV21 (or any format whose first plane is
+ * luminance). The region of interest is copied into one reused buffer, or read
+ * in place when it starts at the frame's first row and spans its width, so the
+ * luminance is never allocated per frame; HybridBinarizer still allocates its
+ * bit matrix for each one. A decoded NDC is looked up before the listener hears
+ * about it. A frame that fails to decode, or whose result the listener throws on,
+ * is counted and reported to the listener and the worker moves on; anything worse
+ * stops the pipeline.
+ */
+public class BarcodeFramePipeline {
+
+    // The same code seen again within this window is not reported twice
+    private static final long REPEAT_WINDOW_NS = 2_000_000_000L;
+
+    /**
+     * Takes back a frame buffer once the pipeline is done with it
+     */
+    public interface BufferRecycler {
+        void recycle(byte[] buffer);
+    }
+
+    public interface Listener {
+        void onScanned(ScanResult result);
+
+        /**
+         * A frame was skipped because decoding it or reporting its result threw
+         * @param failures frames skipped so far, this one included
+         */
+        default void onFrameFailed(RuntimeException error, long failures) {
+        }
+    }
+
+    /**
+     * A decoded barcode
+     */
+    public static class ScanResult {
+        public String text;
+        public String format;
+        public String ndc; // null if the code carries no NDC
+        public MedicationLookup.Medication medication; // null if the NDC is not known
+        public long decodeNanos;
+    }
+
+    /**
+     * Frame counts and decode time
+     */
+    public static class Stats {
+        public long framesOffered;
+        public long framesDropped;
+        public long framesDecoded;
+        public long barcodesFound;
+        public long framesFailed;
+        public double averageDecodeMs;
+        public boolean running; // false once stopped, or if the worker died
+    }
+
+    private final MedicationLookup lookup;
+    private final Listener listener;
+    private final BufferRecycler recycler;
+    private final MultiFormatReader reader = new MultiFormatReader();
+    private final Object lock = new Object();
+    private byte[] cropBuffer = new byte[0]; // reused by decode()
+
+    // Latest waiting frame; guarded by lock
+    private byte[] pending;
+    private int pendingWidth;
+    private int pendingHeight;
+    private boolean running = false;
+    private Thread worker;
+
+    // Region of interest as fractions of the frame
+    private volatile float roiLeft = 0f;
+    private volatile float roiTop = 0f;
+    private volatile float roiRight = 1f;
+    private volatile float roiBottom = 1f;
+
+    private long framesOffered = 0;
+    private long framesDropped = 0;
+    private volatile long framesDecoded = 0;
+    private volatile long barcodesFound = 0;
+    private volatile long decodeNanos = 0;
+    private volatile long framesFailed = 0;
+    private String lastText;
+    private long lastSeenAt;
+
+    public BarcodeFramePipeline(MedicationLookup lookup, Listener listener, BufferRecycler recycler) {
+        this.lookup = lookup;
+        this.listener = listener;
+        this.recycler = recycler;
+
+        // Only the symbologies found on medication packaging; fewer readers, faster misses
+        Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+        hints.put(DecodeHintType.POSSIBLE_FORMATS, Arrays.asList(BarcodeFormat.UPC_A, BarcodeFormat.UPC_E,
+            BarcodeFormat.EAN_13, BarcodeFormat.CODE_128, BarcodeFormat.DATA_MATRIX));
+        reader.setHints(hints);
+    }
+
+    /**
+     * Limit decoding to part of the frame, given as fractions of its width and height
+     */
+    public void setRegionOfInterest(float left, float top, float right, float bottom) {
+        if (!isValidRegion(left, top, right, bottom)) {
+            throw new IllegalArgumentException("Invalid region of interest");
+        }
+        roiLeft = left;
+        roiTop = top;
+        roiRight = right;
+        roiBottom = bottom;
+    }
+
+    /**
+     * Whether the fractions describe a non-empty region inside the frame
+     */
+    public static boolean isValidRegion(float left, float top, float right, float bottom) {
+        return left >= 0 && top >= 0 && right <= 1 && bottom <= 1 && left < right && top < bottom;
+    }
+
+    public void start() {
+        synchronized (lock) {
+            if (running) {
+                return;
+            }
+            running = true;
+            worker = new Thread(this::runLoop, "barcode-decode");
+            worker.start();
+        }
+    }
+
+    /**
+     * Stop the worker and hand back any waiting frame
+     */
+    public void stop() {
+        Thread stopping;
+        synchronized (lock) {
+            running = false;
+            stopping = worker;
+            worker = null;
+            if (pending != null) {
+                recycler.recycle(pending);
+                pending = null;
+            }
+            lock.notifyAll();
+        }
+        if (stopping != null && stopping != Thread.currentThread()) {
+            try {
+                stopping.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Hand over a frame; the buffer belongs to the pipeline until it is recycled
+     */
+    public void offer(byte[] frame, int width, int height) {
+        byte[] dropped = null;
+        synchronized (lock) {
+            if (!running) {
+                dropped = frame;
+            } else {
+                framesOffered++;
+                if (pending != null) {
+                    dropped = pending;
+                    framesDropped++;
+                }
+                pending = frame;
+                pendingWidth = width;
+                pendingHeight = height;
+                lock.notifyAll();
+            }
+        }
+        if (dropped != null) {
+            recycler.recycle(dropped);
+        }
+    }
+
+    private void runLoop() {
+        try {
+            while (true) {
+                byte[] frame;
+                int width;
+                int height;
+                synchronized (lock) {
+                    while (pending == null && running) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (!running) {
+                        return;
+                    }
+                    frame = pending;
+                    width = pendingWidth;
+                    height = pendingHeight;
+                    pending = null;
+                }
+
+                try {
+                    process(frame, width, height);
+                } catch (RuntimeException e) {
+                    // One bad frame or listener call must not end scanning
+                    framesFailed++;
+                    reportFailure(e);
+                }
+            }
+        } finally {
+            // Whatever ended the loop, stop taking frames rather than queue them for no one
+            synchronized (lock) {
+                if (worker == Thread.currentThread()) {
+                    running = false;
+                    worker = null;
+                    if (pending != null) {
+                        recycler.recycle(pending);
+                        pending = null;
+                    }
+                }
+            }
+        }
+    }
+
+    private void process(byte[] frame, int width, int height) {
+        Result result;
+        long start = System.nanoTime();
+        try {
+            result = decode(frame, width, height);
+        } finally {
+            recycler.recycle(frame);
+        }
+        long elapsed = System.nanoTime() - start;
+        decodeNanos += elapsed;
+        framesDecoded++;
+
+        if (result != null && !isRepeat(result.getText(), start)) {
+            barcodesFound++;
+            listener.onScanned(toScanResult(result, elapsed));
+        }
+    }
+
+    private void reportFailure(RuntimeException error) {
+        try {
+            listener.onFrameFailed(error, framesFailed);
+        } catch (RuntimeException ignored) {
+            // Already failing; the count in getStats() still shows it
+        }
+    }
+
+    /**
+     * Decode the region of interest of one frame, or null if no barcode is found.
+     * Also used directly by the benchmark, bypassing the worker; calls must not
+     * overlap, since they share the crop buffer.
+     */
+    public Result decode(byte[] frame, int width, int height) {
+        int left = (int) (roiLeft * width);
+        int top = (int) (roiTop * height);
+        int cropWidth = Math.max(1, (int) (roiRight * width) - left);
+        int cropHeight = Math.max(1, (int) (roiBottom * height) - top);
+        if (frame.length < width * height || left + cropWidth > width || top + cropHeight > height) {
+            throw new IllegalArgumentException("Frame is smaller than " + width + "x" + height);
+        }
+        byte[] luminance;
+        if (left == 0 && top == 0 && cropWidth == width) {
+            luminance = frame; // the crop is the start of the luminance plane
+        } else {
+            if (cropBuffer.length < cropWidth * cropHeight) {
+                cropBuffer = new byte[cropWidth * cropHeight];
+            }
+            luminance = cropBuffer;
+            for (int y = 0; y < cropHeight; y++) {
+                System.arraycopy(frame, (top + y) * width + left, luminance, y * cropWidth, cropWidth);
+            }
+        }
+        CropLuminanceSource source = new CropLuminanceSource(luminance, cropWidth, cropHeight);
+        try {
+            return reader.decodeWithState(new BinaryBitmap(new HybridBinarizer(source)));
+        } catch (ReaderException e) {
+            return null;
+        } finally {
+            reader.reset();
+        }
+    }
+
+    /**
+     * Build the result for a decoded barcode, looking up the NDC it carries
+     */
+    public ScanResult toScanResult(Result result, long elapsedNanos) {
+        ScanResult scan = new ScanResult();
+        scan.text = result.getText();
+        scan.format = result.getBarcodeFormat().name();
+        scan.ndc = MedicationLookup.ndcFromBarcode(scan.text);
+        scan.medication = scan.ndc != null ? lookup.find(scan.ndc) : null;
+        scan.decodeNanos = elapsedNanos;
+        return scan;
+    }
+
+    private boolean isRepeat(String text, long now) {
+        boolean repeat = text.equals(lastText) && now - lastSeenAt < REPEAT_WINDOW_NS;
+        lastText = text;
+        lastSeenAt = now;
+        return repeat;
+    }
+
+    /**
+     * A luminance plane laid out row after row from the start of its array, which
+     * may be longer; getMatrix() hands out the array itself rather than a copy
+     */
+    private static class CropLuminanceSource extends LuminanceSource {
+        private final byte[] luminance;
+
+        CropLuminanceSource(byte[] luminance, int width, int height) {
+            super(width, height);
+            this.luminance = luminance;
+        }
+
+        @Override
+        public byte[] getRow(int y, byte[] row) {
+            if (y < 0 || y >= getHeight()) {
+                throw new IllegalArgumentException("Requested row is outside the image: " + y);
+            }
+            int width = getWidth();
+            if (row == null || row.length < width) {
+                row = new byte[width];
+            }
+            System.arraycopy(luminance, y * width, row, 0, width);
+            return row;
+        }
+
+        @Override
+        public byte[] getMatrix() {
+            return luminance;
+        }
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        synchronized (lock) {
+            stats.framesOffered = framesOffered;
+            stats.framesDropped = framesDropped;
+            stats.running = running;
+        }
+        stats.framesDecoded = framesDecoded;
+        stats.barcodesFound = barcodesFound;
+        stats.framesFailed = framesFailed;
+        stats.averageDecodeMs = framesDecoded > 0 ? decodeNanos / 1_000_000.0 / framesDecoded : 0;
+        return stats;
+    }
+}
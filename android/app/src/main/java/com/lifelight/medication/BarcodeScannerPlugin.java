@@ -0,0 +1,273 @@
+package com.lifelight.medication;
+
+import android.Manifest;
+import android.content.pm.PackageManager;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.getcapacitor.JSArray;
+import com.getcapacitor.JSObject;
+import com.getcapacitor.Plugin;
+import com.getcapacitor.PluginCall;
+import com.getcapacitor.PluginMethod;
+import com.getcapacitor.annotation.CapacitorPlugin;
+
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Capacitor plugin for native medication barcode scanning
+ * Preview frames land in a small set of reused buffers and go through
+ * BarcodeFramePipeline, which decodes the newest one and returns the rest;
+ * each decoded code is sent as a barcodeScanned event with its NDC and, when
+ * the web layer has cached it, the matching medication.
+ */
+@CapacitorPlugin(name = "BarcodeScanner")
+public class BarcodeScannerPlugin extends Plugin {
+
+    private static final String TAG = "BarcodeScannerPlugin";
+    // One frame filling, one waiting and one decoding
+    private static final int FRAME_BUFFERS = 3;
+    private static final int TARGET_PREVIEW_WIDTH = 1280;
+    private static final int LOOKUP_CACHE_SIZE = 512;
+
+    private final MedicationLookup lookup = new MedicationLookup(LOOKUP_CACHE_SIZE, null);
+    // The legacy camera API on purpose: setPreviewCallbackWithBuffer fills the plugin's own
+    // NV21 buffers, which the pipeline decodes in place and hands back. ImageReader and
+    // CameraX hand out strided Image planes, costing a copy per frame into such a buffer.
+    @SuppressWarnings("deprecation")
+    private Camera camera;
+    private SurfaceTexture previewTexture;
+    private Handler cameraHandler;
+    private BarcodeFramePipeline pipeline;
+
+    private final BarcodeFramePipeline.Listener scanListener = new BarcodeFramePipeline.Listener() {
+        @Override
+        public void onScanned(BarcodeFramePipeline.ScanResult result) {
+            BarcodeScannerPlugin.this.onScanned(result);
+        }
+
+        @Override
+        public void onFrameFailed(RuntimeException error, long failures) {
+            // A bad preview size fails every frame; log the 1st, 2nd, 4th, 8th, ...
+            if (Long.bitCount(failures) == 1) {
+                Log.w(TAG, "Skipped frame (" + failures + " so far)", error);
+            }
+        }
+    };
+
+    /**
+     * Open the back camera and start decoding; roi limits decoding to part of the frame
+     */
+    @PluginMethod
+    @SuppressWarnings("deprecation")
+    public void startScan(PluginCall call) {
+        if (getContext().checkSelfPermission(Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
+            call.reject("Camera permission not granted");
+            return;
+        }
+        if (camera != null) {
+            call.reject("Scan already running");
+            return;
+        }
+
+        // Checked before the camera is opened, so a bad argument never holds it
+        float[] region = {0, 0, 1, 1};
+        JSObject roi = call.getObject("roi");
+        if (roi != null) {
+            region = new float[] {(float) roi.optDouble("left", 0), (float) roi.optDouble("top", 0),
+                (float) roi.optDouble("right", 1), (float) roi.optDouble("bottom", 1)};
+            if (!BarcodeFramePipeline.isValidRegion(region[0], region[1], region[2], region[3])) {
+                call.reject("Invalid region of interest");
+                return;
+            }
+        }
+
+        try {
+            Camera opened = Camera.open(backCameraId());
+            // Held in the field from here, so a failure below releases it
+            camera = opened;
+            Camera.Parameters parameters = opened.getParameters();
+            Camera.Size size = choosePreviewSize(parameters.getSupportedPreviewSizes());
+            parameters.setPreviewSize(size.width, size.height);
+            parameters.setPreviewFormat(ImageFormat.NV21);
+            if (parameters.getSupportedFocusModes().contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE)) {
+                parameters.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
+            }
+            opened.setParameters(parameters);
+
+            // Callbacks arrive on this thread's looper; buffers must be returned on it too
+            Looper looper = Looper.myLooper() != null ? Looper.myLooper() : Looper.getMainLooper();
+            cameraHandler = new Handler(looper);
+            pipeline = new BarcodeFramePipeline(lookup, scanListener, buffer -> cameraHandler.post(() -> {
+                if (camera == opened) {
+                    opened.addCallbackBuffer(buffer);
+                }
+            }));
+            pipeline.setRegionOfInterest(region[0], region[1], region[2], region[3]);
+
+            int frameBytes = size.width * size.height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+            for (int i = 0; i < FRAME_BUFFERS; i++) {
+                opened.addCallbackBuffer(new byte[frameBytes]);
+            }
+            final int width = size.width;
+            final int height = size.height;
+            final BarcodeFramePipeline framePipeline = pipeline;
+            opened.setPreviewCallbackWithBuffer((data, source) -> framePipeline.offer(data, width, height));
+
+            // The web layer draws its own viewfinder; the preview only needs somewhere to go
+            previewTexture = new SurfaceTexture(0);
+            opened.setPreviewTexture(previewTexture);
+            pipeline.start();
+            opened.startPreview();
+
+            JSObject result = new JSObject();
+            result.put("width", width);
+            result.put("height", height);
+            Log.d(TAG, "Scanning at " + width + "x" + height);
+            call.resolve(result);
+        } catch (Exception e) {
+            Log.e(TAG, "Error starting barcode scan", e);
+            releaseCamera();
+            call.reject("Failed to start scan: " + e.getMessage());
+        }
+    }
+
+    @PluginMethod
+    public void stopScan(PluginCall call) {
+        releaseCamera();
+        call.resolve();
+    }
+
+    /**
+     * Preload medications so scans resolve without a round trip to the web layer
+     */
+    @PluginMethod
+    public void cacheMedications(PluginCall call) {
+        JSArray medications = call.getArray("medications");
+        int cached = 0;
+        for (int i = 0; medications != null && i < medications.length(); i++) {
+            JSONObject item = medications.optJSONObject(i);
+            if (item == null || item.optString("ndcNumber", "").isEmpty()) {
+                continue;
+            }
+            MedicationLookup.Medication medication = new MedicationLookup.Medication();
+            medication.ndc = item.optString("ndcNumber");
+            medication.name = item.optString("name", null);
+            medication.genericName = item.optString("genericName", null);
+            medication.dosage = item.optString("dosage", null);
+            medication.manufacturer = item.optString("manufacturer", null);
+            lookup.put(medication);
+            cached++;
+        }
+
+        JSObject result = new JSObject();
+        result.put("cached", cached);
+        result.put("cacheSize", lookup.size());
+        call.resolve(result);
+    }
+
+    @PluginMethod
+    public void getScanStats(PluginCall call) {
+        JSObject result = new JSObject();
+        BarcodeFramePipeline current = pipeline;
+        if (current != null) {
+            BarcodeFramePipeline.Stats stats = current.getStats();
+            result.put("framesOffered", stats.framesOffered);
+            result.put("framesDropped", stats.framesDropped);
+            result.put("framesDecoded", stats.framesDecoded);
+            result.put("barcodesFound", stats.barcodesFound);
+            result.put("framesFailed", stats.framesFailed);
+            result.put("averageDecodeMs", stats.averageDecodeMs);
+        }
+        result.put("scanning", current != null && current.getStats().running);
+        result.put("lookupHits", lookup.getHits());
+        result.put("lookupMisses", lookup.getMisses());
+        result.put("cacheSize", lookup.size());
+        call.resolve(result);
+    }
+
+    private void onScanned(BarcodeFramePipeline.ScanResult scan) {
+        JSObject event = new JSObject();
+        event.put("barcode", scan.text);
+        event.put("format", scan.format);
+        event.put("ndcNumber", scan.ndc);
+        event.put("decodeMs", scan.decodeNanos / 1_000_000.0);
+        if (scan.medication != null) {
+            JSObject medication = new JSObject();
+            medication.put("ndcNumber", scan.medication.ndc);
+            medication.put("name", scan.medication.name);
+            medication.put("genericName", scan.medication.genericName);
+            medication.put("dosage", scan.medication.dosage);
+            medication.put("manufacturer", scan.medication.manufacturer);
+            event.put("medication", medication);
+        }
+        notifyListeners("barcodeScanned", event);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void releaseCamera() {
+        if (pipeline != null) {
+            pipeline.stop();
+            pipeline = null;
+        }
+        if (camera != null) {
+            try {
+                camera.setPreviewCallbackWithBuffer(null);
+                camera.stopPreview();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Error stopping preview", e);
+            }
+            camera.release();
+            camera = null;
+        }
+        if (previewTexture != null) {
+            previewTexture.release();
+            previewTexture = null;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static int backCameraId() {
+        Camera.CameraInfo info = new Camera.CameraInfo();
+        for (int id = 0; id < Camera.getNumberOfCameras(); id++) {
+            Camera.getCameraInfo(id, info);
+            if (info.facing == Camera.CameraInfo.CAMERA_FACING_BACK) {
+                return id;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The supported size closest in width to the target; larger frames only slow decoding
+     */
+    @SuppressWarnings("deprecation")
+    private static Camera.Size choosePreviewSize(List<Camera.Size> sizes) {
+        Camera.Size best = sizes.get(0);
+        for (Camera.Size size : sizes) {
+            if (Math.abs(size.width - TARGET_PREVIEW_WIDTH) < Math.abs(best.width - TARGET_PREVIEW_WIDTH)) {
+                best = size;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    protected void handleOnPause() {
+        super.handleOnPause();
+        releaseCamera();
+    }
+
+    @Override
+    protected void handleOnDestroy() {
+        super.handleOnDestroy();
+        releaseCamera();
+        Log.d(TAG, "BarcodeScanner plugin destroyed");
+    }
+}
@@ -25,6 +25,8 @@ public class MainActivity extends BridgeActivity {
         // Register custom plugins
         registerPlugin(GemmaAIPlugin.class);
         Log.d(TAG, "GemmaAI plugin registered");
+        registerPlugin(BarcodeScannerPlugin.class);
+        Log.d(TAG, "BarcodeScanner plugin registered");
 
         // Configure window for elderly-friendly display
         configureWindow();
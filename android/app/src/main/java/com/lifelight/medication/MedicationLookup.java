@@ -0,0 +1,118 @@
+package com.lifelight.medication;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cached medication lookup by NDC for the barcode scanner
+ * The medication database lives in the web layer, which preloads the entries it
+ * expects to be scanned; anything else falls through to an optional source and
+ * is cached on the way back. Keys are NDC digits without dashes, so
+ * "0093-1079-01" and a scanned "0093107901" meet.
+ */
+public class MedicationLookup {
+
+    /**
+     * A medication as the scan screen shows it
+     */
+    public static class Medication {
+        public String ndc;
+        public String name;
+        public String genericName;
+        public String dosage;
+        public String manufacturer;
+    }
+
+    /**
+     * Slower lookup behind the cache; returns null when the NDC is unknown
+     */
+    public interface Source {
+        Medication find(String ndc);
+    }
+
+    private final int capacity;
+    private final Source source;
+    // Access order, least recently used first
+    private final LinkedHashMap<String, Medication> cache;
+    private long hits = 0;
+    private long misses = 0;
+
+    public MedicationLookup(int capacity, Source source) {
+        this.capacity = capacity;
+        this.source = source;
+        this.cache = new LinkedHashMap<String, Medication>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Medication> eldest) {
+                return size() > MedicationLookup.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * The 10-digit NDC carried by a pharmacy barcode, or null if it holds none.
+     * UPC-A codes for drugs are "3" + NDC + check digit; GS1 codes (GTIN-14 or a
+     * DataMatrix with AI 01) carry "03" + NDC + check digit after the indicator.
+     */
+    public static String ndcFromBarcode(String text) {
+        String digits = text;
+        if (digits.startsWith("01") && digits.length() >= 16) {
+            digits = digits.substring(2, 16); // GS1 element string: (01) then the GTIN-14
+        }
+        if (!digits.matches("\\d+")) {
+            return null;
+        }
+        if (digits.length() == 12 && digits.charAt(0) == '3') {
+            return digits.substring(1, 11);
+        }
+        if (digits.length() == 14 && digits.startsWith("03", 1)) {
+            return digits.substring(3, 13);
+        }
+        if (digits.length() == 13 && digits.startsWith("03")) {
+            return digits.substring(2, 12); // EAN-13 form of the UPC-A
+        }
+        return null;
+    }
+
+    /**
+     * Cache key for an NDC in any dash layout
+     */
+    public static String key(String ndc) {
+        return ndc.replaceAll("[^0-9]", "");
+    }
+
+    public synchronized void put(Medication medication) {
+        cache.put(key(medication.ndc), medication);
+    }
+
+    public Medication find(String ndc) {
+        String key = key(ndc);
+        synchronized (this) {
+            Medication cached = cache.get(key);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+        }
+
+        Medication found = source != null ? source.find(key) : null;
+        if (found != null) {
+            synchronized (this) {
+                cache.put(key, found);
+            }
+        }
+        return found;
+    }
+
+    public synchronized int size() {
+        return cache.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
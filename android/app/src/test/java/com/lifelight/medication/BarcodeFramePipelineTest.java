@@ -0,0 +1,118 @@
+package com.lifelight.medication;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.oned.UPCAWriter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class BarcodeFramePipelineTest {
+
+    private static final int WIDTH = 480;
+    private static final int HEIGHT = 160;
+
+    private BarcodeFramePipeline pipeline;
+
+    @After
+    public void tearDown() {
+        if (pipeline != null) {
+            pipeline.stop();
+        }
+    }
+
+    @Test
+    public void badFrameIsSkippedAndScanningContinues() throws Exception {
+        BlockingQueue<String> scanned = new LinkedBlockingQueue<>();
+        BlockingQueue<RuntimeException> failed = new LinkedBlockingQueue<>();
+        pipeline = new BarcodeFramePipeline(new MedicationLookup(16, null), new BarcodeFramePipeline.Listener() {
+            @Override
+            public void onScanned(BarcodeFramePipeline.ScanResult result) {
+                scanned.add(result.text);
+            }
+
+            @Override
+            public void onFrameFailed(RuntimeException error, long failures) {
+                failed.add(error);
+            }
+        }, buffer -> { });
+        pipeline.start();
+
+        // Smaller than the size it claims
+        pipeline.offer(new byte[16], WIDTH, HEIGHT);
+        assertTrue(failed.poll(5, TimeUnit.SECONDS) instanceof IllegalArgumentException);
+
+        pipeline.offer(upcA("300931079015"), WIDTH, HEIGHT);
+        assertEquals("300931079015", scanned.poll(5, TimeUnit.SECONDS));
+        BarcodeFramePipeline.Stats stats = pipeline.getStats();
+        assertEquals(1, stats.framesFailed);
+        assertTrue(stats.running);
+    }
+
+    @Test
+    public void throwingListenerDoesNotStopTheWorker() throws Exception {
+        BlockingQueue<String> scanned = new LinkedBlockingQueue<>();
+        BlockingQueue<RuntimeException> failed = new LinkedBlockingQueue<>();
+        pipeline = new BarcodeFramePipeline(new MedicationLookup(16, null), new BarcodeFramePipeline.Listener() {
+            @Override
+            public void onScanned(BarcodeFramePipeline.ScanResult result) {
+                scanned.add(result.text);
+                if (scanned.size() == 1) {
+                    throw new IllegalStateException("bridge gone");
+                }
+            }
+
+            @Override
+            public void onFrameFailed(RuntimeException error, long failures) {
+                failed.add(error);
+            }
+        }, buffer -> { });
+        pipeline.start();
+
+        pipeline.offer(upcA("300931079015"), WIDTH, HEIGHT);
+        assertNotNull(failed.poll(5, TimeUnit.SECONDS));
+        pipeline.offer(upcA("312345678906"), WIDTH, HEIGHT);
+        assertEquals("300931079015", scanned.poll(5, TimeUnit.SECONDS));
+        assertEquals("312345678906", scanned.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void statsShowTheWorkerStopped() {
+        pipeline = new BarcodeFramePipeline(new MedicationLookup(16, null), result -> { }, buffer -> { });
+        pipeline.start();
+        assertTrue(pipeline.getStats().running);
+        pipeline.stop();
+        assertFalse(pipeline.getStats().running);
+    }
+
+    @Test
+    public void regionMustBeNonEmptyAndInsideTheFrame() {
+        assertTrue(BarcodeFramePipeline.isValidRegion(0, 0.25f, 1, 0.75f));
+        assertFalse(BarcodeFramePipeline.isValidRegion(0.5f, 0, 0.5f, 1));
+        assertFalse(BarcodeFramePipeline.isValidRegion(-0.1f, 0, 1, 1));
+        assertFalse(BarcodeFramePipeline.isValidRegion(0, 0, 1, Float.NaN));
+    }
+
+    /**
+     * A UPC-A symbol as a WIDTH x HEIGHT luminance plane
+     */
+    private static byte[] upcA(String digits) throws Exception {
+        BitMatrix matrix = new UPCAWriter().encode(digits, BarcodeFormat.UPC_A, WIDTH, HEIGHT);
+        byte[] frame = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                frame[y * WIDTH + x] = matrix.get(x, y) ? 0 : (byte) 255;
+            }
+        }
+        return frame;
+    }
+}
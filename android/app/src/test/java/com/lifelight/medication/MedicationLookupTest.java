@@ -0,0 +1,86 @@
+package com.lifelight.medication;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class MedicationLookupTest {
+
+    @Test
+    public void ndcFromUpcA() {
+        assertEquals("0093107901", MedicationLookup.ndcFromBarcode("300931079016"));
+    }
+
+    @Test
+    public void ndcFromEan13() {
+        assertEquals("0093107901", MedicationLookup.ndcFromBarcode("0300931079016"));
+    }
+
+    @Test
+    public void ndcFromGtin14() {
+        // Indicator digit, then "03" + NDC + check digit
+        assertEquals("1234567890", MedicationLookup.ndcFromBarcode("00312345678906"));
+    }
+
+    @Test
+    public void ndcFromGs1ElementString() {
+        assertEquals("1234567890", MedicationLookup.ndcFromBarcode("0100312345678906172512311012345"));
+    }
+
+    @Test
+    public void noNdcInOtherCodes() {
+        assertNull(MedicationLookup.ndcFromBarcode("012345678905")); // UPC-A outside number system 3
+        assertNull(MedicationLookup.ndcFromBarcode("4006381333931")); // retail EAN-13
+        assertNull(MedicationLookup.ndcFromBarcode("https://example.com"));
+        assertNull(MedicationLookup.ndcFromBarcode(""));
+    }
+
+    @Test
+    public void keyIgnoresDashes() {
+        assertEquals("0093107901", MedicationLookup.key("0093-1079-01"));
+    }
+
+    @Test
+    public void cachesSourceResults() {
+        final AtomicInteger calls = new AtomicInteger();
+        MedicationLookup lookup = new MedicationLookup(2, ndc -> {
+            calls.incrementAndGet();
+            if (!ndc.startsWith("1")) {
+                return null;
+            }
+            MedicationLookup.Medication medication = new MedicationLookup.Medication();
+            medication.ndc = ndc;
+            return medication;
+        });
+
+        MedicationLookup.Medication first = lookup.find("1000-0000-01");
+        assertSame(first, lookup.find("1000000001"));
+        assertNull(lookup.find("2000000001"));
+        assertNull(lookup.find("2000000001"));
+        assertEquals(3, calls.get());
+        assertEquals(1, lookup.getHits());
+        assertEquals(3, lookup.getMisses());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        MedicationLookup lookup = new MedicationLookup(2, null);
+        lookup.put(medication("1"));
+        lookup.put(medication("2"));
+        lookup.find("1");
+        lookup.put(medication("3"));
+        assertEquals(2, lookup.size());
+        assertNull(lookup.find("2"));
+        assertEquals("1", lookup.find("1").ndc);
+    }
+
+    private static MedicationLookup.Medication medication(String ndc) {
+        MedicationLookup.Medication medication = new MedicationLookup.Medication();
+        medication.ndc = ndc;
+        return medication;
+    }
+}
@@ -0,0 +1,287 @@
+package com.lifelight.medication.tools;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.Result;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.oned.UPCAWriter;
+import com.lifelight.medication.BarcodeFramePipeline;
+import com.lifelight.medication.MedicationLookup;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.ImageIO;
+
+/**
+ * Benchmark for the barcode decode pipeline over a folder of sample images.
+ * Reports per-frame decode latency for the region of interest, then plays the
+ * images through BarcodeFramePipeline at a camera frame rate with a fixed pool
+ * of frame buffers, as the scanner plugin does, and reports drops and results.
+ *
+ * Needs only the JDK and the zxing core jar, so it runs on a Linux box:
+ *
+ *   javac -cp core-3.5.2.jar -d out \
+ *       android/app/src/main/java/com/lifelight/medication/{BarcodeFramePipeline,MedicationLookup}.java \
+ *       android/app/tools/BarcodeBenchmark.java
+ *   java -cp out:core-3.5.2.jar com.lifelight.medication.tools.BarcodeBenchmark \
+ *       --images samples/ --fps 30 --seconds 5 --roi 0.1,0.3,0.9,0.7
+ *
+ * With --generate N, writes N synthetic drug UPC-A images (random NDCs, slight
+ * noise) into the folder first, so there is something to run against.
+ */
+public class BarcodeBenchmark {
+
+    private static final int FRAME_BUFFERS = 3;
+
+    static class Options {
+        File images;
+        int generate = 0;
+        int fps = 30;
+        int seconds = 5;
+        int iterations = 3;
+        float[] roi = {0f, 0f, 1f, 1f};
+    }
+
+    /**
+     * A sample image as a camera would deliver it: NV21-sized, luminance first
+     */
+    static class Frame {
+        final String name;
+        final int width;
+        final int height;
+        final byte[] luminance;
+
+        Frame(String name, int width, int height, byte[] luminance) {
+            this.name = name;
+            this.width = width;
+            this.height = height;
+            this.luminance = luminance;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = parse(args);
+        if (options.generate > 0) {
+            generate(options.images, options.generate);
+        }
+
+        List<Frame> frames = load(options.images);
+        if (frames.isEmpty()) {
+            throw new IllegalArgumentException("No readable images in " + options.images);
+        }
+        System.out.printf(Locale.ROOT, "%d images, ROI %s%n", frames.size(), Arrays.toString(options.roi));
+
+        MedicationLookup lookup = new MedicationLookup(512, null);
+        measureDecode(frames, lookup, options);
+        measurePipeline(frames, lookup, options);
+    }
+
+    /**
+     * Decode every image directly, without the worker, and report latency
+     */
+    private static void measureDecode(List<Frame> frames, MedicationLookup lookup, Options options) {
+        BarcodeFramePipeline pipeline = new BarcodeFramePipeline(lookup, result -> { }, buffer -> { });
+        pipeline.setRegionOfInterest(options.roi[0], options.roi[1], options.roi[2], options.roi[3]);
+
+        // One untimed pass so class loading and JIT do not land in the numbers
+        for (Frame frame : frames) {
+            pipeline.decode(frame.luminance, frame.width, frame.height);
+        }
+
+        List<Double> latencies = new ArrayList<>();
+        int found = 0;
+        int withNdc = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < options.iterations; i++) {
+            for (Frame frame : frames) {
+                long frameStart = System.nanoTime();
+                Result result = pipeline.decode(frame.luminance, frame.width, frame.height);
+                if (result != null) {
+                    found++;
+                    if (pipeline.toScanResult(result, 0).ndc != null) {
+                        withNdc++;
+                    }
+                }
+                latencies.add((System.nanoTime() - frameStart) / 1_000_000.0);
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        Collections.sort(latencies);
+        System.out.printf(Locale.ROOT, "decode: %d frames, %.1f%% found, %.1f%% with NDC, %.1f frames/s%n",
+            latencies.size(), 100.0 * found / latencies.size(), 100.0 * withNdc / latencies.size(),
+            latencies.size() / seconds);
+        System.out.printf(Locale.ROOT, "  latency ms p50 %.2f  p90 %.2f  p99 %.2f  max %.2f%n",
+            percentile(latencies, 0.50), percentile(latencies, 0.90), percentile(latencies, 0.99),
+            latencies.get(latencies.size() - 1));
+    }
+
+    /**
+     * Offer frames at the camera rate through the worker, with a fixed buffer pool
+     */
+    private static void measurePipeline(List<Frame> frames, MedicationLookup lookup, Options options)
+            throws InterruptedException {
+        int maxBytes = 0;
+        for (Frame frame : frames) {
+            maxBytes = Math.max(maxBytes, frame.luminance.length);
+        }
+        ArrayDeque<byte[]> pool = new ArrayDeque<>();
+        for (int i = 0; i < FRAME_BUFFERS; i++) {
+            pool.add(new byte[maxBytes]);
+        }
+
+        AtomicLong scanned = new AtomicLong();
+        BarcodeFramePipeline pipeline = new BarcodeFramePipeline(lookup, result -> scanned.incrementAndGet(),
+            buffer -> {
+                synchronized (pool) {
+                    pool.add(buffer);
+                }
+            });
+        pipeline.setRegionOfInterest(options.roi[0], options.roi[1], options.roi[2], options.roi[3]);
+        pipeline.start();
+
+        long interval = 1_000_000_000L / options.fps;
+        long end = System.nanoTime() + options.seconds * 1_000_000_000L;
+        long next = System.nanoTime();
+        long starved = 0;
+        int index = 0;
+        while (next < end) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            }
+            next += interval;
+
+            byte[] buffer;
+            synchronized (pool) {
+                buffer = pool.poll();
+            }
+            if (buffer == null) {
+                starved++; // the camera would skip this frame too
+                continue;
+            }
+            Frame frame = frames.get(index++ % frames.size());
+            System.arraycopy(frame.luminance, 0, buffer, 0, frame.luminance.length);
+            pipeline.offer(buffer, frame.width, frame.height);
+        }
+        pipeline.stop();
+
+        BarcodeFramePipeline.Stats stats = pipeline.getStats();
+        System.out.printf(Locale.ROOT, "pipeline: %d fps for %ds, %d offered, %d dropped, %d decoded, "
+                + "%d buffer-starved, %d reported (repeats suppressed), avg decode %.2f ms%n",
+            options.fps, options.seconds, stats.framesOffered, stats.framesDropped, stats.framesDecoded,
+            starved, scanned.get(), stats.averageDecodeMs);
+    }
+
+    private static List<Frame> load(File folder) throws IOException {
+        File[] files = folder.listFiles();
+        List<Frame> frames = new ArrayList<>();
+        if (files == null) {
+            return frames;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            BufferedImage image = ImageIO.read(file);
+            if (image == null) {
+                continue;
+            }
+            int width = image.getWidth() & ~1;
+            int height = image.getHeight() & ~1;
+            byte[] luminance = new byte[width * height * 3 / 2];
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                image.getRGB(0, y, width, 1, row, 0, width);
+                for (int x = 0; x < width; x++) {
+                    int rgb = row[x];
+                    int r = (rgb >> 16) & 0xff;
+                    int g = (rgb >> 8) & 0xff;
+                    int b = rgb & 0xff;
+                    luminance[y * width + x] = (byte) ((r * 77 + g * 150 + b * 29) >> 8);
+                }
+            }
+            frames.add(new Frame(file.getName(), width, height, luminance));
+        }
+        return frames;
+    }
+
+    /**
+     * Write drug UPC-A barcodes ("3" + random NDC) centred on a noisy 1280x720 frame
+     */
+    private static void generate(File folder, int count) throws Exception {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("Unable to create " + folder);
+        }
+        Random random = new Random(42);
+        UPCAWriter writer = new UPCAWriter();
+        for (int i = 0; i < count; i++) {
+            StringBuilder digits = new StringBuilder("3");
+            for (int d = 0; d < 10; d++) {
+                digits.append(random.nextInt(10));
+            }
+            BitMatrix matrix = writer.encode(digits.toString(), BarcodeFormat.UPC_A, 640, 240);
+
+            BufferedImage image = new BufferedImage(1280, 720, BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = image.createGraphics();
+            graphics.setColor(java.awt.Color.LIGHT_GRAY);
+            graphics.fillRect(0, 0, 1280, 720);
+            graphics.dispose();
+            int left = (1280 - matrix.getWidth()) / 2;
+            int top = (720 - matrix.getHeight()) / 2;
+            for (int y = 0; y < 720; y++) {
+                for (int x = 0; x < 1280; x++) {
+                    int value = 200;
+                    int mx = x - left;
+                    int my = y - top;
+                    if (mx >= 0 && my >= 0 && mx < matrix.getWidth() && my < matrix.getHeight()) {
+                        value = matrix.get(mx, my) ? 30 : 235;
+                    }
+                    value = Math.max(0, Math.min(255, value + random.nextInt(31) - 15));
+                    image.setRGB(x, y, value << 16 | value << 8 | value);
+                }
+            }
+            ImageIO.write(image, "png", new File(folder, String.format(Locale.ROOT, "upc-%03d.png", i)));
+        }
+        System.out.printf(Locale.ROOT, "Generated %d images in %s%n", count, folder);
+    }
+
+    private static double percentile(List<Double> sorted, double p) {
+        return sorted.get(Math.min(sorted.size() - 1, (int) (p * sorted.size())));
+    }
+
+    private static Options parse(String[] args) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++) {
+            String value = i + 1 < args.length ? args[i + 1] : null;
+            switch (args[i]) {
+                case "--images": options.images = new File(value); i++; break;
+                case "--generate": options.generate = Integer.parseInt(value); i++; break;
+                case "--fps": options.fps = Integer.parseInt(value); i++; break;
+                case "--seconds": options.seconds = Integer.parseInt(value); i++; break;
+                case "--iterations": options.iterations = Integer.parseInt(value); i++; break;
+                case "--roi":
+                    String[] parts = value.split(",");
+                    for (int j = 0; j < 4; j++) {
+                        options.roi[j] = Float.parseFloat(parts[j]);
+                    }
+                    i++;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        if (options.images == null) {
+            throw new IllegalArgumentException("Usage: BarcodeBenchmark --images DIR [--generate N] [--fps N] "
+                + "[--seconds N] [--iterations N] [--roi left,top,right,bottom]");
+        }
+        return options;
+    }
+}